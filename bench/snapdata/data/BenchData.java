@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import snap.web.*;
+
+/**
+ * Builds entities, synthetic rows (with DataGenerator) and data sites for DataBench.
+ */
+public class BenchData {
+
+    // The number of rows
+    int              _rowCount;
+
+    // Whether entity is wide (50 columns) or narrow (5 columns)
+    boolean          _wide;
+
+    // The generator for synthetic rows (seeded so runs are repeatable)
+    DataGenerator    _generator = new DataGenerator();
+
+    // Constants for table names
+    public static final String ITEM = "Item", GROUP = "Group";
+
+    // The number of Group rows
+    public static final int GROUP_COUNT = 100;
+
+/**
+ * Creates a new BenchData for given row count and width.
+ */
+public BenchData(int aRowCount, boolean isWide)
+{
+    _rowCount = aRowCount; _wide = isWide;
+    _generator.setSeed(42);
+    _generator.setRowCount(ITEM, aRowCount); _generator.setRowCount(GROUP, GROUP_COUNT);
+}
+
+/**
+ * Returns the row count.
+ */
+public int getRowCount()  { return _rowCount; }
+
+/**
+ * Returns whether entity is wide.
+ */
+public boolean isWide()  { return _wide; }
+
+/**
+ * Returns a new Group entity.
+ */
+public Entity createGroupEntity()
+{
+    Entity entity = new Entity(GROUP);
+    Property id = new Property("Id", Property.NumberType.Integer); id.setPrimary(true);
+    entity.addProperty(id, new Property("Name", Property.Type.String));
+    return entity;
+}
+
+/**
+ * Returns a new Item entity (5 columns plus a Group relation if narrow, 50 columns plus relation if wide).
+ */
+public Entity createItemEntity()
+{
+    // Create entity with primary and standard columns
+    Entity entity = new Entity(ITEM);
+    Property id = new Property("Id", Property.NumberType.Integer); id.setPrimary(true);
+    entity.addProperty(id, new Property("Name", Property.Type.String),
+        new Property("Price", Property.NumberType.Double), new Property("Created", Property.DateType.DateTime),
+        new Property("Active", Property.Type.Boolean));
+
+    // Add Group relation
+    Property group = new Property("Group", Property.Type.Relation);
+    group.getJoin().setEntityName(GROUP);
+    entity.addProperty(group);
+
+    // If wide, add more columns of mixed types
+    if(_wide)
+        for(int i=entity.getPropertyCount(); i<50; i++) {
+            Object type = i%3==0? Property.NumberType.Long : i%3==1? Property.NumberType.Double : Property.Type.String;
+            entity.addProperty(new Property("Field" + i, type));
+        }
+
+    // Return entity
+    return entity;
+}
+
+/**
+ * Returns a list of maps of string values for Item entity.
+ */
+public List <Map> createItemMaps(Entity anEntity)
+{
+    List <Map> maps = new ArrayList(_rowCount);
+    for(int i=0; i<_rowCount; i++) maps.add(_generator.createStringMap(anEntity, i));
+    return maps;
+}
+
+/**
+ * Creates a new directory based FileDataSite with Group and Item tables and generated data files.
+ */
+public FileDataSite createSite() throws Exception
+{
+    FileDataSite site = createEmptySite();
+    _generator.generate(site);
+    return site;
+}
+
+/**
+ * Creates a new directory based FileDataSite with empty Group and Item tables.
+ */
+public FileDataSite createEmptySite() throws Exception
+{
+    // Create site in temp directory
+    File dir = Files.createTempDirectory("DataBench").toFile();
+    WebSite wsite = WebURL.getURL(dir).getAsSite();
+    FileDataSite site = new FileDataSite(); site.setSite(wsite);
+
+    // Create Group and Item tables
+    site.createTable(createGroupEntity(), null);
+    site.createTable(createItemEntity(), null);
+    return site;
+}
+
+/**
+ * Deletes the temp directory of a site from createSite() or createEmptySite() (deleteOnExit can't remove a non-empty
+ * directory).
+ */
+public void deleteSite(FileDataSite aSite) throws IOException
+{
+    File file = aSite.getDataJavaFile(ITEM), dir = file!=null? file.getParentFile() : null; if(dir==null) return;
+    try (Stream <Path> paths = Files.walk(dir.toPath())) {
+        paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete); }
+}
+
+/**
+ * Returns a new FileDataSite for the same WebSite as given site (nothing loaded).
+ */
+public FileDataSite reopenSite(DataSite aSite)
+{
+    FileDataSite site = new FileDataSite(); site.setSite(aSite.getSite());
+    return site;
+}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Micro-benchmarks for snapdata.data hot paths (CSV parsing, data file load/save, scans, Row access, RowLink
+ * resolution and bulk import) over synthetic narrow (5 column) and wide (50 column) tables.
+ *
+ * Usage: DataBench [-rows 1000,100000] [-shape narrow,wide] [-only name] [-save file] [-baseline file]
+ *
+ * Each benchmark is warmed up, then timed over repeated runs; results are reported as milliseconds per run.
+ * With -save, results are written as "name ms" lines; with -baseline, results are compared to a saved file and
+ * anything more than 10% slower is flagged as a regression.
+ */
+public class DataBench {
+
+    // The results (benchmark name to ms per run)
+    Map <String,Double>   _results = new LinkedHashMap();
+
+    // The benchmark name filter
+    String                _only;
+
+    // Warmup and measure times in millis
+    static final long WARMUP_MILLIS = 1000, MEASURE_MILLIS = 2000;
+
+    // Sink for benchmark results, so JIT can't eliminate work
+    static volatile Object _sink;
+
+/**
+ * Runs benchmarks for given data.
+ */
+public void runAll(BenchData aData) throws Exception
+{
+    // Get name prefix, create site and load tables
+    String prefix = aData.getRowCount() + (aData.isWide()? "/wide/" : "/narrow/");
+    FileDataSite site = aData.createSite();
+    Entity entity = site.getTable(BenchData.ITEM).getEntity();
+    String csv = site.getDataFile(BenchData.ITEM, false).getText();
+
+    // CSVReader
+    run(prefix + "CSVReader.readFromString", () -> new CSVReader().readFromString(csv, entity));
+    run(prefix + "CSVReader.guessFormat", () -> { CSVReader r = new CSVReader(); r.guessFormat(csv); return r; });
+
+    // FileDataSite read and save data file
+    run(prefix + "FileDataSite.readDataFile", () -> aData.reopenSite(site).readDataFile(BenchData.ITEM));
+    site.getRows(BenchData.ITEM);
+    run(prefix + "FileDataSite.saveDataFile", () -> { site.saveDataFile(BenchData.ITEM); return site; });
+
+    // FileDataSite getRowsImpl with simple condition and condition list
+    DataTable table = site.getTable(BenchData.ITEM);
+    Query query1 = new Query(entity); query1.addCondition("Price", Condition.Operator.GreaterThan, 500);
+    run(prefix + "FileDataSite.getRowsImpl(Condition)", () -> site.getRowsImpl(table, query1));
+    Query query2 = new Query(entity); query2.addCondition("Price", Condition.Operator.GreaterThan, 500);
+    query2.addCondition("Name", Condition.Operator.StartsWith, "Name1");
+    query2.addCondition("Active", Condition.Operator.Equals, true);
+    run(prefix + "FileDataSite.getRowsImpl(ConditionList)", () -> site.getRowsImpl(table, query2));
+
+    // Row put/get over all rows and properties
+    List <Row> rows = site.getRows(BenchData.ITEM);
+    Property props[] = entity.getProperties().stream().filter(p -> !p.isPrimary() && !p.isRelation())
+        .toArray(Property[]::new);
+    run(prefix + "Row.get", () -> { Object v = null;
+        for(Row row : rows) for(Property p : props) v = row.get(p.getName()); return v; });
+
+    // Row.put alternates two distinct values per property, so each put is a real change (not identical value return)
+    Object values[][] = getDistinctValues(rows, props);
+    run(prefix + "Row.put", () -> { int i = 0;
+        for(Row row : rows) { int ind = i++%props.length; Property p = props[ind]; Object vals[] = values[ind];
+            row.put(p.getName(), Objects.equals(row.get(p), vals[0])? vals[1] : vals[0]); }
+        return rows; });
+
+    // RowLink resolution
+    Property relation = entity.getProperty("Group");
+    run(prefix + "RowLink.getRemoteRow", () -> { Object v = null;
+        for(Row row : rows) v = new RowLink(row, relation, row.getValue(relation)).getRemoteRow(); return v; });
+
+    // BulkImporter (into a new empty site for each run, created and deleted outside timing)
+    List <Map> maps = aData.createItemMaps(entity);
+    Map <String,List<Map>> imaps = new HashMap(); imaps.put(BenchData.ITEM, maps);
+    run(prefix + "BulkImporter.bulkImport", () -> aData.createEmptySite(), aSite -> aData.deleteSite(aSite),
+        aSite -> { new BulkImporter(aSite).bulkImport(imaps); return aSite; });
+
+    // Delete site
+    aData.deleteSite(site);
+}
+
+/**
+ * Returns two distinct values for each given property, taken from given rows (second is null if all are equal).
+ */
+Object[][] getDistinctValues(List <Row> theRows, Property theProps[])
+{
+    Object values[][] = new Object[theProps.length][2];
+    for(int i=0; i<theProps.length; i++) { Property prop = theProps[i];
+        values[i][0] = theRows.size()>0? theRows.get(0).get(prop) : null;
+        for(Row row : theRows) { Object val = row.get(prop);
+            if(!Objects.equals(val, values[i][0])) { values[i][1] = val; break; } }
+    }
+    return values;
+}
+
+/**
+ * Runs a benchmark: warms up, then times repeated runs and records ms per run.
+ */
+public void run(String aName, Bench aBench) throws Exception
+{
+    run(aName, () -> null, anObj -> { }, anObj -> aBench.run());
+}
+
+/**
+ * Runs a benchmark with a fixture created before and disposed after each run (neither timed): warms up, then times
+ * repeated runs and records ms per run.
+ */
+public <T> void run(String aName, Setup <T> aSetup, Teardown <T> aTeardown, BenchWith <T> aBench) throws Exception
+{
+    // If filtered out, just return
+    if(_only!=null && !aName.contains(_only)) return;
+
+    // Warm up
+    long end = System.currentTimeMillis() + WARMUP_MILLIS;
+    do { T obj = aSetup.create(); _sink = aBench.run(obj); aTeardown.dispose(obj); }
+    while(System.currentTimeMillis()<end);
+
+    // Measure (at least one run), timing just benchmark body
+    int count = 0; long nanos = 0, stop = System.nanoTime() + MEASURE_MILLIS*1000000L;
+    do { T obj = aSetup.create(); long start = System.nanoTime();
+        _sink = aBench.run(obj); nanos += System.nanoTime() - start; count++;
+        aTeardown.dispose(obj); }
+    while(System.nanoTime()<stop);
+
+    // Record and report result
+    double ms = nanos/1e6/count;
+    _results.put(aName, ms);
+    System.out.println(String.format("%-60s %12.3f ms  (%d runs)", aName, ms, count));
+}
+
+/**
+ * Writes results to file.
+ */
+public void save(File aFile) throws IOException
+{
+    try(PrintWriter pw = new PrintWriter(new FileWriter(aFile))) {
+        for(Map.Entry <String,Double> entry : _results.entrySet())
+            pw.println(entry.getKey() + " " + entry.getValue()); }
+}
+
+/**
+ * Compares results to baseline file, reports regressions (more than 10% slower) and returns regression count.
+ */
+public int compare(File aFile) throws IOException
+{
+    int regressions = 0;
+    try(BufferedReader reader = new BufferedReader(new FileReader(aFile))) {
+        for(String line=reader.readLine(); line!=null; line=reader.readLine()) {
+            int ind = line.lastIndexOf(' '); if(ind<0) continue;
+            String name = line.substring(0, ind); double base = Double.parseDouble(line.substring(ind+1));
+            Double ms = _results.get(name); if(ms==null) continue;
+            double change = (ms - base)/base*100;
+            boolean regressed = change>10; if(regressed) regressions++;
+            System.out.println(String.format("%-60s %+8.1f%% %s", name, change, regressed? "REGRESSION" : ""));
+        }
+    }
+    return regressions;
+}
+
+/**
+ * Main method.
+ */
+public static void main(String args[]) throws Exception
+{
+    // Get args
+    String rows = "1000,100000", shapes = "narrow,wide"; File saveFile = null, baseFile = null;
+    DataBench bench = new DataBench();
+    for(int i=0; i+1<args.length; i+=2) {
+        if(args[i].equals("-rows")) rows = args[i+1];
+        else if(args[i].equals("-shape")) shapes = args[i+1];
+        else if(args[i].equals("-only")) bench._only = args[i+1];
+        else if(args[i].equals("-save")) saveFile = new File(args[i+1]);
+        else if(args[i].equals("-baseline")) baseFile = new File(args[i+1]);
+    }
+
+    // Run benchmarks for each row count and shape
+    for(String count : rows.split(","))
+        for(String shape : shapes.split(","))
+            bench.runAll(new BenchData(Integer.parseInt(count.trim()), shape.trim().equals("wide")));
+
+    // Save and compare results
+    if(saveFile!=null) bench.save(saveFile);
+    if(baseFile!=null && bench.compare(baseFile)>0) System.exit(1);
+}
+
+/**
+ * An interface for a benchmark body.
+ */
+public interface Bench {
+    Object run() throws Exception;
+}
+
+/**
+ * An interface for a benchmark body that runs on a fixture.
+ */
+public interface BenchWith <T> {
+    Object run(T anObj) throws Exception;
+}
+
+/**
+ * An interface to create a benchmark fixture (before each run).
+ */
+public interface Setup <T> {
+    T create() throws Exception;
+}
+
+/**
+ * An interface to dispose a benchmark fixture (after each run).
+ */
+public interface Teardown <T> {
+    void dispose(T anObj) throws Exception;
+}
+
+}
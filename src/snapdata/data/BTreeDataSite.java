@@ -0,0 +1,1016 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import snap.web.WebFile;
+
+/**
+ * A DataSite that stores each table in a file of fixed size pages (for read-mostly tables larger than memory): rows
+ * are stored in a B+tree on primary key, with optional secondary B+trees on properties. Pages are read through a
+ * shared BufferPool, so only the pages a query touches are in memory.
+ *
+ * Queries with a primary key condition (equals or range) descend the primary tree and scan leaves, and queries with a
+ * condition on an indexed property scan leaves of its tree and look up each primary key. Other queries scan the
+ * primary tree leaves. Rows are created only for entries that pass the query condition, so a scan never holds the
+ * whole table in memory.
+ *
+ * Keys are encoded so unsigned byte order is value order. Large values go in overflow page chains. Deletes don't
+ * merge pages (freed overflow pages are reused). Entities are still saved as site entity files. Table files go in the
+ * site directory "btree" (or setDirectory()).
+ */
+public class BTreeDataSite extends DataSite {
+
+    // The table file directory
+    File                              _dir;
+
+    // The buffer pool and its size in pages
+    BufferPool                        _pool;
+    int                               _poolPages = 4096;
+
+    // The open table files by table name
+    Map <String,TableFile>            _tableFiles = new ConcurrentHashMap();
+
+    // The page size
+    static final int PAGE_SIZE = BufferPool.DEFAULT_PAGE_SIZE;
+
+    // The max key size and max value size stored in leaf (larger values go in overflow pages)
+    static final int MAX_KEY = PAGE_SIZE/8, MAX_INLINE = PAGE_SIZE/4;
+
+    // The table file magic number ("BTR1") and null page number
+    static final int MAGIC = 0x42545231, NO_PAGE = -1;
+
+/**
+ * Returns the table file directory (default is site directory "btree").
+ */
+public File getDirectory()
+{
+    if(_dir!=null) return _dir;
+    WebFile root = _wsite!=null? _wsite.getFile("/") : null;
+    File dir = root!=null? root.getJavaFile() : null;
+    if(dir==null) throw new RuntimeException("BTreeDataSite.getDirectory: Site has no local directory: " + getName());
+    return _dir = new File(dir, "btree");
+}
+
+/**
+ * Sets the table file directory (before tables are opened).
+ */
+public void setDirectory(File aDir)  { _dir = aDir; }
+
+/**
+ * Returns the buffer pool size in pages.
+ */
+public int getBufferPoolSize()  { return _poolPages; }
+
+/**
+ * Sets the buffer pool size in pages (before tables are opened).
+ */
+public void setBufferPoolSize(int aValue)  { _poolPages = aValue; }
+
+/**
+ * Returns the buffer pool.
+ */
+public synchronized BufferPool getBufferPool()
+{
+    if(_pool!=null) return _pool;
+    return _pool = new BufferPool(PAGE_SIZE, _poolPages);
+}
+
+/**
+ * Returns the table file for given table (opening it if needed).
+ */
+protected TableFile getTableFile(DataTable aTable)
+{
+    // Get table file, just return if found
+    String name = aTable.getName();
+    TableFile tfile = _tableFiles.get(name); if(tfile!=null) return tfile;
+
+    // Create and open table file (synchronized so only one thread opens)
+    synchronized (this) {
+        tfile = _tableFiles.get(name); if(tfile!=null) return tfile;
+        try { tfile = new TableFile(new File(getDirectory(), name + ".btree"), getBufferPool(), aTable.getEntity()); }
+        catch(IOException e) { throw new RuntimeException(e); }
+        _tableFiles.put(name, tfile);
+    }
+    return tfile;
+}
+
+/**
+ * Adds an index for given table and property name (no-op if property is primary or already indexed).
+ */
+public void addIndex(String aTableName, String aPropName) throws IOException
+{
+    DataTable table = getTable(aTableName);
+    Property prop = table!=null? table.getEntity().getProperty(aPropName) : null;
+    if(prop==null || prop.isDerived() || prop.isToMany()) throw new IllegalArgumentException(
+        "BTreeDataSite.addIndex: Not found or not stored: " + aTableName + '.' + aPropName);
+    getTableFile(table).addIndex(prop);
+}
+
+/**
+ * Removes index for given table and property name.
+ */
+public void removeIndex(String aTableName, String aPropName) throws IOException
+{
+    DataTable table = getTable(aTableName);
+    if(table!=null) getTableFile(table).removeIndex(aPropName);
+}
+
+/**
+ * Returns the names of indexed properties for given table name.
+ */
+public Set <String> getIndexNames(String aTableName)
+{
+    DataTable table = getTable(aTableName);
+    if(table==null) return Collections.emptySet();
+    Set <String> names = new TreeSet();
+    for(BTree tree : getTableFile(table)._indexes.values()) names.add(tree._prop.getName());
+    return names;
+}
+
+/**
+ * Override to close and delete table file.
+ */
+protected void deleteTableImpl(DataTable aTable) throws Exception
+{
+    super.deleteTableImpl(aTable);
+    TableFile tfile = getTableFile(aTable);
+    _tableFiles.remove(aTable.getName());
+    tfile.close(false);
+    tfile._pfile.getFile().delete();
+}
+
+/**
+ * Returns a set of rows for the given table and query.
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery) throws IOException
+{
+    return getRowsImpl(aTable, aQuery, null);
+}
+
+/**
+ * Override to get rows with plan.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws IOException
+{
+    return getRowsImpl(aTable, aQuery, aNode);
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node (if not null).
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws IOException
+{
+    // Get table file and entity
+    TableFile tfile = getTableFile(aTable);
+    Entity entity = aTable.getEntity(); String name = aTable.getName();
+    Property primeProp = entity.getPrimary();
+    long start = System.nanoTime(), reads = tfile._pool.getReadCount();
+
+    // Get access path: primary key range, index range or full scan
+    Condition condition = aQuery.getCondition();
+    KeyRange range = KeyRange.get(condition, entity, primeProp); BTree tree = tfile._primary;
+    for(Iterator <BTree> iter = tfile._indexes.values().iterator(); range==null && iter.hasNext(); ) {
+        BTree index = iter.next(); range = KeyRange.get(condition, entity, index._prop); if(range!=null) tree = index; }
+
+    // Get predicate (if plan, with filter node that counts rows for each condition)
+    QueryPlan.Node scanNode = null, filterNode = null;
+    if(aNode!=null) {
+        String path = range==null? "FullScan" : tree!=tfile._primary? "IndexScan" : range.isPoint()? "PrimaryKeyScan" :
+            "RangeScan";
+        scanNode = aNode.addChild(path, name + (tree!=tfile._primary? "." + tree._prop.getName() : "") +
+            (range!=null? " " + range : ""));
+        if(condition!=null) filterNode = aNode.addChild("Filter", null);
+    }
+    Predicate <Object> predicate = filterNode!=null? QueryPlan.getPredicate(condition, entity, filterNode) :
+        aQuery.getPredicate(entity);
+
+    // Scan tree entries in range (under read lock), testing each with a temporary row and keeping matching values
+    List <Object[]> matches = new ArrayList(); int scanned = 0, limit = aQuery.getFetchLimit();
+    boolean sorted = aQuery.getSortCount()==0;
+    tfile._lock.readLock().lock();
+    try {
+        Cursor cursor = tree.getCursor(range);
+        while(cursor.next()) {
+
+            // Get values (from entry, or primary tree for index entry)
+            Map <String,String> values = tree==tfile._primary? tfile.readValues(cursor._value) :
+                tfile.readValues(tfile._primary.get(getIndexPrimaryKey(cursor._key)));
+            if(values==null) continue;
+            if((++scanned & 0xFF)==0) checkCancelled();
+
+            // Create temporary row and test (if passed, add primary value and values)
+            Object pval = primeProp.convertValue(values.get(primeProp.getName()));
+            if(predicate!=null) {
+                Row trow = aTable.newRow(); trow.put(primeProp, pval); trow.initValues(values);
+                if(!predicate.test(trow)) continue;
+            }
+            matches.add(new Object[] { pval, values });
+
+            // If not sorting and fetch limit reached, stop
+            if(sorted && matches.size()>=limit) break;
+        }
+    }
+    finally { tfile._lock.readLock().unlock(); }
+
+    // Create rows for matches (outside table lock, since row creation locks site)
+    List <Row> rows = new ArrayList(matches.size());
+    for(Object match[] : matches) rows.add(createSavedRow(aTable, match[0], (Map)match[1]));
+
+    // Record metrics and plan
+    _metrics.add(name, DataMetrics.Counter.RowsScanned, scanned);
+    if(scanNode!=null) { scanNode.setActualRows(scanned);
+        scanNode.setDetail(scanNode.getDetail() + " pageReads=" + (tfile._pool.getReadCount() - reads));
+        scanNode.setNanos(System.nanoTime() - start); }
+    if(filterNode!=null) { filterNode.setSelectivity(QueryPlan.getSelectivity(condition, entity));
+        filterNode.setInputRows(scanned); filterNode.setActualRows(rows.size()); }
+
+    // Sort rows if query has sorts
+    Comparator <Row> comparator = aQuery.getComparator(entity); start = System.nanoTime();
+    if(comparator!=null) Collections.sort(rows, comparator);
+    if(aNode!=null && comparator!=null) { QueryPlan.Node sortNode = aNode.addChild("Sort", null);
+        sortNode.setInputRows(rows.size()); sortNode.setActualRows(rows.size());
+        sortNode.setNanos(System.nanoTime() - start); }
+
+    // Apply fetch limit and return
+    if(rows.size()>limit)
+        rows = new ArrayList(rows.subList(0, limit));
+    return rows;
+}
+
+/**
+ * Override to return a cursor that scans tree in batches (re-seeking after last key), if query is in tree order.
+ */
+protected RowCursor getRowCursorImpl(DataTable aTable, Query aQuery) throws IOException
+{
+    // Get table file and entity
+    TableFile tfile = getTableFile(aTable);
+    Entity entity = aTable.getEntity(); String name = aTable.getName();
+    Property primeProp = entity.getPrimary();
+
+    // Get access path: primary key range, index range or full scan
+    Condition condition = aQuery.getCondition();
+    KeyRange keyRange = KeyRange.get(condition, entity, primeProp); BTree keyTree = tfile._primary;
+    for(Iterator <BTree> iter = tfile._indexes.values().iterator(); keyRange==null && iter.hasNext(); ) {
+        BTree index = iter.next(); keyRange = KeyRange.get(condition, entity, index._prop);
+        if(keyRange!=null) keyTree = index; }
+
+    // If query sorts other than in tree order, return null (rows are fetched and sorted)
+    if(keyTree==tfile._primary? !isKeyOrder(aQuery, primeProp) : aQuery.getSortCount()>0) return null;
+    Predicate <Object> predicate = aQuery.getPredicate(entity);
+    BTree tree = keyTree; KeyRange range = keyRange;
+
+    // Return cursor
+    return new RowCursor(aQuery.getFetchLimit()) {
+
+        // The last key scanned
+        byte _last[];
+
+        /** Scans next batch of entries after last key (under read lock) and returns rows for matches. */
+        protected List <Row> fetchBatch() throws IOException
+        {
+            // Scan entries until batch of matches (or scan limit) reached, testing each with a temporary row
+            List <Object[]> matches = new ArrayList(); int scanned = 0; boolean more = false;
+            tfile._lock.readLock().lock();
+            try {
+                Cursor cursor = tree.getCursor(range, _last);
+                while(cursor.next()) { _last = cursor._key;
+                    Map <String,String> values = tree==tfile._primary? tfile.readValues(cursor._value) :
+                        tfile.readValues(tfile._primary.get(getIndexPrimaryKey(cursor._key)));
+                    if(values==null) continue;
+                    scanned++;
+                    Object pval = primeProp.convertValue(values.get(primeProp.getName()));
+                    if(predicate!=null) {
+                        Row trow = aTable.newRow(); trow.put(primeProp, pval); trow.initValues(values);
+                        if(!predicate.test(trow)) continue;
+                    }
+                    matches.add(new Object[] { pval, values });
+                    if(matches.size()>=BATCH_SIZE) break;
+                    if(scanned>=BATCH_SIZE*16) { more = true; break; }
+                }
+                if(matches.size()>=BATCH_SIZE) more = true;
+            }
+            finally { tfile._lock.readLock().unlock(); }
+
+            // Create rows for matches (outside table lock), record metrics and return
+            List <Row> rows = new ArrayList(matches.size());
+            for(Object match[] : matches) rows.add(createCursorRow(aTable, match[0], (Map)match[1]));
+            _metrics.add(name, DataMetrics.Counter.RowsScanned, scanned);
+            if(!more) _done = true;
+            return rows;
+        }
+    };
+}
+
+/**
+ * Inserts or updates a given row.
+ */
+protected void saveRowImpl(Row aRow) throws IOException
+{
+    // Get table file and primary property
+    TableFile tfile = getTableFile(aRow.getTable());
+    Entity entity = aRow.getEntity(); Property primeProp = entity.getPrimary();
+
+    // If new row without primary value, set next primary value
+    if(!aRow.isSaved() && aRow.getValue(primeProp)==null)
+        aRow.put(primeProp, tfile.nextPrimary());
+
+    // Get row values as strings (like data file)
+    Map <String,String> values = new HashMap();
+    for(Property prop : entity.getProperties()) {
+        if(prop.isDerived() || prop.isToMany()) continue;
+        String str = prop.getCodec().format(aRow.getValue(prop));
+        if(str!=null) values.put(prop.getName(), str);
+    }
+
+    // Write row to tables
+    Object pval = aRow.getValue(primeProp);
+    tfile.put(encodeKey(primeProp, pval), values);
+    tfile.notePrimary(pval);
+}
+
+/**
+ * Deletes a given row.
+ */
+protected void deleteRowImpl(Row aRow) throws IOException
+{
+    TableFile tfile = getTableFile(aRow.getTable());
+    Object pval = aRow.getPrimaryValue(); if(pval==null) return;
+    tfile.remove(encodeKey(aRow.getEntity().getPrimary(), pval));
+}
+
+/**
+ * Override to write dirty pages and headers.
+ */
+public void flush() throws Exception
+{
+    for(Map.Entry <String,TableFile> entry : _tableFiles.entrySet()) {
+        TableFile tfile = entry.getValue(); boolean sync = isSync(entry.getKey());
+        tfile.flush(sync);
+        if(sync) _metrics.add(entry.getKey(), DataMetrics.Counter.FileSyncs, 1);
+    }
+    super.flush();
+}
+
+/**
+ * Override to write dirty pages and headers of just given tables.
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception
+{
+    for(DataTable table : theTables) { String name = table.getName();
+        TableFile tfile = _tableFiles.get(name); if(tfile==null) continue;
+        boolean sync = isSync(name);
+        tfile.flush(sync);
+        if(sync) _metrics.add(name, DataMetrics.Counter.FileSyncs, 1);
+    }
+}
+
+/**
+ * Override to close table files.
+ */
+public void close() throws Exception
+{
+    super.close();
+    for(TableFile tfile : _tableFiles.values()) tfile.close(true);
+    _tableFiles.clear();
+}
+
+/**
+ * Returns the key bytes for property value: a tag byte (0 for null, 1 otherwise) and bytes whose unsigned order is
+ * value order (sign flipped big endian longs for integers and dates, sortable double bits, UTF-8 for strings).
+ */
+public static byte[] encodeKey(Property aProp, Object aValue)
+{
+    // Get value converted to property type (if null, return null tag)
+    Object value = aValue instanceof String && aProp.getType()!=Property.Type.String? aProp.convertValue(aValue) :
+        aValue;
+    if(value==null) return new byte[] { 0 };
+
+    // Handle number, date and boolean
+    ByteBuffer buffer = ByteBuffer.allocate(9); buffer.put((byte)1);
+    if(value instanceof Number) {
+        Property.NumberType ntype = aProp.getNumberType();
+        if(ntype==Property.NumberType.Byte || ntype==Property.NumberType.Short ||
+            ntype==Property.NumberType.Integer || ntype==Property.NumberType.Long)
+            return buffer.putLong(((Number)value).longValue() ^ Long.MIN_VALUE).array();
+        long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+        return buffer.putLong(bits<0? ~bits : bits ^ Long.MIN_VALUE).array();
+    }
+    if(value instanceof Date) return buffer.putLong(((Date)value).getTime() ^ Long.MIN_VALUE).array();
+    if(value instanceof Boolean) return new byte[] { 1, (byte)((Boolean)value? 1 : 0) };
+
+    // Handle anything else as string
+    String str = value instanceof String? (String)value : aProp.getCodec().format(value);
+    byte bytes[] = str.getBytes(StandardCharsets.UTF_8), key[] = new byte[bytes.length + 1]; key[0] = 1;
+    System.arraycopy(bytes, 0, key, 1, bytes.length);
+    return key;
+}
+
+/**
+ * Returns the index key for property value and primary key: value key (with 0 bytes escaped as 0,FF), a 0,0
+ * terminator, then primary key. So index keys for a value sort together and before keys of greater values.
+ */
+public static byte[] encodeIndexKey(Property aProp, Object aValue, byte thePrimeKey[])
+{
+    byte vkey[] = encodeKey(aProp, aValue);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(vkey.length + thePrimeKey.length + 4);
+    for(byte b : vkey) { out.write(b); if(b==0) out.write(0xFF); }
+    out.write(0); out.write(0);
+    out.write(thePrimeKey, 0, thePrimeKey.length);
+    return out.toByteArray();
+}
+
+/**
+ * Returns the primary key of an index key.
+ */
+public static byte[] getIndexPrimaryKey(byte anIndexKey[])
+{
+    for(int i=0; i<anIndexKey.length - 1; i++)
+        if(anIndexKey[i]==0) { if(anIndexKey[i+1]==0) return Arrays.copyOfRange(anIndexKey, i + 2, anIndexKey.length);
+            i++; }
+    throw new IllegalArgumentException("BTreeDataSite.getIndexPrimaryKey: Invalid index key");
+}
+
+/**
+ * A table file: header page (page count, free page list, tree roots), primary tree pages, index tree pages and
+ * overflow pages.
+ */
+protected static class TableFile {
+
+    // The page file, buffer pool and entity
+    BufferPool.PageFile               _pfile;
+    BufferPool                        _pool;
+    Entity                            _entity;
+
+    // The number of pages and first free page
+    int                               _pageCount = 1, _freePage = NO_PAGE;
+
+    // The max integer primary value seen
+    long                              _maxPrimary;
+
+    // The primary tree and index trees by lowercase property name
+    BTree                             _primary;
+    Map <String,BTree>                _indexes = new ConcurrentHashMap();
+
+    // Lock that reads hold for read and changes hold for write
+    ReentrantReadWriteLock            _lock = new ReentrantReadWriteLock();
+
+    /** Opens table file (reading header, or creating it). */
+    TableFile(File aFile, BufferPool aPool, Entity anEntity) throws IOException
+    {
+        _pfile = new BufferPool.PageFile(aFile, PAGE_SIZE); _pool = aPool; _entity = anEntity;
+        _primary = new BTree(this, anEntity.getPrimary(), NO_PAGE);
+        if(_pfile._fileSize>0) readHeader();
+        else { _primary._root = newNode(true)._pageNum; writeHeader(); }
+    }
+
+    /** Reads header page. */
+    void readHeader() throws IOException
+    {
+        BufferPool.Frame frame = _pool.getPage(_pfile, 0);
+        try {
+            ByteBuffer buffer = frame.getBuffer().duplicate(); buffer.clear();
+            if(buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=PAGE_SIZE)
+                throw new IOException("BTreeDataSite: Invalid table file: " + _pfile.getFile());
+            buffer.position(8);
+            _pageCount = buffer.getInt(); _freePage = buffer.getInt(); _primary._root = buffer.getInt();
+            _maxPrimary = buffer.getLong();
+            for(int i=0, iMax=buffer.getInt(); i<iMax; i++) {
+                byte name[] = new byte[buffer.getShort()]; buffer.get(name); int root = buffer.getInt();
+                Property prop = _entity.getProperty(new String(name, StandardCharsets.UTF_8));
+                if(prop!=null) _indexes.put(prop.getName().toLowerCase(Locale.ROOT), new BTree(this, prop, root));
+            }
+        }
+        finally { _pool.unpin(frame, false); }
+    }
+
+    /** Writes header page. */
+    void writeHeader() throws IOException
+    {
+        BufferPool.Frame frame = _pool.getPage(_pfile, 0);
+        try {
+            ByteBuffer buffer = frame.getBuffer(); buffer.clear();
+            buffer.putInt(MAGIC).putInt(PAGE_SIZE).putInt(_pageCount).putInt(_freePage).putInt(_primary._root);
+            buffer.putLong(_maxPrimary).putInt(_indexes.size());
+            for(BTree tree : _indexes.values()) {
+                byte name[] = tree._prop.getName().getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short)name.length).put(name).putInt(tree._root); }
+        }
+        finally { _pool.unpin(frame, true); }
+    }
+
+    /** Returns next primary value. */
+    synchronized Object nextPrimary()  { return _entity.getPrimary().convertValue(++_maxPrimary); }
+
+    /** Notes primary value (so auto-generated values don't collide). */
+    synchronized void notePrimary(Object aValue)
+    {
+        if(aValue instanceof Number) _maxPrimary = Math.max(_maxPrimary, ((Number)aValue).longValue());
+    }
+
+    /** Allocates a page (from free list or end of file). */
+    int allocPage() throws IOException
+    {
+        if(_freePage==NO_PAGE) return _pageCount++;
+        int page = _freePage;
+        BufferPool.Frame frame = _pool.getPage(_pfile, page);
+        try { _freePage = frame.getBuffer().getInt(0); }
+        finally { _pool.unpin(frame, false); }
+        return page;
+    }
+
+    /** Frees a page (adds to free list). */
+    void freePage(int aPage) throws IOException
+    {
+        BufferPool.Frame frame = _pool.getPage(_pfile, aPage);
+        try { frame.getBuffer().putInt(0, _freePage); }
+        finally { _pool.unpin(frame, true); }
+        _freePage = aPage;
+    }
+
+    /** Creates a new empty node. */
+    Node newNode(boolean isLeaf) throws IOException
+    {
+        Node node = new Node(); node._pageNum = allocPage(); node._leaf = isLeaf;
+        node.write(this);
+        return node;
+    }
+
+    /** Returns stored leaf value for row values: inline (0, bytes) or overflow (1, first page, length). */
+    byte[] writeValues(Map <String,String> theValues) throws IOException
+    {
+        // Encode values
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeByte(0); out.writeInt(theValues.size());
+        for(Map.Entry <String,String> entry : theValues.entrySet()) {
+            writeString(out, entry.getKey()); writeString(out, entry.getValue()); }
+        byte bytes[] = bout.toByteArray(); if(bytes.length<=MAX_INLINE) return bytes;
+
+        // Write overflow pages (last to first, so each page can point to next)
+        int data = PAGE_SIZE - 4, len = bytes.length - 1, next = NO_PAGE;
+        for(int off=(len - 1)/data*data; off>=0; off -= data) {
+            int page = allocPage();
+            BufferPool.Frame frame = _pool.getPage(_pfile, page);
+            try { ByteBuffer buffer = frame.getBuffer(); buffer.clear();
+                buffer.putInt(next).put(bytes, 1 + off, Math.min(data, len - off)); }
+            finally { _pool.unpin(frame, true); }
+            next = page;
+        }
+        return ByteBuffer.allocate(9).put((byte)1).putInt(next).putInt(len).array();
+    }
+
+    /** Returns row values for stored leaf value (null if null). */
+    Map <String,String> readValues(byte theStored[]) throws IOException
+    {
+        // Get encoded values (reading overflow pages if needed)
+        if(theStored==null) return null;
+        byte bytes[] = theStored; int off = 1;
+        if(theStored[0]==1) { ByteBuffer ref = ByteBuffer.wrap(theStored, 1, 8);
+            int page = ref.getInt(), len = ref.getInt(); bytes = new byte[len]; off = 0;
+            for(int pos=0; pos<len; ) {
+                BufferPool.Frame frame = _pool.getPage(_pfile, page);
+                try { ByteBuffer buffer = frame.getBuffer().duplicate(); buffer.clear();
+                    int n = Math.min(PAGE_SIZE - 4, len - pos);
+                    page = buffer.getInt(0); buffer.position(4); buffer.get(bytes, pos, n); pos += n; }
+                finally { _pool.unpin(frame, false); }
+            }
+        }
+
+        // Decode values
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, off, bytes.length - off));
+        int count = in.readInt();
+        Map <String,String> values = new HashMap(count*2);
+        for(int i=0; i<count; i++) values.put(readString(in), readString(in));
+        return values;
+    }
+
+    /** Frees overflow pages of stored leaf value. */
+    void freeValues(byte theStored[]) throws IOException
+    {
+        if(theStored==null || theStored[0]!=1) return;
+        int page = ByteBuffer.wrap(theStored, 1, 4).getInt();
+        while(page!=NO_PAGE) {
+            BufferPool.Frame frame = _pool.getPage(_pfile, page); int next;
+            try { next = frame.getBuffer().getInt(0); }
+            finally { _pool.unpin(frame, false); }
+            freePage(page); page = next;
+        }
+    }
+
+    /** Puts row values for primary key (updating index entries). */
+    void put(byte theKey[], Map <String,String> theValues) throws IOException
+    {
+        _lock.writeLock().lock();
+        try {
+            // Encode and check primary and index keys before writing anything (so a long key can't leave row half put)
+            checkKey(theKey);
+            Map <BTree,byte[]> ikeys = new HashMap();
+            for(BTree index : _indexes.values()) {
+                byte ikey[] = encodeIndexKey(index._prop, theValues.get(index._prop.getName()), theKey);
+                checkKey(ikey); ikeys.put(index, ikey); }
+
+            // Write values to primary tree (freeing old overflow pages)
+            byte old[] = _primary.put(theKey, writeValues(theValues));
+            Map <String,String> oldValues = _indexes.isEmpty()? null : readValues(old);
+            freeValues(old);
+
+            // Update index entries for changed values
+            for(BTree index : _indexes.values()) { String name = index._prop.getName();
+                String oval = oldValues!=null? oldValues.get(name) : null, nval = theValues.get(name);
+                if(old!=null && Objects.equals(oval, nval)) continue;
+                if(old!=null) index.remove(encodeIndexKey(index._prop, oval, theKey));
+                index.put(ikeys.get(index), new byte[] { 0 });
+            }
+        }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Checks that encoded key fits in a tree node (throws IllegalArgumentException if too long). */
+    static void checkKey(byte theKey[])
+    {
+        if(theKey.length>MAX_KEY) throw new IllegalArgumentException("BTreeDataSite: Key too long: " + theKey.length);
+    }
+
+    /** Removes row for primary key (and its index entries). */
+    void remove(byte theKey[]) throws IOException
+    {
+        _lock.writeLock().lock();
+        try {
+            byte old[] = _primary.remove(theKey); if(old==null) return;
+            Map <String,String> oldValues = _indexes.isEmpty()? null : readValues(old);
+            freeValues(old);
+            for(BTree index : _indexes.values())
+                index.remove(encodeIndexKey(index._prop, oldValues.get(index._prop.getName()), theKey));
+        }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Adds an index for given property and indexes existing rows. */
+    void addIndex(Property aProp) throws IOException
+    {
+        _lock.writeLock().lock();
+        try {
+            if(aProp.isPrimary() || _indexes.containsKey(aProp.getName().toLowerCase(Locale.ROOT))) return;
+
+            // Check index keys of existing rows first (so a long value fails before any index pages are written)
+            for(Cursor cursor = _primary.getCursor(null); cursor.next(); )
+                checkKey(encodeIndexKey(aProp, readValues(cursor._value).get(aProp.getName()), cursor._key));
+
+            // Create index and add existing rows
+            BTree index = new BTree(this, aProp, newNode(true)._pageNum);
+            for(Cursor cursor = _primary.getCursor(null); cursor.next(); ) {
+                Map <String,String> values = readValues(cursor._value);
+                index.put(encodeIndexKey(aProp, values.get(aProp.getName()), cursor._key), new byte[] { 0 }); }
+            _indexes.put(aProp.getName().toLowerCase(Locale.ROOT), index);
+            writeHeader();
+        }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Removes index for given property name (index pages are not reclaimed). */
+    void removeIndex(String aName) throws IOException
+    {
+        _lock.writeLock().lock();
+        try { if(_indexes.remove(aName.toLowerCase(Locale.ROOT))!=null) writeHeader(); }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Writes header and dirty pages (forced to storage device if sync). */
+    void flush(boolean doSync) throws IOException
+    {
+        _lock.writeLock().lock();
+        try { writeHeader(); _pool.flush(_pfile); if(doSync) _pfile.sync(); }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Closes file (writing header and dirty pages, if requested). */
+    void close(boolean doFlush) throws IOException
+    {
+        if(doFlush) flush(false);
+        _pool.discard(_pfile);
+        _pfile.close();
+    }
+}
+
+/**
+ * A B+tree of byte array keys (unsigned order) and byte array values, stored in table file pages. Leaves are linked
+ * for range scans.
+ */
+protected static class BTree {
+
+    // The table file, property (primary or indexed) and root page
+    TableFile          _tfile;
+    Property           _prop;
+    int                _root;
+
+    /** Creates new BTree. */
+    BTree(TableFile aFile, Property aProp, int aRoot)  { _tfile = aFile; _prop = aProp; _root = aRoot; }
+
+    /** Returns value for key (or null). */
+    byte[] get(byte theKey[]) throws IOException
+    {
+        Node node = Node.read(_tfile, _root);
+        while(!node._leaf) node = Node.read(_tfile, node.getChild(theKey));
+        int index = node.indexOf(theKey);
+        return index>=0? node._values.get(index) : null;
+    }
+
+    /** Puts value for key and returns old value (or null). */
+    byte[] put(byte theKey[], byte theValue[]) throws IOException
+    {
+        TableFile.checkKey(theKey);
+        byte old[][] = new byte[1][];
+        Object split[] = insert(_root, theKey, theValue, old);
+
+        // If root split, add new root
+        if(split!=null) { Node root = new Node(); root._pageNum = _tfile.allocPage();
+            root._next = _root; root._keys.add((byte[])split[0]); root._children.add((Integer)split[1]);
+            root.write(_tfile); _root = root._pageNum; _tfile.writeHeader(); }
+        return old[0];
+    }
+
+    /** Inserts key and value in subtree and returns split key and new right page if node split (or null). */
+    Object[] insert(int aPage, byte theKey[], byte theValue[], byte theOld[][]) throws IOException
+    {
+        // Handle leaf: replace or insert entry
+        Node node = Node.read(_tfile, aPage);
+        if(node._leaf) { int index = node.indexOf(theKey);
+            if(index>=0) theOld[0] = node._values.set(index, theValue);
+            else { index = -index - 1; node._keys.add(index, theKey); node._values.add(index, theValue); }
+        }
+
+        // Handle internal: insert in child and add child split (if any)
+        else {
+            int index = node.getChildIndex(theKey), child = index==0? node._next : node._children.get(index - 1);
+            Object split[] = insert(child, theKey, theValue, theOld); if(split==null) return null;
+            node._keys.add(index, (byte[])split[0]); node._children.add(index, (Integer)split[1]);
+        }
+
+        // If node fits, write and return, otherwise split
+        if(node.getSize()<=PAGE_SIZE) { node.write(_tfile); return null; }
+        return node.split(_tfile);
+    }
+
+    /** Removes key and returns old value (or null). Leaves aren't merged. */
+    byte[] remove(byte theKey[]) throws IOException
+    {
+        Node node = Node.read(_tfile, _root);
+        while(!node._leaf) node = Node.read(_tfile, node.getChild(theKey));
+        int index = node.indexOf(theKey); if(index<0) return null;
+        node._keys.remove(index); byte old[] = node._values.remove(index);
+        node.write(_tfile);
+        return old;
+    }
+
+    /** Returns a cursor for entries in value range (null for all), starting after given key (if not null). */
+    Cursor getCursor(KeyRange aRange, byte theAfter[]) throws IOException
+    {
+        Cursor cursor = getCursor(aRange); if(theAfter==null) return cursor;
+        Cursor after = new Cursor(this, theAfter, cursor._stop, cursor._stopInc); after._skipStart = true;
+        return after;
+    }
+
+    /** Returns a cursor for entries in value range (null for all). */
+    Cursor getCursor(KeyRange aRange) throws IOException
+    {
+        // Get start and stop keys for range (primary keys, or index key bounds that include all primary keys)
+        byte start[] = null, stop[] = null; boolean stopInc = false;
+        if(aRange!=null && _prop.isPrimary()) {
+            if(aRange.getLow()!=null) start = encodeKey(_prop, aRange.getLow());
+            if(aRange.getHigh()!=null) {
+                stop = encodeKey(_prop, aRange.getHigh()); stopInc = aRange.isHighInclusive(); }
+            Cursor cursor = new Cursor(this, start, stop, stopInc);
+            cursor._skipStart = !aRange.isLowInclusive();
+            return cursor;
+        }
+        if(aRange!=null) {
+            if(aRange.getLow()!=null) { start = encodeIndexKey(_prop, aRange.getLow(), new byte[0]);
+                if(!aRange.isLowInclusive()) start[start.length-1] = 1; }
+            if(aRange.getHigh()!=null) { stop = encodeIndexKey(_prop, aRange.getHigh(), new byte[0]);
+                if(aRange.isHighInclusive()) stop[stop.length-1] = 1; }
+        }
+        return new Cursor(this, start, stop, false);
+    }
+}
+
+/**
+ * A cursor over B+tree entries from a start key (inclusive, or null for first) to a stop key (or null for last).
+ */
+protected static class Cursor {
+
+    // The tree, stop key and whether stop is inclusive
+    BTree              _tree;
+    byte               _stop[];
+    boolean            _stopInc;
+
+    // Whether to skip entry equal to start key
+    boolean            _skipStart;
+    byte               _start[];
+
+    // The current leaf and entry index
+    Node               _leaf;
+    int                _index;
+
+    // The current key and value
+    byte               _key[], _value[];
+
+    /** Creates new Cursor: descends tree to leaf for start key. */
+    Cursor(BTree aTree, byte theStart[], byte theStop[], boolean isStopInc) throws IOException
+    {
+        _tree = aTree; _start = theStart; _stop = theStop; _stopInc = isStopInc;
+        Node node = Node.read(aTree._tfile, aTree._root);
+        while(!node._leaf) node = Node.read(aTree._tfile, theStart!=null? node.getChild(theStart) : node._next);
+        _leaf = node;
+        _index = theStart!=null? node.indexOf(theStart) : 0; if(_index<0) _index = -_index - 1;
+    }
+
+    /** Advances to next entry (returns false if past stop key or end). */
+    boolean next() throws IOException
+    {
+        while(true) {
+            // If past end of leaf, go to next leaf
+            while(_index>=_leaf._keys.size()) {
+                if(_leaf._next==NO_PAGE) return false;
+                _leaf = Node.read(_tree._tfile, _leaf._next); _index = 0; }
+
+            // Get entry and check stop key
+            _key = _leaf._keys.get(_index); _value = _leaf._values.get(_index); _index++;
+            if(_stop!=null) { int c = Arrays.compareUnsigned(_key, _stop);
+                if(c>0 || c==0 && !_stopInc) return false; }
+            if(_skipStart && Arrays.equals(_key, _start)) continue;
+            return true;
+        }
+    }
+}
+
+/**
+ * A B+tree node decoded from a page: leaf (keys, values and next leaf page) or internal (leftmost child page in next,
+ * then keys and child pages for keys greater or equal).
+ */
+protected static class Node {
+
+    // The page number, whether leaf and next leaf (leaf) or leftmost child (internal)
+    int                _pageNum;
+    boolean            _leaf;
+    int                _next = NO_PAGE;
+
+    // The keys, leaf values and internal child pages
+    List <byte[]>      _keys = new ArrayList();
+    List <byte[]>      _values = new ArrayList();
+    List <Integer>     _children = new ArrayList();
+
+    // The header size (leaf flag, count, next)
+    static final int HEADER_SIZE = 7;
+
+    /** Reads node from page. */
+    static Node read(TableFile aFile, int aPage) throws IOException
+    {
+        Node node = new Node(); node._pageNum = aPage;
+        BufferPool.Frame frame = aFile._pool.getPage(aFile._pfile, aPage);
+        try {
+            ByteBuffer buffer = frame.getBuffer().duplicate(); buffer.clear();  // Own position, as readers share page
+            node._leaf = buffer.get()==1; int count = buffer.getShort(); node._next = buffer.getInt();
+            for(int i=0; i<count; i++) {
+                byte key[] = new byte[buffer.getShort()]; buffer.get(key); node._keys.add(key);
+                if(node._leaf) {
+                    byte value[] = new byte[buffer.getShort()]; buffer.get(value); node._values.add(value); }
+                else node._children.add(buffer.getInt());
+            }
+        }
+        finally { aFile._pool.unpin(frame, false); }
+        return node;
+    }
+
+    /** Writes node to page. */
+    void write(TableFile aFile) throws IOException
+    {
+        BufferPool.Frame frame = aFile._pool.getPage(aFile._pfile, _pageNum);
+        try {
+            ByteBuffer buffer = frame.getBuffer(); buffer.clear();
+            buffer.put((byte)(_leaf? 1 : 0)).putShort((short)_keys.size()).putInt(_next);
+            for(int i=0; i<_keys.size(); i++) { byte key[] = _keys.get(i);
+                buffer.putShort((short)key.length).put(key);
+                if(_leaf) { byte value[] = _values.get(i); buffer.putShort((short)value.length).put(value); }
+                else buffer.putInt(_children.get(i));
+            }
+        }
+        finally { aFile._pool.unpin(frame, true); }
+    }
+
+    /** Returns the encoded size of entry at index. */
+    int getEntrySize(int anIndex)
+    {
+        return 2 + _keys.get(anIndex).length + (_leaf? 2 + _values.get(anIndex).length : 4);
+    }
+
+    /** Returns the encoded size. */
+    int getSize()
+    {
+        int size = HEADER_SIZE; for(int i=0; i<_keys.size(); i++) size += getEntrySize(i);
+        return size;
+    }
+
+    /** Returns index of key (or -(insertion point) - 1). */
+    int indexOf(byte theKey[])
+    {
+        int lo = 0, hi = _keys.size() - 1;
+        while(lo<=hi) { int mid = (lo + hi)>>>1, c = Arrays.compareUnsigned(_keys.get(mid), theKey);
+            if(c<0) lo = mid + 1; else if(c>0) hi = mid - 1; else return mid; }
+        return -lo - 1;
+    }
+
+    /** Returns the number of keys less than or equal to key (index of child for key, with leftmost as 0). */
+    int getChildIndex(byte theKey[])
+    {
+        int index = indexOf(theKey);
+        return index>=0? index + 1 : -index - 1;
+    }
+
+    /** Returns the child page for key. */
+    int getChild(byte theKey[])
+    {
+        int index = getChildIndex(theKey);
+        return index==0? _next : _children.get(index - 1);
+    }
+
+    /** Splits node at middle byte size, writes both halves and returns split key and new right page. */
+    Object[] split(TableFile aFile) throws IOException
+    {
+        // Get split index (first entry past half of size)
+        int half = getSize()/2, size = HEADER_SIZE, mid = 0;
+        while(mid<_keys.size() - 1 && size<half) size += getEntrySize(mid++);
+        mid = Math.max(mid, 1);
+
+        // Create right node with upper entries
+        Node right = new Node(); right._pageNum = aFile.allocPage(); right._leaf = _leaf;
+        byte splitKey[] = _keys.get(mid);
+        if(_leaf) {
+            right._keys.addAll(_keys.subList(mid, _keys.size()));
+            right._values.addAll(_values.subList(mid, _values.size()));
+            _keys.subList(mid, _keys.size()).clear(); _values.subList(mid, _values.size()).clear();
+            right._next = _next; _next = right._pageNum;
+        }
+
+        // For internal node, split key moves up (its child becomes right node leftmost child)
+        else {
+            right._next = _children.get(mid);
+            right._keys.addAll(_keys.subList(mid + 1, _keys.size()));
+            right._children.addAll(_children.subList(mid + 1, _children.size()));
+            _keys.subList(mid, _keys.size()).clear(); _children.subList(mid, _children.size()).clear();
+        }
+
+        // Write nodes and return split
+        write(aFile); right.write(aFile);
+        return new Object[] { splitKey, right._pageNum };
+    }
+}
+
+/**
+ * Writes a string (length and UTF-8 bytes, -1 for null).
+ */
+static void writeString(DataOutputStream anOut, String aStr) throws IOException
+{
+    if(aStr==null) { anOut.writeInt(-1); return; }
+    byte bytes[] = aStr.getBytes(StandardCharsets.UTF_8);
+    anOut.writeInt(bytes.length); anOut.write(bytes);
+}
+
+/**
+ * Reads a string.
+ */
+static String readString(DataInputStream anIn) throws IOException
+{
+    int len = anIn.readInt(); if(len<0) return null;
+    byte bytes[] = new byte[len]; anIn.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+}
+
+/**
+ * The storage engine for BTreeDataSite.
+ */
+public static class Engine extends DataEngine {
+
+    // The engine name
+    public static final String NAME = "BTree";
+
+    /** Returns the engine name. */
+    public String getName()  { return NAME; }
+
+    /** Returns the engine capabilities. */
+    public Set <Capability> getCapabilities()
+    {
+        return EnumSet.of(Capability.Indexes, Capability.Sorting, Capability.Persistence);
+    }
+
+    /** Creates a new BTreeDataSite. */
+    public DataSite createSite()  { return new BTreeDataSite(); }
+}
+
+}
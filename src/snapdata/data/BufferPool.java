@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A fixed size pool of in-memory page frames for PageFiles (files of fixed size pages). Callers pin a page with
+ * getPage(), read or change its buffer, then unpin it (noting whether it changed). When a page that isn't cached is
+ * needed, a frame is chosen with CLOCK eviction: the clock hand sweeps frames, skipping pinned ones and clearing the
+ * reference bit of recently used ones, and takes the first unpinned, unreferenced frame (writing it first if dirty).
+ */
+public class BufferPool {
+
+    // The page size
+    int                       _pageSize;
+
+    // The frames
+    Frame                     _frames[];
+
+    // The frames by page id (file id and page number)
+    Map <Long,Frame>          _pageFrames = new HashMap();
+
+    // The clock hand
+    int                       _hand;
+
+    // The number of page reads, writes and cache hits
+    long                      _reads, _writes, _hits;
+
+    // The default page size
+    public static final int DEFAULT_PAGE_SIZE = 8192;
+
+/**
+ * Creates a new BufferPool for given page size and frame count.
+ */
+public BufferPool(int aPageSize, int aFrameCount)
+{
+    _pageSize = aPageSize;
+    _frames = new Frame[aFrameCount];
+    for(int i=0; i<aFrameCount; i++) _frames[i] = new Frame(ByteBuffer.allocate(aPageSize));
+}
+
+/**
+ * Returns the page size.
+ */
+public int getPageSize()  { return _pageSize; }
+
+/**
+ * Returns the number of frames.
+ */
+public int getFrameCount()  { return _frames.length; }
+
+/**
+ * Returns the number of page reads from file.
+ */
+public synchronized long getReadCount()  { return _reads; }
+
+/**
+ * Returns the number of page writes to file.
+ */
+public synchronized long getWriteCount()  { return _writes; }
+
+/**
+ * Returns the number of page requests satisfied from pool.
+ */
+public synchronized long getHitCount()  { return _hits; }
+
+/**
+ * Returns the given page of given file, pinned (caller must call unpin).
+ */
+public synchronized Frame getPage(PageFile aFile, int aPageNum) throws IOException
+{
+    // If page is in pool, pin and return
+    long id = getPageId(aFile, aPageNum);
+    Frame frame = _pageFrames.get(id);
+    if(frame!=null) { frame._pins++; frame._ref = true; _hits++; return frame; }
+
+    // Get free frame and read page into it
+    frame = getVictim();
+    frame._buffer.clear();
+    if(aPageNum<aFile._fileSize) { aFile.read(aPageNum, frame._buffer); _reads++; }
+    else { Arrays.fill(frame._buffer.array(), (byte)0); }
+    frame._file = aFile; frame._pageNum = aPageNum; frame._pins = 1; frame._ref = true; frame._dirty = false;
+    _pageFrames.put(id, frame);
+    return frame;
+}
+
+/**
+ * Unpins given page, marking it dirty if changed.
+ */
+public synchronized void unpin(Frame aFrame, boolean isDirty)
+{
+    if(aFrame._pins<=0) throw new IllegalStateException("BufferPool.unpin: Page not pinned");
+    aFrame._pins--;
+    if(isDirty) aFrame._dirty = true;
+}
+
+/**
+ * Returns an unpinned frame (writing and removing its page, if dirty), using CLOCK sweep.
+ */
+protected Frame getVictim() throws IOException
+{
+    // Sweep at most twice around clock (first pass may just clear reference bits)
+    for(int i=0, iMax=_frames.length*2; i<iMax; i++) {
+        Frame frame = _frames[_hand]; _hand = (_hand + 1)%_frames.length;
+        if(frame._pins>0) continue;
+        if(frame._ref) { frame._ref = false; continue; }
+
+        // Write page if dirty, remove from page map and return
+        if(frame._file!=null) {
+            if(frame._dirty) writeFrame(frame);
+            _pageFrames.remove(getPageId(frame._file, frame._pageNum)); frame._file = null;
+        }
+        return frame;
+    }
+    throw new IllegalStateException("BufferPool: All " + _frames.length + " pages are pinned");
+}
+
+/**
+ * Writes a dirty frame to its file.
+ */
+protected void writeFrame(Frame aFrame) throws IOException
+{
+    aFrame._file.write(aFrame._pageNum, aFrame._buffer); _writes++;
+    aFrame._dirty = false;
+}
+
+/**
+ * Writes the dirty pages of given file.
+ */
+public synchronized void flush(PageFile aFile) throws IOException
+{
+    for(Frame frame : _frames)
+        if(frame._file==aFile && frame._dirty)
+            writeFrame(frame);
+}
+
+/**
+ * Removes pages of given file from pool (without writing them).
+ */
+public synchronized void discard(PageFile aFile)
+{
+    for(Frame frame : _frames)
+        if(frame._file==aFile) {
+            _pageFrames.remove(getPageId(frame._file, frame._pageNum));
+            frame._file = null; frame._pins = 0; frame._dirty = false; frame._ref = false;
+        }
+}
+
+/**
+ * Returns the pool key for given file and page number.
+ */
+static long getPageId(PageFile aFile, int aPageNum)  { return (long)aFile._id<<32 | aPageNum & 0xFFFFFFFFL; }
+
+/**
+ * A frame that holds a page.
+ */
+public static class Frame {
+
+    // The page buffer
+    ByteBuffer        _buffer;
+
+    // The file and page number (file is null if frame is free)
+    PageFile          _file;
+    int               _pageNum;
+
+    // The pin count, reference bit and whether dirty
+    int               _pins;
+    boolean           _ref, _dirty;
+
+    /** Creates new Frame. */
+    Frame(ByteBuffer aBuffer)  { _buffer = aBuffer; }
+
+    /** Returns the page buffer (valid while pinned). Shared by all pinners, so concurrent readers use a duplicate. */
+    public ByteBuffer getBuffer()  { return _buffer; }
+
+    /** Returns the page number. */
+    public int getPageNum()  { return _pageNum; }
+}
+
+/**
+ * A file of fixed size pages.
+ */
+public static class PageFile implements Closeable {
+
+    // The file, channel and id (unique in process)
+    File              _file;
+    FileChannel       _channel;
+    int               _id;
+
+    // The page size and number of pages in file
+    int               _pageSize, _fileSize;
+
+    // The next file id
+    static int        _nextId;
+
+    /** Opens a PageFile for given file and page size (creating file if missing). */
+    public PageFile(File aFile, int aPageSize) throws IOException
+    {
+        _file = aFile; _pageSize = aPageSize;
+        synchronized (PageFile.class) { _id = ++_nextId; }
+        if(aFile.getParentFile()!=null) aFile.getParentFile().mkdirs();
+        _channel = FileChannel.open(aFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        _fileSize = (int)(_channel.size()/aPageSize);
+    }
+
+    /** Returns the file. */
+    public File getFile()  { return _file; }
+
+    /** Reads page into buffer. */
+    void read(int aPageNum, ByteBuffer aBuffer) throws IOException
+    {
+        aBuffer.clear();
+        long pos = (long)aPageNum*_pageSize;
+        while(aBuffer.hasRemaining()) { int n = _channel.read(aBuffer, pos); if(n<0) break; pos += n; }
+        aBuffer.clear();
+    }
+
+    /** Writes page from buffer. */
+    void write(int aPageNum, ByteBuffer aBuffer) throws IOException
+    {
+        ByteBuffer buffer = aBuffer.duplicate(); buffer.clear();
+        long pos = (long)aPageNum*_pageSize;
+        while(buffer.hasRemaining()) pos += _channel.write(buffer, pos);
+        _fileSize = Math.max(_fileSize, aPageNum + 1);
+    }
+
+    /** Forces file changes to storage device. */
+    public void sync() throws IOException  { _channel.force(false); }
+
+    /** Closes file. */
+    public void close() throws IOException  { _channel.close(); }
+}
+
+}
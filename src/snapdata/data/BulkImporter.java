@@ -29,6 +29,9 @@ public BulkImporter(DataSite aSite)  { _site = aSite; }
  */
 public void bulkImport(Map <String, List<Map>> theMaps) throws Exception
 {
+    // Start flight recorder event
+    DataEvents.BulkImportEvent event = new DataEvents.BulkImportEvent(); event.begin();
+    
     // Iterate over imported entities and entity maps and add to importer
     for(String entityName : theMaps.keySet()) { List <Map> maps = theMaps.get(entityName);
         for(Map map : maps)
@@ -37,6 +40,11 @@ public void bulkImport(Map <String, List<Map>> theMaps) throws Exception
     // Tell importer to put objects and flush site
     saveRows();
     _site.flush();
+    
+    // Commit flight recorder event (if recording)
+    event.end();
+    if(event.shouldCommit()) {
+        event.tables = String.join(",", theMaps.keySet()); event.rows = _createdRows.size(); event.commit(); }
 }
 
 /**
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import snap.web.*;
+
+/**
+ * A change-data-capture feed for a DataSite: every row insert, update and delete becomes an event with a sequence
+ * number, appended to a bounded ring buffer (writers never wait for consumers). Subscribers get events in order, in
+ * batches, on the site executor. Each named subscription's offset (next sequence to deliver) is saved with the feed
+ * sequence (on site flush and close), so a consumer can resume where it left off. Sequences are reserved in blocks and
+ * the end of each block is saved before it is used, so sequences keep increasing across restarts, even after a crash
+ * (a crash just skips the rest of the block).
+ *
+ * Events are held only in memory: a subscriber that falls more than the buffer capacity behind (or resumes after a
+ * restart) is told which sequences were skipped, so it can resync those tables.
+ */
+public class ChangeFeed {
+
+    // The site
+    DataSite                  _site;
+
+    // The ring buffer of events, sequence of next event, first sequence available since feed started and last sequence
+    // reserved (saved as high-water mark)
+    Event                     _ring[];
+    long                      _nextSeq, _startSeq, _reservedSeq;
+
+    // The maximum number of events delivered in one batch
+    volatile int              _batchSize = 256;
+
+    // The subscriptions and saved offsets (by subscription name)
+    List <Subscription>       _subs = new ArrayList();
+    Properties                _offsets = new Properties();
+
+    // The feed file path and keys
+    public static final String FEED_FILE_PATH = "/ChangeFeed.properties";
+    static final String Sequence_Key = "Sequence", Offset_Key = "Offset.";
+
+    // The number of sequences reserved at a time
+    static final int SEQUENCE_RESERVE = 1024;
+
+    // Change types
+    public enum Type { Insert, Update, Delete }
+
+/**
+ * Creates a new ChangeFeed for given site with given buffer capacity (loading saved sequence and offsets).
+ */
+public ChangeFeed(DataSite aSite, int aCapacity)
+{
+    _site = aSite; _ring = new Event[aCapacity];
+    WebSite wsite = aSite.getSite(); WebFile file = wsite!=null? wsite.getFile(FEED_FILE_PATH) : null;
+    if(file!=null)
+        try { _offsets.load(new ByteArrayInputStream(file.getBytes())); }
+        catch(IOException e) { System.err.println("ChangeFeed: Error loading offsets: " + e); }
+    _reservedSeq = Long.parseLong(_offsets.getProperty(Sequence_Key, "0"));
+    _nextSeq = _startSeq = _reservedSeq + 1;
+}
+
+/**
+ * Returns the site.
+ */
+public DataSite getSite()  { return _site; }
+
+/**
+ * Returns the buffer capacity.
+ */
+public int getCapacity()  { return _ring.length; }
+
+/**
+ * Returns the sequence of the last event (0 if none).
+ */
+public synchronized long getSequence()  { return _nextSeq - 1; }
+
+/**
+ * Returns the sequence of the oldest event still in buffer.
+ */
+public synchronized long getOldestSequence()  { return Math.max(_startSeq, _nextSeq - _ring.length); }
+
+/**
+ * Returns the maximum number of events delivered in one batch.
+ */
+public int getBatchSize()  { return _batchSize; }
+
+/**
+ * Sets the maximum number of events delivered in one batch.
+ */
+public void setBatchSize(int aValue)  { _batchSize = aValue; }
+
+/**
+ * Adds an event for given row change and signals subscriptions.
+ */
+public void addChange(Row aRow, Type aType)
+{
+    // Get values (values of persistent properties, with remote key for relation, or just primary value for delete)
+    Entity entity = aRow.getEntity(); Map <String,Object> values = new HashMap();
+    if(aType!=Type.Delete) {
+        for(Property prop : entity.getProperties())
+            if(!prop.isDerived() && !prop.isToMany())
+                values.put(prop.getName(), aRow.getValue(prop));
+    }
+
+    // Add event to ring buffer (overwriting oldest, if full)
+    Subscription subs[];
+    synchronized (this) {
+        if(_nextSeq>_reservedSeq) reserveSequences();
+        Event event = new Event(_nextSeq, aType, aRow.getTable().getName(), aRow.getPrimaryValue(), values);
+        _ring[(int)(_nextSeq%_ring.length)] = event; _nextSeq++;
+        subs = _subs.toArray(new Subscription[0]);
+    }
+
+    // Signal subscriptions
+    for(Subscription sub : subs) sub.signal();
+}
+
+/**
+ * Reserves next block of sequences and saves feed file (so reserved sequences aren't handed out again after a crash).
+ */
+protected synchronized void reserveSequences()
+{
+    _reservedSeq = _nextSeq + SEQUENCE_RESERVE - 1;
+    try { saveOffsets(); }
+    catch(Exception e) {
+        System.err.println("ChangeFeed: Error saving reserved sequence: " + e);
+        _reservedSeq = _nextSeq;  // Let this event through unreserved and retry on next one
+    }
+}
+
+/**
+ * Returns events from given sequence (up to given count), or null if given sequence is older than buffer.
+ */
+public synchronized List <Event> getEvents(long aSeq, int aCount)
+{
+    if(aSeq<getOldestSequence()) return null;
+    List <Event> events = new ArrayList();
+    for(long seq=aSeq; seq<_nextSeq && events.size()<aCount; seq++)
+        events.add(_ring[(int)(seq%_ring.length)]);
+    return events;
+}
+
+/**
+ * Subscribes given listener with given name, resuming from saved offset for name (or from next event if none).
+ */
+public Subscription subscribe(String aName, ChangeListener aLsnr)
+{
+    long seq; synchronized (this) { String str = _offsets.getProperty(Offset_Key + aName);
+        seq = str!=null? Long.parseLong(str) : _nextSeq; }
+    return subscribe(aName, seq, aLsnr);
+}
+
+/**
+ * Subscribes given listener with given name, starting from given sequence.
+ */
+public Subscription subscribe(String aName, long aSeq, ChangeListener aLsnr)
+{
+    Subscription sub = new Subscription(aName, aSeq, aLsnr);
+    synchronized (this) { _subs.add(sub); _offsets.setProperty(Offset_Key + aName, String.valueOf(aSeq)); }
+    sub.signal();
+    return sub;
+}
+
+/**
+ * Returns the saved offset for given subscription name (or -1 if none).
+ */
+public synchronized long getOffset(String aName)
+{
+    String str = _offsets.getProperty(Offset_Key + aName);
+    return str!=null? Long.parseLong(str) : -1;
+}
+
+/**
+ * Removes saved offset for given subscription name (cancels subscription, if active).
+ */
+public void removeOffset(String aName)
+{
+    Subscription sub = null;
+    synchronized (this) { for(Subscription s : _subs) if(s._name.equals(aName)) sub = s; }
+    if(sub!=null) sub.cancel();
+    synchronized (this) { _offsets.remove(Offset_Key + aName); }
+}
+
+/**
+ * Saves feed sequence high-water mark and subscription offsets (under feed lock, so a reservation is never overwritten
+ * by an older save).
+ */
+public synchronized void saveOffsets() throws Exception
+{
+    // Get offsets bytes
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    _offsets.setProperty(Sequence_Key, String.valueOf(_reservedSeq));
+    _offsets.store(bytes, "ChangeFeed offsets");
+
+    // Save feed file
+    WebSite wsite = _site.getSite(); if(wsite==null) return;
+    WebFile file = wsite.getFile(FEED_FILE_PATH);
+    if(file==null) file = wsite.createFile(FEED_FILE_PATH, false);
+    file.setBytes(bytes.toByteArray());
+    file.save();
+}
+
+/**
+ * Cancels subscriptions and saves offsets (releasing unused reserved sequences).
+ */
+public void close() throws Exception
+{
+    Subscription subs[]; synchronized (this) { subs = _subs.toArray(new Subscription[0]); }
+    for(Subscription sub : subs) sub.cancel();
+    synchronized (this) { _reservedSeq = Math.min(_reservedSeq, _nextSeq - 1); saveOffsets(); }
+}
+
+/**
+ * A row change event.
+ */
+public static class Event {
+
+    // The sequence, type, table name and primary value
+    long                      _seq;
+    Type                      _type;
+    String                    _table;
+    Object                    _pval;
+
+    // The row values (empty for delete)
+    Map <String,Object>       _values;
+
+    // The time of change
+    long                      _time = System.currentTimeMillis();
+
+    /** Creates new Event. */
+    Event(long aSeq, Type aType, String aTable, Object aPVal, Map <String,Object> theValues)
+    {
+        _seq = aSeq; _type = aType; _table = aTable; _pval = aPVal; _values = theValues;
+    }
+
+    /** Returns the sequence. */
+    public long getSequence()  { return _seq; }
+
+    /** Returns the change type. */
+    public Type getType()  { return _type; }
+
+    /** Returns the table name. */
+    public String getTableName()  { return _table; }
+
+    /** Returns the row primary value. */
+    public Object getPrimaryValue()  { return _pval; }
+
+    /** Returns the row values (empty for delete). */
+    public Map <String,Object> getValues()  { return Collections.unmodifiableMap(_values); }
+
+    /** Returns the time of change. */
+    public long getTime()  { return _time; }
+
+    /** Standard toString implementation. */
+    public String toString()  { return _seq + " " + _type + " " + _table + " " + _pval; }
+}
+
+/**
+ * An interface for change feed subscribers.
+ */
+public interface ChangeListener {
+
+    /** Called with next batch of events (in sequence order). */
+    void changesDidOccur(List <Event> theEvents);
+
+    /** Called when events from start to end sequence (exclusive) are no longer available (subscriber should resync). */
+    default void changesDidSkip(long aStart, long anEnd)  { }
+}
+
+/**
+ * A subscription: delivers events from its offset on site executor (one drain task at a time), advancing and recording
+ * offset after each batch. If the listener throws, the offset is left at the failed batch and the subscription stops
+ * (with the error available from getError()), so subscribing again with same name redelivers it.
+ */
+public class Subscription {
+
+    // The name, listener and offset (next sequence to deliver)
+    String                    _name;
+    ChangeListener            _lsnr;
+    volatile long             _offset;
+
+    // The count of drain requests (drain runs only while non-zero) and whether cancelled
+    AtomicInteger             _wip = new AtomicInteger();
+    volatile boolean          _cancelled;
+
+    // The listener error that stopped subscription (if any)
+    volatile Throwable        _error;
+
+    /** Creates new Subscription. */
+    Subscription(String aName, long aSeq, ChangeListener aLsnr)  { _name = aName; _offset = aSeq; _lsnr = aLsnr; }
+
+    /** Returns the name. */
+    public String getName()  { return _name; }
+
+    /** Returns the offset (next sequence to deliver). */
+    public long getOffset()  { return _offset; }
+
+    /** Returns whether subscription is cancelled (or stopped by listener error). */
+    public boolean isCancelled()  { return _cancelled; }
+
+    /** Returns the listener error that stopped subscription (null if none). */
+    public Throwable getError()  { return _error; }
+
+    /** Cancels subscription (keeps saved offset). */
+    public void cancel()
+    {
+        _cancelled = true;
+        synchronized (ChangeFeed.this) { _subs.remove(this); }
+    }
+
+    /** Schedules drain (if not already running). */
+    void signal()
+    {
+        if(_cancelled || _wip.getAndIncrement()!=0) return;
+        try { _site.getExecutor().execute(() -> drain()); }
+        catch(RejectedExecutionException e) { _wip.set(0); System.err.println("ChangeFeed: Delivery rejected: " + e); }
+    }
+
+    /** Delivers batches until caught up (reporting skipped events), then exits unless signalled again. */
+    void drain()
+    {
+        int missed = 1;
+        while(true) {
+            while(!_cancelled) {
+
+                // Get next batch (if offset is older than buffer, report skip and move to oldest)
+                List <Event> events = getEvents(_offset, _batchSize);
+                if(events==null) { long oldest = getOldestSequence();
+                    try { _lsnr.changesDidSkip(_offset, oldest); }
+                    catch(Throwable e) { stop(e); break; }
+                    setOffset(oldest); continue; }
+                if(events.isEmpty()) break;
+
+                // Deliver batch and advance offset (if listener fails, stop with offset at batch)
+                try { _lsnr.changesDidOccur(events); }
+                catch(Throwable e) { stop(e); break; }
+                setOffset(events.get(events.size()-1)._seq + 1);
+            }
+            missed = _wip.addAndGet(-missed); if(missed==0) return;
+        }
+    }
+
+    /** Stops subscription for given listener error (offset is kept, so batch is redelivered on resubscribe). */
+    void stop(Throwable anError)
+    {
+        System.err.println("ChangeFeed: Listener error (stopping " + _name + " at " + _offset + "): " + anError);
+        _error = anError; cancel();
+    }
+
+    /** Sets offset and records it for save. */
+    void setOffset(long aSeq)
+    {
+        _offset = aSeq;
+        synchronized (ChangeFeed.this) { _offsets.setProperty(Offset_Key + _name, String.valueOf(aSeq)); }
+    }
+}
+
+}
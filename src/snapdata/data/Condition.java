@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.function.Predicate;
 import snap.util.*;
 
 /**
@@ -28,6 +29,9 @@ public class Condition extends SnapObject implements JSONArchiver.GetKeys, XMLAr
      // Date constraint
      DateConstraint  _dateConstraint = getDateConstraintDefault();
      
+     // The value converted to property type, as array of { Property, PropertyCodec, value }
+     volatile Object _convValue[];
+     
     // Supported condition operators
     public enum Operator {
         Equals, LessThan, LessThanOrEqual, GreaterThan, GreaterThanOrEqual,
@@ -103,7 +107,7 @@ public Object getValue()  { return _value; }
 public void setValue(Object aValue)
 {
     if(SnapUtils.equals(aValue, _value)) return;
-    firePropChange(Value_Prop, _value, _value = aValue);
+    firePropChange(Value_Prop, _value, _value = aValue); _convValue = null;
 }
 
 /**
@@ -212,16 +216,40 @@ public boolean getValue(Entity anEntity, Object anObj)
         System.err.println("RMCondition.getValue: Entity property not found (" +
             anEntity.getName() + '.' + getPropertyName() + ")"); return false; }
     
+    // Get value and return evaluation
+    Object value = getOperator()!=Operator.WithinLast? getValue(property) : getValue();
+    return getValue(property, value, anObj);
+}
+
+/**
+ * Returns a predicate that evaluates this condition for given entity, with property and value resolved up front.
+ * The predicate is a snapshot: it doesn't reflect later changes to this condition.
+ */
+public Predicate <Object> getPredicate(Entity anEntity)
+{
+    // Get property from entity
+    Property property = anEntity.getProperty(getPropertyName());
+    if(property==null) {
+        System.err.println("RMCondition.getPredicate: Entity property not found (" +
+            anEntity.getName() + '.' + getPropertyName() + ")"); return obj -> false; }
+    
+    // Get value and return predicate
+    Object value = getOperator()!=Operator.WithinLast? getValue(property) : getValue();
+    return obj -> getValue(property, value, obj);
+}
+
+/**
+ * Returns the value of evaluating this condition on given object for given property and (converted) value.
+ */
+protected boolean getValue(Property property, Object value, Object anObj)
+{
     // Get property value
     Object propertyValue = anObj instanceof Row? ((Row)anObj).getValue(property) :
         Key.getValue(anObj, property.getName());
     propertyValue = property.convertValue(propertyValue);
 
-    // Get operator and value
+    // Get operator
     Operator op = getOperator();
-    Object value = getValue();
-    if(op!=Operator.WithinLast)
-        value = property.convertValue(value);
     
     // Handle operators
     switch(op) {
@@ -257,6 +285,18 @@ public boolean getValue(Entity anEntity, Object anObj)
     }
 }
 
+/**
+ * Returns the value converted to given property type (cached, since it is used for every row evaluated).
+ */
+protected Object getValue(Property aProp)
+{
+    Object conv[] = _convValue; PropertyCodec codec = aProp.getCodec();
+    if(conv!=null && conv[0]==aProp && conv[1]==codec) return conv[2];
+    Object value = aProp.convertValue(getValue());
+    _convValue = new Object[] { aProp, codec, value };
+    return value;
+}
+
 /**
  * Standard equals implementation.
  */
@@ -279,6 +319,31 @@ public boolean equals(Object anObj)
     return true; // Return true since all checks passed
 }
 
+/**
+ * Standard hashCode implementation.
+ */
+public int hashCode()  { return Objects.hash(getPropertyName(), getOperator(), getValue()); }
+
+/**
+ * Returns whether condition depends on current time (WithinLast/WithinNext), so its matches change as clock moves.
+ */
+public boolean isTimeRelative()  { return getOperator()==Operator.WithinLast || getOperator()==Operator.WithinNext; }
+
+/**
+ * Appends a canonical string for this condition to given buffer (equal conditions append equal strings).
+ */
+public void appendFingerprint(StringBuilder aSB)
+{
+    Object value = getValue();
+    aSB.append('(').append(getPropertyName()).append(' ').append(getOperator());
+    if(isNegated()) aSB.append(" Not");
+    if(getIgnoreCase()) aSB.append(" IC");
+    if(getDateConstraint()!=getDateConstraintDefault()) aSB.append(' ').append(getDateConstraint());
+    if(value!=null) aSB.append(' ').append(value.getClass().getSimpleName()).append(':')
+        .append(value instanceof Date? ((Date)value).getTime() : value);  // Date.toString() drops millis
+    aSB.append(')');
+}
+
 /**
  * Standard clone implementation (to get co-variant return type).
  */
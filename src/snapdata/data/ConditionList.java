@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.function.Predicate;
 import snap.util.*;
 
 /**
@@ -158,6 +159,37 @@ public boolean getValue(Entity anEntity, Object anObj)
     return result;
 }
 
+/**
+ * Override to combine child predicates.
+ */
+public Predicate <Object> getPredicate(Entity anEntity)
+{
+    // Get child predicates and return combined predicate
+    int count = getConditionCount();
+    Predicate <Object> preds[] = new Predicate[count];
+    for(int i=0; i<count; i++) preds[i] = getCondition(i).getPredicate(anEntity);
+    return getPredicate(preds);
+}
+
+/**
+ * Returns a predicate that combines given child condition predicates with list operators like getValue().
+ */
+protected Predicate <Object> getPredicate(Predicate <Object> thePreds[])
+{
+    int count = thePreds.length;
+    Predicate <Object> preds[] = thePreds.clone();
+    Operator ops[] = getOperators().toArray(new Operator[count]);
+    return obj -> {
+        boolean result = false;
+        for(int i=0; i<count; i++) { Operator op = ops[i];
+            if(op==Operator.Or && result)
+                break;
+            result = (i==0 || op==Operator.Or || result) && preds[i].test(obj);
+        }
+        return result;
+    };
+}
+
 /**
  * Catches child property changes and forwards them to our listener.
  */
@@ -179,6 +211,32 @@ public boolean equals(Object anObj)
     return true; // Return true since all checks passed
 }
 
+/**
+ * Standard hashCode implementation.
+ */
+public int hashCode()  { return getConditions().hashCode(); }
+
+/**
+ * Override to check child conditions.
+ */
+public boolean isTimeRelative()
+{
+    for(Condition cond : getConditions()) if(cond.isTimeRelative()) return true;
+    return false;
+}
+
+/**
+ * Override to append child conditions and operators.
+ */
+public void appendFingerprint(StringBuilder aSB)
+{
+    aSB.append('[');
+    for(int i=0, iMax=getConditionCount(); i<iMax; i++) {
+        if(i>0) aSB.append(' ').append(getOperator(i)).append(' ');
+        getCondition(i).appendFingerprint(aSB); }
+    aSB.append(']');
+}
+
 /**
  * Standard clone implementation.
  */
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+
+/**
+ * A storage engine: creates DataSites that store table rows and declares capabilities that DataSite (and the query
+ * planner) can check. Engines are registered by name: built-in engines are always available and others are found
+ * with ServiceLoader (list class names in META-INF/services/snapdata.data.DataEngine) or added with addEngine().
+ *
+ * A site's engine (and optional per-table engines) are named in the site metadata file (see DataSite.get()).
+ */
+public abstract class DataEngine {
+
+    // The registered engines by lowercase name
+    static Map <String,DataEngine>  _engines;
+
+    // Engine capabilities
+    public enum Capability { Indexes, Sorting, Aggregates, Transactions, Persistence }
+
+/**
+ * Returns the engine name (like "File").
+ */
+public abstract String getName();
+
+/**
+ * Returns the engine capabilities.
+ */
+public abstract Set <Capability> getCapabilities();
+
+/**
+ * Returns whether engine has given capability.
+ */
+public boolean hasCapability(Capability aCapability)  { return getCapabilities().contains(aCapability); }
+
+/**
+ * Creates a new (unconfigured) DataSite for this engine.
+ */
+public abstract DataSite createSite();
+
+/**
+ * Standard toString implementation.
+ */
+public String toString()  { return getClass().getSimpleName() + " { Name:" + getName() + " Capabilities:" +
+    getCapabilities() + " }"; }
+
+/**
+ * Returns the registered engine for given name (case insensitive, null if not found).
+ */
+public static synchronized DataEngine getEngine(String aName)
+{
+    return aName!=null? getEngineMap().get(aName.toLowerCase(Locale.ROOT)) : null;
+}
+
+/**
+ * Returns the registered engines.
+ */
+public static synchronized List <DataEngine> getEngines()  { return new ArrayList(getEngineMap().values()); }
+
+/**
+ * Registers an engine (replacing any engine with same name).
+ */
+public static synchronized void addEngine(DataEngine anEngine)
+{
+    getEngineMap().put(anEngine.getName().toLowerCase(Locale.ROOT), anEngine);
+}
+
+/**
+ * Returns the default engine (File).
+ */
+public static DataEngine getDefault()  { return getEngine(FileDataSite.Engine.NAME); }
+
+/**
+ * Returns the engine map, loading built-in and ServiceLoader engines on first call.
+ */
+static Map <String,DataEngine> getEngineMap()
+{
+    // If already loaded, just return
+    if(_engines!=null) return _engines;
+    _engines = new LinkedHashMap();
+
+    // Add built-in engines
+    addEngine(new FileDataSite.Engine());
+    addEngine(new MemoryDataSite.Engine());
+    addEngine(new JDBCDataSite.Engine());
+    addEngine(new LSMDataSite.Engine());
+    addEngine(new BTreeDataSite.Engine());
+
+    // Add service engines (complain about engines that fail to load)
+    Iterator <DataEngine> iter = ServiceLoader.load(DataEngine.class).iterator();
+    while(true) {
+        try { if(!iter.hasNext()) break; addEngine(iter.next()); }
+        catch(ServiceConfigurationError e) { System.err.println("DataEngine: Error loading engine: " + e); }
+    }
+    return _engines;
+}
+
+}
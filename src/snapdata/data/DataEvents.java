@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for data operations. Events are only committed when recording is on (and the event
+ * is enabled), so instrumented code checks shouldCommit() before building strings like condition text.
+ */
+public class DataEvents {
+
+/**
+ * An event for a DataTable query.
+ */
+@Name("snapdata.Query") @Label("Data Query") @Category({ "SnapData" })
+@Description("DataTable.getRows query, including query cache hits")
+public static class QueryEvent extends Event {
+    @Label("Table") public String table;
+    @Label("Condition") public String condition;
+    @Label("Rows Returned") public int rowsReturned;
+}
+
+/**
+ * An event for a table scan by FileDataSite.
+ */
+@Name("snapdata.TableScan") @Label("Data Table Scan") @Category({ "SnapData" })
+@Description("FileDataSite scan of table rows for a query condition")
+public static class TableScanEvent extends Event {
+    @Label("Table") public String table;
+    @Label("Condition") public String condition;
+    @Label("Rows Scanned") public int rowsScanned;
+    @Label("Rows Returned") public int rowsReturned;
+}
+
+/**
+ * An event for reading a data file.
+ */
+@Name("snapdata.DataFileRead") @Label("Data File Read") @Category({ "SnapData" })
+@Description("FileDataSite.readDataFile")
+public static class DataFileReadEvent extends Event {
+    @Label("Table") public String table;
+    @Label("Rows") public int rows;
+    @Label("Bytes Read") @DataAmount public long bytesRead;
+}
+
+/**
+ * An event for writing a data file.
+ */
+@Name("snapdata.DataFileWrite") @Label("Data File Write") @Category({ "SnapData" })
+@Description("FileDataSite.saveDataFile")
+public static class DataFileWriteEvent extends Event {
+    @Label("Table") public String table;
+    @Label("Rows") public int rows;
+    @Label("Bytes Written") @DataAmount public long bytesWritten;
+}
+
+/**
+ * An event for a bulk import.
+ */
+@Name("snapdata.BulkImport") @Label("Data Bulk Import") @Category({ "SnapData" })
+@Description("BulkImporter.bulkImport, including site flush")
+public static class BulkImportEvent extends Event {
+    @Label("Tables") public String tables;
+    @Label("Rows") public int rows;
+}
+
+/**
+ * An event for a RowLink fetch of remote rows.
+ */
+@Name("snapdata.RowLinkFetch") @Label("Data RowLink Fetch") @Category({ "SnapData" })
+@Description("RowLink resolution of a remote row or rows")
+public static class RowLinkFetchEvent extends Event {
+    @Label("Table") public String table;
+    @Label("Relation") public String relation;
+    @Label("Rows Returned") public int rowsReturned;
+}
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.*;
+import snap.util.StringUtils;
+
+/**
+ * This class generates synthetic rows for entities, for load testing and benchmarks.
+ *
+ * Values are generated per property type (String, Number by NumberType, Date by DateType, Boolean, Enum strings)
+ * with a configurable distribution (uniform or Zipf), range and null fraction (for nullable properties). Primary
+ * values are numbered from 1 and to-one relations reference generated primary values of the related entity.
+ * Each row's values depend only on seed, entity name and row index, so output is reproducible and rows can be
+ * generated in parallel.
+ */
+public class DataGenerator {
+
+    // The random seed
+    long                       _seed = 1;
+
+    // The row counts by entity name
+    Map <String,Integer>       _rowCounts = new HashMap();
+
+    // The property specs by "Entity.Property" name
+    Map <String,PropertySpec>  _specs = new HashMap();
+
+    // The default property spec
+    PropertySpec               _defaultSpec = new PropertySpec();
+
+    // The number of rows generated per parallel chunk
+    int                        _chunkSize = 10000;
+
+    // Constants for value distributions
+    public enum Distribution { Uniform, Zipf }
+
+/**
+ * Returns the random seed.
+ */
+public long getSeed()  { return _seed; }
+
+/**
+ * Sets the random seed.
+ */
+public void setSeed(long aSeed)  { _seed = aSeed; }
+
+/**
+ * Returns the number of rows to generate for given entity name.
+ */
+public int getRowCount(String anEntityName)
+{
+    Integer count = _rowCounts.get(anEntityName.toLowerCase(Locale.ROOT));
+    return count!=null? count : 0;
+}
+
+/**
+ * Sets the number of rows to generate for given entity name.
+ */
+public void setRowCount(String anEntityName, int aCount)
+{
+    _rowCounts.put(anEntityName.toLowerCase(Locale.ROOT), aCount);
+}
+
+/**
+ * Returns the default property spec (used for properties without a spec).
+ */
+public PropertySpec getDefaultSpec()  { return _defaultSpec; }
+
+/**
+ * Returns the spec for given property, creating it (as copy of default spec) if needed.
+ */
+public PropertySpec getSpec(String anEntityName, String aPropName)
+{
+    String key = (anEntityName + '.' + aPropName).toLowerCase(Locale.ROOT);
+    PropertySpec spec = _specs.get(key);
+    if(spec==null) _specs.put(key, spec = _defaultSpec.clone());
+    return spec;
+}
+
+/**
+ * Returns the spec for given property (or default spec).
+ */
+protected PropertySpec getSpec(Property aProp)
+{
+    String key = (aProp.getEntity().getName() + '.' + aProp.getName()).toLowerCase(Locale.ROOT);
+    PropertySpec spec = _specs.get(key);
+    return spec!=null? spec : _defaultSpec;
+}
+
+/**
+ * Returns the number of rows generated per parallel chunk.
+ */
+public int getChunkSize()  { return _chunkSize; }
+
+/**
+ * Sets the number of rows generated per parallel chunk.
+ */
+public void setChunkSize(int aValue)  { _chunkSize = Math.max(aValue, 1); }
+
+/**
+ * Returns a map of property values for given entity and row index (zero based).
+ */
+public Map <String,Object> createMap(Entity anEntity, int anIndex)
+{
+    // Get random for row
+    long nameHash = anEntity.getName().toLowerCase(Locale.ROOT).hashCode();
+    SplittableRandom random = new SplittableRandom(_seed*31 + nameHash*17L + anIndex*0x9E3779B97F4A7C15L);
+
+    // Iterate over properties and add values
+    Map <String,Object> map = new HashMap();
+    for(Property prop : anEntity.getProperties()) {
+        Object value = createValue(prop, anIndex, random);
+        if(value!=null) map.put(prop.getName(), value);
+    }
+    return map;
+}
+
+/**
+ * Returns a map of formatted string values for given entity and row index (as written to data files).
+ */
+public Map <String,String> createStringMap(Entity anEntity, int anIndex)
+{
+    Map <String,Object> map = createMap(anEntity, anIndex);
+    Map <String,String> smap = new HashMap(map.size()*2);
+    for(Property prop : anEntity.getProperties()) { Object value = map.get(prop.getName());
+        if(value!=null) smap.put(prop.getName(), formatValue(prop, value)); }
+    return smap;
+}
+
+/**
+ * Returns the data file string for given property value.
+ */
+protected String formatValue(Property aProp, Object aValue)
+{
+    return aProp.isRelation()? aValue.toString() : aProp.getCodec().format(aValue);
+}
+
+/**
+ * Returns a value for given property and row index.
+ */
+protected Object createValue(Property aProp, int anIndex, SplittableRandom aRandom)
+{
+    // Handle primary: number rows from 1
+    if(aProp.isPrimary())
+        return aProp.getType()==Property.Type.Number? aProp.convertValue(anIndex + 1) : "K" + (anIndex + 1);
+
+    // Handle null
+    PropertySpec spec = getSpec(aProp);
+    if(aProp.isNullable() && spec.getNullFraction()>0 && aRandom.nextDouble()<spec.getNullFraction())
+        return null;
+
+    // Handle types
+    switch(aProp.getType()) {
+
+        // Handle String: pick from Cardinality distinct values
+        case String: return aProp.getName() + nextRank(spec, spec.getCardinality(), aRandom);
+
+        // Handle Number: pick from range (integral types are rounded)
+        case Number: {
+            double value = nextDouble(spec, aRandom);
+            switch(aProp.getNumberType()) {
+                case Byte: case Short: case Integer: case Long: return aProp.convertValue(Math.round(value));
+                default: return aProp.convertValue(Math.round(value*100)/100d);
+            }
+        }
+
+        // Handle Date: pick from date range (DateOnly is truncated to start of day in zone codec formats in)
+        case Date: {
+            long time = Math.round(spec.getMinDate() + (spec.getMaxDate() - spec.getMinDate())*nextUnit(spec, aRandom));
+            if(aProp.getDateType()==Property.DateType.DateOnly) { ZoneId zone = ZoneId.systemDefault();
+                LocalDate day = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+                time = day.atStartOfDay(zone).toInstant().toEpochMilli(); }
+            else time -= time % 1000;
+            return new Date(time);
+        }
+
+        // Handle Boolean, Enum
+        case Boolean: return aRandom.nextBoolean();
+        case Enum: {
+            List <String> enums = aProp.getEnumStrings(); if(enums==null || enums.size()==0) return null;
+            return enums.get(nextRank(spec, enums.size(), aRandom) - 1);
+        }
+
+        // Handle Relation: to-one relations reference a generated primary value of related entity
+        case Relation: {
+            if(aProp.isDerived() || aProp.isToMany() || aProp.getRelEntity()==null) return null;
+            Entity rentity = aProp.getRelEntity(); int rcount = getRowCount(rentity.getName());
+            if(rcount==0 || rentity.getPrimary()==null) return null;
+            int rindex = nextRank(spec, rcount, aRandom) - 1;
+            return createValue(rentity.getPrimary(), rindex, aRandom);
+        }
+
+        // Handle anything else (Binary, Other)
+        default: return null;
+    }
+}
+
+/**
+ * Returns a random rank from 1 to given count (inclusive) for spec distribution.
+ */
+protected int nextRank(PropertySpec aSpec, int aCount, SplittableRandom aRandom)
+{
+    if(aSpec.getDistribution()==Distribution.Uniform) return aRandom.nextInt(aCount) + 1;
+    int rank = (int)zipf(aRandom.nextDouble(), aCount, aSpec.getZipfExponent());
+    return Math.min(Math.max(rank, 1), aCount);
+}
+
+/**
+ * Returns a random double in spec range for spec distribution.
+ */
+protected double nextDouble(PropertySpec aSpec, SplittableRandom aRandom)
+{
+    return aSpec.getMin() + (aSpec.getMax() - aSpec.getMin())*nextUnit(aSpec, aRandom);
+}
+
+/**
+ * Returns a random double from 0 to 1 for spec distribution (Zipf favors values near 0).
+ */
+protected double nextUnit(PropertySpec aSpec, SplittableRandom aRandom)
+{
+    if(aSpec.getDistribution()==Distribution.Uniform) return aRandom.nextDouble();
+    int ranks = 1000;
+    return (zipf(aRandom.nextDouble(), ranks, aSpec.getZipfExponent()) - 1)/ranks;
+}
+
+/**
+ * Returns an approximately Zipf distributed value from 1 to N+1 for uniform random U (continuous inverse CDF of
+ * 1/x^s, which doesn't need a per-N table).
+ */
+static double zipf(double aU, int aN, double anExp)
+{
+    if(Math.abs(anExp - 1)<1e-9) return Math.pow(aN + 1, aU);
+    double e = 1 - anExp;
+    return Math.pow((Math.pow(aN + 1, e) - 1)*aU + 1, 1/e);
+}
+
+/**
+ * Returns entities of schema ordered so that related entities come before entities that reference them.
+ */
+public List <Entity> getEntitiesOrdered(List <Entity> theEntities)
+{
+    List <Entity> ordered = new ArrayList();
+    for(Entity entity : theEntities) addEntityOrdered(entity, theEntities, ordered, new HashSet());
+    return ordered;
+}
+
+/** Adds entity to list after entities it references. */
+private void addEntityOrdered(Entity anEntity, List <Entity> theEntities, List <Entity> aList, Set <Entity> aPath)
+{
+    if(aList.contains(anEntity) || !aPath.add(anEntity)) return;
+    for(Property rel : anEntity.getRelations()) { Entity rentity = rel.getRelEntity();
+        if(rentity!=null && rentity!=anEntity && theEntities.contains(rentity))
+            addEntityOrdered(rentity, theEntities, aList, aPath); }
+    aList.add(anEntity);
+}
+
+/**
+ * Writes generated rows for entity to given stream as a CSV data file (the format FileDataSite reads).
+ * Rows are generated in parallel chunks, a window of chunks at a time (so memory stays bounded), and written in order.
+ */
+public void writeDataFile(Entity anEntity, OutputStream aStream) throws IOException
+{
+    // Get writer and persistent properties
+    Writer writer = new BufferedWriter(new OutputStreamWriter(aStream, StandardCharsets.UTF_8), 1 << 16);
+    List <Property> props = new ArrayList();
+    for(Property prop : anEntity.getProperties()) if(!prop.isDerived()) props.add(prop);
+
+    // Write header row
+    StringBuilder header = new StringBuilder();
+    for(Property prop : props) header.append(StringUtils.getStringQuoted(prop.getName())).append(", ");
+    header.delete(header.length()-2, header.length()).append('\n');
+    writer.write(header.toString());
+
+    // Generate windows of chunks in parallel and write each in order
+    int count = getRowCount(anEntity.getName()), chunks = (count + _chunkSize - 1)/_chunkSize;
+    int window = ForkJoinPool.getCommonPoolParallelism()*2 + 1;
+    for(int start=0; start<chunks; start+=window) { int end = Math.min(start + window, chunks);
+        String texts[] = IntStream.range(start, end).parallel().mapToObj(i -> getDataFileChunk(anEntity, props, i))
+            .toArray(String[]::new);
+        for(String text : texts) writer.write(text);
+    }
+    writer.flush();
+}
+
+/**
+ * Returns CSV text for chunk of rows.
+ */
+protected String getDataFileChunk(Entity anEntity, List <Property> theProps, int aChunk)
+{
+    int start = aChunk*_chunkSize, end = Math.min(start + _chunkSize, getRowCount(anEntity.getName()));
+    StringBuilder sb = new StringBuilder((end - start)*theProps.size()*12);
+    for(int i=start; i<end; i++) { Map <String,Object> map = createMap(anEntity, i);
+        for(Property prop : theProps) { Object value = map.get(prop.getName());
+            String str = value!=null? formatValue(prop, value) : "";
+            sb.append(StringUtils.getStringQuoted(str)).append(", "); }
+        sb.delete(sb.length()-2, sb.length()).append('\n');
+    }
+    return sb.toString();
+}
+
+/**
+ * Generates rows for all site tables with row counts (in relation order). FileDataSite tables are written directly
+ * as data files, other sites get rows saved through table rows in chunks (generated in parallel).
+ */
+public void generate(DataSite aSite) throws Exception
+{
+    // Get tables entities with row counts, in relation order
+    List <Entity> entities = new ArrayList();
+    for(String name : _rowCounts.keySet()) { Entity entity = aSite.getSchema().getEntity(name);
+        if(entity!=null) entities.add(entity); }
+    entities = getEntitiesOrdered(entities);
+
+    // Generate each
+    for(Entity entity : entities) {
+        if(aSite instanceof FileDataSite) generateDataFile((FileDataSite)aSite, entity);
+        else generateRows(aSite.getTable(entity.getName()));
+    }
+    aSite.flush();
+}
+
+/**
+ * Writes generated rows to FileDataSite data file (and clears any cached table rows). Local files are streamed to a
+ * temp file (with running checksum) and moved into place, so file size isn't limited by memory.
+ */
+protected void generateDataFile(FileDataSite aSite, Entity anEntity) throws IOException
+{
+    // If site has no local directory, write to bytes and set
+    String name = anEntity.getName(); File file = aSite.getDataJavaFile(name);
+    if(file==null) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeDataFile(anEntity, bytes);
+        aSite.setDataFileBytes(name, bytes.toByteArray()); return;
+    }
+    
+    // Stream rows to temp file, then move into place
+    File temp = DurableFile.getTempFile(file); file.getParentFile().mkdirs();
+    CRC32C crc = new CRC32C();
+    try (OutputStream out = new CheckedOutputStream(new FileOutputStream(temp), crc)) { writeDataFile(anEntity, out); }
+    catch(IOException e) { temp.delete(); throw e; }
+    aSite.setDataFile(name, temp, crc.getValue(), temp.length());
+}
+
+/**
+ * Creates and saves generated rows for table (maps generated in parallel chunks, rows saved in order).
+ */
+protected void generateRows(DataTable aTable) throws Exception
+{
+    Entity entity = aTable.getEntity(); int count = getRowCount(entity.getName());
+    for(int start=0; start<count; start+=_chunkSize) { int end = Math.min(start + _chunkSize, count);
+        List <Map<String,Object>> maps = new ArrayList(end - start);
+        IntStream.range(start, end).parallel().mapToObj(i -> createMap(entity, i)).forEachOrdered(maps::add);
+        for(Map <String,Object> map : maps) {
+            Row row = aTable.createRow(map);
+            row.put(entity.getPrimary(), map.get(entity.getPrimary().getName()));
+            row.save();
+        }
+    }
+}
+
+/**
+ * A class to describe how values are generated for a property.
+ */
+public static class PropertySpec implements Cloneable {
+
+    // The distribution
+    Distribution  _dist = Distribution.Uniform;
+
+    // The Zipf exponent
+    double        _zipfExp = 1;
+
+    // The number range
+    double        _min = 0, _max = 1000;
+
+    // The date range
+    long          _minDate = 946684800000L, _maxDate = 1577836800000L;  // 2000-01-01 to 2020-01-01 UTC
+
+    // The number of distinct string values
+    int           _cardinality = 1000;
+
+    // The fraction of values that are null (for nullable properties)
+    double        _nullFraction;
+
+    /** Returns the distribution. */
+    public Distribution getDistribution()  { return _dist; }
+
+    /** Sets the distribution. */
+    public void setDistribution(Distribution aDist)  { _dist = aDist; }
+
+    /** Returns the Zipf exponent. */
+    public double getZipfExponent()  { return _zipfExp; }
+
+    /** Sets the Zipf exponent. */
+    public void setZipfExponent(double aValue)  { _zipfExp = aValue; }
+
+    /** Returns the number range min. */
+    public double getMin()  { return _min; }
+
+    /** Returns the number range max. */
+    public double getMax()  { return _max; }
+
+    /** Sets the number range. */
+    public void setRange(double aMin, double aMax)  { _min = aMin; _max = aMax; }
+
+    /** Returns the date range min (millis). */
+    public long getMinDate()  { return _minDate; }
+
+    /** Returns the date range max (millis). */
+    public long getMaxDate()  { return _maxDate; }
+
+    /** Sets the date range. */
+    public void setDateRange(Date aMin, Date aMax)  { _minDate = aMin.getTime(); _maxDate = aMax.getTime(); }
+
+    /** Returns the number of distinct string values. */
+    public int getCardinality()  { return _cardinality; }
+
+    /** Sets the number of distinct string values. */
+    public void setCardinality(int aValue)  { _cardinality = Math.max(aValue, 1); }
+
+    /** Returns the fraction of values that are null (for nullable properties). */
+    public double getNullFraction()  { return _nullFraction; }
+
+    /** Sets the fraction of values that are null (for nullable properties). */
+    public void setNullFraction(double aValue)  { _nullFraction = aValue; }
+
+    /** Standard clone implementation. */
+    public PropertySpec clone()
+    {
+        try { return (PropertySpec)super.clone(); }
+        catch(CloneNotSupportedException e) { throw new RuntimeException(e); }
+    }
+}
+
+}
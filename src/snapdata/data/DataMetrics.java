@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * This class records per-table operation counts, latency histograms and counters for a DataSite. Recording uses
+ * LongAdders (striped, so concurrent writers don't contend) and log-scale latency buckets (4 per power of two,
+ * so percentiles are accurate to within ~19%). Metrics can be read with getSnapshot() or through JMX.
+ */
+public class DataMetrics implements DataMetricsMXBean {
+
+    // The stats by table name
+    Map <String,TableStats>  _tables = new ConcurrentHashMap();
+
+    // Whether recording is enabled
+    volatile boolean         _enabled = true;
+
+    // The JMX name this metrics object is registered under (if registered)
+    ObjectName               _mbeanName;
+
+    // Constants for timed operations
+    public enum Op { GetRows, SaveRow, DeleteRow, ReadDataFile, SaveDataFile, Flush, Commit }
+
+    // Constants for counters
+    public enum Counter { RowsScanned, RowsReturned, QueryCacheHits, QueryCacheMisses, RowCacheEvictions,
+        RowLinkResolutions, BytesRead, BytesWritten, FileSyncs }
+
+    // Name used for site-wide (not table specific) stats
+    public static final String SITE = "*";
+
+    // Number of latency buckets (4 per power of two of nanos)
+    static final int BUCKET_COUNT = 64*4;
+
+/**
+ * Returns whether recording is enabled.
+ */
+public boolean isEnabled()  { return _enabled; }
+
+/**
+ * Sets whether recording is enabled.
+ */
+public void setEnabled(boolean aValue)  { _enabled = aValue; }
+
+/**
+ * Records a timed operation for given table name (or SITE) and duration.
+ */
+public void record(String aTable, Op anOp, long theNanos)
+{
+    if(!_enabled) return;
+    getTableStats(aTable).getOpStats(anOp).record(theNanos);
+}
+
+/**
+ * Adds to a counter for given table name (or SITE).
+ */
+public void add(String aTable, Counter aCounter, long aValue)
+{
+    if(!_enabled) return;
+    getTableStats(aTable)._counters[aCounter.ordinal()].add(aValue);
+}
+
+/**
+ * Returns the stats for given table name.
+ */
+protected TableStats getTableStats(String aTable)
+{
+    String name = aTable!=null? aTable : SITE;
+    TableStats stats = _tables.get(name);
+    return stats!=null? stats : _tables.computeIfAbsent(name, n -> new TableStats());
+}
+
+/**
+ * Returns the table names that have metrics.
+ */
+public Set <String> getTableNames()  { return new TreeSet(_tables.keySet()); }
+
+/**
+ * Returns the count for timed operation (for table name or SITE).
+ */
+public long getCount(String aTable, Op anOp)
+{
+    TableStats stats = _tables.get(aTable);
+    OpStats ostats = stats!=null? stats._ops[anOp.ordinal()] : null;
+    return ostats!=null? ostats._count.sum() : 0;
+}
+
+/**
+ * Returns the counter value (for table name or SITE).
+ */
+public long getCounter(String aTable, Counter aCounter)
+{
+    TableStats stats = _tables.get(aTable);
+    return stats!=null? stats._counters[aCounter.ordinal()].sum() : 0;
+}
+
+/**
+ * Returns a snapshot of all stats: a map of "Table.Op" or "Table.Counter" keys to snapshots.
+ */
+public Map <String,Snapshot> getSnapshot()
+{
+    Map <String,Snapshot> map = new TreeMap();
+    for(Map.Entry <String,TableStats> entry : _tables.entrySet()) { String table = entry.getKey();
+        TableStats stats = entry.getValue();
+        for(Op op : Op.values()) { OpStats ostats = stats._ops[op.ordinal()];
+            if(ostats!=null) map.put(table + '.' + op, ostats.getSnapshot()); }
+        for(Counter counter : Counter.values()) { long val = stats._counters[counter.ordinal()].sum();
+            if(val!=0) map.put(table + '.' + counter, new Snapshot(val)); }
+    }
+    return map;
+}
+
+/**
+ * Clears all metrics.
+ */
+public void reset()  { _tables.clear(); }
+
+/**
+ * DataMetricsMXBean method: returns operation and counter totals by "Table.Name" key.
+ */
+public Map <String,Long> getCounts()
+{
+    Map <String,Long> map = new TreeMap();
+    for(Map.Entry <String,Snapshot> entry : getSnapshot().entrySet())
+        map.put(entry.getKey(), entry.getValue().getCount());
+    return map;
+}
+
+/**
+ * DataMetricsMXBean method: returns mean operation latency in microseconds by "Table.Op" key.
+ */
+public Map <String,Double> getMeanMicros()
+{
+    Map <String,Double> map = new TreeMap();
+    for(Map.Entry <String,Snapshot> entry : getSnapshot().entrySet()) if(entry.getValue().isTimed())
+        map.put(entry.getKey(), entry.getValue().getMeanNanos()/1000);
+    return map;
+}
+
+/**
+ * DataMetricsMXBean method: returns 99th percentile operation latency in microseconds by "Table.Op" key.
+ */
+public Map <String,Double> getP99Micros()
+{
+    Map <String,Double> map = new TreeMap();
+    for(Map.Entry <String,Snapshot> entry : getSnapshot().entrySet()) if(entry.getValue().isTimed())
+        map.put(entry.getKey(), entry.getValue().getPercentileNanos(99)/1000d);
+    return map;
+}
+
+/**
+ * DataMetricsMXBean method: returns max operation latency in microseconds by "Table.Op" key.
+ */
+public Map <String,Double> getMaxMicros()
+{
+    Map <String,Double> map = new TreeMap();
+    for(Map.Entry <String,Snapshot> entry : getSnapshot().entrySet()) if(entry.getValue().isTimed())
+        map.put(entry.getKey(), entry.getValue().getMaxNanos()/1000d);
+    return map;
+}
+
+/**
+ * Registers this metrics object with platform MBean server under given site name.
+ */
+public synchronized void registerMBean(String aSiteName) throws Exception
+{
+    if(_mbeanName!=null) return;
+    ObjectName name = new ObjectName("snapdata:type=DataSite,name=" + ObjectName.quote(aSiteName));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    _mbeanName = name;
+}
+
+/**
+ * Unregisters this metrics object from platform MBean server (if registered).
+ */
+public synchronized void unregisterMBean() throws Exception
+{
+    if(_mbeanName==null) return;
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+    _mbeanName = null;
+}
+
+/**
+ * Returns the latency bucket for given nanos.
+ */
+static int getBucket(long theNanos)
+{
+    if(theNanos<4) return (int)Math.max(theNanos, 0);
+    int msb = 63 - Long.numberOfLeadingZeros(theNanos);
+    return (msb<<2) | (int)((theNanos>>>(msb-2)) & 3);
+}
+
+/**
+ * Returns the lower bound nanos for given latency bucket.
+ */
+static long getBucketNanos(int aBucket)
+{
+    if(aBucket<4) return aBucket;
+    int msb = aBucket>>>2;
+    return (1L<<msb) | ((long)(aBucket & 3)<<(msb-2));
+}
+
+/**
+ * Stats for a table.
+ */
+protected static class TableStats {
+
+    // Op stats by op ordinal (created lazily)
+    volatile OpStats  _ops[] = new OpStats[Op.values().length];
+
+    // Counters by counter ordinal
+    LongAdder         _counters[] = new LongAdder[Counter.values().length];
+
+    /** Creates new TableStats. */
+    TableStats()  { for(int i=0; i<_counters.length; i++) _counters[i] = new LongAdder(); }
+
+    /** Returns the OpStats for op. */
+    OpStats getOpStats(Op anOp)
+    {
+        OpStats stats = _ops[anOp.ordinal()]; if(stats!=null) return stats;
+        synchronized (this) {
+            stats = _ops[anOp.ordinal()];
+            if(stats==null) _ops[anOp.ordinal()] = stats = new OpStats();
+        }
+        return stats;
+    }
+}
+
+/**
+ * Stats for a timed operation.
+ */
+protected static class OpStats {
+
+    // The count, total nanos and max nanos
+    LongAdder     _count = new LongAdder(), _total = new LongAdder();
+    volatile long _max;
+
+    // The latency buckets
+    LongAdder     _buckets[] = new LongAdder[BUCKET_COUNT];
+
+    /** Creates new OpStats. */
+    OpStats()  { for(int i=0; i<_buckets.length; i++) _buckets[i] = new LongAdder(); }
+
+    /** Records a duration. */
+    void record(long theNanos)
+    {
+        _count.increment(); _total.add(theNanos);
+        _buckets[getBucket(theNanos)].increment();
+        if(theNanos>_max) _max = theNanos;  // Racy, but only loses a max that another thread is also setting
+    }
+
+    /** Returns a snapshot. */
+    Snapshot getSnapshot()
+    {
+        long buckets[] = new long[BUCKET_COUNT];
+        for(int i=0; i<BUCKET_COUNT; i++) buckets[i] = _buckets[i].sum();
+        return new Snapshot(_count.sum(), _total.sum(), _max, buckets);
+    }
+}
+
+/**
+ * An immutable snapshot of an operation or counter.
+ */
+public static class Snapshot {
+
+    // The count, total nanos and max nanos
+    final long    _count, _total, _max;
+
+    // The latency buckets (null for counters)
+    final long    _buckets[];
+
+    /** Creates a counter snapshot. */
+    public Snapshot(long aCount)  { this(aCount, 0, 0, null); }
+
+    /** Creates a timed snapshot. */
+    public Snapshot(long aCount, long aTotal, long aMax, long theBuckets[])
+    {
+        _count = aCount; _total = aTotal; _max = aMax; _buckets = theBuckets;
+    }
+
+    /** Returns whether snapshot is for timed operation. */
+    public boolean isTimed()  { return _buckets!=null; }
+
+    /** Returns the count (or counter value). */
+    public long getCount()  { return _count; }
+
+    /** Returns the total nanos. */
+    public long getTotalNanos()  { return _total; }
+
+    /** Returns the mean nanos. */
+    public double getMeanNanos()  { return _count>0? _total/(double)_count : 0; }
+
+    /** Returns the max nanos. */
+    public long getMaxNanos()  { return _max; }
+
+    /** Returns the nanos at given percentile (lower bound of bucket). */
+    public long getPercentileNanos(double aPercentile)
+    {
+        if(_buckets==null || _count==0) return 0;
+        long target = (long)Math.ceil(_count*aPercentile/100), sum = 0;
+        for(int i=0; i<_buckets.length; i++) { sum += _buckets[i];
+            if(sum>=target) return getBucketNanos(i); }
+        return _max;
+    }
+
+    /** Standard toString implementation. */
+    public String toString()
+    {
+        if(!isTimed()) return String.valueOf(_count);
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", _count, getMeanNanos()/1000,
+            getPercentileNanos(50)/1000d, getPercentileNanos(99)/1000d, _max/1000d);
+    }
+}
+
+}
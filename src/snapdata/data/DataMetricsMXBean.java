@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.Map;
+
+/**
+ * The JMX interface for DataMetrics. Keys are "Table.Op" or "Table.Counter" ("*" is the table for site-wide stats).
+ */
+public interface DataMetricsMXBean {
+
+    /** Returns operation counts and counter values. */
+    Map <String,Long> getCounts();
+
+    /** Returns mean operation latencies in microseconds. */
+    Map <String,Double> getMeanMicros();
+
+    /** Returns 99th percentile operation latencies in microseconds. */
+    Map <String,Double> getP99Micros();
+
+    /** Returns max operation latencies in microseconds. */
+    Map <String,Double> getMaxMicros();
+
+    /** Returns whether recording is enabled. */
+    boolean isEnabled();
+
+    /** Sets whether recording is enabled. */
+    void setEnabled(boolean aValue);
+
+    /** Clears all metrics. */
+    void reset();
+}
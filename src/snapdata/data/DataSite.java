@@ -2,7 +2,10 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snapdata.data;
+import java.io.*;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.*;
 import snap.util.*;
 import snap.web.*;
 
@@ -14,8 +17,9 @@ public class DataSite extends SnapObject {
     // The WebSite
     WebSite                   _wsite;
     
-    // The schema
+    // The schema and schema catalog
     Schema                    _schema;
+    SchemaCatalog             _catalog;
     
     // The DataTables
     Map <String,DataTable>    _tables = new HashMap();
@@ -23,8 +27,69 @@ public class DataSite extends SnapObject {
     // PropChangeListener for Row changes
     PropChangeListener        _rowLsnr = pc -> rowDidPropChange(pc);
     
-    // All sites
-    static Map <WebSite,DataSite> _allSites = new HashMap();
+    // Whether rows store property values in ordinal slots instead of map entries
+    boolean                   _slotRows;
+    
+    // The query result cache (null if disabled)
+    QueryCache                _queryCache;
+    
+    // The maximum number of rows to keep cached across tables (zero for no limit)
+    int                       _rowCacheSize;
+    
+    // The tables with cached rows, in access order (least recently used first), with row counts at last access
+    LinkedHashMap <DataTable,Integer>  _tableLRU = new LinkedHashMap(16, .75f, true);
+    
+    // The running total of row counts in table LRU map
+    long                      _cachedRowTotal;
+    
+    // The metrics
+    DataMetrics               _metrics = new DataMetrics();
+    
+    // The slow query log (null if disabled)
+    volatile SlowQueryLog     _slowLog;
+    
+    // The background flush scheduler (null if callers flush)
+    volatile FlushScheduler   _flushScheduler;
+    
+    // The executor for async methods (null for default)
+    volatile Executor         _executor;
+    
+    // The change data capture feed (null if none)
+    volatile ChangeFeed       _changeFeed;
+    
+    // The storage engine that created this site (null if created directly)
+    DataEngine                _engine;
+    
+    // The site metadata (engine names for site and tables)
+    Properties                _meta;
+    
+    // The sites for tables stored by other engines, by engine name
+    Map <String,DataSite>     _engineSites = new HashMap();
+    
+    // The site this site stores tables for (if this is a per-table engine site)
+    DataSite                  _owner;
+    
+    // The site metadata file path and keys
+    public static final String META_FILE_PATH = "/DataSite.properties";
+    public static final String Engine_Key = "Engine";
+    public static final String Durability_Key = "Durability";
+    
+    // Durability levels for writes: None (write in place), Flush (temp file and atomic move, to OS cache), Sync (also
+    // force each file to storage device on flush) and BatchSync (force all files written by a flush together)
+    public enum Durability { None, Flush, Sync, BatchSync }
+    
+    // All sites (weakly held, so sites no longer in use can be collected)
+    static Map <WebSite,WeakReference<DataSite>> _allSites = new WeakHashMap();
+    
+    // The sites with unflushed changes or a flush scheduler (held strongly until flushed or closed, so changes aren't
+    // lost if callers drop site before flush)
+    static Set <DataSite>     _pinnedSites = Collections.newSetFromMap(new IdentityHashMap());
+    
+    // The count of changes noted as unflushed (guarded by AllSites)
+    long                      _unflushedSeq;
+    
+    // The default executor for async methods
+    static ExecutorService    _defaultExecutor;
 
 /**
  * Returns the WebSite.
@@ -37,7 +102,7 @@ public WebSite getSite()  { return _wsite; }
 protected void setSite(WebSite aSite)
 {
      _wsite = aSite;
-    _allSites.put(aSite, this);
+    synchronized (_allSites) { _allSites.put(aSite, new WeakReference(this)); }
 }
 
 /**
@@ -55,11 +120,22 @@ public String getURLString()  { return _wsite.getURLString(); }
  */
 public synchronized Schema getSchema()
 {
+    if(_owner!=null) return _owner.getSchema();
     if(_schema!=null) return _schema;
     Schema schema = new Schema(getName()); schema.setSite(this);
     return _schema = schema;
 }
 
+/**
+ * Returns the schema catalog (entities cached in one binary file, so tables load without parsing .table files).
+ */
+public synchronized SchemaCatalog getSchemaCatalog()
+{
+    if(_owner!=null) return _owner.getSchemaCatalog();
+    if(_catalog!=null) return _catalog;
+    return _catalog = new SchemaCatalog(this);
+}
+
 /**
  * Returns the table entity for given name.
  */
@@ -70,6 +146,17 @@ public Entity getEntity(String aName)
     return entity;
 }
 
+/**
+ * Returns whether rows store property values in ordinal slots (SlotRow) instead of map entries.
+ */
+public boolean isSlotRows()  { return _slotRows; }
+
+/**
+ * Sets whether rows store property values in ordinal slots (SlotRow) instead of map entries.
+ * This only affects rows created after it is set.
+ */
+public void setSlotRows(boolean aValue)  { _slotRows = aValue; }
+
 /**
  * Returns the list of known data tables.
  */
@@ -80,13 +167,17 @@ public synchronized List <DataTable> getTables()  { return new ArrayList(_tables
  */
 public synchronized DataTable getTable(String aName)
 {
+    // If engine site for owner, return owner table
+    if(_owner!=null) return _owner.getTable(aName);
+    
     // Get table from cache, just return if found
     DataTable table = _tables.get(aName); if(table!=null) return table;
 
-    // Create table with impl-specific version
-    try { table = getTableImpl(aName); }
+    // Create table with impl-specific version of table engine site (and make sure table site is this site)
+    try { table = getEngineSite(aName).getTableImpl(aName); }
     catch(Exception e) { throw new RuntimeException(e); }
     if(table==null) return null;
+    table.setSite(this);
     
     // Get entity and add to schema
     Entity entity = table.getEntity();
@@ -103,14 +194,13 @@ public synchronized DataTable getTable(String aName)
  */
 protected DataTable getTableImpl(String aName) throws Exception
 {
-    // Get entity file (if not found, complain and return)
+    // Get entity file (if not found, remove any catalog entry, complain and return)
     WebFile efile = getEntityFile(aName, false);
-    if(efile==null) { System.err.println("DataSite:getTableImpl: Entity file not found"); return null; }
+    if(efile==null) { getSchemaCatalog().removeEntity(aName);
+        System.err.println("DataSite:getTableImpl: Entity file not found"); return null; }
 
-    // Create entity, load from file bytes and return
-    Entity entity = new Entity(aName);
-    try { entity.fromBytes(efile.getBytes()); }
-    catch(Exception e) { throw new RuntimeException(e); }
+    // Get entity from schema catalog (parses file only if it changed since cataloged)
+    Entity entity = getSchemaCatalog().getEntity(aName, efile);
     
     // Create/configure DataTable and return
     DataTable table = new DataTable(); table.setSite(this); table.setEntity(entity);
@@ -124,7 +214,7 @@ public DataTable createTable(Entity anEntity, String oldTableName) throws Except
 {
     // Get old table and call implementation specific version
     DataTable oldTable = oldTableName!=null? getTable(oldTableName) : null;
-    createTableImpl(anEntity, oldTable);
+    getEngineSite(anEntity.getName()).createTableImpl(anEntity, oldTable);
     
     // Load table normally and return
     DataTable table = getTable(anEntity.getName());
@@ -140,6 +230,7 @@ public void createTableImpl(Entity anEntity, DataTable aTable) throws Exception
     WebFile efile = getEntityFile(anEntity.getName(), true); if(efile==null) return;
     efile.setBytes(anEntity.toBytes());
     efile.save();
+    getSchemaCatalog().putEntity(anEntity.getName(), anEntity, efile);
 }
 
 /**
@@ -149,7 +240,7 @@ public void deleteTable(String aTableName) throws Exception
 {
     // Get table and call implementation specific version
     DataTable table = getTable(aTableName);
-    deleteTableImpl(table);
+    getEngineSite(aTableName).deleteTableImpl(table);
     
     // Remove entity from schema
     Entity entity = table.getEntity();
@@ -163,10 +254,352 @@ public void deleteTable(String aTableName) throws Exception
 protected void deleteTableImpl(DataTable aTable) throws Exception
 {
     String name = aTable.getName();
+    getSchemaCatalog().removeEntity(name);
     WebFile efile = getEntityFile(name, false); if(efile==null) return;
     efile.delete();
 }
 
+/**
+ * Returns the query result cache (or null if disabled).
+ */
+public QueryCache getQueryCache()  { return _queryCache; }
+
+/**
+ * Sets the maximum number of rows to hold in query result cache (zero disables cache).
+ */
+public synchronized void setQueryCacheSize(int aMaxRows)
+{
+    if(aMaxRows<=0) _queryCache = null;
+    else if(_queryCache!=null) _queryCache.setMaxRows(aMaxRows);
+    else _queryCache = new QueryCache(aMaxRows);
+}
+
+/**
+ * Returns the maximum number of rows to keep cached across tables (zero for no limit).
+ */
+public int getRowCacheSize()  { return _rowCacheSize; }
+
+/**
+ * Sets the maximum number of rows to keep cached across tables (zero for no limit). When exceeded, rows of least
+ * recently used tables are evicted (softly held until GC) and transparently reloaded when needed again.
+ */
+public synchronized void setRowCacheSize(int aValue)  { _rowCacheSize = aValue; trimRowCache(null); }
+
+/**
+ * Called when table rows are accessed to update row cache access order and evict cold tables if over budget.
+ */
+protected synchronized void tableDidAccess(DataTable aTable)
+{
+    if(_owner!=null) { _owner.tableDidAccess(aTable); return; }
+    if(_rowCacheSize<=0) return;
+    DataTable.purgeEvictedRows();
+    
+    // Update table access order and row count (and running total), then evict if needed
+    int count = getEngineSite(aTable).getCachedRowCount(aTable);
+    Integer old = _tableLRU.put(aTable, count);
+    _cachedRowTotal += count - (old!=null? old : 0);
+    trimRowCache(aTable);
+}
+
+/**
+ * Evicts rows of least recently used tables (other than given table) until cached rows are within budget.
+ */
+protected synchronized void trimRowCache(DataTable aTable)
+{
+    // If no limit or within budget, just return
+    if(_rowCacheSize<=0 || _cachedRowTotal<=_rowCacheSize) return;
+    
+    // Iterate over tables from least recently used and evict until within budget
+    for(Iterator <Map.Entry<DataTable,Integer>> i=_tableLRU.entrySet().iterator(); i.hasNext();) {
+        if(_cachedRowTotal<=_rowCacheSize) break;
+        Map.Entry <DataTable,Integer> entry = i.next(); DataTable table = entry.getKey();
+        if(table==aTable || !table.isCacheable()) continue;
+        if(getEngineSite(table).evictTableRows(table)) { _cachedRowTotal -= entry.getValue(); i.remove();
+            _metrics.add(table.getName(), DataMetrics.Counter.RowCacheEvictions, 1); }
+    }
+}
+
+/**
+ * Returns the number of rows cached for given table.
+ */
+protected int getCachedRowCount(DataTable aTable)  { return aTable.getLocalRowCount(); }
+
+/**
+ * Evicts cached rows for given table. Returns false if table can't be evicted now (has unsaved changes).
+ */
+protected boolean evictTableRows(DataTable aTable)
+{
+    if(_queryCache!=null) _queryCache.clear(aTable);
+    aTable.evictLocalRows(null);
+    return true;
+}
+
+/**
+ * Returns a cursor over rows for given table and query: rows are fetched in batches as consumed, if table engine can
+ * scan incrementally for query (otherwise rows are fetched with getRows()).
+ */
+protected RowCursor getRowCursor(DataTable aTable, Query aQuery) throws Exception
+{
+    tableDidAccess(aTable);
+    RowCursor cursor = getEngineSite(aTable).getRowCursorImpl(aTable, aQuery);
+    return cursor!=null? cursor : RowCursor.get(getRows(aTable, aQuery));
+}
+
+/**
+ * Returns a cursor that fetches rows incrementally for given table and query (or null if not supported for query).
+ */
+protected RowCursor getRowCursorImpl(DataTable aTable, Query aQuery) throws Exception  { return null; }
+
+/**
+ * Returns a saved row for a cursor: the table cached row if there is one, otherwise a new row that isn't added to the
+ * table cache (so streamed results don't accumulate in memory).
+ */
+protected Row createCursorRow(DataTable aTable, Object aPrimeVal, Map aMap)
+{
+    // If row in table local cache, just return it
+    Row row = aTable.getLocalRow(aPrimeVal); if(row!=null) return row;
+    
+    // Create row, set values, set listener and return
+    row = aTable.newRow();
+    row.put(aTable.getEntity().getPrimary(), aPrimeVal);
+    row.initValues(aMap);
+    row.setSaved(true);
+    row.addPropChangeListener(_rowLsnr);
+    return row;
+}
+
+/**
+ * Returns whether query has no sorts or just sorts ascending on given (primary) property (cursor key order).
+ */
+protected static boolean isKeyOrder(Query aQuery, Property aProp)
+{
+    if(aQuery.getSortCount()==0) return true;
+    if(aQuery.getSortCount()>1) return false;
+    Sort sort = aQuery.getSorts().get(0);
+    return sort.getOrder()==Sort.Order.ASCEND && sort.getKey().equalsIgnoreCase(aProp.getName());
+}
+
+/**
+ * Returns a set of rows for the given table and query, using query cache if available.
+ */
+protected List <Row> getRows(DataTable aTable, Query aQuery) throws Exception
+{
+    // Update row cache access order
+    tableDidAccess(aTable);
+    long start = System.nanoTime(); String name = aTable.getName();
+    
+    // Get rows from query cache (if available and query is cacheable)
+    QueryCache cache = _queryCache; if(cache!=null && !cache.isCacheable(aQuery)) cache = null;
+    List <Row> rows = cache!=null? cache.getRows(aTable, aQuery) : null;
+    if(cache!=null) _metrics.add(name, rows!=null? DataMetrics.Counter.QueryCacheHits :
+        DataMetrics.Counter.QueryCacheMisses, 1);
+    
+    // If not cached, get rows from implementation (and add to cache) - with plan if query was logged as slow before
+    SlowQueryLog slowLog = _slowLog; QueryPlan plan = null;
+    if(rows==null) {
+        long version = aTable.getVersion();
+        if(slowLog!=null && slowLog.isPlanned(aQuery)) plan = new QueryPlan(aTable, aQuery);
+        rows = getRowsEngine(aTable, aQuery, plan!=null? plan.getRoot() : null);
+        if(cache!=null) cache.putRows(aTable, aQuery, version, rows);
+    }
+    
+    // Record metrics and slow query log and return
+    long nanos = System.nanoTime() - start;
+    _metrics.record(name, DataMetrics.Op.GetRows, nanos);
+    _metrics.add(name, DataMetrics.Counter.RowsReturned, rows.size());
+    if(slowLog!=null) {
+        if(plan!=null) { plan.getRoot().setActualRows(rows.size()); plan.getRoot().setNanos(nanos); }
+        slowLog.log(DataMetrics.Op.GetRows.name(), name, nanos, aQuery, plan, rows.size());
+    }
+    return rows;
+}
+
+/**
+ * Returns the metrics for this site.
+ */
+public DataMetrics getMetrics()  { return _metrics; }
+
+/**
+ * Returns the slow query log (null if not set).
+ */
+public SlowQueryLog getSlowQueryLog()  { return _slowLog; }
+
+/**
+ * Sets the slow query log. When set, queries also record a plan (small per-row counting cost) for logged records.
+ */
+public void setSlowQueryLog(SlowQueryLog aLog)  { _slowLog = aLog; }
+
+/**
+ * Returns the background flush scheduler (null if not set).
+ */
+public FlushScheduler getFlushScheduler()  { return _flushScheduler; }
+
+/**
+ * Sets the background flush scheduler. When set, saves and deletes are flushed in the background (coalesced) and
+ * callers that need durability wait on flushAsync().
+ */
+public void setFlushScheduler(FlushScheduler aScheduler)
+{
+    _flushScheduler = aScheduler;
+    if(aScheduler!=null) synchronized (_allSites) { _pinnedSites.add(this); }
+}
+
+/**
+ * Notes unflushed changes: site is held strongly (so it stays in registry) until flushed or closed.
+ */
+protected void noteUnflushed()
+{
+    DataSite site = _owner!=null? _owner : this;
+    synchronized (_allSites) { site._unflushedSeq++; _pinnedSites.add(site); }
+}
+
+/**
+ * Returns the change data capture feed (null if not set).
+ */
+public ChangeFeed getChangeFeed()  { return _changeFeed; }
+
+/**
+ * Sets the change data capture feed. When set, row inserts, updates and deletes are added to feed as events.
+ */
+public void setChangeFeed(ChangeFeed aFeed)  { _changeFeed = aFeed; }
+
+/**
+ * Returns a future that completes when changes made so far are flushed. With a flush scheduler, many requests share
+ * one background flush; without one, site is flushed now.
+ */
+public CompletableFuture <Void> flushAsync()
+{
+    FlushScheduler scheduler = _flushScheduler;
+    if(scheduler!=null) return scheduler.requestFlush();
+    return supplyAsync(() -> { flush(); return null; });
+}
+
+/**
+ * Returns the executor for async methods (default executor if not set).
+ */
+public Executor getExecutor()
+{
+    Executor executor = _executor;
+    return executor!=null? executor : getDefaultExecutor();
+}
+
+/**
+ * Sets the executor for async methods.
+ */
+public void setExecutor(Executor anExecutor)  { _executor = anExecutor; }
+
+/**
+ * Returns a future for the result of given task, run on site executor. Cancelling the future stops scans the task is
+ * running (at the next checkCancelled()).
+ *
+ * Async calls on one site are not run in parallel where they take the site lock (saves, deletes, commits, table and
+ * schema loads): they are serialized like sync calls, and many of them just queue. That lock is a monitor, so before
+ * Java 24 a virtual thread blocked on it, or doing I/O while holding it, pins its carrier thread. For write heavy async
+ * use on Java 21-23, set an executor with a bounded pool of platform threads.
+ */
+public <T> CompletableFuture <T> supplyAsync(Callable <T> aTask)
+{
+    AsyncTask <T> task = new AsyncTask(aTask);
+    try { getExecutor().execute(task); }
+    catch(RejectedExecutionException e) { task.completeExceptionally(e); }
+    return task;
+}
+
+/**
+ * Throws CancellationException if the async task running on current thread was cancelled (scans call periodically).
+ */
+public static void checkCancelled()
+{
+    AsyncTask task = AsyncTask._current.get();
+    if(task!=null && task.isCancelled()) throw new CancellationException("DataSite: Task cancelled");
+}
+
+/**
+ * Returns the default executor for async methods: virtual thread per task (if platform supports it), otherwise a
+ * fixed pool of daemon threads (so many requests queue instead of exhausting threads). See supplyAsync() for how site
+ * locking serializes async calls (and can pin virtual threads).
+ */
+public static synchronized ExecutorService getDefaultExecutor()
+{
+    // If already set, just return
+    if(_defaultExecutor!=null) return _defaultExecutor;
+    
+    // Try virtual thread per task executor (Java 21+)
+    try { return _defaultExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+        .invoke(null); }
+    catch(ReflectiveOperationException e) { }
+    
+    // Otherwise, create fixed pool of daemon threads
+    int count = Math.max(8, Runtime.getRuntime().availableProcessors()*4);
+    return _defaultExecutor = Executors.newFixedThreadPool(count, r -> {
+        Thread thread = new Thread(r, "DataSite Async"); thread.setDaemon(true); return thread; });
+}
+
+/**
+ * Registers site metrics with the platform MBean server (unregistered on close).
+ */
+public void registerMetricsMBean() throws Exception  { _metrics.registerMBean(getURLString()); }
+
+/**
+ * Returns a plan for given query: runs query and records access path, predicate order, estimated and actual rows
+ * and timings for each operator.
+ */
+public QueryPlan explain(Query aQuery) throws Exception
+{
+    // Get table
+    DataTable table = getTable(aQuery.getEntityName());
+    if(table==null) throw new RuntimeException("DataSite.explain: Table not found: " + aQuery.getEntityName());
+    
+    // Create plan and get rows from query cache (if available)
+    QueryPlan plan = new QueryPlan(table, aQuery); QueryPlan.Node root = plan.getRoot();
+    long start = System.nanoTime();
+    QueryCache cache = _queryCache; if(cache!=null && !cache.isCacheable(aQuery)) cache = null;
+    List <Row> rows = cache!=null? cache.getRows(table, aQuery) : null;
+    if(cache!=null) root.addChild("QueryCache", rows!=null? "hit" : "miss").setActualRows(rows!=null? rows.size() : 0);
+    
+    // If not cached, get rows from implementation
+    if(rows==null)
+        rows = getRowsEngine(table, aQuery, root);
+    
+    // Set root actual rows and time and return
+    root.setActualRows(rows.size());
+    root.setNanos(System.nanoTime() - start);
+    return plan;
+}
+
+/**
+ * Returns a set of rows for the given table and query from table engine site (with plan nodes, if node provided).
+ * If query has sorts and engine doesn't have Sorting capability, rows are sorted here.
+ */
+protected List <Row> getRowsEngine(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws Exception
+{
+    // Get rows from engine site
+    DataSite esite = getEngineSite(aTable);
+    List <Row> rows = aNode!=null? esite.explainImpl(aTable, aQuery, aNode) : esite.getRowsImpl(aTable, aQuery);
+    
+    // If sorts and engine can't sort, sort rows
+    if(aQuery.getSortCount()>0 && !getEngine(aTable).hasCapability(DataEngine.Capability.Sorting)) {
+        long start = System.nanoTime();
+        rows = new ArrayList(rows); Collections.sort(rows, aQuery.getComparator(aTable.getEntity()));
+        if(aNode!=null) { QueryPlan.Node node = aNode.addChild("Sort", "(site)");
+            node.setInputRows(rows.size()); node.setActualRows(rows.size());
+            node.setNanos(System.nanoTime() - start); }
+    }
+    return rows;
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node. This version just
+ * adds an opaque Fetch node: subclasses override to describe access path, filter and sort.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws Exception
+{
+    QueryPlan.Node node = aNode.addChild("Fetch", getClass().getSimpleName()); long start = System.nanoTime();
+    List <Row> rows = getRowsImpl(aTable, aQuery);
+    node.setActualRows(rows.size()); node.setNanos(System.nanoTime() - start);
+    return rows;
+}
+
 /**
  * Returns a set of rows for the given table and query.
  */
@@ -181,7 +614,7 @@ protected synchronized Row createSavedRow(DataTable aTable, Object aPrimeVal, Ma
     Row row = aTable.getLocalRow(aPrimeVal); if(row!=null) return row;
     
     // Create row and set values
-    row = new Row(); row.setTable(aTable);
+    row = aTable.newRow();
     row.put(aTable.getEntity().getPrimary(), aPrimeVal);
     row.initValues(aMap);
     row.setSaved(true);
@@ -199,26 +632,43 @@ protected synchronized void saveRow(Row aRow) throws Exception
 {
     // If row exists and hasn't changed, just return
     boolean exists = aRow.isSaved(); if(exists && !aRow.isModified()) return;
+    long start = System.nanoTime();
     
     // If there are UnresolvedRelationRows, make sure they get saved
     Row urows[] = aRow.getUnresolvedRelationRows();
     if(urows!=null) {
-        if(!exists) { saveRowImpl(aRow); aRow.setSaved(true); } // Save this row first in case of circular reference
+        // Save this row first in case of circular reference
+        if(!exists) { getEngineSite(aRow.getTable()).saveRowImpl(aRow); aRow.setSaved(true); }
         for(Row urow : urows)
             urow.save();
     }
 
     // Save row for real
-    saveRowImpl(aRow);
+    getEngineSite(aRow.getTable()).saveRowImpl(aRow);
     
     // Set row Saved and not modified and add to table.LocalRows
     aRow.setSaved(true);
     aRow.setModified(false);
+    DataTable dtable = aRow.getTable();
     if(!exists) {
-        DataTable dtable = aRow.getTable();
         dtable.addLocalRow(aRow);
+        aRow.addPropChangeListener(_rowLsnr);
         assert(aRow.getPrimaryValue()!=null);
     }
+    dtable.bumpVersion();
+    long nanos = System.nanoTime() - start;
+    _metrics.record(dtable.getName(), DataMetrics.Op.SaveRow, nanos);
+    SlowQueryLog slowLog = _slowLog;
+    if(slowLog!=null) slowLog.log(DataMetrics.Op.SaveRow.name(), dtable.getName(), nanos, null, null, 1);
+    
+    // Add change feed event
+    ChangeFeed feed = _changeFeed;
+    if(feed!=null) feed.addChange(aRow, exists? ChangeFeed.Type.Update : ChangeFeed.Type.Insert);
+    
+    // Notify flush scheduler and note unflushed change
+    FlushScheduler scheduler = _flushScheduler;
+    if(scheduler!=null) scheduler.noteChanges(1);
+    noteUnflushed();
 }
 
 /**
@@ -232,12 +682,27 @@ protected void saveRowImpl(Row aRow) throws Exception  { throw notImpl("saveRowI
 protected synchronized void deleteRow(Row aRow) throws Exception
 {
     // Delete row
-    deleteRowImpl(aRow);
+    long start = System.nanoTime();
+    getEngineSite(aRow.getTable()).deleteRowImpl(aRow);
     
     // Set Saved to false and remove from table
     aRow.setSaved(false);
     DataTable dtable = aRow.getTable();
-    dtable.removeLocalRow(aRow);    
+    dtable.removeLocalRow(aRow);
+    dtable.bumpVersion();
+    long nanos = System.nanoTime() - start;
+    _metrics.record(dtable.getName(), DataMetrics.Op.DeleteRow, nanos);
+    SlowQueryLog slowLog = _slowLog;
+    if(slowLog!=null) slowLog.log(DataMetrics.Op.DeleteRow.name(), dtable.getName(), nanos, null, null, 1);
+    
+    // Add change feed event
+    ChangeFeed feed = _changeFeed;
+    if(feed!=null) feed.addChange(aRow, ChangeFeed.Type.Delete);
+    
+    // Notify flush scheduler and note unflushed change
+    FlushScheduler scheduler = _flushScheduler;
+    if(scheduler!=null) scheduler.noteChanges(1);
+    noteUnflushed();
 }
 
 /**
@@ -246,14 +711,385 @@ protected synchronized void deleteRow(Row aRow) throws Exception
 protected void deleteRowImpl(Row aRow) throws Exception  { throw notImpl("deleteRowImpl"); }
 
 /**
- * Clears site Schema, rows and files.
+ * Returns a new transaction for staging row saves and deletes to commit together.
+ */
+public Transaction beginTransaction()  { return new Transaction(_owner!=null? _owner : this); }
+
+/**
+ * Applies and writes transaction changes (all or none): saves and deletes are applied in one pass (rows whose
+ * relation rows were new are saved again once those have primary values), then just the changed tables are flushed,
+ * once each. If anything fails, applied changes are undone and flushed, and rows get their original values back.
+ * Tables are written one at a time, so a crash during the flush can leave a partial commit on disk (see Transaction).
+ */
+protected synchronized void commit(Transaction aTrans) throws Exception
+{
+    long start = System.nanoTime();
+    Set <DataTable> tables = new LinkedHashSet();
+    try {
+        // Apply changes
+        List <Row> resaves = new ArrayList();
+        for(Transaction.Change change : aTrans._changes) {
+            Row row = change._row; DataTable table = row.getTable(); tables.add(table);
+            DataSite esite = getEngineSite(table);
+
+            // Handle save: save row (if new or modified) and add new row to table
+            if(change._type==Transaction.Type.Save) {
+                if(row.isSaved() && !row.isModified()) continue;
+                if(row.getUnresolvedRelationRows()!=null) resaves.add(row);
+                esite.saveRowImpl(row); change._applied = true;
+                if(!change._saved) { table.addLocalRow(row); row.addPropChangeListener(_rowLsnr); }
+                row.setSaved(true); row.setModified(false);
+            }
+
+            // Handle delete: delete row and remove from table
+            else {
+                esite.deleteRowImpl(row); change._applied = true;
+                row.setSaved(false); table.removeLocalRow(row);
+            }
+        }
+
+        // Save rows whose relation rows were unsaved again (relations now have primary values)
+        for(Row row : resaves) { getEngineSite(row.getTable()).saveRowImpl(row); row.setModified(false); }
+
+        // Write changes (just tables touched, once each)
+        flushTables(tables);
+    }
+
+    // If failed, undo applied changes
+    catch(Exception e) { undoCommit(aTrans, e); throw e; }
+
+    // Bump table versions (invalidates cached queries)
+    finally { for(DataTable table : tables) table.bumpVersion(); }
+
+    // Add change feed events for applied changes
+    ChangeFeed feed = _changeFeed;
+    if(feed!=null) for(Transaction.Change change : aTrans._changes) if(change._applied)
+        feed.addChange(change._row, change._type==Transaction.Type.Delete? ChangeFeed.Type.Delete :
+            change._saved? ChangeFeed.Type.Update : ChangeFeed.Type.Insert);
+    
+    // Record metrics and slow query log
+    long nanos = System.nanoTime() - start;
+    _metrics.record(DataMetrics.SITE, DataMetrics.Op.Commit, nanos);
+    SlowQueryLog slowLog = _slowLog;
+    if(slowLog!=null)
+        slowLog.log(DataMetrics.Op.Commit.name(), DataMetrics.SITE, nanos, null, null, aTrans.getChangeCount());
+}
+
+/**
+ * Undoes applied transaction changes (in reverse order) and restores rows to original values, then flushes their
+ * tables. Errors are added to given exception as suppressed.
+ */
+protected void undoCommit(Transaction aTrans, Exception anException)
+{
+    List <Transaction.Change> changes = aTrans._changes; Set <DataTable> tables = new LinkedHashSet();
+    for(int i=changes.size()-1; i>=0; i--) { Transaction.Change change = changes.get(i);
+        Row row = change._row; DataTable table = row.getTable(); tables.add(table);
+        try {
+            // If not applied, just restore row
+            if(!change._applied) { change.restore(); continue; }
+            DataSite esite = getEngineSite(table);
+
+            // Handle new row saved: delete row, remove from table and restore
+            if(!change._saved) {
+                esite.deleteRowImpl(row); table.removeLocalRow(row); row.removePropChangeListener(_rowLsnr);
+                change.restore();
+            }
+
+            // Handle existing row deleted: restore and insert again (with original primary value)
+            else if(change._type==Transaction.Type.Delete) {
+                change.restore(); row.setSaved(false);
+                esite.saveRowImpl(row);
+                Property primeProp = row.getEntity().getPrimary(); Object pval = change.getOriginalValue(primeProp);
+                if(!Objects.equals(row.getStoredValue(primeProp), pval)) row.put(primeProp, pval);
+                row.setSaved(true); row.setModified(false); table.addLocalRow(row);
+            }
+
+            // Handle existing row saved: restore and save original values
+            else { change.restore(); esite.saveRowImpl(row); }
+            change._applied = false;
+        }
+        catch(Exception e) { anException.addSuppressed(e); }
+    }
+
+    // Write undone changes
+    try { flushTables(tables); }
+    catch(Exception e) { anException.addSuppressed(e); }
+}
+
+/**
+ * Clears site Schema, rows and files. Engine sites are flushed and closed (so their pending writes are saved and their
+ * threads, connections and files released) and recreated on next use.
  */
-public synchronized void refresh()  { _schema = null; _wsite.refresh(); }
+public void refresh()
+{
+    // Clear schema, files, metadata and engine sites
+    List <DataSite> esites;
+    synchronized (this) {
+        _schema = null; if(_wsite!=null) _wsite.refresh();
+        _meta = null; esites = getEngineSites(); _engineSites.clear();
+        if(_queryCache!=null) _queryCache.clear();
+    }
+    
+    // Close old engine sites (close flushes), outside lock since engine sites call back into owner
+    for(DataSite esite : esites) {
+        try { esite.close(); }
+        catch(Exception e) { System.err.println("DataSite.refresh: Error closing engine site: " + e); }
+    }
+}
 
 /**
  * Flushes any unsaved changes to backing store.
  */
-public void flush() throws Exception  { _wsite.flush(); }
+public void flush() throws Exception
+{
+    // Get unflushed change count (changes noted after this are left for next flush)
+    long seq; synchronized (_allSites) { seq = _unflushedSeq; }
+    
+    // Flush engine sites and WebSite (if engine site, just return)
+    long start = System.nanoTime();
+    for(DataSite esite : getEngineSites()) esite.flush();
+    if(_wsite!=null) _wsite.flush();
+    if(_owner!=null) return;
+    
+    // Save schema catalog (if changed)
+    SchemaCatalog catalog; synchronized (this) { catalog = _catalog; }
+    if(catalog!=null) catalog.save();
+    
+    // Save change feed offsets
+    ChangeFeed feed = _changeFeed;
+    if(feed!=null) feed.saveOffsets();
+    
+    // If no changes since flush started and no scheduler, unpin site
+    synchronized (_allSites) { if(_unflushedSeq==seq && _flushScheduler==null) _pinnedSites.remove(this); }
+    
+    // Record metrics and slow query log
+    long nanos = System.nanoTime() - start;
+    _metrics.record(DataMetrics.SITE, DataMetrics.Op.Flush, nanos);
+    SlowQueryLog slowLog = _slowLog;
+    if(slowLog!=null) slowLog.log(DataMetrics.Op.Flush.name(), DataMetrics.SITE, nanos, null, null, 0);
+}
+
+/**
+ * Flushes unsaved changes of given tables to backing store (each engine site writes just its tables).
+ */
+protected void flushTables(Collection <DataTable> theTables) throws Exception
+{
+    Map <DataSite,List<DataTable>> esiteTables = new LinkedHashMap();
+    for(DataTable table : theTables) esiteTables.computeIfAbsent(getEngineSite(table), k -> new ArrayList()).add(table);
+    for(Map.Entry <DataSite,List<DataTable>> entry : esiteTables.entrySet())
+        entry.getKey().flushTablesImpl(entry.getValue());
+}
+
+/**
+ * Writes unsaved changes of given tables stored by this site. Subclasses override to write just given tables (default
+ * flushes whole site).
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception  { flush(); }
+
+/**
+ * Flushes changes and removes this site from the site registry (a later call to get() creates a new DataSite).
+ */
+public void close() throws Exception
+{
+    // Stop flush scheduler (flushes pending changes) and flush changes
+    FlushScheduler scheduler = _flushScheduler; _flushScheduler = null;
+    if(scheduler!=null) scheduler.close();
+    flush();
+    
+    // Close change feed (cancels subscriptions and saves offsets)
+    ChangeFeed feed = _changeFeed; _changeFeed = null;
+    if(feed!=null) feed.close();
+    
+    // Remove from registry
+    synchronized (_allSites) {
+        WeakReference <DataSite> ref = _allSites.get(_wsite);
+        if(ref!=null && ref.get()==this) _allSites.remove(_wsite);
+        _pinnedSites.remove(this);
+    }
+    
+    // Close engine sites
+    for(DataSite esite : getEngineSites()) esite.close();
+    
+    // Clear query cache and unregister metrics (if not engine site, which shares owner metrics)
+    if(_queryCache!=null) _queryCache.clear();
+    if(_owner==null) _metrics.unregisterMBean();
+}
+
+/**
+ * Returns the storage engine that created this site (null if created directly).
+ */
+public DataEngine getEngine()  { return _engine; }
+
+/**
+ * Returns the storage engine for given table (site engine if table doesn't name one).
+ */
+public DataEngine getEngine(DataTable aTable)
+{
+    DataSite esite = getEngineSite(aTable);
+    DataEngine engine = esite.getEngine();
+    return engine!=null? engine : DataEngine.getDefault();
+}
+
+/**
+ * Returns whether the engine for given table has given capability.
+ */
+public boolean hasCapability(DataTable aTable, DataEngine.Capability aCapability)
+{
+    return getEngine(aTable).hasCapability(aCapability);
+}
+
+/**
+ * Returns the site metadata (loaded from site metadata file).
+ */
+public synchronized Properties getMetadata()
+{
+    // If already loaded, just return
+    if(_meta!=null) return _meta;
+    if(_owner!=null) return _meta = _owner.getMetadata();
+    
+    // Load from file
+    return _meta = getMetadata(_wsite);
+}
+
+/**
+ * Returns the site metadata for given WebSite (loaded from site metadata file).
+ */
+protected static Properties getMetadata(WebSite aSite)
+{
+    Properties meta = new Properties();
+    WebFile file = aSite!=null? aSite.getFile(META_FILE_PATH) : null;
+    if(file!=null)
+        try { meta.load(new ByteArrayInputStream(file.getBytes())); }
+        catch(IOException e) { System.err.println("DataSite.getMetadata: " + e); }
+    return meta;
+}
+
+/**
+ * Returns the engine name for given table name from site metadata (or null for site engine).
+ */
+public String getEngineName(String aTableName)
+{
+    return getMetadata().getProperty(Engine_Key + '.' + aTableName);
+}
+
+/**
+ * Sets the engine name for given table name (or site, if table name is null) and saves site metadata. A site engine
+ * change takes effect when site is next opened. A table engine change doesn't move existing rows.
+ */
+public synchronized void setEngineName(String aTableName, String anEngineName) throws Exception
+{
+    // Update metadata
+    Properties meta = getMetadata();
+    String key = aTableName!=null? Engine_Key + '.' + aTableName : Engine_Key;
+    if(anEngineName!=null) meta.setProperty(key, anEngineName);
+    else meta.remove(key);
+    saveMetadata();
+}
+
+/**
+ * Returns the site durability level (from site metadata, default is Flush).
+ */
+public Durability getDurability()  { return getDurability(null); }
+
+/**
+ * Returns the durability level for given table name (from site metadata, site durability if table doesn't name one).
+ */
+public Durability getDurability(String aTableName)
+{
+    Properties meta = getMetadata();
+    String str = aTableName!=null? meta.getProperty(Durability_Key + '.' + aTableName) : null;
+    if(str==null) str = meta.getProperty(Durability_Key);
+    if(str==null) return Durability.Flush;
+    try { return Durability.valueOf(str); }
+    catch(IllegalArgumentException e) {
+        System.err.println("DataSite: Unknown durability: " + str); return Durability.Flush; }
+}
+
+/**
+ * Returns whether writes for given table name should be forced to storage device (Sync or BatchSync durability).
+ */
+protected boolean isSync(String aTableName)
+{
+    Durability durability = getDurability(aTableName);
+    return durability==Durability.Sync || durability==Durability.BatchSync;
+}
+
+/**
+ * Sets the durability level for given table name (or site, if table name is null) and saves site metadata.
+ */
+public synchronized void setDurability(String aTableName, Durability aValue) throws Exception
+{
+    // If engine site, forward to owner
+    if(_owner!=null) { _owner.setDurability(aTableName, aValue); return; }
+    
+    // Update metadata and save
+    Properties meta = getMetadata();
+    String key = aTableName!=null? Durability_Key + '.' + aTableName : Durability_Key;
+    if(aValue!=null) meta.setProperty(key, aValue.name());
+    else meta.remove(key);
+    saveMetadata();
+}
+
+/**
+ * Saves site metadata file.
+ */
+protected synchronized void saveMetadata() throws Exception
+{
+    Properties meta = getMetadata();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    meta.store(bytes, "DataSite metadata");
+    WebFile file = _wsite.getFile(META_FILE_PATH);
+    if(file==null) file = _wsite.createFile(META_FILE_PATH, false);
+    file.setBytes(bytes.toByteArray());
+    file.save();
+}
+
+/**
+ * Returns the site that stores rows for given table (this site, unless metadata names another engine for table).
+ */
+protected DataSite getEngineSite(DataTable aTable)  { return getEngineSite(aTable.getName()); }
+
+/**
+ * Returns the site that stores rows for given table name.
+ */
+protected synchronized DataSite getEngineSite(String aTableName)
+{
+    // If engine site, forward to owner
+    if(_owner!=null) return _owner.getEngineSite(aTableName);
+    
+    // Get table engine name (if none or same as site engine, return this site)
+    String ename = getEngineName(aTableName);
+    if(ename==null || _engine!=null && ename.equalsIgnoreCase(_engine.getName())) return this;
+    
+    // Get cached engine site, just return if found
+    DataSite esite = _engineSites.get(ename.toLowerCase(Locale.ROOT)); if(esite!=null) return esite;
+    
+    // Get engine (complain and use this site if not found)
+    DataEngine engine = DataEngine.getEngine(ename);
+    if(engine==null) {
+        System.err.println("DataSite: Engine not found: " + ename + " (for table " + aTableName + ")");
+        return this; }
+    
+    // Create engine site, set owner, add to map and return
+    esite = engine.createSite(); esite._engine = engine;
+    esite.setOwner(this);
+    _engineSites.put(ename.toLowerCase(Locale.ROOT), esite);
+    return esite;
+}
+
+/**
+ * Returns the per-table engine sites.
+ */
+protected synchronized List <DataSite> getEngineSites()  { return new ArrayList(_engineSites.values()); }
+
+/**
+ * Sets the site this engine site stores tables for: shares owner WebSite and metrics, while tables, schema and
+ * row change notification go to owner.
+ */
+protected void setOwner(DataSite aSite)
+{
+    _owner = aSite; _wsite = aSite._wsite; _metrics = aSite._metrics;
+}
 
 /**
  * Returns the entity file.
@@ -269,22 +1105,67 @@ protected WebFile getEntityFile(String aName, boolean doCreate)
 /**
  * Called when row changes.
  */
-protected void rowDidPropChange(PropChange aPC)  { _pcs.fireDeepChange(this, aPC); }
+protected void rowDidPropChange(PropChange aPC)
+{
+    // If engine site, forward to owner
+    if(_owner!=null) { _owner.rowDidPropChange(aPC); return; }
+    
+    // Notify row table and fire deep change
+    Row row = (Row)aPC.getSource();
+    if(row.getTable()!=null) row.getTable().rowDidPropChange(row, aPC);
+    _pcs.fireDeepChange(this, aPC);
+}
 
 /** Returns a "not implemented" exception for string (method name). */
 private Exception notImpl(String aStr)  { return new Exception(getClass().getName() + ": Not implemented:" + aStr); }
 
 /**
- * Returns a DataSite for given WebSite.
+ * Returns a DataSite for given WebSite. Sites are held weakly once flushed, but sites with unflushed changes stay
+ * registered, so get().flush() always finds earlier saves.
  */
 public static DataSite get(WebSite aSite)
 {
-    // Get site from AllSites map, just return if found
-    DataSite dsite = _allSites.get(aSite); if(dsite!=null) return dsite;
+    synchronized (_allSites) {
+        
+        // Get site from AllSites map, just return if found
+        WeakReference <DataSite> ref = _allSites.get(aSite);
+        DataSite dsite = ref!=null? ref.get() : null; if(dsite!=null) return dsite;
+    
+        // Get engine named in site metadata (or default)
+        String ename = getMetadata(aSite).getProperty(Engine_Key);
+        DataEngine engine = ename!=null? DataEngine.getEngine(ename) : null;
+        if(engine==null && ename!=null) System.err.println("DataSite.get: Engine not found: " + ename);
+        if(engine==null) engine = DataEngine.getDefault();
+        
+        // Create new site for engine, set site and return
+        dsite = engine.createSite(); dsite._engine = engine; dsite.setSite(aSite);
+        return dsite;
+    }
+}
+
+/**
+ * A future that runs a task (noting itself as current task of thread, so scans can check for cancellation).
+ */
+protected static class AsyncTask <T> extends CompletableFuture <T> implements Runnable {
 
-    // Create new FileDataSite, set site and return
-    dsite = new FileDataSite(); dsite.setSite(aSite);
-    return dsite;
+    // The task
+    Callable <T>              _task;
+    
+    // The task running on current thread
+    static final ThreadLocal <AsyncTask> _current = new ThreadLocal();
+
+    /** Creates new AsyncTask. */
+    AsyncTask(Callable <T> aTask)  { _task = aTask; }
+
+    /** Runs task and completes future (unless cancelled). */
+    public void run()
+    {
+        if(isDone()) return;
+        _current.set(this);
+        try { complete(_task.call()); }
+        catch(Throwable e) { completeExceptionally(e); }
+        finally { _current.remove(); }
+    }
 }
 
-}
\ No newline at end of file
+}
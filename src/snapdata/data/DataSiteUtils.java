@@ -1,5 +1,6 @@
 package snapdata.data;
 import java.util.*;
+import java.util.regex.*;
 import snap.util.StringUtils;
 
 /**
@@ -7,6 +8,27 @@ import snap.util.StringUtils;
  */
 public class DataSiteUtils {
 
+    // Pattern for a simple where clause term: property, operator and value
+    static final Pattern TERM_PATTERN = Pattern.compile("(\\w+)\\s*(<=|>=|=|<|>|(?i:like)\\s|(?i:is null))\\s*(.*)");
+
+    // Pattern for an "and" or "or" between where clause terms
+    static final Pattern JOIN_PATTERN = Pattern.compile("\\s+(?i)(and|or)\\s+");
+
+/**
+ * Executes a command: SELECT, EXPLAIN SELECT or SHOW TABLES.
+ */
+public static String executeCommand(DataSite aDataSite, String aCommand)
+{
+    String cmd = aCommand.trim();
+    if(cmd.regionMatches(true, 0, "explain ", 0, 8))
+        return explainSelect(aDataSite, cmd.substring(8).trim());
+    if(cmd.regionMatches(true, 0, "select ", 0, 7))
+        return executeSelect(aDataSite, cmd.substring(7));
+    if(cmd.equalsIgnoreCase("show tables"))
+        return showTables(aDataSite);
+    return "Syntax error";
+}
+
 /**
  * Returns a string of datasite tables.
  */
@@ -28,9 +50,11 @@ public static String executeSelect(DataSite aDataSite, String aCommand)
     if(from<0)
         return "Syntax error";
     
-    // Get table
-    String tableName = aCommand.substring(from + 4).trim();
-    DataTable table = aDataSite.getTable(tableName);
+    // Get table and query (invalid where clause is syntax error)
+    Query query;
+    try { query = getQuery(aDataSite, aCommand.substring(from + 4)); }
+    catch(IllegalArgumentException e) { return "Syntax error"; }
+    DataTable table = query!=null? aDataSite.getTable(query.getEntityName()) : null;
     if(table==null)
         return "Table not found";
     
@@ -58,7 +82,7 @@ public static String executeSelect(DataSite aDataSite, String aCommand)
     sb.append("\n");
 
     // Get rows and append values
-    List <Row> rows = table.getAllRows();
+    List <Row> rows = query.getCondition()!=null? table.getRows(query) : table.getAllRows();
     for(Row row : rows) {
         for(Property prop : props)
             sb.append(row.get(prop.getName())).append("\t");
@@ -70,4 +94,114 @@ public static String executeSelect(DataSite aDataSite, String aCommand)
     return sb.toString();
 }
 
+/**
+ * Explains select command (with or without leading "select"): runs query and returns plan string.
+ */
+public static String explainSelect(DataSite aDataSite, String aCommand)
+{
+    // Get from index
+    int from = StringUtils.indexOfIC(aCommand, "from");
+    if(from<0)
+        return "Syntax error";
+    
+    // Get query (invalid where clause is syntax error)
+    Query query;
+    try { query = getQuery(aDataSite, aCommand.substring(from + 4)); }
+    catch(IllegalArgumentException e) { return "Syntax error"; }
+    if(query==null)
+        return "Table not found";
+    
+    // Return plan string
+    try { return aDataSite.explain(query).toString(); }
+    catch(Exception e) { return e.toString(); }
+}
+
+/**
+ * Returns a query for a from clause: a table name with optional simple where clause (terms like "Name = 'Bob'",
+ * "Price >= 5", "Name like 'B%'" or "Notes is null", joined by "and" or "or"). Returns null if table not found and
+ * throws IllegalArgumentException for an invalid where term.
+ */
+public static Query getQuery(DataSite aDataSite, String aFromClause)
+{
+    // Get table name and where clause
+    String str = aFromClause.trim(), where = null;
+    int ind = StringUtils.indexOfIC(str, " where ");
+    if(ind>=0) { where = str.substring(ind + 7).trim(); str = str.substring(0, ind).trim(); }
+    
+    // Get table and create query
+    DataTable table = aDataSite.getTable(str);
+    if(table==null)
+        return null;
+    Query query = new Query(table.getEntity());
+    if(where==null || where.length()==0)
+        return query;
+    
+    // Split where clause into terms and operators (skipping "and"/"or" inside quoted values) and add conditions
+    ConditionList clist = new ConditionList();
+    Matcher matcher = JOIN_PATTERN.matcher(where);
+    int start = 0; Condition.Operator op = Condition.Operator.And;
+    while(true) { boolean found = findJoin(matcher, where, start);
+        String term = where.substring(start, found? matcher.start() : where.length());
+        Condition cond = getCondition(term);
+        if(cond==null) throw new IllegalArgumentException("DataSiteUtils: Invalid where term: " + term);
+        clist.addCondition(op, cond);
+        if(!found) break;
+        op = matcher.group(1).equalsIgnoreCase("or")? Condition.Operator.Or : Condition.Operator.And;
+        start = matcher.end();
+    }
+    
+    // Set condition (simple condition if just one) and return
+    query.setCondition(clist.getConditionCount()==1? clist.getCondition(0) : clist);
+    return query;
+}
+
+/**
+ * Finds next "and"/"or" in where clause from given index that isn't inside a quoted value.
+ */
+static boolean findJoin(Matcher aMatcher, String aWhere, int aStart)
+{
+    for(int from=aStart; aMatcher.find(from); from=aMatcher.end()-1) {
+        char quote = 0;
+        for(int i=aStart, iMax=aMatcher.start(); i<iMax; i++) { char c = aWhere.charAt(i);
+            if(quote==0 && (c=='\'' || c=='"')) quote = c;
+            else if(c==quote) quote = 0; }
+        if(quote==0) return true;
+    }
+    return false;
+}
+
+/**
+ * Returns a condition for a where clause term (or null if term not valid).
+ */
+static Condition getCondition(String aTerm)
+{
+    // Get property name, operator and value string
+    Matcher matcher = TERM_PATTERN.matcher(aTerm.trim());
+    if(!matcher.matches()) return null;
+    String pname = matcher.group(1), op = matcher.group(2).trim().toLowerCase(Locale.ROOT);
+    String vstr = matcher.group(3).trim();
+    if(vstr.length()>=2 && (vstr.startsWith("'") && vstr.endsWith("'") || vstr.startsWith("\"") && vstr.endsWith("\"")))
+        vstr = vstr.substring(1, vstr.length()-1);
+    
+    // Handle like: leading and/or trailing '%' determine operator
+    if(op.equals("like")) {
+        boolean head = vstr.startsWith("%"), tail = vstr.endsWith("%") && vstr.length()>1;
+        String val = vstr.substring(head? 1 : 0, vstr.length() - (tail? 1 : 0));
+        Condition.Operator cop = head && tail? Condition.Operator.Contains : head? Condition.Operator.EndsWith :
+            tail? Condition.Operator.StartsWith : Condition.Operator.Equals;
+        return new Condition(pname, cop, val);
+    }
+    
+    // Handle others
+    switch(op) {
+        case "=": return new Condition(pname, Condition.Operator.Equals, vstr);
+        case "<": return new Condition(pname, Condition.Operator.LessThan, vstr);
+        case "<=": return new Condition(pname, Condition.Operator.LessThanOrEqual, vstr);
+        case ">": return new Condition(pname, Condition.Operator.GreaterThan, vstr);
+        case ">=": return new Condition(pname, Condition.Operator.GreaterThanOrEqual, vstr);
+        case "is null": return vstr.length()==0? new Condition(pname, Condition.Operator.Empty, null) : null;
+        default: return null;
+    }
+}
+
 }
\ No newline at end of file
@@ -2,8 +2,11 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snapdata.data;
+import java.lang.ref.*;
 import java.util.*;
-import snap.util.SnapObject;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import snap.util.*;
 
 /**
  * This class represents a table of all rows for an entity.
@@ -19,11 +22,31 @@ public class DataTable extends SnapObject {
     // The rows that have been loaded locally
     Map <Object,Row>             _localRows = new HashMap();
     
+    // The local rows evicted by site row cache, each held softly (in eviction order): a row still referenced elsewhere
+    // isn't collected, so it is found here and reused when rows reload (keeping one row per primary value)
+    Map <Object,SoftReference<Row>>  _evictedRows;
+    
+    // Whether evicted rows have had entries purged (collected rows), so they can't be restored as complete table
+    boolean                      _evictedPurged;
+    
+    // Whether local rows can be evicted by site row cache
+    boolean                      _cacheable = true;
+    
     // The primary fetch that holds all rows
     Fetch                        _mfetch;
     
+    // The fetches that are notified of row changes (weakly held, so unused fetches can be collected)
+    List <WeakReference<Fetch>>  _fetches = new ArrayList();
+    
+    // The table version (incremented whenever rows are added, removed or changed)
+    volatile long                _version;
+    
+    // The queue of evicted row references cleared by GC (shared by all tables, polled to purge evicted row entries)
+    static final ReferenceQueue <Row>  _evictedQueue = new ReferenceQueue();
+    
     // Constants for property changes
     static final String LocalRow_Prop = "LocalRow";
+    static final String RowChange_Prop = "RowChange";
     
 /**
  * Returns the data site for this table.
@@ -83,48 +106,260 @@ public Row getRow(Object aPrimeVal)
 public List <Row> getRows(Query aQuery)
 {
     // Fetch rows, set Exists and return
-    List <Row> rows; try { rows = _site.getRowsImpl(this, aQuery); }
+    DataEvents.QueryEvent event = new DataEvents.QueryEvent(); event.begin();
+    List <Row> rows; try { rows = _site.getRows(this, aQuery); }
     catch(Exception e) { throw new RuntimeException(e); }
     for(Row row : rows) row.setSaved(true);
+    
+    // Commit flight recorder event (if recording)
+    event.end();
+    if(event.shouldCommit()) {
+        event.table = getName(); event.condition = String.valueOf(aQuery.getCondition());
+        event.rowsReturned = rows.size(); event.commit(); }
     return rows;
 }
 
+/**
+ * Returns a future for the rows for given query (fetched on site executor). Cancelling the future stops the scan.
+ */
+public CompletableFuture <List<Row>> getRowsAsync(Query aQuery)  { return _site.supplyAsync(() -> getRows(aQuery)); }
+
+/**
+ * Returns a cursor over rows for given query, fetched in batches as consumed (caller must close).
+ */
+public RowCursor getRowCursor(Query aQuery)
+{
+    try { return _site.getRowCursor(this, aQuery); }
+    catch(Exception e) { throw new RuntimeException(e); }
+}
+
+/**
+ * Returns a stream of rows for given query, fetched in batches as consumed (caller should close).
+ */
+public Stream <Row> getRowStream(Query aQuery)  { return getRowCursor(aQuery).stream(); }
+
+/**
+ * Returns a publisher of rows for given query: rows are fetched as subscribers request them.
+ */
+public Flow.Publisher <Row> getRowPublisher(Query aQuery)  { return new RowCursor.Publisher(this, aQuery); }
+
 /**
  * Creates a new row.
  */
 public Row createRow(Map aMap)
 {
     // Create row and set values
-    Row row = new Row(); row.setTable(this);
+    Row row = newRow();
     row.initValues(aMap);
     
     // Return row
     return row;
 }
 
+/**
+ * Returns a new empty row instance for this table (a SlotRow if site uses slot rows).
+ */
+protected Row newRow()
+{
+    Row row = _site!=null && _site.isSlotRows()? new SlotRow() : new Row();
+    row.setTable(this);
+    return row;
+}
+
 /**
  * Returns a local row for a primary value.
  */
-protected synchronized Row getLocalRow(Object aPrimaryValue)  { return _localRows.get(aPrimaryValue); }
+protected synchronized Row getLocalRow(Object aPrimaryValue)
+{
+    // Get local row (if not found, but evicted row still available, restore it)
+    Row row = _localRows.get(aPrimaryValue);
+    if(row==null && _evictedRows!=null) {
+        SoftReference <Row> ref = _evictedRows.remove(aPrimaryValue); row = ref!=null? ref.get() : null;
+        if(row!=null) _localRows.put(aPrimaryValue, row);
+    }
+    return row;
+}
+
+/**
+ * Returns the number of local rows.
+ */
+public synchronized int getLocalRowCount()  { return _localRows.size(); }
+
+/**
+ * Returns whether local rows can be evicted by site row cache.
+ */
+public boolean isCacheable()  { return _cacheable; }
+
+/**
+ * Sets whether local rows can be evicted by site row cache (false pins rows in memory).
+ */
+public void setCacheable(boolean aValue)  { _cacheable = aValue; }
+
+/**
+ * Evicts local rows (in given order, or local rows order if null), keeping each softly reachable so it can be restored
+ * if needed again before GC.
+ */
+protected synchronized void evictLocalRows(Collection <Row> theRows)
+{
+    // If no local rows, just return
+    if(_localRows.size()==0) return;
+    
+    // Add soft references for rows (then any local rows not in given rows) to evicted rows
+    Map <Object,SoftReference<Row>> evicted = _evictedRows!=null? _evictedRows : new LinkedHashMap();
+    for(Row row : theRows!=null? theRows : _localRows.values())
+        evicted.put(row.getPrimaryValue(), new EvictedRef(this, row.getPrimaryValue(), row));
+    for(Map.Entry <Object,Row> entry : _localRows.entrySet())
+        if(!evicted.containsKey(entry.getKey()))
+            evicted.put(entry.getKey(), new EvictedRef(this, entry.getKey(), entry.getValue()));
+    
+    // Set evicted rows and clear local rows
+    _evictedRows = evicted;
+    _localRows = new HashMap(); _mfetch = null;
+}
+
+/**
+ * Clears local rows (and evicted rows) when table data has been replaced.
+ */
+protected synchronized void resetLocalRows()
+{
+    _localRows = new HashMap(); _evictedRows = null; _evictedPurged = false; _mfetch = null;
+    _version++;
+}
+
+/**
+ * Restores evicted local rows that haven't been collected. Returns all local rows (in eviction order) if none were
+ * collected, otherwise null (table rows must be reloaded, which reuses the restored rows).
+ */
+protected synchronized List <Row> restoreLocalRows()
+{
+    // If no evicted rows, just return
+    if(_evictedRows==null) return null;
+    
+    // Restore rows not collected (keeping any rows added since eviction)
+    List <Row> rows = new ArrayList(_evictedRows.size()); boolean complete = !_evictedPurged;
+    for(Map.Entry <Object,SoftReference<Row>> entry : _evictedRows.entrySet()) { Row row = entry.getValue().get();
+        if(row==null) { complete = false; continue; }
+        Row local = _localRows.putIfAbsent(entry.getKey(), row);
+        rows.add(local!=null? local : row); }
+    
+    // Add rows added since eviction, clear evicted rows and return rows (if complete)
+    for(Map.Entry <Object,Row> entry : _localRows.entrySet())
+        if(!_evictedRows.containsKey(entry.getKey())) rows.add(entry.getValue());
+    _evictedRows = null; _evictedPurged = false;
+    return complete? rows : null;
+}
+
+/**
+ * Removes evicted row entries (of all tables) whose rows have been collected, so tables that aren't reloaded don't
+ * hold an entry for every evicted row. Must be called without a table lock held.
+ */
+protected static void purgeEvictedRows()
+{
+    for(Reference <? extends Row> ref; (ref = _evictedQueue.poll())!=null; ) { EvictedRef eref = (EvictedRef)ref;
+        eref._table.removeEvictedRow(eref); }
+}
 
 /**
- * Adds a local row.
+ * Removes given collected evicted row entry (if still current).
  */
-protected synchronized void addLocalRow(Row aRow)
+protected synchronized void removeEvictedRow(EvictedRef aRef)
+{
+    if(_evictedRows==null || _evictedRows.get(aRef._key)!=aRef) return;
+    _evictedRows.remove(aRef._key); _evictedPurged = true;
+    if(_evictedRows.isEmpty()) { _evictedRows = null; _evictedPurged = false; }
+}
+
+/**
+ * Adds a local row (fires LocalRow change after table lock is released).
+ */
+protected void addLocalRow(Row aRow)
 {
     // Put row (just return if identical)
-    Row old = _localRows.put(aRow.getPrimaryValue(), aRow); if(aRow==old || !aRow.isSaved()) return;
-    firePropChange(LocalRow_Prop, aRow, old); _mfetch = null;
+    Row old;
+    synchronized (this) {
+        old = _localRows.put(aRow.getPrimaryValue(), aRow); if(aRow==old || !aRow.isSaved()) return;
+        _version++; _mfetch = null;
+    }
+    fireRowChange(new PropChange(this, LocalRow_Prop, old, aRow));
 }
 
 /**
- * Removes a local row.
+ * Removes a local row (fires LocalRow change after table lock is released).
  */
-protected synchronized void removeLocalRow(Row aRow)
+protected void removeLocalRow(Row aRow)
 {
     // Remove row
-    Row old = _localRows.remove(aRow.getPrimaryValue()); if(old==null) return;
-    firePropChange(LocalRow_Prop, null, old); _mfetch = null;
+    Row old;
+    synchronized (this) {
+        old = _localRows.remove(aRow.getPrimaryValue()); if(old==null) return;
+        _version++; _mfetch = null;
+    }
+    fireRowChange(new PropChange(this, LocalRow_Prop, old, null));
+}
+
+/**
+ * Returns the table version, which is incremented whenever rows are added, removed, saved or changed.
+ */
+public long getVersion()  { return _version; }
+
+/**
+ * Increments the table version (invalidates cached query results).
+ */
+protected synchronized void bumpVersion()  { _version++; }
+
+/**
+ * Called when a saved row in this table has a property change.
+ */
+protected void rowDidPropChange(Row aRow, PropChange aPC)
+{
+    // Ignore Modified changes
+    if(aPC.getPropertyName()==Row.Modified_Prop) return;
+    
+    // Bump version (invalidates cached query results) and fire RowChange
+    bumpVersion();
+    fireRowChange(new PropChange(this, RowChange_Prop, null, aRow));
+}
+
+/**
+ * Adds a fetch to be notified of row changes. Fetches are weakly held, so they don't need to be removed.
+ */
+protected synchronized void addFetch(Fetch aFetch)  { _fetches.add(new WeakReference(aFetch)); }
+
+/**
+ * Removes a fetch from row change notification.
+ */
+protected synchronized void removeFetch(Fetch aFetch)
+{
+    for(Iterator <WeakReference<Fetch>> i=_fetches.iterator(); i.hasNext();) { Fetch fetch = i.next().get();
+        if(fetch==null || fetch==aFetch) i.remove(); }
+}
+
+/**
+ * Returns the number of live fetches registered for row change notification.
+ */
+public synchronized int getFetchCount()
+{
+    removeFetch(null);
+    return _fetches.size();
+}
+
+/**
+ * Fires a row PropChange to listeners and registered fetches (pruning fetches that have been collected).
+ */
+protected void fireRowChange(PropChange aPC)
+{
+    // Fire to normal listeners
+    firePropChange(aPC);
+    
+    // Get live fetches (pruning collected ones) and notify
+    Fetch fetches[];
+    synchronized (this) {
+        List <Fetch> list = new ArrayList(_fetches.size());
+        for(Iterator <WeakReference<Fetch>> i=_fetches.iterator(); i.hasNext();) { Fetch fetch = i.next().get();
+            if(fetch!=null) list.add(fetch); else i.remove(); }
+        fetches = list.toArray(new Fetch[0]);
+    }
+    for(Fetch fetch : fetches) fetch.tableDidPropChange(aPC);
 }
 
 /**
@@ -150,4 +385,17 @@ public String toString()
     return "DataTable { site=\"" + getSite().getURLString() + "\", entity=\"" + _entity.getName() + "\" }";
 }
 
+/**
+ * A soft reference to an evicted row, with its table and primary value (so entry can be purged once row is collected).
+ */
+static class EvictedRef extends SoftReference <Row> {
+
+    // The table and row primary value
+    DataTable                 _table;
+    Object                    _key;
+
+    /** Creates new EvictedRef. */
+    EvictedRef(DataTable aTable, Object aKey, Row aRow)  { super(aRow, _evictedQueue); _table = aTable; _key = aKey; }
+}
+
 }
\ No newline at end of file
@@ -81,8 +81,8 @@ public static String toString(Date aDate, Property.DateType aDateType)
 {
     // Return date string based on type
     switch(aDateType) {
-        case DateOnly: return new SimpleDateFormat("yyyy-MM-dd").format(aDate);
-        case DateTime: return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(aDate);
+        case DateOnly: return PropertyCodec.formatDate(aDate, PropertyCodec.DateOnlyFormat);
+        case DateTime: return PropertyCodec.formatDate(aDate, PropertyCodec.DateTimeFormat);
         default: throw new UnsupportedOperationException("DataUtils.toString: Unknown DateType: " + aDateType);
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Utility methods for crash-safe file writes: files are written to a temp file (optionally forced to the storage
+ * device), then moved into place atomically, so a crash leaves either the old file or the new one, never a truncated
+ * one. Checksum files record the CRC and length of a data file, so recovery can tell a complete file from a damaged
+ * one and whether an interrupted replace had reached its commit point.
+ */
+public class DurableFile {
+
+/**
+ * Writes given bytes to given file (via temp file and atomic move), forcing file and directory if requested.
+ */
+public static void write(File aFile, byte theBytes[], boolean doSync) throws IOException
+{
+    File temp = getTempFile(aFile);
+    writeTemp(temp, theBytes, doSync);
+    move(temp, aFile);
+    if(doSync) syncDirectory(aFile.getParentFile());
+}
+
+/**
+ * Writes given bytes to given (temp) file, forcing it to storage device if requested.
+ */
+public static void writeTemp(File aFile, byte theBytes[], boolean doSync) throws IOException
+{
+    if(aFile.getParentFile()!=null) aFile.getParentFile().mkdirs();
+    try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer buffer = ByteBuffer.wrap(theBytes);
+        while(buffer.hasRemaining()) channel.write(buffer);
+        if(doSync) channel.force(true);
+    }
+}
+
+/**
+ * Forces given file to storage device.
+ */
+public static void sync(File aFile) throws IOException
+{
+    try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.WRITE)) { channel.force(true); }
+}
+
+/**
+ * Forces given directory (so file creates and moves are durable). Platforms that can't open directories are ignored.
+ */
+public static void syncDirectory(File aDir)
+{
+    if(aDir==null) return;
+    try (FileChannel channel = FileChannel.open(aDir.toPath(), StandardOpenOption.READ)) { channel.force(true); }
+    catch(IOException e) { }
+}
+
+/**
+ * Moves given file to given destination (atomically, if supported), replacing any existing file.
+ */
+public static void move(File aFile, File aDest) throws IOException
+{
+    try { Files.move(aFile.toPath(), aDest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE); }
+    catch(AtomicMoveNotSupportedException e) {
+        Files.move(aFile.toPath(), aDest.toPath(), StandardCopyOption.REPLACE_EXISTING); }
+}
+
+/**
+ * Returns the temp file for given file.
+ */
+public static File getTempFile(File aFile)  { return new File(aFile.getPath() + ".tmp"); }
+
+/**
+ * Returns the checksum file for given file.
+ */
+public static File getChecksumFile(File aFile)  { return new File(aFile.getPath() + ".crc"); }
+
+/**
+ * Returns the CRC32C checksum for given bytes.
+ */
+public static long getChecksum(byte theBytes[])
+{
+    CRC32C crc = new CRC32C(); crc.update(theBytes, 0, theBytes.length);
+    return crc.getValue();
+}
+
+/**
+ * Writes the checksum file for given data file bytes (the checksum and length, via temp file and atomic move).
+ */
+public static void writeChecksum(File aFile, byte theBytes[], boolean doSync) throws IOException
+{
+    writeChecksum(aFile, getChecksum(theBytes), theBytes.length, doSync);
+}
+
+/**
+ * Writes the checksum file for given data file checksum and length (for files written as a stream).
+ */
+public static void writeChecksum(File aFile, long aChecksum, long aLength, boolean doSync) throws IOException
+{
+    String text = Long.toHexString(aChecksum) + ' ' + aLength + '\n';
+    File cfile = getChecksumFile(aFile), temp = getTempFile(cfile);
+    writeTemp(temp, text.getBytes(StandardCharsets.UTF_8), doSync);
+    move(temp, cfile);
+}
+
+/**
+ * Returns whether given bytes match the checksum file for given data file (true if there is no checksum file).
+ */
+public static boolean isChecksumValid(File aFile, byte theBytes[]) throws IOException
+{
+    // Read checksum file (if missing, return true)
+    File cfile = getChecksumFile(aFile); if(!cfile.exists()) return true;
+    String parts[] = new String(Files.readAllBytes(cfile.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+
+    // Compare length and checksum
+    try { return parts.length==2 && Long.parseLong(parts[1])==theBytes.length &&
+        Long.parseLong(parts[0], 16)==getChecksum(theBytes); }
+    catch(NumberFormatException e) { return false; }
+}
+
+/**
+ * Recovers given data file after a crash: a leftover temp file that matches the checksum file was committed (so it
+ * is moved into place), otherwise it was interrupted (so it is deleted and the old file is kept). Returns a problem
+ * description if the data file doesn't match its checksum (or null if file is valid or missing).
+ */
+public static String recover(File aFile) throws IOException
+{
+    // Delete interrupted checksum file write
+    File ctemp = getTempFile(getChecksumFile(aFile));
+    if(ctemp.exists()) ctemp.delete();
+
+    // Handle leftover temp file: move into place if it was committed, otherwise delete
+    File temp = getTempFile(aFile);
+    if(temp.exists()) {
+        if(getChecksumFile(aFile).exists() && isChecksumValid(aFile, Files.readAllBytes(temp.toPath()))) {
+            move(temp, aFile); syncDirectory(aFile.getParentFile()); }
+        else temp.delete();
+    }
+
+    // Verify data file
+    if(!aFile.exists()) return null;
+    byte bytes[] = Files.readAllBytes(aFile.toPath());
+    if(!isChecksumValid(aFile, bytes))
+        return aFile.getName() + ": Checksum mismatch (file is damaged or was written without checksum)";
+    return null;
+}
+
+}
@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import snap.util.*;
 
 /**
@@ -26,6 +27,13 @@ public class Entity extends SnapObject implements JSONArchiver.GetKeys, XMLArchi
     // Cached lists of properties that are attributes (simple properties), relations, primaries, etc.
     List <Property>    _attrs, _relations, _primaries, _attrsSorted, _relationsSorted;
     
+    // Array of properties in ordinal order (a new array is created whenever property list changes)
+    volatile Property  _propsArray[];
+    
+    // Map of lower case standard property names to properties (and cache of lookup names to properties)
+    volatile Map <String,Property>  _propsMap;
+    Map <String,Property>           _lookups = new ConcurrentHashMap();
+    
     // A Listener to catch child Property PropChanges
     PropChangeListener _propLsnr = pc -> propertyDidPropChange(pc);
     
@@ -88,6 +96,16 @@ public Property getProperty(int anIndex)  { return _props.get(anIndex); }
  */
 public List <Property> getProperties()  { return _props; }
 
+/**
+ * Returns the properties as an array in ordinal order. The array is replaced (not modified) when properties change,
+ * so callers can compare array identity to detect property list changes.
+ */
+public Property[] getPropertyArray()
+{
+    Property props[] = _propsArray; if(props!=null) return props;
+    return _propsArray = _props.toArray(new Property[0]);
+}
+
 /**
  * Sets a list of properties.
  */
@@ -117,6 +135,7 @@ public void addProperty(Property aProp, int anIndex)
     aProp.setEntity(this);  // Set Property.Entity to this
     aProp.addPropChangeListener(_propLsnr);  // Start listening to PropertyChanges
     _attrs = _attrsSorted = _relations = _relationsSorted = _primaries = null;  // Reset cached lists
+    resetPropertyMap();  // Reset property map and ordinals
     
     // Fire property change event
     firePropChange("Property", null, aProp, anIndex);
@@ -135,7 +154,9 @@ public Object removeProperty(int anIndex)
     // Remove property from list
     Property property = _props.remove(anIndex);
     property.removePropChangeListener(_propLsnr);  // Stop listening to PropertyChanges
+    property._ordinal = -1;  // No longer in entity
     _attrs = _attrsSorted = _relations = _relationsSorted = _primaries = null;  // Reset cached lists
+    resetPropertyMap();  // Reset property map and ordinals
 
     // Fire property change event and return
     firePropChange("Property", property, null, anIndex);
@@ -157,16 +178,43 @@ public int removeProperty(Property aProp)
  */
 public Property getProperty(String aName)
 {
+    // Check lookup cache, just return if found
+    if(aName==null || aName.length()==0) return null;
+    Property prop = _lookups.get(aName); if(prop!=null) return prop;
+    
     // Get name (if it has prefix of a standard accessor, strip is/get)
-    String name = aName; if(name==null || name.length()==0) return null;
+    String name = aName;
     if(name.startsWith("is") && name.length()>2 && Character.isUpperCase(name.charAt(2))) name = name.substring(2);
     if(name.startsWith("get") && name.length()>3 && Character.isUpperCase(name.charAt(3))) name = name.substring(3);
     
-    // Iterate over properties and return the first that matches given name
-    for(Property property : getProperties())
-        if(name.equalsIgnoreCase(property.getStandardName()))
-            return property;
-    return null;  // Return null since not found
+    // Get property from map of lower case standard names and add to lookup cache
+    prop = getPropertyMap().get(name.toLowerCase(Locale.ROOT));
+    if(prop!=null) _lookups.put(aName, prop);
+    return prop;
+}
+
+/**
+ * Returns the map of lower case standard property names to properties (first property wins for duplicates).
+ */
+protected Map <String,Property> getPropertyMap()
+{
+    // If already set, just return
+    Map <String,Property> map = _propsMap; if(map!=null) return map;
+    
+    // Create, set and return
+    map = new HashMap(getPropertyCount()*2);
+    for(Property prop : getProperties()) { String sname = prop.getStandardName();
+        if(sname!=null) map.putIfAbsent(sname.toLowerCase(Locale.ROOT), prop); }
+    return _propsMap = map;
+}
+
+/**
+ * Resets the property map and lookup cache and updates property ordinals.
+ */
+protected void resetPropertyMap()
+{
+    _propsArray = null; _propsMap = null; _lookups.clear();
+    for(int i=0, iMax=getPropertyCount(); i<iMax; i++) getProperty(i)._ordinal = i;
 }
 
 /**
@@ -328,7 +376,11 @@ public String getDescriptorKeyGuess()
 /**
  * PropChangeListener implementation to forward Property property changes to entity property change listener.
  */
-protected void propertyDidPropChange(PropChange anEvent)  { firePropChange(anEvent); }
+protected void propertyDidPropChange(PropChange anEvent)
+{
+    if(anEvent.getPropertyName()=="Name") resetPropertyMap();
+    firePropChange(anEvent);
+}
 
 /**
  * Standard equals method.
@@ -352,6 +404,7 @@ public Entity clone()
 {
     // Do normal version, reset property list and clone properties
     Entity clone = (Entity)super.clone();
+    clone._propsArray = null; clone._propsMap = null; clone._lookups = new ConcurrentHashMap();
     clone._props = new ArrayList(); for(Property prop : getProperties()) clone.addProperty(prop.clone());
     return clone;
 }
@@ -3,12 +3,19 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.function.Predicate;
 import snap.util.*;
 
 /**
- * This class represents a subset of table rows for a Query and a DataTable.
+ * This class represents a subset of table rows for a Query and a DataTable. Once rows are loaded, they are kept
+ * up to date as table rows are added, removed or changed (and kept in query sort order and fetch limit), and each
+ * change fires a Rows PropChange with index: (null, row, index) for insert and (row, null, index) for removal.
+ * Changes are fired after fetch and table locks are released, so listeners are free to call back into site.
+ *
+ * A fetch with a limit only trims rows that sort past the limit: if rows are removed, it doesn't pull in rows that
+ * were past the limit (call refresh() to reload).
  */
-public class Fetch {
+public class Fetch extends SnapObject implements AutoCloseable {
 
     // The name of this view
     String             _name;
@@ -22,6 +29,23 @@ public class Fetch {
     // The data rows
     List <Row>         _rows;
     
+    // The set of rows (by identity) for fast membership checks
+    Set <Row>          _rowSet;
+    
+    // The predicate and comparator compiled from query for table entity, and query fetch limit
+    Predicate <Object> _predicate;
+    Comparator <Row>   _comparator;
+    int                _limit = Integer.MAX_VALUE;
+    
+    // The table changes that arrive while rows load (applied once rows are set)
+    List <PropChange>  _pending;
+    
+    // The Rows changes made under lock (fired once lock is released)
+    List <PropChange>  _changes = new ArrayList();
+    
+    // Constants for property changes
+    public static final String Rows_Prop = "Rows";
+    
 /**
  * Creates a Fetch for given Query, table and name.
  */
@@ -41,12 +65,12 @@ public DataSite getSite()  { return _table.getSite(); }
 public DataTable getTable()  { return _table; }
 
 /**
- * Returns the table.
+ * Sets the table (and registers for row changes, weakly, so unused fetches can be collected).
  */
 protected void setTable(DataTable aTable)
 {
     _table = aTable;
-    _table.addPropChangeListener(pc -> tableDidPropChange(pc));
+    _table.addFetch(this);
 }
 
 /**
@@ -87,7 +111,33 @@ public boolean isRowsSet()  { return _rows!=null; }
 /**
  * Returns the list of rows for this table view.
  */
-public synchronized List <Row> getRows()  { return _rows!=null? _rows : (_rows = getRowsImpl()); }
+public List <Row> getRows()
+{
+    // If already set, just return (otherwise start recording table changes that arrive during load)
+    synchronized (this) { if(_rows!=null) return _rows; if(_pending==null) _pending = new ArrayList(); }
+    
+    // Compile query predicate and comparator and load rows (outside lock, since loading takes site and table locks,
+    // which are held while table changes are sent to fetches)
+    Entity entity = getTableEntity(); Query query = getQuery();
+    Predicate <Object> predicate = query.getPredicate(entity);
+    Comparator <Row> comparator = query.getComparator(entity);
+    int limit = query.getFetchLimit();
+    List <Row> rows = getRowsImpl();
+    
+    // Set rows and row set (unless another load did), then apply table changes that arrived during load
+    synchronized (this) {
+        if(_rows!=null) return _rows;
+        _predicate = predicate; _comparator = comparator; _limit = limit; _rows = rows;
+        _rowSet = Collections.newSetFromMap(new IdentityHashMap(_rows.size()*2));
+        _rowSet.addAll(_rows);
+        List <PropChange> pending = _pending; _pending = null;
+        if(pending!=null) for(PropChange pc : pending) applyTableChange(pc);
+    }
+    
+    // Fire changes from table changes that arrived during load and return rows
+    fireRowChanges();
+    return rows;
+}
 
 /**
  * Returns the list of rows for this table view.
@@ -95,45 +145,125 @@ public synchronized List <Row> getRows()  { return _rows!=null? _rows : (_rows =
 protected List <Row> getRowsImpl()  { return _table.getRows(getQuery()); }
 
 /**
- * Adds a row.
+ * Returns whether given row satisfies query condition.
+ */
+protected boolean isMatch(Row aRow)  { return _predicate==null || _predicate.test(aRow); }
+
+/**
+ * Adds a row (in sort order if query has sorts), unless it falls past fetch limit. Called under lock.
+ */
+protected void addRow(Row aRow)
+{
+    // Get insertion index: binary search if sorted, otherwise end (just return if past fetch limit)
+    int index = _rows.size();
+    if(_comparator!=null) {
+        index = Collections.binarySearch(_rows, aRow, _comparator);
+        if(index<0) index = -index - 1;
+        else while(index<_rows.size() && _comparator.compare(_rows.get(index), aRow)==0) index++;
+    }
+    if(index>=_limit) return;
+    
+    // Add row and record PropChange
+    _rows.add(index, aRow); _rowSet.add(aRow);
+    _changes.add(new PropChange(this, Rows_Prop, null, aRow, index));
+    
+    // If over fetch limit, remove last row
+    if(_rows.size()>_limit) removeRow(_rows.get(_rows.size()-1));
+}
+
+/**
+ * Removes a row. Called under lock.
+ */
+protected void removeRow(Row aRow)
+{
+    int index = ListUtils.indexOfId(_rows, aRow); if(index<0) return;
+    _rows.remove(index); _rowSet.remove(aRow);
+    _changes.add(new PropChange(this, Rows_Prop, aRow, null, index));
+}
+
+/**
+ * Fires the Rows changes recorded under lock (called once lock is released).
+ */
+protected void fireRowChanges()
+{
+    List <PropChange> changes;
+    synchronized (this) { if(_changes.isEmpty()) return; changes = _changes; _changes = new ArrayList(); }
+    for(PropChange pc : changes) firePropChange(pc);
+}
+
+/**
+ * Called when a row has changed to add, remove or move it as needed.
  */
-protected void addRow(Row aRow)  { _rows.add(aRow); }
+protected void updateRow(Row aRow)
+{
+    // Get whether row is in list and whether it should be
+    boolean contains = _rowSet.contains(aRow), match = isMatch(aRow);
+    
+    // Handle row no longer matches or row newly matches
+    if(contains && !match) removeRow(aRow);
+    else if(!contains && match) addRow(aRow);
+    
+    // Handle row still matches: if sorted and out of order, move it
+    else if(contains && _comparator!=null) {
+        int index = ListUtils.indexOfId(_rows, aRow);
+        Row prev = index>0? _rows.get(index-1) : null, next = index+1<_rows.size()? _rows.get(index+1) : null;
+        if(prev!=null && _comparator.compare(prev, aRow)>0 || next!=null && _comparator.compare(aRow, next)>0) {
+            removeRow(aRow); addRow(aRow); }
+    }
+}
 
 /**
- * Removes a row.
+ * Stops this fetch from tracking table row changes and releases rows.
  */
-protected void removeRow(Row aRow)  { _rows.remove(aRow); }
+public void close()
+{
+    _table.removeFetch(this);  // Outside lock, since table lock is held while table changes are sent to fetches
+    synchronized (this) { _rows = null; _rowSet = null; _pending = null; _changes.clear(); }
+}
 
 /**
  * Clears existing objects from this table.
  */
-public void refresh()  { _query = null; _rows = null; }
+public synchronized void refresh()  { _query = null; _rows = null; _rowSet = null; }
 
 /**
- * Property change.
+ * Property change. Called by table (often while site lock is held), so fetch lock must never be held while calling
+ * into table or site. Rows changes are fired after fetch lock is released.
  */
 protected void tableDidPropChange(PropChange anEvent)
 {
+    synchronized (this) { applyTableChange(anEvent); }
+    fireRowChanges();
+}
+
+/**
+ * Applies a table change to rows (recording Rows changes). Called under lock.
+ */
+protected void applyTableChange(PropChange anEvent)
+{
+    // If rows not loaded, just return (or record change if rows are loading)
+    if(!isRowsSet()) { if(_pending!=null) _pending.add(anEvent); return; }
+    String pname = anEvent.getPropertyName();
+    
     // Handle LocalRow Add/Remove
-    if(anEvent.getPropertyName()==DataTable.LocalRow_Prop) {
+    if(pname==DataTable.LocalRow_Prop) {
         Row orow = (Row)anEvent.getOldValue(), nrow = (Row)anEvent.getNewValue();
         
-        // Handle LocalRow Add
+        // Handle LocalRow Add (if replacing another row, remove that first)
         if(nrow!=null) {
-            if(!isRowsSet()) return;
-            Condition condition = getQuery().getCondition();
-            if(condition==null || condition.getValue(getTableEntity(), nrow))
+            if(orow!=null && _rowSet.contains(orow)) removeRow(orow);
+            if(!_rowSet.contains(nrow) && isMatch(nrow))
                 addRow(nrow);
         }
         
-        // Handle LocalRow Remove
-        else if(orow!=null) {
-            if(!isRowsSet()) return;
-            Condition condition = getQuery().getCondition();
-            if(condition==null || condition.getValue(getTableEntity(), orow))
-                removeRow(orow);
-        }
+        // Handle LocalRow Remove (no need to evaluate condition, just check membership)
+        else if(orow!=null && _rowSet.contains(orow))
+            removeRow(orow);
     }
+    
+    // Handle RowChange: re-evaluate changed row
+    else if(pname==DataTable.RowChange_Prop)
+        updateRow((Row)anEvent.getNewValue());
 }
 
 }
\ No newline at end of file
@@ -2,7 +2,10 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package snapdata.data;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Predicate;
 import snap.util.*;
 import snap.web.WebFile;
 
@@ -17,6 +20,11 @@ public class FileDataSite extends DataSite {
     // Dirty table name set
     Set <String>                  _dirtyTables = new HashSet();
     
+    
+    // The tables whose data files have been recovered and recovery problems found
+    Set <String>                  _recovered = new HashSet();
+    List <String>                 _recoveryProblems = new ArrayList();
+    
 /**
  * Override to delete data file.
  */
@@ -26,26 +34,71 @@ protected void deleteTableImpl(DataTable aTable) throws Exception
     WebFile csvFile = getDataFile(aTable.getName(), false);
     if(csvFile!=null)
         csvFile.delete();
+    File file = getDataJavaFile(aTable.getName());
+    if(file!=null) DurableFile.getChecksumFile(file).delete();
 }
 
 /**
  * Returns a set of rows for the given table and query.
  */
-protected List <Row> getRowsImpl(DataTable aTable, Query aQuery)
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery)  { return getRowsImpl(aTable, aQuery, null); }
+
+/**
+ * Override to get rows with plan.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode)
+{
+    return getRowsImpl(aTable, aQuery, aNode);
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node (if not null).
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode)
 {
     // Get table rows
+    DataEvents.TableScanEvent event = new DataEvents.TableScanEvent(); event.begin();
     String name = aTable.getName();
     Entity entity = aTable.getEntity();
-    Condition condition = aQuery.getCondition();
+    QueryPlan.Node scanNode = aNode!=null? aNode.addChild("FullScan", name) : null; long start = System.nanoTime();
+    if(scanNode!=null) scanNode.setEstimatedRows(getCachedRowCount(aTable));
     Row rows[] = getRows(name).toArray(new Row[0]);
+    _metrics.add(name, DataMetrics.Counter.RowsScanned, rows.length);
+    if(scanNode!=null) { scanNode.setActualRows(rows.length); scanNode.setNanos(System.nanoTime() - start); }
+    
+    // Get predicate (if plan, with filter node that counts rows for each condition)
+    Condition condition = aQuery.getCondition();
+    QueryPlan.Node filterNode = aNode!=null && condition!=null? aNode.addChild("Filter", null) : null;
+    Predicate <Object> predicate = filterNode!=null? QueryPlan.getPredicate(condition, entity, filterNode) :
+        aQuery.getPredicate(entity);
+    start = System.nanoTime();
     
-    // Create fetch list and add rows that satisfy condition
-    List <Row> rows2 = new ArrayList();
-    for(Row row : rows)
-        if(condition==null || condition.getValue(entity, row))
+    // Create fetch list and add rows that satisfy condition (checking for cancel periodically)
+    List <Row> rows2 = new ArrayList(); int count = 0;
+    for(Row row : rows) {
+        if((++count & 0xFF)==0) checkCancelled();
+        if(predicate==null || predicate.test(row))
             rows2.add(row);
+    }
+    if(filterNode!=null) { filterNode.setSelectivity(QueryPlan.getSelectivity(condition, entity));
+        filterNode.setInputRows(rows.length); filterNode.setActualRows(rows2.size());
+        filterNode.setNanos(System.nanoTime() - start); }
     
-    // Return rows
+    // Sort rows if query has sorts
+    Comparator <Row> comparator = aQuery.getComparator(entity); start = System.nanoTime();
+    if(comparator!=null) Collections.sort(rows2, comparator);
+    if(aNode!=null && comparator!=null) { StringBuilder sb = new StringBuilder();
+        for(Sort sort : aQuery.getSorts()) sb.append(sb.length()>0? ", " : "").append(sort.getKey()).append(' ')
+            .append(sort.getOrder());
+        QueryPlan.Node sortNode = aNode.addChild("Sort", sb.toString());
+        sortNode.setInputRows(rows2.size()); sortNode.setActualRows(rows2.size());
+        sortNode.setNanos(System.nanoTime() - start); }
+    
+    // Commit flight recorder event (if recording) and return
+    event.end();
+    if(event.shouldCommit()) {
+        event.table = name; event.condition = String.valueOf(condition);
+        event.rowsScanned = rows.length; event.rowsReturned = rows2.size(); event.commit(); }
     return rows2;
 }
 
@@ -100,6 +153,15 @@ public void flush() throws Exception
     saveDataFiles();
 }
 
+/**
+ * Override to save CSV files of just given tables (if changed).
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception
+{
+    List <String> names = new ArrayList(); for(DataTable table : theTables) names.add(table.getName());
+    saveDataFiles(names.toArray(new String[0]));
+}
+
 /**
  * Returns the CSV file for given table name.
  */
@@ -111,6 +173,96 @@ protected WebFile getDataFile(String aName, boolean doCreate)
     return tfile;
 }
 
+/**
+ * Returns the local file for given table name data file (null if site has no local directory).
+ */
+protected File getDataJavaFile(String aName)
+{
+    WebFile root = _wsite!=null? _wsite.getFile("/") : null;
+    File dir = root!=null? root.getJavaFile() : null;
+    return dir!=null? new File(dir, aName + ".csv") : null;
+}
+
+/**
+ * Recovers data file for given table name after a crash (once per site): finishes or discards an interrupted write
+ * and verifies file against its checksum (problems are logged and available from getRecoveryProblems()).
+ */
+protected void recoverDataFile(String aName)
+{
+    // If already recovered or no local file, just return
+    synchronized (this) { if(!_recovered.add(aName)) return; }
+    File file = getDataJavaFile(aName); if(file==null) return;
+    
+    // Recover file and note any problem
+    String problem;
+    try { problem = DurableFile.recover(file); }
+    catch(Exception e) { problem = file.getName() + ": Recovery failed: " + e; }
+    if(problem!=null) {
+        System.err.println("FileDataSite.recover: " + problem);
+        synchronized (this) { _recoveryProblems.add(problem); }
+    }
+    
+    // Reload WebFile (in case recovery changed file)
+    WebFile wfile = getDataFile(aName, false);
+    if(wfile!=null) wfile.reload();
+}
+
+/**
+ * Recovers data files for all tables (normally done as each table is first read).
+ */
+public void recover()
+{
+    for(Entity entity : getSchema().getEntities())
+        recoverDataFile(entity.getName());
+}
+
+/**
+ * Returns problems found by recovery (data files that don't match their checksums).
+ */
+public synchronized List <String> getRecoveryProblems()  { return new ArrayList(_recoveryProblems); }
+
+/**
+ * Replaces the data file for given table name with given bytes and clears any cached rows for table.
+ */
+protected synchronized void setDataFileBytes(String aName, byte theBytes[])
+{
+    // Set file bytes and save
+    WebFile file = getDataFile(aName, true);
+    file.setBytes(theBytes); file.save();
+    
+    // Clear cached rows
+    clearTableRows(aName);
+}
+
+/**
+ * Replaces the data file for given table name with given temp file (written with given checksum and length): commits
+ * checksum, moves temp file into place (forced if table durability syncs) and clears any cached rows for table.
+ */
+protected synchronized void setDataFile(String aName, File aTemp, long aChecksum, long aLength) throws IOException
+{
+    // Commit checksum and move temp file into place
+    File file = getDataJavaFile(aName); boolean sync = isSync(aName);
+    if(sync) DurableFile.sync(aTemp);
+    DurableFile.writeChecksum(file, aChecksum, aLength, sync);
+    DurableFile.move(aTemp, file);
+    if(sync) DurableFile.syncDirectory(file.getParentFile());
+    WebFile csvFile = getDataFile(aName, false);
+    if(csvFile!=null) csvFile.reload();
+    
+    // Clear cached rows
+    clearTableRows(aName);
+}
+
+/**
+ * Clears cached rows for given table name (when data file has been replaced).
+ */
+protected void clearTableRows(String aName)
+{
+    _tableRows.remove(aName); _dirtyTables.remove(aName);
+    DataTable table = getTable(aName); if(table!=null) table.resetLocalRows();
+    if(_queryCache!=null && table!=null) _queryCache.clear(table);
+}
+
 /**
  * Returns the list of rows for a given table name, reading from file if not cached.
  */
@@ -119,11 +271,48 @@ protected synchronized List <Row> getRows(String aName)
     // Get rows from cache map and return if found
     List <Row> rows = _tableRows.get(aName); if(rows!=null) return rows;
     
-    // Otherwise, read rows from file, add to cache map and return
-    rows = readDataFile(aName);
+    // If rows were evicted and none were collected, restore them
+    List <Row> restored = getTable(aName).restoreLocalRows();
+    if(restored!=null)
+        rows = Collections.synchronizedList(restored);
+    
+    // Otherwise, read rows from file (which reuses any evicted rows still referenced elsewhere)
+    else rows = readDataFile(aName);
+    
+    // Add to cache map, update row cache access order and return
     _tableRows.put(aName, rows);
+    tableDidAccess(getTable(aName));
     return rows;
 }
+
+/**
+ * Override to return count of table rows.
+ */
+protected synchronized int getCachedRowCount(DataTable aTable)
+{
+    List <Row> rows = _tableRows.get(aTable.getName());
+    return rows!=null? rows.size() : 0;
+}
+
+/**
+ * Override to evict table rows list (if table has no unsaved changes).
+ */
+protected synchronized boolean evictTableRows(DataTable aTable)
+{
+    // If table is dirty or has modified rows, just return false
+    String name = aTable.getName();
+    List <Row> rows = _tableRows.get(name); if(rows==null) return super.evictTableRows(aTable);
+    if(_dirtyTables.contains(name)) return false;
+    
+    // Remove rows list, clear query cache and evict table rows (in list order, so they restore in file order)
+    synchronized (rows) {
+        for(Row row : rows) if(row.isModified()) return false;
+        _tableRows.remove(name);
+        if(_queryCache!=null) _queryCache.clear(aTable);
+        aTable.evictLocalRows(rows);
+    }
+    return true;
+}
     
 /**
  * Reads the CSV file and returns the list of rows for given table.
@@ -141,17 +330,16 @@ protected List <Row> readDataFile(String aTableName)
     // Create rows list
     List <Row> rows = Collections.synchronizedList(new ArrayList());
 
-    // Get data file
+    // Recover data file (if needed) and get data file
+    recoverDataFile(aTableName);
     WebFile file = getDataFile(aTableName, false);
     if(file==null)
         return rows;
-    
-    // Create CSVReader
-    CSVReader csvReader = new CSVReader(); csvReader.setFieldSep(",");
-    csvReader.setHasHeaderRow(true); csvReader.setHasQuotedFields(true);
+    long start = System.nanoTime();
+    DataEvents.DataFileReadEvent event = new DataEvents.DataFileReadEvent(); event.begin();
     
     // Read maps
-    List <Map<String,String>> maps = csvReader.readFromString(file.getText(), aTableName, false);
+    List <Map<String,String>> maps = getDataFileMaps(file.getText(), aTableName);
     
     // Create rows for maps and add to tableRows list
     for(Map <String,String> map : maps) {
@@ -161,27 +349,66 @@ protected List <Row> readDataFile(String aTableName)
         rows.add(row);
     }
     
-    // Return rows
+    // Record metrics and flight recorder event and return rows
+    _metrics.record(aTableName, DataMetrics.Op.ReadDataFile, System.nanoTime() - start);
+    _metrics.add(aTableName, DataMetrics.Counter.BytesRead, file.getSize());
+    event.end();
+    if(event.shouldCommit()) {
+        event.table = aTableName; event.rows = rows.size(); event.bytesRead = file.getSize(); event.commit(); }
     return rows;
 }
 
+/**
+ * Returns the row maps for given data file text (CSV with header row and quoted fields).
+ */
+protected static List <Map<String,String>> getDataFileMaps(String aText, String aTableName)
+{
+    CSVReader csvReader = new CSVReader(); csvReader.setFieldSep(",");
+    csvReader.setHasHeaderRow(true); csvReader.setHasQuotedFields(true);
+    List <Map<String,String>> maps = csvReader.readFromString(aText, aTableName, false);
+    return maps!=null? maps : Collections.emptyList();
+}
+
 /**
  * Save CSV files for changed tables.
  */
-protected void saveDataFiles() throws Exception
+protected void saveDataFiles() throws Exception  { saveDataFiles((String[])null); }
+
+/**
+ * Save CSV files for given table names that changed (or all changed tables, if null).
+ */
+protected void saveDataFiles(String theNames[]) throws Exception
 {
     // If no dirty tables, just return
     if(_dirtyTables.size()==0) return;
 
-    // Copy and clear DirtyTables
+    // Copy and clear DirtyTables (just given ones, if provided)
     String tableNames[];
     synchronized (this) {
-        tableNames = _dirtyTables.toArray(new String[_dirtyTables.size()]);
-        _dirtyTables.clear();        
+        if(theNames!=null) {
+            tableNames = Arrays.stream(theNames).filter(n -> _dirtyTables.contains(n)).toArray(String[]::new);
+            _dirtyTables.removeAll(Arrays.asList(tableNames));
+        }
+        else { tableNames = _dirtyTables.toArray(new String[_dirtyTables.size()]); _dirtyTables.clear(); }
+    }
+
+    // Save files (files of BatchSync tables are written first, then forced and committed together)
+    List <String> batch = new ArrayList(); int index = 0;
+    try {
+        for(; index<tableNames.length; index++) { String tableName = tableNames[index];
+            if(getDurability(tableName)==Durability.BatchSync && getDataJavaFile(tableName)!=null) batch.add(tableName);
+            else saveDataFile(tableName);
+        }
+        if(batch.size()>0) saveDataFiles(batch);
     }
 
-    // Save files
-    for(String tableName : tableNames) saveDataFile(tableName);
+    // If a write failed, add tables not written (failed one, rest and batch) back to DirtyTables so next flush retries
+    catch(Exception e) {
+        List <String> unwritten = new ArrayList(batch);
+        unwritten.addAll(Arrays.asList(tableNames).subList(index, tableNames.length));
+        synchronized (this) { _dirtyTables.addAll(unwritten); }
+        throw e;
+    }
 }
 
 /**
@@ -189,10 +416,98 @@ protected void saveDataFiles() throws Exception
  */
 protected void saveDataFile(String aTableName) throws Exception
 {
-    // Get table, entity, table rows and StringBuffer
-    DataTable table = getTable(aTableName);
-    Entity entity = table.getEntity();
+    // Get data file bytes
+    long start = System.nanoTime();
+    DataEvents.DataFileWriteEvent event = new DataEvents.DataFileWriteEvent(); event.begin();
     Row rows[] = getRows(aTableName).toArray(new Row[0]);
+    byte bytes[] = getDataFileBytes(aTableName, rows);
+    
+    // If local file and durable, write temp file, commit checksum and move into place (forced if Sync)
+    Durability durability = getDurability(aTableName);
+    File file = getDataJavaFile(aTableName);
+    if(file!=null && durability!=Durability.None) {
+        boolean sync = durability!=Durability.Flush;
+        File temp = DurableFile.getTempFile(file);
+        DurableFile.writeTemp(temp, bytes, sync);
+        DurableFile.writeChecksum(file, bytes, sync);
+        DurableFile.move(temp, file);
+        if(sync) { DurableFile.syncDirectory(file.getParentFile());
+            _metrics.add(aTableName, DataMetrics.Counter.FileSyncs, 2); }
+        WebFile csvFile = getDataFile(aTableName, false);
+        if(csvFile!=null) csvFile.reload();
+    }
+    
+    // Otherwise, get CSV file, set bytes and save (and update checksum, if local file)
+    else {
+        WebFile csvFile = getDataFile(aTableName, true);
+        csvFile.setBytes(bytes);
+        csvFile.save();
+        if(file!=null) DurableFile.writeChecksum(file, bytes, false);
+    }
+    
+    // Record metrics
+    _metrics.record(aTableName, DataMetrics.Op.SaveDataFile, System.nanoTime() - start);
+    _metrics.add(aTableName, DataMetrics.Counter.BytesWritten, bytes.length);
+    
+    // Commit flight recorder event (if recording)
+    event.end();
+    if(event.shouldCommit()) {
+        event.table = aTableName; event.rows = rows.length; event.bytesWritten = bytes.length; event.commit(); }
+}
+
+/**
+ * Save CSV files for given changed table names with batched sync: all temp files are written, then forced, then
+ * each checksum is committed and file moved into place, then directory is forced once.
+ */
+protected void saveDataFiles(List <String> theTableNames) throws Exception
+{
+    // Write temp files (not forced)
+    long start = System.nanoTime();
+    List <byte[]> bytesList = new ArrayList();
+    for(String tableName : theTableNames) {
+        byte bytes[] = getDataFileBytes(tableName, getRows(tableName).toArray(new Row[0])); bytesList.add(bytes);
+        DurableFile.writeTemp(DurableFile.getTempFile(getDataJavaFile(tableName)), bytes, false);
+    }
+    
+    // Force temp files
+    for(String tableName : theTableNames) DurableFile.sync(DurableFile.getTempFile(getDataJavaFile(tableName)));
+    
+    // Commit checksums and move files into place
+    for(int i=0; i<theTableNames.size(); i++) { String tableName = theTableNames.get(i);
+        File file = getDataJavaFile(tableName);
+        DurableFile.writeChecksum(file, bytesList.get(i), true);
+        DurableFile.move(DurableFile.getTempFile(file), file);
+        WebFile csvFile = getDataFile(tableName, false);
+        if(csvFile!=null) csvFile.reload();
+    }
+    
+    // Force directory and record metrics
+    DurableFile.syncDirectory(getDataJavaFile(theTableNames.get(0)).getParentFile());
+    long nanos = (System.nanoTime() - start)/theTableNames.size();
+    for(int i=0; i<theTableNames.size(); i++) { String tableName = theTableNames.get(i);
+        _metrics.record(tableName, DataMetrics.Op.SaveDataFile, nanos);
+        _metrics.add(tableName, DataMetrics.Counter.BytesWritten, bytesList.get(i).length);
+        _metrics.add(tableName, DataMetrics.Counter.FileSyncs, 2);
+    }
+    _metrics.add(DataMetrics.SITE, DataMetrics.Counter.FileSyncs, 1);
+}
+
+/**
+ * Returns the data file bytes for given table name and rows.
+ */
+protected byte[] getDataFileBytes(String aTableName, Row theRows[])
+{
+    Entity entity = getTable(aTableName).getEntity();
+    String text = getDataFileText(entity, theRows);
+    return StringUtils.getBytes(text);
+}
+
+/**
+ * Returns the data file text (CSV with header row and quoted fields) for given entity and rows.
+ */
+protected static String getDataFileText(Entity entity, Row rows[])
+{
+    // Create StringBuffer
     StringBuffer sbuffer = new StringBuffer();
     
     // Iterate over properties and add header row
@@ -214,7 +529,7 @@ protected void saveDataFile(String aTableName) throws Exception
             
             // Get value and string
             Object value = row.getValue(prop);
-            String string = (String)DataUtils.convertValue(value, Property.Type.String);
+            String string = prop.getCodec().format(value);
             if(string==null)
                 string = "";
             
@@ -226,10 +541,26 @@ protected void saveDataFile(String aTableName) throws Exception
         sbuffer.delete(sbuffer.length()-2, sbuffer.length()).append("\n");
     }
     
-    // Get CSV file, set bytes and save
-    WebFile csvFile = getDataFile(aTableName, true);
-    byte bytes[] = StringUtils.getBytes(sbuffer.toString()); csvFile.setBytes(bytes);
-    csvFile.save();
+    // Return string
+    return sbuffer.toString();
+}
+
+/**
+ * The storage engine for FileDataSite (the default): CSV files on heap, sorted in memory.
+ */
+public static class Engine extends DataEngine {
+
+    // The engine name
+    public static final String NAME = "File";
+
+    /** Returns the engine name. */
+    public String getName()  { return NAME; }
+
+    /** Returns the engine capabilities. */
+    public Set <Capability> getCapabilities()  { return EnumSet.of(Capability.Sorting, Capability.Persistence); }
+
+    /** Creates a new FileDataSite. */
+    public DataSite createSite()  { return new FileDataSite(); }
 }
 
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Flushes a DataSite in the background (group commit): saves and deletes are counted, and a daemon thread flushes the
+ * site when the changes since the last flush reach a threshold, when an interval has passed with unflushed changes,
+ * or when a caller asks for a durability barrier with requestFlush(). One flush covers every change made before it
+ * started, so many saves and many flush requests are coalesced into one write.
+ *
+ * Callers that need durability wait on the future from requestFlush() (or DataSite.flushAsync()). Everyone else just
+ * saves and no longer pays flush latency.
+ */
+public class FlushScheduler implements AutoCloseable {
+
+    // The site
+    DataSite                  _site;
+
+    // The flush interval in millis (0 for none) and number of changes that triggers flush (0 for none)
+    volatile long             _interval = 1000;
+    volatile int              _threshold = 1000;
+
+    // The change sequence (number of changes noted) and sequence covered by last completed flush
+    long                      _changeSeq, _flushedSeq;
+
+    // The time of last flush and time first change since then was noted (interval runs from later of the two)
+    long                      _lastFlushTime = System.currentTimeMillis(), _dirtyTime;
+
+    // The time before which a failed flush isn't retried
+    long                      _retryTime;
+
+    // The pending flush requests (change sequence and future)
+    List <Request>            _requests = new ArrayList();
+
+    // The number of flushes and flush requests
+    long                      _flushCount, _requestCount;
+
+    // The flush thread and whether closed
+    Thread                    _thread;
+    boolean                   _closed;
+
+    // The minimum delay in millis before retrying a failed flush (interval is used if longer)
+    static final long MIN_RETRY_DELAY = 1000;
+
+/**
+ * Creates a new FlushScheduler for given site (and starts flush thread).
+ */
+public FlushScheduler(DataSite aSite)
+{
+    _site = aSite;
+    _thread = new Thread(() -> flushLoop(), "FlushScheduler " + aSite.getName());
+    _thread.setDaemon(true);
+    _thread.start();
+}
+
+/**
+ * Returns the site.
+ */
+public DataSite getSite()  { return _site; }
+
+/**
+ * Returns the flush interval in millis (0 for none).
+ */
+public long getInterval()  { return _interval; }
+
+/**
+ * Sets the flush interval in millis (0 for none).
+ */
+public synchronized void setInterval(long aValue)  { _interval = aValue; notifyAll(); }
+
+/**
+ * Returns the number of changes that triggers a flush (0 for none).
+ */
+public int getThreshold()  { return _threshold; }
+
+/**
+ * Sets the number of changes that triggers a flush (0 for none).
+ */
+public synchronized void setThreshold(int aValue)  { _threshold = aValue; notifyAll(); }
+
+/**
+ * Returns the number of changes not yet covered by a completed flush.
+ */
+public synchronized long getPendingChangeCount()  { return _changeSeq - _flushedSeq; }
+
+/**
+ * Returns the number of flushes.
+ */
+public synchronized long getFlushCount()  { return _flushCount; }
+
+/**
+ * Returns the number of flush requests (requests per flush shows coalescing).
+ */
+public synchronized long getRequestCount()  { return _requestCount; }
+
+/**
+ * Notes changes to site (wakes flush thread if first unflushed change, so interval starts, or threshold reached).
+ */
+public synchronized void noteChanges(int aCount)
+{
+    boolean first = _changeSeq<=_flushedSeq;
+    _changeSeq += aCount;
+    if(first) { _dirtyTime = System.currentTimeMillis(); notifyAll(); return; }
+    int threshold = _threshold;
+    if(threshold>0 && _changeSeq - _flushedSeq>=threshold) notifyAll();
+}
+
+/**
+ * Returns a future that completes when all changes noted before this call have been flushed (durability barrier).
+ */
+public synchronized CompletableFuture <Void> requestFlush()
+{
+    // If closed, return failed future
+    _requestCount++;
+    if(_closed) return CompletableFuture.failedFuture(new IllegalStateException("FlushScheduler: Closed"));
+
+    // If no unflushed changes, return completed future
+    if(_changeSeq<=_flushedSeq) return CompletableFuture.completedFuture(null);
+
+    // Add request and wake flush thread
+    Request request = new Request(_changeSeq);
+    _requests.add(request); notifyAll();
+    return request._future;
+}
+
+/**
+ * Flush thread loop: waits until a flush is due, then flushes site and completes covered requests.
+ */
+protected void flushLoop()
+{
+    while(true) {
+
+        // Wait until flush is due (or closed)
+        long seq;
+        synchronized (this) {
+            while(!_closed && !isFlushDue()) { long now = System.currentTimeMillis();
+                long wait = now<_retryTime? _retryTime - now : _interval>0 && _changeSeq>_flushedSeq?
+                    getIntervalStart() + _interval - now : 0;
+                try { wait(wait>0? wait : _interval>0 && _changeSeq>_flushedSeq? 1 : 0); }
+                catch(InterruptedException e) { return; }
+            }
+            if(_closed && _changeSeq<=_flushedSeq && _requests.isEmpty()) return;
+            seq = _changeSeq;
+        }
+
+        // Flush site (outside lock, so saves continue)
+        Exception error = null;
+        try { _site.flush(); }
+        catch(Exception e) { error = e; System.err.println("FlushScheduler: Flush failed: " + e); }
+
+        // Update flushed sequence (or retry time if failed) and complete covered requests (failed requests complete
+        // exceptionally)
+        synchronized (this) {
+            _flushCount++; _lastFlushTime = System.currentTimeMillis();
+            _retryTime = error!=null? _lastFlushTime + Math.max(_interval, MIN_RETRY_DELAY) : 0;
+            if(error==null) _flushedSeq = Math.max(_flushedSeq, seq);
+            for(Iterator <Request> iter = _requests.iterator(); iter.hasNext(); ) { Request request = iter.next();
+                if(request._seq>seq) continue;
+                if(error==null) request._future.complete(null);
+                else request._future.completeExceptionally(error);
+                iter.remove();
+            }
+            if(_closed && (error!=null || _changeSeq<=_flushedSeq && _requests.isEmpty())) {
+                for(Request request : _requests) request._future.completeExceptionally(error!=null? error :
+                    new IllegalStateException("FlushScheduler: Closed"));
+                _requests.clear(); return;
+            }
+        }
+    }
+}
+
+/**
+ * Returns whether flush is due: requests pending, changes over threshold or changes older than interval (and not
+ * waiting to retry a failed flush).
+ */
+protected boolean isFlushDue()
+{
+    if(System.currentTimeMillis()<_retryTime) return false;
+    long pending = _changeSeq - _flushedSeq;
+    if(!_requests.isEmpty()) return true;
+    if(pending<=0) return false;
+    int threshold = _threshold; long interval = _interval;
+    if(threshold>0 && pending>=threshold) return true;
+    return interval>0 && System.currentTimeMillis() - getIntervalStart()>=interval;
+}
+
+/**
+ * Returns the time the flush interval runs from: last flush or first change noted since, whichever is later.
+ */
+protected long getIntervalStart()  { return Math.max(_lastFlushTime, _dirtyTime); }
+
+/**
+ * Closes scheduler: flushes pending changes and stops flush thread.
+ */
+public void close() throws InterruptedException
+{
+    synchronized (this) { _closed = true; notifyAll(); }
+    _thread.join();
+}
+
+/**
+ * A flush request: the change sequence it needs flushed and its future.
+ */
+static class Request {
+
+    // The change sequence and future
+    long                        _seq;
+    CompletableFuture <Void>    _future = new CompletableFuture();
+
+    /** Creates new Request. */
+    Request(long aSeq)  { _seq = aSeq; }
+}
+
+}
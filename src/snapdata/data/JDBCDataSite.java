@@ -0,0 +1,785 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.function.Predicate;
+import snap.util.Sort;
+import snap.web.*;
+
+/**
+ * A DataSite that stores table rows in an SQL database through JDBC (intended for an embedded database like H2, SQLite
+ * or Derby running in-process, with the driver on the classpath). Entities are still saved as site entity files.
+ *
+ * Queries are pushed down: conditions become a parameterized WHERE clause (parts that can't be translated exactly are
+ * widened and the rows are then filtered in memory), sorts become ORDER BY and fetch limit becomes LIMIT (or FETCH
+ * FIRST). Prepared statements are cached. Saves and deletes are queued and written in JDBC batches in a transaction
+ * on flush (or before table is queried, or when batch is full).
+ *
+ * The JDBC URL must be given with setURL() or site metadata key "JDBC.URL" (no driver is bundled, so there is no
+ * default database). The URL can contain "${dir}", which is replaced with the site directory.
+ */
+public class JDBCDataSite extends DataSite {
+
+    // The JDBC URL
+    String                            _url;
+
+    // The connection
+    Connection                        _conn;
+
+    // The prepared statement cache (least recently used first)
+    Map <String,PreparedStatement>    _stmts = new LinkedHashMap(16, .75f, true) {
+        protected boolean removeEldestEntry(Map.Entry anEntry) {
+            if(size()<=STATEMENT_CACHE_SIZE) return false;
+            try { ((PreparedStatement)anEntry.getValue()).close(); } catch(SQLException e) { }
+            return true;
+        }
+    };
+
+    // The pending changes by table name
+    Map <String,Pending>              _pending = new HashMap();
+
+    // The next primary values by table name
+    Map <String,Long>                 _nextPrimary = new HashMap();
+
+    // The names of tables known to exist in database
+    Set <String>                      _dbTables = new HashSet();
+
+    // The number of pending changes for a table that triggers a batch write
+    int                               _batchSize = 500;
+
+    // Constants for metadata keys
+    public static final String URL_Key = "JDBC.URL";
+    public static final String User_Key = "JDBC.User";
+    public static final String Password_Key = "JDBC.Password";
+
+    // The max number of cached prepared statements
+    static final int STATEMENT_CACHE_SIZE = 64;
+
+/**
+ * Returns the JDBC URL (null if not set).
+ */
+public String getURL()
+{
+    if(_url!=null) return _url;
+    String url = getMetadata().getProperty(URL_Key);
+    if(url!=null && url.contains("${dir}")) {
+        WebFile root = _wsite!=null? _wsite.getFile("/") : null;
+        File dir = root!=null? root.getJavaFile() : null;
+        if(dir!=null) url = url.replace("${dir}", dir.getAbsolutePath());
+    }
+    return _url = url;
+}
+
+/**
+ * Sets the JDBC URL (before connection is opened).
+ */
+public void setURL(String aURL)  { _url = aURL; }
+
+/**
+ * Returns the number of pending changes for a table that triggers a batch write.
+ */
+public int getBatchSize()  { return _batchSize; }
+
+/**
+ * Sets the number of pending changes for a table that triggers a batch write.
+ */
+public void setBatchSize(int aValue)  { _batchSize = aValue; }
+
+/**
+ * Returns the connection (opening it if needed).
+ */
+public synchronized Connection getConnection() throws SQLException
+{
+    if(_conn!=null && !_conn.isClosed()) return _conn;
+    String url = getURL();
+    if(url==null)
+        throw new SQLException("JDBCDataSite: No JDBC URL for site " + getName() + " (set URL or " + URL_Key + ")");
+    Properties props = new Properties(), meta = getMetadata();
+    if(meta.getProperty(User_Key)!=null) props.setProperty("user", meta.getProperty(User_Key));
+    if(meta.getProperty(Password_Key)!=null) props.setProperty("password", meta.getProperty(Password_Key));
+    _conn = DriverManager.getConnection(url, props);
+    _conn.setAutoCommit(false);
+    _stmts.clear(); _dbTables.clear();
+    return _conn;
+}
+
+/**
+ * Returns a cached prepared statement for given SQL.
+ */
+protected synchronized PreparedStatement getStatement(String aSQL) throws SQLException
+{
+    PreparedStatement stmt = _stmts.get(aSQL);
+    if(stmt==null || stmt.isClosed()) _stmts.put(aSQL, stmt = getConnection().prepareStatement(aSQL));
+    return stmt;
+}
+
+/**
+ * Override to make sure database table exists for entity.
+ */
+protected DataTable getTableImpl(String aName) throws Exception
+{
+    DataTable table = super.getTableImpl(aName);
+    if(table!=null) createDBTable(table.getEntity(), null);
+    return table;
+}
+
+/**
+ * Override to create (or alter) database table and save entity file.
+ */
+public void createTableImpl(Entity anEntity, DataTable aTable) throws Exception
+{
+    super.createTableImpl(anEntity, aTable);
+    createDBTable(anEntity, aTable!=null? aTable.getName() : null);
+}
+
+/**
+ * Creates database table for entity (renaming old table if given, adding any missing columns if table exists).
+ */
+protected synchronized void createDBTable(Entity anEntity, String anOldName) throws SQLException
+{
+    // If already known to exist, just return
+    String name = anEntity.getName();
+    if(_dbTables.contains(name) && anOldName==null) return;
+    Connection conn = getConnection();
+    try (Statement stmt = conn.createStatement()) {
+
+        // If old table name given and different, rename table
+        if(anOldName!=null && !anOldName.equals(name) && hasDBTable(anOldName)) {
+            stmt.executeUpdate("ALTER TABLE " + quote(anOldName) + " RENAME TO " + quote(name));
+            _dbTables.remove(anOldName); _stmts.clear();
+        }
+
+        // If table doesn't exist, create table with columns and primary key
+        if(!hasDBTable(name)) {
+            StringBuilder sql = new StringBuilder("CREATE TABLE ").append(quote(name)).append(" (");
+            for(Property prop : getColumns(anEntity))
+                sql.append(quote(prop.getName())).append(' ').append(getColumnType(prop)).append(", ");
+            sql.append("PRIMARY KEY (").append(quote(anEntity.getPrimary().getName())).append("))");
+            stmt.executeUpdate(sql.toString());
+
+            // Index to-one relation foreign keys
+            for(Property prop : getColumns(anEntity)) if(prop.isRelation())
+                stmt.executeUpdate("CREATE INDEX " + quote(name + '_' + prop.getName()) + " ON " + quote(name) +
+                    " (" + quote(prop.getName()) + ")");
+        }
+
+        // Otherwise add any missing columns
+        else {
+            Set <String> cols = new HashSet();
+            try (ResultSet rs = conn.getMetaData().getColumns(null, null, name, null)) {
+                while(rs.next()) cols.add(rs.getString("COLUMN_NAME")); }
+            for(Property prop : getColumns(anEntity)) if(!cols.contains(prop.getName())) {
+                stmt.executeUpdate("ALTER TABLE " + quote(name) + " ADD COLUMN " + quote(prop.getName()) + ' ' +
+                    getColumnType(prop)); _stmts.clear(); }
+        }
+        conn.commit();
+    }
+    catch(SQLException e) { conn.rollback(); throw e; }
+    _dbTables.add(name);
+}
+
+/**
+ * Returns whether database has table for given name.
+ */
+protected boolean hasDBTable(String aName) throws SQLException
+{
+    try (ResultSet rs = getConnection().getMetaData().getTables(null, null, aName, null)) { return rs.next(); }
+}
+
+/**
+ * Creates an index for given table and property name.
+ */
+public synchronized void addIndex(String aTableName, String aPropName) throws SQLException
+{
+    DataTable table = getTable(aTableName);
+    Property prop = table!=null? table.getEntity().getProperty(aPropName) : null;
+    if(prop==null) throw new IllegalArgumentException("JDBCDataSite.addIndex: Not found: " + aTableName + '.' +
+        aPropName);
+    Connection conn = getConnection();
+    try (Statement stmt = conn.createStatement()) {
+        stmt.executeUpdate("CREATE INDEX " + quote(aTableName + '_' + prop.getName()) + " ON " + quote(aTableName) +
+            " (" + quote(prop.getName()) + ")");
+        conn.commit();
+    }
+    catch(SQLException e) { conn.rollback(); throw e; }
+}
+
+/**
+ * Override to drop database table and delete entity file.
+ */
+protected synchronized void deleteTableImpl(DataTable aTable) throws Exception
+{
+    super.deleteTableImpl(aTable);
+    String name = aTable.getName(); _pending.remove(name); _nextPrimary.remove(name);
+    if(!hasDBTable(name)) return;
+    Connection conn = getConnection();
+    try (Statement stmt = conn.createStatement()) {
+        stmt.executeUpdate("DROP TABLE " + quote(name)); conn.commit(); }
+    catch(SQLException e) { conn.rollback(); throw e; }
+    _dbTables.remove(name); _stmts.clear();
+}
+
+/**
+ * Returns the stored properties of entity (which have columns): all but derived and to-many relations.
+ */
+protected List <Property> getColumns(Entity anEntity)
+{
+    List <Property> props = new ArrayList();
+    for(Property prop : anEntity.getProperties())
+        if(!prop.isDerived() && !prop.isToMany())
+            props.add(prop);
+    return props;
+}
+
+/**
+ * Returns the SQL column type for property.
+ */
+protected String getColumnType(Property aProp)
+{
+    switch(aProp.getType()) {
+        case String: Property.StringSize size = aProp.getStringSize();
+            return size==Property.StringSize.Small? "VARCHAR(255)" : size==Property.StringSize.Large? "CLOB" :
+                "VARCHAR(32672)";
+        case Number: switch(aProp.getNumberType()) {
+            case Byte: case Short: return "SMALLINT";
+            case Integer: return "INTEGER";
+            case Long: return "BIGINT";
+            case Float: return "REAL";
+            case Decimal: return "DECIMAL(31,8)";
+            default: return "DOUBLE PRECISION"; }
+        case Date: return aProp.getDateType()==Property.DateType.DateOnly? "DATE" : "TIMESTAMP";
+        case Boolean: return "BOOLEAN";
+        case Enum: return "VARCHAR(255)";
+        case Binary: return "BLOB";
+        case Relation: Entity rent = aProp.getRelEntity();
+            Property rprime = rent!=null? rent.getPrimary() : null;
+            return rprime!=null && !rprime.isRelation()? getColumnType(rprime) : "BIGINT";
+        default: return "VARCHAR(32672)";
+    }
+}
+
+/**
+ * Returns a set of rows for the given table and query.
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery) throws SQLException
+{
+    return getRowsImpl(aTable, aQuery, null);
+}
+
+/**
+ * Override to get rows with plan.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws SQLException
+{
+    return getRowsImpl(aTable, aQuery, aNode);
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node (if not null).
+ */
+protected synchronized List <Row> getRowsImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode)
+    throws SQLException
+{
+    // Write pending changes for table (so query sees them)
+    String name = aTable.getName(); Entity entity = aTable.getEntity();
+    writePending(name);
+    long start = System.nanoTime();
+
+    // Get select for query and execute with parameters
+    Select select = getSelect(aTable, aQuery);
+    int exact = select._exact, limit = aQuery.getFetchLimit(); boolean sorted = select._sorted;
+    Condition condition = aQuery.getCondition();
+    PreparedStatement stmt = getStatement(select._sql);
+    for(int i=0; i<select._params.size(); i++) setParam(stmt, i+1, select._params.get(i));
+
+    // Create rows
+    List <Row> rows = new ArrayList();
+    try (ResultSet rs = stmt.executeQuery()) {
+        while(rs.next()) {
+            rows.add(createRow(aTable, select._cols, rs, false));
+            if((rows.size() & 0xFF)==0) checkCancelled();
+        }
+    }
+    _metrics.add(name, DataMetrics.Counter.RowsScanned, rows.size());
+    if(aNode!=null) { QueryPlan.Node node = aNode.addChild("SQLScan", select._sql);
+        node.setActualRows(rows.size()); node.setNanos(System.nanoTime() - start); }
+
+    // If where clause not exact, filter rows in memory
+    if(exact!=EXACT) { start = System.nanoTime();
+        QueryPlan.Node filterNode = aNode!=null? aNode.addChild("Filter", "(residual)") : null;
+        Predicate <Object> pred = filterNode!=null? QueryPlan.getPredicate(condition, entity, filterNode) :
+            condition.getPredicate(entity);
+        List <Row> rows2 = new ArrayList(); for(Row row : rows) if(pred.test(row)) rows2.add(row);
+        if(filterNode!=null) { filterNode.setInputRows(rows.size()); filterNode.setActualRows(rows2.size());
+            filterNode.setNanos(System.nanoTime() - start); }
+        rows = rows2;
+    }
+
+    // If not sorted by database, sort in memory
+    if(!sorted) { start = System.nanoTime();
+        Collections.sort(rows, aQuery.getComparator(entity));
+        if(aNode!=null) { QueryPlan.Node node = aNode.addChild("Sort", null);
+            node.setInputRows(rows.size()); node.setActualRows(rows.size());
+            node.setNanos(System.nanoTime() - start); }
+    }
+
+    // Apply fetch limit (if not done by database) and return
+    if(!select._limited && rows.size()>limit) rows = new ArrayList(rows.subList(0, limit));
+    return rows;
+}
+
+/**
+ * Returns the select for given table and query: columns, where clause (as much of condition as translates), order by
+ * (if all sorts are columns) and limit (if where clause is exact and rows are sorted by database).
+ */
+protected Select getSelect(DataTable aTable, Query aQuery)
+{
+    // Create select with columns and where clause
+    Entity entity = aTable.getEntity(); String name = aTable.getName();
+    Select select = new Select(); select._cols = getColumns(entity);
+    StringBuilder sql = new StringBuilder("SELECT ");
+    for(Property prop : select._cols) sql.append(quote(prop.getName())).append(", ");
+    sql.setLength(sql.length()-2); sql.append(" FROM ").append(quote(name));
+    Condition condition = aQuery.getCondition();
+    StringBuilder where = new StringBuilder();
+    select._exact = condition!=null? appendCondition(where, select._params, condition, entity) : EXACT;
+    if(where.length()>0) sql.append(" WHERE ").append(where);
+
+    // Add order by (if all sorts are properties with columns)
+    boolean sorted = aQuery.getSortCount()==0;
+    if(!sorted) { StringBuilder order = new StringBuilder(); sorted = true;
+        for(Sort sort : aQuery.getSorts()) { Property prop = entity.getProperty(sort.getKey());
+            if(prop==null || !select._cols.contains(prop) || prop.isRelation()) { sorted = false; break; }
+            order.append(order.length()>0? ", " : "").append(quote(prop.getName()));
+            if(sort.getOrder()==Sort.Order.DESCEND) order.append(" DESC"); }
+        if(sorted) sql.append(" ORDER BY ").append(order);
+    }
+    select._sorted = sorted;
+
+    // Add limit (if where clause is exact and rows are sorted by database)
+    int limit = aQuery.getFetchLimit();
+    select._limited = limit!=aQuery.getFetchLimitDefault() && select._exact==EXACT && sorted;
+    if(select._limited) sql.append(isDerby()? " FETCH FIRST " + limit + " ROWS ONLY" : " LIMIT " + limit);
+    select._sql = sql.toString();
+    return select;
+}
+
+/**
+ * Returns a saved row for the current result set row (cursor row, if requested).
+ */
+protected Row createRow(DataTable aTable, List <Property> theCols, ResultSet aRS, boolean isCursor)
+    throws SQLException
+{
+    Map map = new HashMap(); Object pval = null; Property primeProp = aTable.getEntity().getPrimary();
+    for(int i=0; i<theCols.size(); i++) { Property prop = theCols.get(i);
+        Object val = getColumnValue(aRS, i+1);
+        if(prop==primeProp) pval = primeProp.convertValue(val);
+        else if(val!=null) map.put(prop.getName(), val);
+    }
+    return isCursor? createCursorRow(aTable, pval, map) : createSavedRow(aTable, pval, map);
+}
+
+/**
+ * Override to return a cursor over a result set that fetches rows as consumed (if database can sort for query).
+ * Cursor uses its own statement, so other queries can run while it is open.
+ */
+protected synchronized RowCursor getRowCursorImpl(DataTable aTable, Query aQuery) throws SQLException
+{
+    // Get select (if database can't sort, return null so rows are fetched and sorted)
+    String name = aTable.getName(); Entity entity = aTable.getEntity();
+    Select select = getSelect(aTable, aQuery); if(!select._sorted) return null;
+
+    // Write pending changes for table (so query sees them), then execute select with new statement
+    writePending(name);
+    PreparedStatement stmt = getConnection().prepareStatement(select._sql);
+    ResultSet rs;
+    try {
+        stmt.setFetchSize(RowCursor.BATCH_SIZE);
+        for(int i=0; i<select._params.size(); i++) setParam(stmt, i+1, select._params.get(i));
+        rs = stmt.executeQuery();
+    }
+    catch(SQLException e) { stmt.close(); throw e; }
+    Predicate <Object> predicate = select._exact!=EXACT? aQuery.getCondition().getPredicate(entity) : null;
+
+    // Return cursor
+    return new RowCursor(aQuery.getFetchLimit()) {
+
+        /** Reads next batch of result set rows (under site lock, since connection is shared). */
+        protected List <Row> fetchBatch() throws SQLException
+        {
+            List <Row> rows = new ArrayList(); int count = 0;
+            synchronized (JDBCDataSite.this) {
+                while(count<BATCH_SIZE && rs.next()) { count++;
+                    Row row = createRow(aTable, select._cols, rs, true);
+                    if(predicate==null || predicate.test(row)) rows.add(row); }
+            }
+            _metrics.add(name, DataMetrics.Counter.RowsScanned, count);
+            if(count<BATCH_SIZE) _done = true;
+            return rows;
+        }
+
+        /** Closes result set and statement. */
+        protected void closeImpl() throws SQLException
+        {
+            synchronized (JDBCDataSite.this) { try { rs.close(); } finally { stmt.close(); } }
+        }
+    };
+}
+
+/**
+ * A select statement for a query: SQL, parameters, columns, how exactly condition translated and whether database
+ * sorts and limits rows.
+ */
+protected static class Select {
+
+    // The SQL, parameters and columns
+    String                    _sql;
+    List                      _params = new ArrayList();
+    List <Property>           _cols;
+
+    // How exactly condition translated (NONE, SUPERSET or EXACT) and whether database sorts and limits rows
+    int                       _exact;
+    boolean                   _sorted, _limited;
+}
+
+// Constants for condition translation: not translated, translated to superset (needs filter), translated exactly
+static final int NONE = 0, SUPERSET = 1, EXACT = 2;
+
+/**
+ * Appends SQL for condition (with parameters) and returns whether translation is NONE, SUPERSET or EXACT.
+ */
+protected int appendCondition(StringBuilder aSB, List theParams, Condition aCondition, Entity anEntity)
+{
+    // Handle ConditionList: or-ed groups of and-ed conditions (like ConditionList evaluation). Untranslated
+    // conditions are dropped from and groups (widening them), but an untranslated group means no where clause.
+    if(aCondition instanceof ConditionList) { ConditionList clist = (ConditionList)aCondition;
+        List <String> groups = new ArrayList(); List groupParams = new ArrayList();
+        StringBuilder group = new StringBuilder(); int result = EXACT, groupResult = EXACT;
+        for(int i=0, iMax=clist.getConditionCount(); i<=iMax; i++) {
+
+            // If end of group, add group (or, if nothing translated, return NONE)
+            if(i==iMax || i>0 && clist.getOperators().get(i)==Condition.Operator.Or) {
+                if(group.length()==0) return NONE;
+                groups.add(group.toString()); group.setLength(0);
+                result = Math.min(result, groupResult); groupResult = EXACT;
+                if(i==iMax) break;
+            }
+
+            // Append condition to group
+            StringBuilder sb = new StringBuilder(); List params = new ArrayList();
+            int cresult = appendCondition(sb, params, clist.getCondition(i), anEntity);
+            groupResult = Math.min(groupResult, cresult==EXACT? EXACT : SUPERSET);
+            if(cresult==NONE) continue;
+            group.append(group.length()>0? " AND " : "").append('(').append(sb).append(')');
+            groupParams.addAll(params);
+        }
+        if(groups.isEmpty()) return NONE;
+        aSB.append(groups.size()==1? groups.get(0) : "(" + String.join(") OR (", groups) + ")");
+        theParams.addAll(groupParams);
+        return result;
+    }
+
+    // Get property (if missing, relation, negated or binary, just return NONE)
+    Property prop = anEntity.getProperty(aCondition.getPropertyName());
+    if(prop==null || prop.isDerived() || prop.isToMany() || aCondition.isNegated()) return NONE;
+    Property.Type type = prop.getType(); if(type==Property.Type.Binary || type==Property.Type.Other) return NONE;
+    String col = quote(prop.getName());
+    Condition.Operator op = aCondition.getOperator();
+
+    // Handle Empty
+    if(op==Condition.Operator.Empty) { aSB.append(col).append(" IS NULL"); return EXACT; }
+
+    // Get converted value
+    Object value = op==Condition.Operator.WithinLast || op==Condition.Operator.WithinNext? null :
+        aCondition.getValue(prop);
+
+    // Handle operators
+    switch(op) {
+
+        // Handle Equals (null value means IS NULL, dates compare exactly in SQL but not always in memory)
+        case Equals:
+            if(value==null) { aSB.append(col).append(" IS NULL"); return EXACT; }
+            aSB.append(col).append(" = ?"); theParams.add(value);
+            return type==Property.Type.Date? SUPERSET : EXACT;
+
+        // Handle comparisons (null column values compare differently in memory, so include them and filter)
+        case LessThan: case LessThanOrEqual: case GreaterThan: case GreaterThanOrEqual:
+            if(value==null) return NONE;
+            String sop = op==Condition.Operator.LessThan? "<" : op==Condition.Operator.LessThanOrEqual? "<=" :
+                op==Condition.Operator.GreaterThan? ">" : ">=";
+            aSB.append(col).append(' ').append(sop).append(" ? OR ").append(col).append(" IS NULL");
+            theParams.add(value); return SUPERSET;
+
+        // Handle string matches (LIKE case sensitivity varies by database, so filter)
+        case StartsWith: case EndsWith: case Contains:
+            if(type!=Property.Type.String && type!=Property.Type.Enum || value==null) return NONE;
+            String str = value.toString().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            str = op==Condition.Operator.StartsWith? str + '%' : op==Condition.Operator.EndsWith? '%' + str :
+                '%' + str + '%';
+            aSB.append(col).append(" LIKE ? ESCAPE '\\'"); theParams.add(str);
+            return SUPERSET;
+
+        // Handle Before/After
+        case Before: case After:
+            if(type!=Property.Type.Date || !(value instanceof java.util.Date)) return NONE;
+            aSB.append(col).append(op==Condition.Operator.Before? " < ?" : " >= ?"); theParams.add(value);
+            return EXACT;
+
+        // Everything else is done in memory
+        default: return NONE;
+    }
+}
+
+/**
+ * Sets a statement parameter, converting types JDBC may not handle.
+ */
+protected void setParam(PreparedStatement aStmt, int anIndex, Object aValue) throws SQLException
+{
+    if(aValue==null) aStmt.setObject(anIndex, null);
+    else if(aValue instanceof java.util.Date)
+        aStmt.setTimestamp(anIndex, new Timestamp(((java.util.Date)aValue).getTime()));
+    else if(aValue instanceof byte[]) aStmt.setBytes(anIndex, (byte[])aValue);
+    else if(aValue instanceof Number || aValue instanceof Boolean || aValue instanceof String)
+        aStmt.setObject(anIndex, aValue);
+    else aStmt.setString(anIndex, aValue.toString());
+}
+
+/**
+ * Returns a result set column value, reading CLOB and BLOB values.
+ */
+protected Object getColumnValue(ResultSet aRS, int anIndex) throws SQLException
+{
+    Object val = aRS.getObject(anIndex);
+    if(val instanceof Clob) { Clob clob = (Clob)val; val = clob.getSubString(1, (int)clob.length()); }
+    else if(val instanceof Blob) { Blob blob = (Blob)val; val = blob.getBytes(1, (int)blob.length()); }
+    return val;
+}
+
+/**
+ * Queues row insert or update (written in batch on flush, query or full batch).
+ */
+protected synchronized void saveRowImpl(Row aRow) throws SQLException
+{
+    // Get table name and pending changes
+    String name = aRow.getTable().getName();
+    Pending pending = getPending(name);
+    Property primeProp = aRow.getEntity().getPrimary();
+
+    // Handle new row: set primary value (if missing) and add insert
+    if(!aRow.isSaved()) {
+        if(aRow.getValue(primeProp)==null)
+            aRow.put(primeProp, primeProp.convertValue(nextPrimary(aRow.getTable())));
+        Object key = aRow.getValue(primeProp);
+        pending._deletes.remove(key);
+        pending._inserts.put(key, aRow);
+    }
+
+    // Handle existing row: add update (unless insert is pending)
+    else { Object key = aRow.getValue(primeProp);
+        if(!pending._inserts.containsKey(key)) pending._updates.put(key, aRow); }
+
+    // If batch is full, write it
+    if(pending.size()>=_batchSize) writePending(name);
+}
+
+/**
+ * Queues row delete (written in batch on flush, query or full batch).
+ */
+protected synchronized void deleteRowImpl(Row aRow) throws SQLException
+{
+    String name = aRow.getTable().getName(); Pending pending = getPending(name);
+    Object key = aRow.getPrimaryValue(); if(key==null) return;
+    if(pending._inserts.remove(key)!=null) return;
+    pending._updates.remove(key); pending._deletes.add(key);
+    if(pending.size()>=_batchSize) writePending(name);
+}
+
+/**
+ * Returns the pending changes for table name.
+ */
+protected Pending getPending(String aName)
+{
+    Pending pending = _pending.get(aName);
+    if(pending==null) _pending.put(aName, pending = new Pending());
+    return pending;
+}
+
+/**
+ * Returns the next primary value for table.
+ */
+protected synchronized long nextPrimary(DataTable aTable) throws SQLException
+{
+    // Get next value from cache
+    String name = aTable.getName();
+    Long next = _nextPrimary.get(name);
+
+    // If not cached, get max primary value from database and pending inserts
+    if(next==null) {
+        String pname = aTable.getEntity().getPrimary().getName(); long max = 0;
+        try (ResultSet rs = getStatement("SELECT MAX(" + quote(pname) + ") FROM " + quote(name)).executeQuery()) {
+            if(rs.next()) max = rs.getLong(1); }
+        for(Object key : getPending(name)._inserts.keySet())
+            if(key instanceof Number) max = Math.max(max, ((Number)key).longValue());
+        next = max + 1;
+    }
+
+    // Update cache and return
+    _nextPrimary.put(name, next + 1);
+    return next;
+}
+
+/**
+ * Writes pending changes for all tables.
+ */
+protected synchronized void writePending() throws SQLException
+{
+    for(String name : _pending.keySet().toArray(new String[0]))
+        writePending(name);
+}
+
+/**
+ * Writes pending changes for table name as JDBC batches (deletes, inserts, updates) in one transaction.
+ */
+protected synchronized void writePending(String aName) throws SQLException
+{
+    // Get pending changes (just return if none)
+    Pending pending = _pending.get(aName); if(pending==null || pending.size()==0) return;
+    DataTable table = getTable(aName); Entity entity = table.getEntity();
+    List <Property> cols = getColumns(entity); Property primeProp = entity.getPrimary();
+    String qname = quote(aName), qprime = quote(primeProp.getName());
+    Connection conn = getConnection();
+    List <PreparedStatement> stmts = new ArrayList();
+
+    try {
+        // Write deletes
+        if(pending._deletes.size()>0) {
+            PreparedStatement stmt = getStatement("DELETE FROM " + qname + " WHERE " + qprime + " = ?");
+            stmts.add(stmt);
+            for(Object key : pending._deletes) { setParam(stmt, 1, key); stmt.addBatch(); }
+            stmt.executeBatch();
+        }
+
+        // Write inserts
+        if(pending._inserts.size()>0) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(qname).append(" (");
+            for(Property prop : cols) sql.append(quote(prop.getName())).append(", ");
+            sql.setLength(sql.length()-2); sql.append(") VALUES (");
+            for(int i=0; i<cols.size(); i++) sql.append(i>0? ", ?" : "?");
+            PreparedStatement stmt = getStatement(sql.append(')').toString()); stmts.add(stmt);
+            for(Row row : pending._inserts.values()) {
+                for(int i=0; i<cols.size(); i++) setParam(stmt, i+1, row.getValue(cols.get(i)));
+                stmt.addBatch(); }
+            stmt.executeBatch();
+        }
+
+        // Write updates
+        if(pending._updates.size()>0) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(qname).append(" SET ");
+            List <Property> ucols = new ArrayList(cols); ucols.remove(primeProp);
+            for(Property prop : ucols) sql.append(quote(prop.getName())).append(" = ?, ");
+            sql.setLength(sql.length()-2); sql.append(" WHERE ").append(qprime).append(" = ?");
+            PreparedStatement stmt = getStatement(sql.toString()); stmts.add(stmt);
+            for(Map.Entry <Object,Row> entry : pending._updates.entrySet()) { Row row = entry.getValue();
+                for(int i=0; i<ucols.size(); i++) setParam(stmt, i+1, row.getValue(ucols.get(i)));
+                setParam(stmt, ucols.size()+1, entry.getKey());
+                stmt.addBatch(); }
+            stmt.executeBatch();
+        }
+
+        // Commit and clear pending
+        conn.commit();
+        _pending.remove(aName);
+    }
+
+    // If failed, clear batches of cached statements (so retry doesn't re-send them) and rollback (pending changes are
+    // kept to retry)
+    catch(SQLException e) {
+        for(PreparedStatement stmt : stmts) {
+            try { stmt.clearBatch(); }
+            catch(SQLException e2) { e.addSuppressed(e2); }
+        }
+        conn.rollback(); throw e;
+    }
+}
+
+/**
+ * Override to write pending changes.
+ */
+public void flush() throws Exception
+{
+    writePending();
+    super.flush();
+}
+
+/**
+ * Override to write pending changes of just given tables.
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception
+{
+    for(DataTable table : theTables) writePending(table.getName());
+}
+
+/**
+ * Override to close statements and connection.
+ */
+public void close() throws Exception
+{
+    super.close();
+    synchronized (this) {
+        for(PreparedStatement stmt : _stmts.values()) stmt.close();
+        _stmts.clear();
+        if(_conn!=null) _conn.close(); _conn = null;
+    }
+}
+
+/**
+ * Returns whether database is Derby (which uses FETCH FIRST instead of LIMIT).
+ */
+protected boolean isDerby()  { String url = getURL(); return url!=null && url.startsWith("jdbc:derby:"); }
+
+/**
+ * Returns quoted SQL identifier.
+ */
+protected static String quote(String aName)  { return '"' + aName.replace("\"", "\"\"") + '"'; }
+
+/**
+ * Pending changes for a table.
+ */
+protected static class Pending {
+
+    // The rows to insert and update by primary value
+    Map <Object,Row>      _inserts = new LinkedHashMap(), _updates = new LinkedHashMap();
+
+    // The primary values to delete
+    Set <Object>          _deletes = new LinkedHashSet();
+
+    /** Returns the number of pending changes. */
+    int size()  { return _inserts.size() + _updates.size() + _deletes.size(); }
+}
+
+/**
+ * The storage engine for JDBCDataSite.
+ */
+public static class Engine extends DataEngine {
+
+    // The engine name
+    public static final String NAME = "JDBC";
+
+    /** Returns the engine name. */
+    public String getName()  { return NAME; }
+
+    /** Returns the engine capabilities. */
+    public Set <Capability> getCapabilities()
+    {
+        return EnumSet.of(Capability.Indexes, Capability.Sorting, Capability.Aggregates, Capability.Transactions,
+            Capability.Persistence);
+    }
+
+    /** Creates a new JDBCDataSite. */
+    public DataSite createSite()  { return new JDBCDataSite(); }
+}
+
+}
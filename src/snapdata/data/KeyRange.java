@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import snap.util.SnapUtils;
+
+/**
+ * A range of property values (null bound for unbounded) that all rows satisfying a condition must be in. Engines with
+ * ordered keys (primary key or index) use it to read only the part of a table a query can match.
+ */
+public class KeyRange {
+
+    // The low and high bounds and whether inclusive
+    Object       _lo, _hi;
+    boolean      _loInc, _hiInc;
+
+/**
+ * Creates new KeyRange.
+ */
+public KeyRange(Object aLo, boolean aLoInc, Object aHi, boolean aHiInc)
+{
+    _lo = aLo; _loInc = aLoInc; _hi = aHi; _hiInc = aHiInc;
+}
+
+/**
+ * Returns the low bound (null for unbounded).
+ */
+public Object getLow()  { return _lo; }
+
+/**
+ * Returns whether low bound is inclusive.
+ */
+public boolean isLowInclusive()  { return _loInc; }
+
+/**
+ * Returns the high bound (null for unbounded).
+ */
+public Object getHigh()  { return _hi; }
+
+/**
+ * Returns whether high bound is inclusive.
+ */
+public boolean isHighInclusive()  { return _hiInc; }
+
+/**
+ * Returns whether range is a single value.
+ */
+public boolean isPoint()  { return _lo!=null && _hi!=null && _loInc && _hiInc && SnapUtils.compare(_lo, _hi)==0; }
+
+/**
+ * Returns whether value is above low bound.
+ */
+public boolean isAboveLow(Object aValue)
+{
+    if(_lo==null) return true; int c = SnapUtils.compare(aValue, _lo);
+    return c>0 || c==0 && _loInc;
+}
+
+/**
+ * Returns whether value is below high bound.
+ */
+public boolean isBelowHigh(Object aValue)
+{
+    if(_hi==null) return true; int c = SnapUtils.compare(aValue, _hi);
+    return c<0 || c==0 && _hiInc;
+}
+
+/**
+ * Returns the range of given property that all rows satisfying condition must be in (or null for all rows). Only
+ * and-ed comparisons of the property are used.
+ */
+public static KeyRange get(Condition aCondition, Entity anEntity, Property aProp)
+{
+    // Handle ConditionList: if all and-ed, intersect ranges of conditions
+    if(aCondition instanceof ConditionList) { ConditionList clist = (ConditionList)aCondition;
+        for(int i=1; i<clist.getConditionCount(); i++)
+            if(clist.getOperators().get(i)!=Condition.Operator.And) return null;
+        KeyRange range = null;
+        for(Condition cond : clist.getConditions())
+            range = intersect(range, get(cond, anEntity, aProp));
+        return range;
+    }
+
+    // Handle simple condition: if not on given property, return null
+    if(aCondition==null || aCondition.isNegated()) return null;
+    Property prop = anEntity.getProperty(aCondition.getPropertyName());
+    if(prop==null || prop!=aProp) return null;
+    Object value = aCondition.getValue(prop); if(value==null) return null;
+
+    // Return range for operator
+    switch(aCondition.getOperator()) {
+        case Equals: return new KeyRange(value, true, value, true);
+        case LessThan: return new KeyRange(null, false, value, false);
+        case LessThanOrEqual: return new KeyRange(null, false, value, true);
+        case GreaterThan: return new KeyRange(value, false, null, false);
+        case GreaterThanOrEqual: return new KeyRange(value, true, null, false);
+        default: return null;
+    }
+}
+
+/**
+ * Returns the intersection of two ranges (either can be null for unbounded).
+ */
+public static KeyRange intersect(KeyRange r1, KeyRange r2)
+{
+    if(r1==null) return r2; if(r2==null) return r1;
+    KeyRange r = new KeyRange(r1._lo, r1._loInc, r1._hi, r1._hiInc);
+
+    // Use greater low bound (exclusive wins if equal)
+    int c = r2._lo==null? -1 : r._lo==null? 1 : SnapUtils.compare(r2._lo, r._lo);
+    if(c>0) { r._lo = r2._lo; r._loInc = r2._loInc; }
+    else if(c==0) r._loInc &= r2._loInc;
+
+    // Use lesser high bound (exclusive wins if equal)
+    c = r2._hi==null? 1 : r._hi==null? -1 : SnapUtils.compare(r2._hi, r._hi);
+    if(c<0) { r._hi = r2._hi; r._hiInc = r2._hiInc; }
+    else if(c==0) r._hiInc &= r2._hiInc;
+    return r;
+}
+
+/**
+ * Standard toString implementation.
+ */
+public String toString()
+{
+    if(isPoint()) return "key=" + _lo;
+    return (_lo!=null? (_loInc? "[" : "(") + _lo : "(*") + ", " + (_hi!=null? _hi + (_hiInc? "]" : ")") : "*)");
+}
+
+}
@@ -0,0 +1,1037 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.*;
+import snap.util.*;
+import snap.web.WebFile;
+
+/**
+ * A DataSite that stores table rows in a log-structured merge tree (for write-heavy tables): saves and deletes go to
+ * an in-memory sorted memtable keyed by primary value, which is written out as an immutable sorted segment file when
+ * full (or on flush). Segment files have a sparse key index and a bloom filter, so primary key lookups read one small
+ * block of at most one file per level, and primary key range scans merge only the overlapping parts of segments.
+ *
+ * Segments are compacted in the background with leveled compaction: level 0 holds flushed segments (which may
+ * overlap), and each level below is a single sorted run about ten times larger than the one above. When level 0 has
+ * too many segments (or a level gets too big) it is merged into the next level. The live segments of a table are
+ * listed in a manifest file that is replaced atomically, so a crash mid-compaction leaves the old segments in place.
+ *
+ * Entities are still saved as site entity files. Segment files go in the site directory "lsm" (or setDirectory()).
+ */
+public class LSMDataSite extends DataSite {
+
+    // The segment directory
+    File                              _dir;
+
+    // The open LSM tables by table name
+    Map <String,LSMTable>             _lsmTables = new ConcurrentHashMap();
+
+    // The number of memtable entries that triggers a segment write
+    int                               _memtableLimit = 8192;
+
+    // The number of level 0 segments that triggers compaction
+    int                               _level0Limit = 4;
+
+    // The max bytes of level 1 (each level below is LEVEL_RATIO times bigger)
+    long                              _level1Size = 8*1024*1024;
+
+    // The background compaction executor
+    ExecutorService                   _compactor;
+
+    // The size ratio of adjacent levels
+    static final int LEVEL_RATIO = 10;
+
+    // The number of records per sparse index entry (block)
+    static final int BLOCK_RECORDS = 32;
+
+    // The bloom filter bits per key and hash count
+    static final int BLOOM_BITS_PER_KEY = 10, BLOOM_HASHES = 7;
+
+    // The segment file magic number ("LSM1")
+    static final int MAGIC = 0x4C534D31;
+
+    // The values map that marks a deleted row
+    static final Map <String,String> TOMBSTONE = Collections.unmodifiableMap(new HashMap());
+
+/**
+ * Returns the segment directory (default is site directory "lsm").
+ */
+public File getDirectory()
+{
+    if(_dir!=null) return _dir;
+    WebFile root = _wsite!=null? _wsite.getFile("/") : null;
+    File dir = root!=null? root.getJavaFile() : null;
+    if(dir==null) throw new RuntimeException("LSMDataSite.getDirectory: Site has no local directory: " + getName());
+    return _dir = new File(dir, "lsm");
+}
+
+/**
+ * Sets the segment directory (before tables are opened).
+ */
+public void setDirectory(File aDir)  { _dir = aDir; }
+
+/**
+ * Returns the number of memtable entries that triggers a segment write.
+ */
+public int getMemtableLimit()  { return _memtableLimit; }
+
+/**
+ * Sets the number of memtable entries that triggers a segment write.
+ */
+public void setMemtableLimit(int aValue)  { _memtableLimit = aValue; }
+
+/**
+ * Returns the number of level 0 segments that triggers compaction.
+ */
+public int getLevel0Limit()  { return _level0Limit; }
+
+/**
+ * Sets the number of level 0 segments that triggers compaction.
+ */
+public void setLevel0Limit(int aValue)  { _level0Limit = aValue; }
+
+/**
+ * Returns the LSM table for given table (opening it if needed).
+ */
+protected LSMTable getLSMTable(DataTable aTable)
+{
+    // Get LSM table, just return if found
+    String name = aTable.getName();
+    LSMTable ltable = _lsmTables.get(name); if(ltable!=null) return ltable;
+
+    // Create and open LSM table (synchronized so only one thread opens)
+    synchronized (this) {
+        ltable = _lsmTables.get(name); if(ltable!=null) return ltable;
+        ltable = new LSMTable(name, aTable.getEntity().getPrimary(), getDirectory());
+        ltable._sync = isSync(name);
+        try { ltable.open(); }
+        catch(IOException e) { throw new RuntimeException(e); }
+        _lsmTables.put(name, ltable);
+    }
+    return ltable;
+}
+
+/**
+ * Override to close LSM table and delete segment files and manifest.
+ */
+protected void deleteTableImpl(DataTable aTable) throws Exception
+{
+    super.deleteTableImpl(aTable);
+    LSMTable ltable = getLSMTable(aTable);
+    _lsmTables.remove(aTable.getName());
+    ltable.delete();
+}
+
+/**
+ * Returns a set of rows for the given table and query.
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery) throws IOException
+{
+    return getRowsImpl(aTable, aQuery, null);
+}
+
+/**
+ * Override to get rows with plan.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws IOException
+{
+    return getRowsImpl(aTable, aQuery, aNode);
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node (if not null).
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode) throws IOException
+{
+    // Get LSM table and entity
+    LSMTable ltable = getLSMTable(aTable);
+    Entity entity = aTable.getEntity(); String name = aTable.getName();
+    long start = System.nanoTime();
+
+    // Get primary key range from condition and read (merged) entries in range
+    Condition condition = aQuery.getCondition();
+    KeyRange range = KeyRange.get(condition, entity, entity.getPrimary());
+    List <Map.Entry<Object,Map<String,String>>> entries = ltable.scan(range);
+
+    // Create rows
+    List <Row> rows = new ArrayList(entries.size());
+    for(Map.Entry <Object,Map<String,String>> entry : entries) {
+        if((rows.size() & 0xFF)==0) checkCancelled();
+        rows.add(createSavedRow(aTable, entry.getKey(), entry.getValue())); }
+    _metrics.add(name, DataMetrics.Counter.RowsScanned, rows.size());
+    if(aNode!=null) {
+        String path = range==null? "FullScan" : range.isPoint()? "PrimaryKeyScan" : "RangeScan";
+        QueryPlan.Node node = aNode.addChild(path, name + (range!=null? " " + range : "") + " segments=" +
+            ltable.getSegmentCount());
+        node.setActualRows(rows.size()); node.setNanos(System.nanoTime() - start); }
+
+    // Get predicate (if plan, with filter node that counts rows for each condition)
+    QueryPlan.Node filterNode = aNode!=null && condition!=null? aNode.addChild("Filter", null) : null;
+    Predicate <Object> predicate = filterNode!=null? QueryPlan.getPredicate(condition, entity, filterNode) :
+        aQuery.getPredicate(entity);
+    start = System.nanoTime();
+
+    // Create fetch list and add rows that satisfy condition (checking for cancel periodically)
+    List <Row> rows2 = new ArrayList(); int count = 0;
+    for(Row row : rows) {
+        if((++count & 0xFF)==0) checkCancelled();
+        if(predicate==null || predicate.test(row))
+            rows2.add(row);
+    }
+    if(filterNode!=null) { filterNode.setSelectivity(QueryPlan.getSelectivity(condition, entity));
+        filterNode.setInputRows(rows.size()); filterNode.setActualRows(rows2.size());
+        filterNode.setNanos(System.nanoTime() - start); }
+
+    // Sort rows if query has sorts
+    Comparator <Row> comparator = aQuery.getComparator(entity); start = System.nanoTime();
+    if(comparator!=null) Collections.sort(rows2, comparator);
+    if(aNode!=null && comparator!=null) { QueryPlan.Node sortNode = aNode.addChild("Sort", null);
+        sortNode.setInputRows(rows2.size()); sortNode.setActualRows(rows2.size());
+        sortNode.setNanos(System.nanoTime() - start); }
+
+    // Apply fetch limit and return
+    if(rows2.size()>aQuery.getFetchLimit())
+        rows2 = new ArrayList(rows2.subList(0, aQuery.getFetchLimit()));
+    return rows2;
+}
+
+/**
+ * Override to return a cursor that merges entries in batches (re-scanning after last key), if query is in key order.
+ */
+protected RowCursor getRowCursorImpl(DataTable aTable, Query aQuery)
+{
+    // If query sorts other than in key order, return null (rows are fetched and sorted)
+    Entity entity = aTable.getEntity(); Property primeProp = entity.getPrimary();
+    if(!isKeyOrder(aQuery, primeProp)) return null;
+
+    // Get LSM table, key range and predicate
+    LSMTable ltable = getLSMTable(aTable); String name = aTable.getName();
+    KeyRange range = KeyRange.get(aQuery.getCondition(), entity, primeProp);
+    Predicate <Object> predicate = aQuery.getPredicate(entity);
+
+    // Return cursor
+    return new RowCursor(aQuery.getFetchLimit()) {
+
+        // The last key scanned
+        Object _last;
+
+        /** Scans next batch of entries after last key and returns rows that satisfy condition. */
+        protected List <Row> fetchBatch() throws IOException
+        {
+            // Get next batch of entries (if less than full batch, this is the last)
+            KeyRange brange = _last==null? range : KeyRange.intersect(range, new KeyRange(_last, false, null, false));
+            List <Map.Entry<Object,Map<String,String>>> entries = ltable.scan(brange, BATCH_SIZE);
+            if(entries.size()<BATCH_SIZE) _done = true;
+            if(entries.size()>0) _last = entries.get(entries.size()-1).getKey();
+
+            // Create rows that satisfy condition, record metrics and return
+            List <Row> rows = new ArrayList(entries.size());
+            for(Map.Entry <Object,Map<String,String>> entry : entries) {
+                Row row = createCursorRow(aTable, entry.getKey(), entry.getValue());
+                if(predicate==null || predicate.test(row)) rows.add(row); }
+            _metrics.add(name, DataMetrics.Counter.RowsScanned, entries.size());
+            return rows;
+        }
+    };
+}
+
+/**
+ * Inserts or updates a given row (in memtable).
+ */
+protected void saveRowImpl(Row aRow) throws IOException
+{
+    // Get LSM table and primary property
+    LSMTable ltable = getLSMTable(aRow.getTable());
+    Property primeProp = aRow.getEntity().getPrimary();
+
+    // If new row without primary value, set next primary value
+    if(!aRow.isSaved() && aRow.getValue(primeProp)==null)
+        aRow.put(primeProp, ltable.nextPrimary());
+
+    // Get row values as strings (like data file)
+    Map <String,String> values = new HashMap();
+    for(Property prop : aRow.getEntity().getProperties()) {
+        if(prop.isDerived() || prop.isPrimary()) continue;
+        String str = prop.getCodec().format(aRow.getValue(prop));
+        if(str!=null) values.put(prop.getName(), str);
+    }
+
+    // Put values in memtable (writing segment if full)
+    ltable.put(aRow.getValue(primeProp), values);
+    if(ltable.getMemtableSize()>=_memtableLimit) writeSegment(ltable);
+}
+
+/**
+ * Deletes a given row (adds tombstone to memtable).
+ */
+protected void deleteRowImpl(Row aRow) throws IOException
+{
+    LSMTable ltable = getLSMTable(aRow.getTable());
+    Object key = aRow.getPrimaryValue(); if(key==null) return;
+    ltable.put(key, TOMBSTONE);
+    if(ltable.getMemtableSize()>=_memtableLimit) writeSegment(ltable);
+}
+
+/**
+ * Writes memtable of given LSM table to a level 0 segment and schedules compaction.
+ */
+protected void writeSegment(LSMTable aTable) throws IOException
+{
+    long start = System.nanoTime();
+    Segment seg = aTable.writeMemtable(); if(seg==null) return;
+    _metrics.record(aTable._name, DataMetrics.Op.SaveDataFile, System.nanoTime() - start);
+    _metrics.add(aTable._name, DataMetrics.Counter.BytesWritten, seg._file.length());
+    scheduleCompaction(aTable);
+}
+
+/**
+ * Schedules background compaction for given LSM table (if needed).
+ */
+protected synchronized void scheduleCompaction(LSMTable aTable)
+{
+    if(!aTable.needsCompaction(_level0Limit, _level1Size) || aTable._compactScheduled) return;
+    if(_compactor==null) _compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LSMDataSite Compactor " + getName()); thread.setDaemon(true); return thread; });
+    aTable._compactScheduled = true;
+    _compactor.execute(() -> {
+        try { aTable.compact(_level0Limit, _level1Size); }
+        catch(Exception e) { System.err.println("LSMDataSite.compact: " + aTable._name + ": " + e); }
+        finally { aTable._compactScheduled = false; }
+    });
+}
+
+/**
+ * Compacts all segments of given table name into a single bottom level segment (synchronously).
+ */
+public void compact(String aTableName) throws IOException
+{
+    DataTable table = getTable(aTableName); if(table==null) return;
+    LSMTable ltable = getLSMTable(table);
+    writeSegment(ltable);
+    ltable.compactAll();
+}
+
+/**
+ * Override to write memtables to segments.
+ */
+public void flush() throws Exception
+{
+    for(LSMTable ltable : _lsmTables.values()) { ltable._sync = isSync(ltable._name); writeSegment(ltable); }
+    super.flush();
+}
+
+/**
+ * Override to write memtables of just given tables to segments.
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception
+{
+    for(DataTable table : theTables) { LSMTable ltable = _lsmTables.get(table.getName()); if(ltable==null) continue;
+        ltable._sync = isSync(ltable._name); writeSegment(ltable); }
+}
+
+/**
+ * Override to stop compaction.
+ */
+public void close() throws Exception
+{
+    super.close();
+    ExecutorService compactor;
+    synchronized (this) { compactor = _compactor; _compactor = null; }
+    if(compactor!=null) { compactor.shutdown(); compactor.awaitTermination(1, TimeUnit.MINUTES); }
+    _lsmTables.clear();
+}
+
+/**
+ * The memtable, segments and manifest of a table.
+ */
+protected static class LSMTable {
+
+    // The table name, primary property and directory
+    String                            _name;
+    Property                          _primeProp;
+    File                              _dir;
+
+    // The memtable (by primary value) and the memtable being written to segment (or null)
+    volatile ConcurrentSkipListMap <Object,Map<String,String>>  _memtable = newMemtable(), _flushing;
+
+    // The live segments (newest first)
+    volatile List <Segment>           _segments = Collections.emptyList();
+
+    // The next segment sequence number and max integer primary value seen
+    long                              _nextSeq = 1, _maxPrimary;
+
+    // Lock that scans hold for read and segment list changes hold for write (so segment files aren't deleted in use)
+    ReentrantReadWriteLock            _lock = new ReentrantReadWriteLock();
+
+    // Locks so only one memtable write and one compaction run at a time
+    final Object                      _writeLock = new Object(), _compactLock = new Object();
+
+    // Whether compaction is scheduled
+    volatile boolean                  _compactScheduled;
+
+    // Whether segment and manifest writes are forced to storage device
+    volatile boolean                  _sync;
+
+    /** Creates new LSMTable. */
+    LSMTable(String aName, Property aPrimeProp, File aDir)  { _name = aName; _primeProp = aPrimeProp; _dir = aDir; }
+
+    /** Returns a new empty memtable. */
+    static ConcurrentSkipListMap <Object,Map<String,String>> newMemtable()
+    {
+        return new ConcurrentSkipListMap((o1,o2) -> SnapUtils.compare(o1,o2));
+    }
+
+    /** Returns the manifest file. */
+    File getManifestFile()  { return new File(_dir, _name + ".manifest"); }
+
+    /** Returns the number of memtable entries. */
+    int getMemtableSize()  { return _memtable.size(); }
+
+    /** Returns the number of live segments. */
+    int getSegmentCount()  { return _segments.size(); }
+
+    /** Opens segments listed in manifest (deleting unlisted segment files left by a crash). */
+    void open() throws IOException
+    {
+        // Read manifest lines: "level seq"
+        List <Segment> segs = new ArrayList(); Set <String> names = new HashSet();
+        File mfile = getManifestFile();
+        if(mfile.exists()) for(String line : Files.readAllLines(mfile.toPath(), StandardCharsets.UTF_8)) {
+            String parts[] = line.trim().split("\\s+"); if(parts.length<2) continue;
+            int level = Integer.parseInt(parts[0]); long seq = Long.parseLong(parts[1]);
+            Segment seg = Segment.open(getSegmentFile(level, seq), level, seq, _primeProp);
+            segs.add(seg); names.add(seg._file.getName());
+            _nextSeq = Math.max(_nextSeq, seq + 1);
+            notePrimary(seg._lastKey);
+        }
+
+        // Delete segment files not in manifest
+        File files[] = _dir.listFiles();
+        if(files!=null) for(File file : files) { String fname = file.getName();
+            if(fname.startsWith(_name + '.') && (fname.endsWith(".seg") || fname.endsWith(".tmp")) &&
+                !names.contains(fname) && fname.indexOf('.')==_name.length())
+                file.delete(); }
+
+        // Set segments (newest first)
+        segs.sort((s1,s2) -> Long.compare(s2._seq, s1._seq));
+        _segments = Collections.unmodifiableList(segs);
+    }
+
+    /** Returns the segment file for given level and sequence. */
+    File getSegmentFile(int aLevel, long aSeq)  { return new File(_dir, _name + '.' + aLevel + '.' + aSeq + ".seg"); }
+
+    /** Writes manifest for given segments (to temp file, then moved into place, forced if sync). */
+    void writeManifest(List <Segment> theSegs) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Segment seg : theSegs) sb.append(seg._level).append(' ').append(seg._seq).append('\n');
+        DurableFile.write(getManifestFile(), sb.toString().getBytes(StandardCharsets.UTF_8), _sync);
+    }
+
+    /** Returns next primary value. */
+    synchronized Object nextPrimary()  { return _primeProp.convertValue(++_maxPrimary); }
+
+    /** Notes primary value (so auto-generated values don't collide). */
+    synchronized void notePrimary(Object aValue)
+    {
+        if(aValue instanceof Number) _maxPrimary = Math.max(_maxPrimary, ((Number)aValue).longValue());
+    }
+
+    /** Puts values (or tombstone) for primary value in memtable (synchronized with memtable swap). */
+    synchronized void put(Object aKey, Map <String,String> theValues)
+    {
+        _memtable.put(aKey, theValues);
+        notePrimary(aKey);
+    }
+
+    /** Returns the merged live entries in key range (null for all), newest version of each key. */
+    List <Map.Entry<Object,Map<String,String>>> scan(KeyRange aRange) throws IOException
+    {
+        return scan(aRange, Integer.MAX_VALUE);
+    }
+
+    /** Returns live entries in key order for given key range (or all, if null), up to given limit. */
+    List <Map.Entry<Object,Map<String,String>>> scan(KeyRange aRange, int aLimit) throws IOException
+    {
+        List <Map.Entry<Object,Map<String,String>>> entries = new ArrayList();
+        _lock.readLock().lock();
+        try {
+            // Handle point lookup: memtables, then segments newest first (skipping those bloom filter rules out)
+            if(aRange!=null && aRange.isPoint()) { Object key = aRange._lo;
+                Map <String,String> values = _memtable.get(key); ConcurrentSkipListMap <Object,Map<String,String>> fl;
+                if(values==null && (fl = _flushing)!=null) values = fl.get(key);
+                for(int i=0; values==null && i<_segments.size(); i++) values = _segments.get(i).get(key);
+                if(values!=null && values!=TOMBSTONE) entries.add(new AbstractMap.SimpleEntry(key, values));
+                return entries;
+            }
+
+            // Create cursors for memtables and segments (newest first) and merge
+            List <Cursor> cursors = new ArrayList();
+            cursors.add(new MemCursor(_memtable, aRange, Long.MAX_VALUE));
+            ConcurrentSkipListMap <Object,Map<String,String>> fl = _flushing;
+            if(fl!=null) cursors.add(new MemCursor(fl, aRange, Long.MAX_VALUE - 1));
+            for(Segment seg : _segments) if(seg.overlaps(aRange)) cursors.add(seg.getCursor(aRange));
+            try { merge(cursors, aRange, true, aLimit,
+                (key, values) -> entries.add(new AbstractMap.SimpleEntry(key, values))); }
+            finally { for(Cursor cursor : cursors) cursor.close(); }
+        }
+        finally { _lock.readLock().unlock(); }
+        return entries;
+    }
+
+    /** Writes memtable to a new level 0 segment (returns null if empty). */
+    Segment writeMemtable() throws IOException
+    {
+        synchronized (_writeLock) {
+
+            // Swap memtable for new one (readers still see old one as flushing memtable)
+            ConcurrentSkipListMap <Object,Map<String,String>> mtable; long seq;
+            synchronized (this) {
+                if(_memtable.isEmpty()) return null;
+                mtable = _memtable; _flushing = mtable; _memtable = newMemtable();
+                seq = _nextSeq++;
+            }
+
+            // Write segment (sequential write of sorted entries)
+            Segment seg = null;
+            try {
+                _dir.mkdirs();
+                seg = Segment.write(getSegmentFile(0, seq), 0, seq, _primeProp, mtable.size(), _sync,
+                    action -> { for(Map.Entry <Object,Map<String,String>> e : mtable.entrySet())
+                        action.accept(e.getKey(), e.getValue()); });
+
+                // Add segment and write manifest
+                _lock.writeLock().lock();
+                try {
+                    List <Segment> segs = new ArrayList(_segments); segs.add(0, seg);
+                    writeManifest(segs);
+                    _segments = Collections.unmodifiableList(segs); _flushing = null;
+                }
+                finally { _lock.writeLock().unlock(); }
+                return seg;
+            }
+
+            // If write failed, delete unlisted segment and merge entries back into memtable so next write retries them
+            catch(IOException | RuntimeException e) {
+                if(seg!=null) seg._file.delete();
+                unflush(mtable);
+                throw e;
+            }
+        }
+    }
+
+    /** Merges entries of memtable that failed to write back into current memtable (entries put since are newer). */
+    synchronized void unflush(ConcurrentSkipListMap <Object,Map<String,String>> aMemtable)
+    {
+        for(Map.Entry <Object,Map<String,String>> e : aMemtable.entrySet())
+            _memtable.putIfAbsent(e.getKey(), e.getValue());
+        _flushing = null;
+    }
+
+    /** Returns the total bytes of segments at level. */
+    long getLevelSize(List <Segment> theSegs, int aLevel)
+    {
+        long size = 0; for(Segment seg : theSegs) if(seg._level==aLevel) size += seg._file.length();
+        return size;
+    }
+
+    /** Returns the max level of segments. */
+    int getMaxLevel(List <Segment> theSegs)
+    {
+        int level = 0; for(Segment seg : theSegs) level = Math.max(level, seg._level);
+        return level;
+    }
+
+    /** Returns the level that needs compaction into the next level (or -1). */
+    int getCompactLevel(int aLevel0Limit, long aLevel1Size)
+    {
+        List <Segment> segs = _segments; int count0 = 0;
+        for(Segment seg : segs) if(seg._level==0) count0++;
+        if(count0>=aLevel0Limit) return 0;
+        long max = aLevel1Size;
+        for(int level=1, maxLevel=getMaxLevel(segs); level<=maxLevel; level++, max *= LEVEL_RATIO)
+            if(getLevelSize(segs, level)>max) return level;
+        return -1;
+    }
+
+    /** Returns whether table needs compaction. */
+    boolean needsCompaction(int aLevel0Limit, long aLevel1Size)
+    {
+        return getCompactLevel(aLevel0Limit, aLevel1Size)>=0;
+    }
+
+    /** Compacts levels until none are over limit. */
+    void compact(int aLevel0Limit, long aLevel1Size) throws IOException
+    {
+        synchronized (_compactLock) {
+            for(int level; (level=getCompactLevel(aLevel0Limit, aLevel1Size))>=0; )
+                compactLevel(level, level + 1);
+        }
+    }
+
+    /** Compacts all segments into one segment at bottom level. */
+    void compactAll() throws IOException
+    {
+        synchronized (_compactLock) {
+            int maxLevel = Math.max(getMaxLevel(_segments), 1);
+            if(_segments.size()>1 || _segments.size()==1 && _segments.get(0)._level<maxLevel)
+                compactLevel(0, maxLevel);
+        }
+    }
+
+    /** Merges segments from level through target level into a single segment at target level. */
+    void compactLevel(int aLevel, int aTarget) throws IOException
+    {
+        // Get input segments (newest first): all segments in levels from given level to target
+        List <Segment> inputs = new ArrayList();
+        for(Segment seg : _segments) if(seg._level>=aLevel && seg._level<=aTarget) inputs.add(seg);
+        if(inputs.isEmpty()) return;
+
+        // Get output seq (max input seq, so newer level 0 segments still take precedence) and whether bottom level
+        long seq = 0; for(Segment seg : inputs) seq = Math.max(seq, seg._seq);
+        boolean bottom = aTarget>=getMaxLevel(_segments);
+        long count = 0; for(Segment seg : inputs) count += seg._count;
+
+        // Merge inputs to new segment (dropping tombstones at bottom level, since nothing older remains)
+        List <Cursor> cursors = new ArrayList();
+        for(Segment seg : inputs) cursors.add(seg.getCursor(null));
+        Segment out;
+        try { out = Segment.write(getSegmentFile(aTarget, seq), aTarget, seq, _primeProp, count, _sync,
+            action -> { try { merge(cursors, null, bottom, Integer.MAX_VALUE, action); }
+                catch(IOException e) { throw new UncheckedIOException(e); } }); }
+        finally { for(Cursor cursor : cursors) cursor.close(); }
+
+        // Replace inputs with output, write manifest and delete input files (under write lock so no scans use them)
+        _lock.writeLock().lock();
+        try {
+            List <Segment> segs = new ArrayList();
+            for(Segment seg : _segments) if(!inputs.contains(seg)) segs.add(seg);
+            if(out._count>0) segs.add(out);
+            segs.sort((s1,s2) -> Long.compare(s2._seq, s1._seq));
+            writeManifest(segs);
+            _segments = Collections.unmodifiableList(segs);
+            for(Segment seg : inputs) if(!seg._file.equals(out._file)) seg._file.delete();
+            if(out._count==0) out._file.delete();
+        }
+        finally { _lock.writeLock().unlock(); }
+    }
+
+    /** Merges cursors (newest first) in key order, sending newest version of each key to action. */
+    static void merge(List <Cursor> theCursors, KeyRange aRange, boolean dropTombstones, int aLimit,
+        BiConsumer <Object,Map<String,String>> anAction) throws IOException
+    {
+        // Create priority queue ordered by key, then newest first
+        PriorityQueue <Cursor> queue = new PriorityQueue((o1,o2) -> { Cursor c1 = (Cursor)o1, c2 = (Cursor)o2;
+            int c = SnapUtils.compare(c1._key, c2._key); return c!=0? c : Long.compare(c2._seq, c1._seq); });
+        for(Cursor cursor : theCursors) if(cursor.next()) queue.add(cursor);
+
+        // Take newest entry for each key, skipping older versions (until limit reached)
+        int count = 0;
+        while(!queue.isEmpty() && count<aLimit) {
+            Cursor cursor = queue.poll();
+            Object key = cursor._key; Map <String,String> values = cursor._values;
+            if(aRange!=null && !aRange.isBelowHigh(key)) break;
+            if(!dropTombstones || values!=TOMBSTONE) { anAction.accept(key, values); count++; }
+            if(cursor.next()) queue.add(cursor);
+            while(!queue.isEmpty() && SnapUtils.compare(queue.peek()._key, key)==0) {
+                Cursor old = queue.poll(); if(old.next()) queue.add(old); }
+        }
+    }
+
+    /** Closes table and deletes segment files and manifest. */
+    void delete()
+    {
+        _lock.writeLock().lock();
+        try {
+            for(Segment seg : _segments) seg._file.delete();
+            _segments = Collections.emptyList(); _memtable.clear();
+            getManifestFile().delete();
+        }
+        finally { _lock.writeLock().unlock(); }
+    }
+}
+
+/**
+ * An immutable sorted segment file of entries: records (sorted by primary value), sparse index (key and offset of
+ * every BLOCK_RECORDS-th record), bloom filter of keys and fixed size footer.
+ */
+protected static class Segment {
+
+    // The file, level and sequence number
+    File                  _file;
+    int                   _level;
+    long                  _seq;
+
+    // The primary property
+    Property              _primeProp;
+
+    // The record count and first and last keys
+    long                  _count;
+    Object                _firstKey, _lastKey;
+
+    // The sparse index keys and offsets and the end of records
+    Object                _indexKeys[];
+    long                  _indexOffsets[], _dataEnd;
+
+    // The bloom filter
+    Bloom                 _bloom;
+
+    /** Writes a segment of given entries (sent to action by given source), forced to storage device if sync. */
+    static Segment write(File aFile, int aLevel, long aSeq, Property aPrimeProp, long anEstCount, boolean doSync,
+        Consumer <BiConsumer<Object,Map<String,String>>> aSource) throws IOException
+    {
+        // Create segment and write file (to temp file, then moved into place)
+        Segment seg = new Segment(); seg._file = aFile; seg._level = aLevel; seg._seq = aSeq;
+        seg._primeProp = aPrimeProp;
+        seg._bloom = new Bloom((int)Math.min(Math.max(anEstCount, 1), Integer.MAX_VALUE/BLOOM_BITS_PER_KEY));
+        List <Object> ikeys = new ArrayList(); List <Long> ioffsets = new ArrayList();
+        File temp = new File(aFile.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(temp);
+            CountingOutputStream cout = new CountingOutputStream(fout)) {
+            DataOutputStream out = new DataOutputStream(cout);
+
+            // Write records (noting sparse index entries)
+            aSource.accept((key, values) -> { try {
+                String kstr = aPrimeProp.getCodec().format(key);
+                if(seg._count%BLOCK_RECORDS==0) { out.flush(); ikeys.add(key); ioffsets.add(cout._count); }
+                writeRecord(out, kstr, values);
+                seg._bloom.add(kstr);
+                if(seg._count++==0) seg._firstKey = key;
+                seg._lastKey = key; }
+                catch(IOException e) { throw new UncheckedIOException(e); } });
+            out.flush(); seg._dataEnd = cout._count;
+
+            // Write sparse index
+            out.writeInt(ikeys.size());
+            for(int i=0; i<ikeys.size(); i++) {
+                writeString(out, aPrimeProp.getCodec().format(ikeys.get(i))); out.writeLong(ioffsets.get(i)); }
+            writeString(out, seg._count>0? aPrimeProp.getCodec().format(seg._lastKey) : null);
+
+            // Write bloom filter and footer
+            out.flush(); long bloomOffset = cout._count;
+            seg._bloom.write(out);
+            out.writeLong(seg._dataEnd); out.writeLong(bloomOffset); out.writeLong(seg._count); out.writeInt(MAGIC);
+            out.flush();
+            if(doSync) fout.getChannel().force(true);
+        }
+        catch(UncheckedIOException e) { temp.delete(); throw e.getCause(); }
+        Files.move(temp.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // Set index arrays and return
+        seg._indexKeys = ikeys.toArray();
+        seg._indexOffsets = new long[ioffsets.size()];
+        for(int i=0; i<ioffsets.size(); i++) seg._indexOffsets[i] = ioffsets.get(i);
+        return seg;
+    }
+
+    /** Opens segment file (reads footer, sparse index and bloom filter). */
+    static Segment open(File aFile, int aLevel, long aSeq, Property aPrimeProp) throws IOException
+    {
+        Segment seg = new Segment(); seg._file = aFile; seg._level = aLevel; seg._seq = aSeq;
+        seg._primeProp = aPrimeProp;
+        try (RandomAccessFile raf = new RandomAccessFile(aFile, "r")) {
+
+            // Read footer
+            raf.seek(raf.length() - 28);
+            long dataEnd = raf.readLong(), bloomOffset = raf.readLong(), count = raf.readLong();
+            if(raf.readInt()!=MAGIC) throw new IOException("LSMDataSite: Invalid segment file: " + aFile);
+            seg._dataEnd = dataEnd; seg._count = count;
+
+            // Read sparse index and bloom filter
+            byte bytes[] = new byte[(int)(raf.length() - 28 - dataEnd)];
+            raf.seek(dataEnd); raf.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int icount = in.readInt();
+            seg._indexKeys = new Object[icount]; seg._indexOffsets = new long[icount];
+            for(int i=0; i<icount; i++) {
+                seg._indexKeys[i] = aPrimeProp.convertValue(readString(in)); seg._indexOffsets[i] = in.readLong(); }
+            String last = readString(in);
+            seg._firstKey = icount>0? seg._indexKeys[0] : null;
+            seg._lastKey = last!=null? aPrimeProp.convertValue(last) : null;
+            seg._bloom = Bloom.read(in);
+        }
+        return seg;
+    }
+
+    /** Returns whether segment keys overlap range. */
+    boolean overlaps(KeyRange aRange)
+    {
+        if(_count==0) return false; if(aRange==null) return true;
+        return aRange.isAboveLow(_lastKey) && aRange.isBelowHigh(_firstKey);
+    }
+
+    /** Returns the index of the block that could contain key (-1 if before first key). */
+    int getBlockIndex(Object aKey)
+    {
+        int lo = 0, hi = _indexKeys.length - 1, found = -1;
+        while(lo<=hi) { int mid = (lo + hi)>>>1;
+            if(SnapUtils.compare(_indexKeys[mid], aKey)<=0) { found = mid; lo = mid + 1; }
+            else hi = mid - 1; }
+        return found;
+    }
+
+    /** Returns values for key (tombstone if deleted, null if not in segment). */
+    Map <String,String> get(Object aKey) throws IOException
+    {
+        // If key out of range or bloom filter says no, return null
+        if(_count==0 || SnapUtils.compare(aKey, _firstKey)<0 || SnapUtils.compare(aKey, _lastKey)>0) return null;
+        String kstr = _primeProp.getCodec().format(aKey);
+        if(!_bloom.mightContain(kstr)) return null;
+
+        // Read block records until key found or passed
+        int block = getBlockIndex(aKey); if(block<0) return null;
+        try (SegCursor cursor = new SegCursor(this, block, BLOCK_RECORDS)) {
+            while(cursor.next()) { int c = SnapUtils.compare(cursor._key, aKey);
+                if(c==0) return cursor._values; if(c>0) break; }
+        }
+        return null;
+    }
+
+    /** Returns a cursor for entries in range (null for all). */
+    Cursor getCursor(KeyRange aRange) throws IOException
+    {
+        int block = aRange!=null && aRange._lo!=null? Math.max(getBlockIndex(aRange._lo), 0) : 0;
+        SegCursor cursor = new SegCursor(this, block, Long.MAX_VALUE); cursor._seq = _seq;
+        cursor._range = aRange;
+        return cursor;
+    }
+
+    /** Standard toString implementation. */
+    public String toString()  { return _file.getName() + " { Level:" + _level + " Count:" + _count + " }"; }
+}
+
+/**
+ * A cursor over sorted entries.
+ */
+protected abstract static class Cursor implements Closeable {
+
+    // The current key and values (tombstone if deleted) and sequence of source (higher is newer)
+    Object                  _key;
+    Map <String,String>     _values;
+    long                    _seq;
+
+    /** Advances to next entry (returns false if none). */
+    abstract boolean next() throws IOException;
+
+    /** Closes cursor. */
+    public void close()  { }
+}
+
+/**
+ * A cursor over a memtable.
+ */
+protected static class MemCursor extends Cursor {
+
+    // The iterator
+    Iterator <Map.Entry<Object,Map<String,String>>>  _iter;
+
+    /** Creates new MemCursor. */
+    MemCursor(ConcurrentSkipListMap <Object,Map<String,String>> aMap, KeyRange aRange, long aSeq)
+    {
+        _seq = aSeq;
+        _iter = (aRange!=null && aRange._lo!=null? aMap.tailMap(aRange._lo, aRange._loInc) : aMap).entrySet()
+            .iterator();
+    }
+
+    /** Advances to next entry. */
+    boolean next()
+    {
+        if(!_iter.hasNext()) return false;
+        Map.Entry <Object,Map<String,String>> entry = _iter.next();
+        _key = entry.getKey(); _values = entry.getValue(); return true;
+    }
+}
+
+/**
+ * A cursor over segment file records (sequential buffered read from a block).
+ */
+protected static class SegCursor extends Cursor {
+
+    // The segment, input stream, remaining records and range
+    Segment                 _seg;
+    DataInputStream         _in;
+    CountingInputStream     _cin;
+    long                    _remaining;
+    KeyRange                _range;
+
+    /** Creates new SegCursor for segment, starting block and max records. */
+    SegCursor(Segment aSeg, int aBlock, long aMax) throws IOException
+    {
+        _seg = aSeg; _remaining = aMax;
+        long offset = aSeg._indexOffsets.length>0? aSeg._indexOffsets[aBlock] : 0;
+        FileInputStream fin = new FileInputStream(aSeg._file);
+        fin.getChannel().position(offset);
+        _cin = new CountingInputStream(new BufferedInputStream(fin, 64*1024), offset);
+        _in = new DataInputStream(_cin);
+    }
+
+    /** Advances to next entry (skipping entries below range). */
+    boolean next() throws IOException
+    {
+        while(true) {
+            if(_remaining--<=0 || _cin._count>=_seg._dataEnd) return false;
+            boolean tomb = _in.readByte()!=0;
+            _key = _seg._primeProp.convertValue(readString(_in));
+            _values = tomb? TOMBSTONE : readValues(_in);
+            if(_range==null || _range.isAboveLow(_key)) return true;
+        }
+    }
+
+    /** Closes input stream. */
+    public void close()
+    {
+        try { _in.close(); }
+        catch(IOException e) { System.err.println("LSMDataSite.SegCursor.close: " + e); }
+    }
+}
+
+/**
+ * A bloom filter of strings.
+ */
+protected static class Bloom {
+
+    // The bits and hash count
+    long        _bits[];
+    int         _hashes;
+
+    /** Creates new Bloom sized for given key count. */
+    Bloom(int aCount)
+    {
+        _bits = new long[Math.max((aCount*BLOOM_BITS_PER_KEY + 63)/64, 1)]; _hashes = BLOOM_HASHES;
+    }
+
+    /** Adds a key. */
+    void add(String aKey)
+    {
+        long size = _bits.length*64L; int h1 = aKey.hashCode(), h2 = hash2(aKey);
+        for(int i=0; i<_hashes; i++) { long bit = ((h1 + i*(long)h2) & Long.MAX_VALUE)%size;
+            _bits[(int)(bit>>>6)] |= 1L<<(bit & 63); }
+    }
+
+    /** Returns whether key might have been added (false means definitely not). */
+    boolean mightContain(String aKey)
+    {
+        long size = _bits.length*64L; int h1 = aKey.hashCode(), h2 = hash2(aKey);
+        for(int i=0; i<_hashes; i++) { long bit = ((h1 + i*(long)h2) & Long.MAX_VALUE)%size;
+            if((_bits[(int)(bit>>>6)] & 1L<<(bit & 63))==0) return false; }
+        return true;
+    }
+
+    /** Returns second hash (FNV-1a, independent of String.hashCode). */
+    static int hash2(String aKey)
+    {
+        int h = 0x811C9DC5;
+        for(int i=0, iMax=aKey.length(); i<iMax; i++) { h ^= aKey.charAt(i); h *= 0x01000193; }
+        return h | 1;
+    }
+
+    /** Writes bloom filter. */
+    void write(DataOutputStream anOut) throws IOException
+    {
+        anOut.writeInt(_hashes); anOut.writeInt(_bits.length);
+        for(long bits : _bits) anOut.writeLong(bits);
+    }
+
+    /** Reads bloom filter. */
+    static Bloom read(DataInputStream anIn) throws IOException
+    {
+        Bloom bloom = new Bloom(1); bloom._hashes = anIn.readInt();
+        bloom._bits = new long[anIn.readInt()];
+        for(int i=0; i<bloom._bits.length; i++) bloom._bits[i] = anIn.readLong();
+        return bloom;
+    }
+}
+
+/**
+ * Writes a record: tombstone flag, key and (if not tombstone) value count and name/value pairs.
+ */
+static void writeRecord(DataOutputStream anOut, String aKey, Map <String,String> theValues) throws IOException
+{
+    anOut.writeByte(theValues==TOMBSTONE? 1 : 0);
+    writeString(anOut, aKey);
+    if(theValues==TOMBSTONE) return;
+    anOut.writeInt(theValues.size());
+    for(Map.Entry <String,String> entry : theValues.entrySet()) {
+        writeString(anOut, entry.getKey()); writeString(anOut, entry.getValue()); }
+}
+
+/**
+ * Reads record values (after tombstone flag and key).
+ */
+static Map <String,String> readValues(DataInputStream anIn) throws IOException
+{
+    int count = anIn.readInt();
+    Map <String,String> values = new HashMap(count*2);
+    for(int i=0; i<count; i++) values.put(readString(anIn), readString(anIn));
+    return values;
+}
+
+/**
+ * Writes a string (length and UTF-8 bytes, -1 for null).
+ */
+static void writeString(DataOutputStream anOut, String aStr) throws IOException
+{
+    if(aStr==null) { anOut.writeInt(-1); return; }
+    byte bytes[] = aStr.getBytes(StandardCharsets.UTF_8);
+    anOut.writeInt(bytes.length); anOut.write(bytes);
+}
+
+/**
+ * Reads a string.
+ */
+static String readString(DataInputStream anIn) throws IOException
+{
+    int len = anIn.readInt(); if(len<0) return null;
+    byte bytes[] = new byte[len]; anIn.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+}
+
+/**
+ * An output stream that counts bytes written.
+ */
+static class CountingOutputStream extends FilterOutputStream {
+    long _count;
+    CountingOutputStream(OutputStream anOut)  { super(new BufferedOutputStream(anOut, 64*1024)); }
+    public void write(int b) throws IOException  { out.write(b); _count++; }
+    public void write(byte b[], int off, int len) throws IOException  { out.write(b, off, len); _count += len; }
+}
+
+/**
+ * An input stream that counts bytes read (from given start offset).
+ */
+static class CountingInputStream extends FilterInputStream {
+    long _count;
+    CountingInputStream(InputStream anIn, long aStart)  { super(anIn); _count = aStart; }
+    public int read() throws IOException  { int b = in.read(); if(b>=0) _count++; return b; }
+    public int read(byte b[], int off, int len) throws IOException
+    {
+        int n = in.read(b, off, len); if(n>0) _count += n; return n;
+    }
+}
+
+/**
+ * The storage engine for LSMDataSite.
+ */
+public static class Engine extends DataEngine {
+
+    // The engine name
+    public static final String NAME = "LSM";
+
+    /** Returns the engine name. */
+    public String getName()  { return NAME; }
+
+    /** Returns the engine capabilities. */
+    public Set <Capability> getCapabilities()  { return EnumSet.of(Capability.Sorting, Capability.Persistence); }
+
+    /** Creates a new LSMDataSite. */
+    public DataSite createSite()  { return new LSMDataSite(); }
+}
+
+}
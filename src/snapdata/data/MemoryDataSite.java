@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import snap.util.*;
+
+/**
+ * A DataSite that keeps entities and rows in memory only (no file I/O): rows are held in concurrent primary key maps,
+ * with optional hash indexes on properties. Queries with an equals condition on the primary key or an indexed
+ * property (alone or and-ed at top level) look up candidates directly instead of scanning.
+ *
+ * Optionally, a snapshot directory can be set: flush() then writes dirty tables there (entity and CSV data files,
+ * like FileDataSite) and tables are loaded from there when first requested.
+ */
+public class MemoryDataSite extends DataSite {
+
+    // The site name (if no WebSite)
+    String                            _name;
+
+    // The entities by table name
+    Map <String,Entity>               _entities = new ConcurrentHashMap();
+
+    // The table data by table name
+    Map <String,TableData>            _tableData = new ConcurrentHashMap();
+
+    // The snapshot directory (null for none)
+    File                              _snapDir;
+
+    // Dirty table names (changed since last snapshot)
+    Set <String>                      _dirtyTables = ConcurrentHashMap.newKeySet();
+
+    // Key for null values in index maps (which don't allow null keys)
+    static final Object NULL_KEY = new Object();
+
+/**
+ * Creates a new MemoryDataSite (for engine use: site or owner site provides WebSite).
+ */
+public MemoryDataSite()  { }
+
+/**
+ * Creates a new standalone MemoryDataSite with given name (no WebSite).
+ */
+public MemoryDataSite(String aName)  { _name = aName; }
+
+/**
+ * Override to return name if no WebSite.
+ */
+public String getName()  { return _wsite!=null? super.getName() : _name; }
+
+/**
+ * Override to return memory URL if no WebSite.
+ */
+public String getURLString()  { return _wsite!=null? super.getURLString() : "memory:/" + _name; }
+
+/**
+ * Returns the snapshot directory (null for none).
+ */
+public File getSnapshotDir()  { return _snapDir; }
+
+/**
+ * Sets the snapshot directory (null for none).
+ */
+public void setSnapshotDir(File aDir)  { _snapDir = aDir; }
+
+/**
+ * Override to get entity from memory (or snapshot).
+ */
+protected DataTable getTableImpl(String aName) throws Exception
+{
+    // Get entity (if not found, try snapshot)
+    Entity entity = _entities.get(aName);
+    if(entity==null && _snapDir!=null) {
+        File efile = new File(_snapDir, aName + ".table");
+        if(efile.exists()) {
+            entity = new Entity(aName); entity.fromBytes(Files.readAllBytes(efile.toPath()));
+            _entities.put(aName, entity);
+        }
+    }
+    if(entity==null) return null;
+
+    // Create/configure DataTable and return
+    DataTable table = new DataTable(); table.setSite(this); table.setEntity(entity);
+    return table;
+}
+
+/**
+ * Override to save entity in memory.
+ */
+public void createTableImpl(Entity anEntity, DataTable aTable) throws Exception
+{
+    _entities.put(anEntity.getName(), anEntity);
+    _dirtyTables.add(anEntity.getName());
+}
+
+/**
+ * Override to remove entity, rows and snapshot files.
+ */
+protected void deleteTableImpl(DataTable aTable) throws Exception
+{
+    String name = aTable.getName();
+    _entities.remove(name); _tableData.remove(name); _dirtyTables.remove(name);
+    if(_snapDir!=null) {
+        new File(_snapDir, name + ".table").delete();
+        new File(_snapDir, name + ".csv").delete();
+    }
+}
+
+/**
+ * Returns the table data for given table (loading from snapshot, if available).
+ */
+protected TableData getTableData(DataTable aTable)
+{
+    // Get table data, just return if found
+    String name = aTable.getName();
+    TableData data = _tableData.get(name); if(data!=null) return data;
+
+    // Create table data and load from snapshot (synchronized so only one thread loads)
+    synchronized (this) {
+        data = _tableData.get(name); if(data!=null) return data;
+        data = new TableData(aTable.getEntity());
+        File dfile = _snapDir!=null? new File(_snapDir, name + ".csv") : null;
+        if(dfile!=null && dfile.exists()) {
+            try { readSnapshot(aTable, data, new String(Files.readAllBytes(dfile.toPath()), "UTF-8")); }
+            catch(IOException e) { throw new RuntimeException(e); }
+        }
+        _tableData.put(name, data);
+    }
+    return data;
+}
+
+/**
+ * Adds an index for given table and property name (no-op if property is primary or already indexed).
+ */
+public void addIndex(String aTableName, String aPropName)
+{
+    DataTable table = getTable(aTableName);
+    Property prop = table!=null? table.getEntity().getProperty(aPropName) : null;
+    if(prop==null) throw new IllegalArgumentException("MemoryDataSite.addIndex: Not found: " + aTableName +
+        '.' + aPropName);
+    getTableData(table).addIndex(prop);
+}
+
+/**
+ * Removes index for given table and property name.
+ */
+public void removeIndex(String aTableName, String aPropName)
+{
+    DataTable table = getTable(aTableName);
+    if(table!=null) getTableData(table)._indexes.remove(aPropName.toLowerCase(Locale.ROOT));
+}
+
+/**
+ * Returns the names of indexed properties for given table name.
+ */
+public Set <String> getIndexNames(String aTableName)
+{
+    DataTable table = getTable(aTableName);
+    if(table==null) return Collections.emptySet();
+    Set <String> names = new TreeSet();
+    for(Index index : getTableData(table)._indexes.values()) names.add(index._prop.getName());
+    return names;
+}
+
+/**
+ * Returns a set of rows for the given table and query.
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery)  { return getRowsImpl(aTable, aQuery, null); }
+
+/**
+ * Override to get rows with plan.
+ */
+protected List <Row> explainImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode)
+{
+    return getRowsImpl(aTable, aQuery, aNode);
+}
+
+/**
+ * Returns a set of rows for the given table and query, adding operator nodes to given plan node (if not null).
+ */
+protected List <Row> getRowsImpl(DataTable aTable, Query aQuery, QueryPlan.Node aNode)
+{
+    // Get table data and entity
+    TableData data = getTableData(aTable);
+    Entity entity = aTable.getEntity(); String name = aTable.getName();
+    long start = System.nanoTime();
+
+    // Get candidate rows: primary key lookup, index lookup or full scan
+    Condition condition = aQuery.getCondition();
+    Condition keyCond = getLookupCondition(condition, data, entity);
+    Property keyProp = keyCond!=null? entity.getProperty(keyCond.getPropertyName()) : null;
+    Collection <Row> candidates; String path;
+    if(keyProp!=null && keyProp.isPrimary()) { path = "PrimaryKeyScan";
+        Object key = keyCond.getValue(keyProp); Row row = key!=null? data._rows.get(key) : null;
+        candidates = row!=null? Collections.singletonList(row) : Collections.emptyList(); }
+    else if(keyProp!=null) { path = "IndexScan";
+        candidates = new ArrayList();
+        for(Object key : data.getIndex(keyProp).getKeys(keyCond.getValue(keyProp))) {
+            Row row = data._rows.get(key); if(row!=null) candidates.add(row); } }
+    else { path = "FullScan"; candidates = data._rows.values(); }
+    Row rows[] = candidates.toArray(new Row[0]);
+    _metrics.add(name, DataMetrics.Counter.RowsScanned, rows.length);
+    if(aNode!=null) { QueryPlan.Node node = aNode.addChild(path, keyCond!=null? name + " " + keyCond : name);
+        node.setEstimatedRows(keyProp==null? data._rows.size() : keyProp.isPrimary()? 1 :
+            QueryPlan.getEstimatedRows(data._rows.size(), QueryPlan.getSelectivity(keyCond, entity)));
+        node.setActualRows(rows.length); node.setNanos(System.nanoTime() - start); }
+
+    // Get predicate (if plan, with filter node that counts rows for each condition)
+    QueryPlan.Node filterNode = aNode!=null && condition!=null? aNode.addChild("Filter", null) : null;
+    Predicate <Object> predicate = filterNode!=null? QueryPlan.getPredicate(condition, entity, filterNode) :
+        aQuery.getPredicate(entity);
+    start = System.nanoTime();
+
+    // Create fetch list and add rows that satisfy condition (checking for cancel periodically)
+    List <Row> rows2 = new ArrayList(); int count = 0;
+    for(Row row : rows) {
+        if((++count & 0xFF)==0) checkCancelled();
+        if(predicate==null || predicate.test(row))
+            rows2.add(row);
+    }
+    if(filterNode!=null) { filterNode.setSelectivity(QueryPlan.getSelectivity(condition, entity));
+        filterNode.setInputRows(rows.length); filterNode.setActualRows(rows2.size());
+        filterNode.setNanos(System.nanoTime() - start); }
+
+    // Sort rows if query has sorts
+    Comparator <Row> comparator = aQuery.getComparator(entity); start = System.nanoTime();
+    if(comparator!=null) Collections.sort(rows2, comparator);
+    if(aNode!=null && comparator!=null) { QueryPlan.Node sortNode = aNode.addChild("Sort", null);
+        sortNode.setInputRows(rows2.size()); sortNode.setActualRows(rows2.size());
+        sortNode.setNanos(System.nanoTime() - start); }
+
+    // Apply fetch limit and return
+    if(rows2.size()>aQuery.getFetchLimit())
+        rows2 = new ArrayList(rows2.subList(0, aQuery.getFetchLimit()));
+    return rows2;
+}
+
+/**
+ * Returns an equals condition on primary or indexed property that all query rows must satisfy (or null).
+ */
+protected Condition getLookupCondition(Condition aCondition, TableData aData, Entity anEntity)
+{
+    // Handle ConditionList: if all and-ed, return first lookup condition (primary preferred)
+    if(aCondition instanceof ConditionList) { ConditionList clist = (ConditionList)aCondition;
+        for(int i=1; i<clist.getConditionCount(); i++)
+            if(clist.getOperators().get(i)!=Condition.Operator.And) return null;
+        Condition found = null;
+        for(Condition cond : clist.getConditions()) {
+            Condition lcond = cond instanceof ConditionList? null : getLookupCondition(cond, aData, anEntity);
+            if(lcond!=null && (found==null || anEntity.getProperty(lcond.getPropertyName()).isPrimary()))
+                found = lcond;
+        }
+        return found;
+    }
+
+    // Handle simple condition: return if equals on primary or indexed property
+    if(aCondition==null || aCondition.getOperator()!=Condition.Operator.Equals || aCondition.isNegated()) return null;
+    Property prop = anEntity.getProperty(aCondition.getPropertyName());
+    if(prop==null) return null;
+    return prop.isPrimary() || aData.getIndex(prop)!=null? aCondition : null;
+}
+
+/**
+ * Inserts or updates a given row.
+ */
+protected void saveRowImpl(Row aRow)
+{
+    // Get table data and primary property
+    DataTable table = aRow.getTable();
+    TableData data = getTableData(table);
+    Property primeProp = aRow.getEntity().getPrimary();
+
+    // If new row without primary value, set next primary value
+    if(!aRow.isSaved() && aRow.getValue(primeProp)==null)
+        aRow.put(primeProp, data.nextPrimary());
+
+    // Add row (if not already added) and update indexes
+    Object key = aRow.getValue(primeProp);
+    data._rows.put(key, aRow);
+    data.notePrimary(key);
+    for(Index index : data._indexes.values()) index.update(key, aRow);
+    _dirtyTables.add(table.getName());
+}
+
+/**
+ * Deletes a given row.
+ */
+protected void deleteRowImpl(Row aRow)
+{
+    TableData data = getTableData(aRow.getTable());
+    Object key = aRow.getPrimaryValue();
+    if(key!=null && data._rows.remove(key, aRow))
+        for(Index index : data._indexes.values()) index.remove(key, aRow);
+    _dirtyTables.add(aRow.getTable().getName());
+}
+
+/**
+ * Override to return table row count (all rows are cached).
+ */
+protected int getCachedRowCount(DataTable aTable)
+{
+    TableData data = _tableData.get(aTable.getName());
+    return data!=null? data._rows.size() : 0;
+}
+
+/**
+ * Override to refuse eviction: memory is the only copy of rows.
+ */
+protected boolean evictTableRows(DataTable aTable)  { return false; }
+
+/**
+ * Override to write snapshot (if snapshot directory set).
+ */
+public void flush() throws Exception
+{
+    super.flush();
+    if(_snapDir!=null) saveSnapshot();
+}
+
+/**
+ * Override to write snapshot of just given tables (if snapshot directory set).
+ */
+protected void flushTablesImpl(List <DataTable> theTables) throws Exception
+{
+    List <String> names = new ArrayList(); for(DataTable table : theTables) names.add(table.getName());
+    if(_snapDir!=null) saveSnapshot(names);
+}
+
+/**
+ * Writes dirty tables to snapshot directory (entity file and CSV data file each, written to temp file and moved).
+ */
+public void saveSnapshot() throws IOException  { saveSnapshot(null); }
+
+/**
+ * Writes given dirty tables (or all dirty tables, if null) to snapshot directory.
+ */
+protected synchronized void saveSnapshot(Collection <String> theNames) throws IOException
+{
+    // Make sure directory exists
+    if(_snapDir==null) throw new IOException("MemoryDataSite.saveSnapshot: Snapshot dir not set");
+    _snapDir.mkdirs();
+
+    // Iterate over dirty tables and write entity and data files
+    for(String name : _dirtyTables.toArray(new String[0])) { if(theNames!=null && !theNames.contains(name)) continue;
+        _dirtyTables.remove(name);
+        Entity entity = _entities.get(name);
+        if(entity==null) continue;
+        writeSnapshotFile(name + ".table", entity.toBytes());
+        TableData data = _tableData.get(name);
+        Row rows[] = data!=null? data._rows.values().toArray(new Row[0]) : new Row[0];
+        writeSnapshotFile(name + ".csv", StringUtils.getBytes(FileDataSite.getDataFileText(entity, rows)));
+    }
+}
+
+/**
+ * Writes a snapshot file (to temp file, then moved into place so readers never see partial file).
+ */
+protected void writeSnapshotFile(String aName, byte theBytes[]) throws IOException
+{
+    Path path = new File(_snapDir, aName).toPath(), temp = new File(_snapDir, aName + ".tmp").toPath();
+    Files.write(temp, theBytes);
+    try { Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); }
+    catch(AtomicMoveNotSupportedException e) { Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING); }
+}
+
+/**
+ * Reads snapshot CSV text into table data.
+ */
+protected void readSnapshot(DataTable aTable, TableData aData, String aText)
+{
+    Property primeProp = aTable.getEntity().getPrimary(); String primeName = primeProp.getName();
+    for(Map <String,String> map : FileDataSite.getDataFileMaps(aText, aTable.getName())) {
+        Object pval = primeProp.convertValue(map.get(primeName)); if(pval==null) continue;
+        Row row = createSavedRow(aTable, pval, map);
+        aData._rows.put(pval, row); aData.notePrimary(pval);
+    }
+}
+
+/**
+ * The rows and indexes for a table.
+ */
+protected static class TableData {
+
+    // The entity
+    Entity                          _entity;
+
+    // The rows by primary value (ordered by primary value)
+    ConcurrentSkipListMap <Object,Row>  _rows = new ConcurrentSkipListMap((o1,o2) -> SnapUtils.compare(o1,o2));
+
+    // The indexes by lowercase property name
+    Map <String,Index>              _indexes = new ConcurrentHashMap();
+
+    // The max integer primary value seen (for auto-generated primary values)
+    long                            _maxPrimary;
+
+    /** Creates new TableData. */
+    TableData(Entity anEntity)  { _entity = anEntity; }
+
+    /** Returns next primary value. */
+    synchronized Object nextPrimary()
+    {
+        Property prop = _entity.getPrimary();
+        return prop.convertValue(++_maxPrimary);
+    }
+
+    /** Notes primary value (so auto-generated values don't collide). */
+    synchronized void notePrimary(Object aValue)
+    {
+        if(aValue instanceof Number) _maxPrimary = Math.max(_maxPrimary, ((Number)aValue).longValue());
+    }
+
+    /** Returns the index for given property (or null). */
+    Index getIndex(Property aProp)  { return _indexes.get(aProp.getName().toLowerCase(Locale.ROOT)); }
+
+    /** Adds an index for given property and indexes existing rows. */
+    synchronized void addIndex(Property aProp)
+    {
+        if(aProp.isPrimary() || getIndex(aProp)!=null) return;
+        Index index = new Index(aProp);
+        for(Map.Entry <Object,Row> entry : _rows.entrySet()) index.update(entry.getKey(), entry.getValue());
+        _indexes.put(aProp.getName().toLowerCase(Locale.ROOT), index);
+    }
+}
+
+/**
+ * A hash index of row primary values by property value (rows hash by content, so they can't be set members).
+ */
+protected static class Index {
+
+    // The property
+    Property                           _prop;
+
+    // The primary values by value
+    Map <Object,Set<Object>>           _keys = new ConcurrentHashMap();
+
+    // The indexed values by primary value (to find old entry when row value changes)
+    Map <Object,Object>                _values = new ConcurrentHashMap();
+
+    /** Creates new Index. */
+    Index(Property aProp)  { _prop = aProp; }
+
+    /** Returns primary values for given value. */
+    Collection <Object> getKeys(Object aValue)
+    {
+        Set <Object> keys = _keys.get(aValue!=null? aValue : NULL_KEY);
+        return keys!=null? keys : Collections.emptySet();
+    }
+
+    /** Updates index for given row. */
+    void update(Object aKey, Row aRow)
+    {
+        Object value = _prop.convertValue(aRow.getValue(_prop)); if(value==null) value = NULL_KEY;
+        Object old = _values.put(aKey, value);
+        if(old!=null && !old.equals(value)) { Set <Object> keys = _keys.get(old); if(keys!=null) keys.remove(aKey); }
+        _keys.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(aKey);
+    }
+
+    /** Removes given row from index. */
+    void remove(Object aKey, Row aRow)
+    {
+        Object old = _values.remove(aKey);
+        Set <Object> keys = old!=null? _keys.get(old) : null; if(keys!=null) keys.remove(aKey);
+    }
+}
+
+/**
+ * The storage engine for MemoryDataSite.
+ */
+public static class Engine extends DataEngine {
+
+    // The engine name
+    public static final String NAME = "Memory";
+
+    /** Returns the engine name. */
+    public String getName()  { return NAME; }
+
+    /** Returns the engine capabilities. */
+    public Set <Capability> getCapabilities()  { return EnumSet.of(Capability.Indexes, Capability.Sorting); }
+
+    /** Creates a new MemoryDataSite. */
+    public DataSite createSite()  { return new MemoryDataSite(); }
+}
+
+}
@@ -50,6 +50,12 @@ public class Property extends SnapObject implements Comparable, JSONArchiver.Get
     // The join wiring information (for type Relation)
     Join           _join;
     
+    // The codec that converts values to/from property type
+    PropertyCodec  _codec;
+    
+    // The index of this property in entity properties list
+    int            _ordinal = -1;
+    
     // Constants for property types
     public enum Type { String, Number, Date, Boolean, Enum, Binary, Relation, Other }
     
@@ -118,6 +124,11 @@ public void setName(String aName)
     firePropChange("Name", _name, _name = name);
 }
 
+/**
+ * Returns the index of this property in entity properties list (or -1 if not in entity).
+ */
+public int getOrdinal()  { return _ordinal; }
+
 /**
  * Returns the name in a standard format (strip is/get prefix and start with capital letter).
  */
@@ -134,7 +145,7 @@ public Type getType()  { return _type; }
 public void setType(Type aType)
 {
     if(aType==_type) return;
-    firePropChange("Type", _type, _type = aType);
+    firePropChange("Type", _type, _type = aType); _codec = null;
 }
 
 /**
@@ -197,7 +208,7 @@ public void setNumberType(NumberType aNumberType)
 {
     if(aNumberType==_numberType) return;
     setType(Type.Number);  // Ensure type is number
-    firePropChange("NumberType", _numberType, _numberType = aNumberType);
+    firePropChange("NumberType", _numberType, _numberType = aNumberType); _codec = null;
 }
 
 /**
@@ -217,7 +228,7 @@ public void setDateType(DateType aDateType)
 {
     if(aDateType==_dateType) return;
     setType(Type.Date);  // Ensure date type
-    firePropChange("DateType", _dateType, _dateType = aDateType);
+    firePropChange("DateType", _dateType, _dateType = aDateType); _codec = null;
 }
 
 /**
@@ -372,6 +383,7 @@ public void setTypeFromSample(String aSample)
     
     // If type still assumed Date, try two common date formats and return if either work, otherwise change to Number
     if(getType()==Type.Date) {
+        if(PropertyCodec.parseDate(aSample.trim())!=null) return;
         try { new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss").parse(aSample); return; }
         catch(Exception e) { }
         try { new SimpleDateFormat("yyyy-MM-dd").parse(aSample); return; }
@@ -385,13 +397,22 @@ public void setTypeFromSample(String aSample)
     }
 }
 
+/**
+ * Returns the codec that converts values to/from property type.
+ */
+public PropertyCodec getCodec()
+{
+    PropertyCodec codec = _codec; if(codec!=null) return codec;
+    return _codec = new PropertyCodec(getType(), getNumberType(), getDateType());
+}
+
 /**
  * Converts an arbitrary object to property type.
  */
 public Object convertValue(Object anObj)
 {
     // Do basic conversion
-    Object value = DataUtils.convertValue(anObj, getType(), getNumberType());
+    Object value = getCodec().convert(anObj);
     
     // Special case for Binary - gets converted to Base64 below in toString()
     if(value==null && getType()==Type.Binary && anObj instanceof String)
@@ -423,15 +444,9 @@ public Object getKeyValue(String aKey)
  */
 public String toString(Object aValue)
 {
-    // Get value as property type
+    // Get value as property type (handles relations) and return codec string
     Object value = convertValue(aValue);
-    
-    // Handle specific property types
-    switch(getType()) {
-        case Number: return DataUtils.toString((Number)value, getNumberType());
-        case Date: return DataUtils.toString((Date)value, getDateType());
-        default: return SnapUtils.stringValue(value);
-    }
+    return getCodec().format(value);
 }
 
 /**
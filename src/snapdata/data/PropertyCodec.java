@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.math.BigDecimal;
+import java.time.*;
+import java.time.format.*;
+import java.util.Date;
+import snap.util.*;
+
+/**
+ * This class converts values to and from a Property type. Codecs are immutable (and thus thread-safe) and are
+ * created once per Property type configuration, so hot paths (Row.put, Condition.getValue, CSV load/save) don't
+ * have to rediscover the conversion rules for every value.
+ */
+public class PropertyCodec {
+
+    // The property type
+    final Property.Type        _type;
+
+    // The number type (when type is Number)
+    final Property.NumberType  _numberType;
+
+    // The date type (when type is Date)
+    final Property.DateType    _dateType;
+
+    // The formatter used to write dates
+    final DateTimeFormatter    _dateFormat;
+
+    // Shared date formatters (DateTimeFormatter is immutable and thread-safe)
+    static final DateTimeFormatter DateOnlyFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    static final DateTimeFormatter DateTimeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    static final DateTimeFormatter DateTimeFormatT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+/**
+ * Creates a new PropertyCodec for given type, number type and date type.
+ */
+public PropertyCodec(Property.Type aType, Property.NumberType aNumberType, Property.DateType aDateType)
+{
+    _type = aType; _numberType = aNumberType; _dateType = aDateType;
+    _dateFormat = aDateType==Property.DateType.DateOnly? DateOnlyFormat : DateTimeFormat;
+}
+
+/**
+ * Returns the property type.
+ */
+public Property.Type getType()  { return _type; }
+
+/**
+ * Returns the number type.
+ */
+public Property.NumberType getNumberType()  { return _numberType; }
+
+/**
+ * Returns the date type.
+ */
+public Property.DateType getDateType()  { return _dateType; }
+
+/**
+ * Converts an arbitrary object to codec type.
+ */
+public Object convert(Object anObj)
+{
+    // Handle null
+    if(anObj==null) return null;
+
+    // Handle types
+    switch(_type) {
+        case String: return anObj instanceof String? anObj : SnapUtils.stringValue(anObj);
+        case Number: return convertNumber(anObj);
+        case Boolean: return convertBoolean(anObj);
+        case Date: return convertDate(anObj);
+        default: return DataUtils.convertValue(anObj, _type, _numberType);
+    }
+}
+
+/**
+ * Converts an arbitrary object to a number of codec number type.
+ */
+protected Object convertNumber(Object anObj)
+{
+    // Handle number already correct class
+    switch(_numberType) {
+        case Byte: case Short: case Integer: if(anObj instanceof Integer) return anObj; break;
+        case Long: if(anObj instanceof Long) return anObj; break;
+        case Float: if(anObj instanceof Float) return anObj; break;
+        case Double: if(anObj instanceof Double) return anObj; break;
+        case Decimal: if(anObj instanceof BigDecimal) return anObj; break;
+    }
+
+    // Handle String fast path: plain decimal integers and floating point numbers
+    if(anObj instanceof String) { String str = ((String)anObj).trim();
+        if(str.length()==0) return null;
+        switch(_numberType) {
+            case Byte: case Short: case Integer: {
+                long val = parseLong(str);
+                if(val!=Long.MIN_VALUE && val>=Integer.MIN_VALUE && val<=Integer.MAX_VALUE) return (int)val;
+                break;
+            }
+            case Long: { long val = parseLong(str); if(val!=Long.MIN_VALUE) return val; break; }
+            case Float: if(isPlainNumber(str)) return Float.parseFloat(str); break;
+            case Double: if(isPlainNumber(str)) return Double.parseDouble(str); break;
+            case Decimal: if(isPlainNumber(str)) return new BigDecimal(str); break;
+        }
+    }
+
+    // Handle Number fast path
+    else if(anObj instanceof Number) { Number num = (Number)anObj;
+        switch(_numberType) {
+            case Byte: case Short: case Integer: return num.intValue();
+            case Long: return num.longValue();
+            case Float: return num.floatValue();
+            case Double: return num.doubleValue();
+            default: break;
+        }
+    }
+
+    // Do normal conversion
+    return DataUtils.convertValue(anObj, _type, _numberType);
+}
+
+/**
+ * Converts an arbitrary object to a boolean.
+ */
+protected Object convertBoolean(Object anObj)
+{
+    if(anObj instanceof Boolean) return anObj;
+    if(anObj instanceof String) { String str = (String)anObj;
+        if(str.equalsIgnoreCase("true")) return Boolean.TRUE;
+        if(str.equalsIgnoreCase("false")) return Boolean.FALSE;
+    }
+    return DataUtils.convertValue(anObj, _type, _numberType);
+}
+
+/**
+ * Converts an arbitrary object to a date.
+ */
+protected Object convertDate(Object anObj)
+{
+    // Handle Date
+    if(anObj instanceof Date) return anObj;
+
+    // Handle String in standard formats
+    if(anObj instanceof String) { String str = ((String)anObj).trim();
+        if(str.length()==0) return null;
+        Date date = parseDate(str);
+        if(date!=null) return date;
+    }
+
+    // Do normal conversion
+    return DataUtils.convertValue(anObj, _type, _numberType);
+}
+
+/**
+ * Returns a string for given value (which is converted to codec type first).
+ */
+public String format(Object aValue)
+{
+    // Get value as codec type (just return if null)
+    Object value = convert(aValue); if(value==null) return null;
+
+    // Handle types
+    switch(_type) {
+        case String: return (String)value;
+        case Number:
+            if(value instanceof Integer || value instanceof Long) return value.toString();
+            return DataUtils.toString((Number)value, _numberType);
+        case Boolean: return value.toString();
+        case Date: return formatDate((Date)value, _dateFormat);
+        default: return SnapUtils.stringValue(value);
+    }
+}
+
+/**
+ * Returns a string for given date and formatter.
+ */
+public static String formatDate(Date aDate, DateTimeFormatter aFormat)
+{
+    LocalDateTime ldt = LocalDateTime.ofInstant(aDate.toInstant(), ZoneId.systemDefault());
+    return aFormat.format(ldt);
+}
+
+/**
+ * Parses a date in one of the standard formats (yyyy-MM-dd, yyyy-MM-dd HH:mm:ss, yyyy-MM-dd'T'HH:mm:ss).
+ * Returns null if string is in some other format.
+ */
+public static Date parseDate(String aStr)
+{
+    // Date strings in standard formats all start with yyyy-MM-dd
+    int len = aStr.length();
+    if(len<10 || aStr.charAt(4)!='-' || aStr.charAt(7)!='-') return null;
+
+    // Parse by length
+    try {
+        LocalDateTime ldt;
+        if(len==10) ldt = LocalDate.parse(aStr, DateOnlyFormat).atStartOfDay();
+        else if(len==19 && aStr.charAt(10)==' ') ldt = LocalDateTime.parse(aStr, DateTimeFormat);
+        else if(len==19 && aStr.charAt(10)=='T') ldt = LocalDateTime.parse(aStr, DateTimeFormatT);
+        else return null;
+        return Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
+    }
+    catch(DateTimeParseException e) { return null; }
+}
+
+/**
+ * Parses a plain decimal integer (optional sign followed by digits). Returns Long.MIN_VALUE if string isn't plain.
+ */
+static long parseLong(String aStr)
+{
+    // Get start index past sign (limit digits to 18 so we can't overflow)
+    int len = aStr.length(), start = aStr.charAt(0)=='-' || aStr.charAt(0)=='+'? 1 : 0;
+    if(start==len || len-start>18) return Long.MIN_VALUE;
+
+    // Accumulate digits
+    long val = 0;
+    for(int i=start; i<len; i++) { char c = aStr.charAt(i);
+        if(c<'0' || c>'9') return Long.MIN_VALUE;
+        val = val*10 + (c - '0');
+    }
+    return aStr.charAt(0)=='-'? -val : val;
+}
+
+/**
+ * Returns whether string is a plain number (sign, digits, one decimal point and optional exponent).
+ */
+static boolean isPlainNumber(String aStr)
+{
+    boolean digits = false, point = false, exp = false;
+    for(int i=0, iMax=aStr.length(); i<iMax; i++) { char c = aStr.charAt(i);
+        if(c>='0' && c<='9') digits = true;
+        else if(c=='.' && !point && !exp) point = true;
+        else if((c=='e' || c=='E') && digits && !exp) { exp = true; digits = false; }
+        else if((c=='-' || c=='+') && (i==0 || aStr.charAt(i-1)=='e' || aStr.charAt(i-1)=='E')) continue;
+        else return false;
+    }
+    return digits;
+}
+
+}
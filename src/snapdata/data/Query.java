@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.function.Predicate;
 import snap.util.*;
 
 /**
@@ -175,6 +176,42 @@ public int removeSort(Sort aSort)
     return index;
 }
 
+/**
+ * Returns a predicate for query condition and given entity (null if no condition).
+ */
+public Predicate <Object> getPredicate(Entity anEntity)
+{
+    Condition condition = getCondition();
+    return condition!=null? condition.getPredicate(anEntity) : null;
+}
+
+/**
+ * Returns a comparator for query sorts and given entity (null if no sorts).
+ */
+public Comparator <Row> getComparator(Entity anEntity)
+{
+    // If no sorts, just return null
+    if(getSortCount()==0) return null;
+    
+    // Get sort properties and orders
+    int count = getSortCount();
+    Property props[] = new Property[count]; boolean descend[] = new boolean[count];
+    for(int i=0; i<count; i++) { Sort sort = getSorts().get(i);
+        props[i] = anEntity.getProperty(sort.getKey());
+        descend[i] = sort.getOrder()==Sort.Order.DESCEND; }
+    
+    // Return comparator that compares rows by sort property values
+    return (r1, r2) -> {
+        for(int i=0; i<count; i++) {
+            Object v1 = props[i]!=null? r1.getValue(props[i]) : Key.getValue(r1, getSorts().get(i).getKey());
+            Object v2 = props[i]!=null? r2.getValue(props[i]) : Key.getValue(r2, getSorts().get(i).getKey());
+            int comp = SnapUtils.compare(v1, v2);
+            if(comp!=0) return descend[i]? -comp : comp;
+        }
+        return 0;
+    };
+}
+
 /**
  * Standard equals implementation.
  */
@@ -182,15 +219,44 @@ public boolean equals(Object anObj)
 {
     // Check identity and get other query
     if(anObj==this) return true;
-    Query other = (Query)anObj;
+    Query other = anObj instanceof Query? (Query)anObj : null; if(other==null) return false;
     
-    // Check entity name, condition, fetch limit
+    // Check entity name, condition, fetch limit, sorts
     if(!SnapUtils.equals(other._entityName, _entityName)) return false;
     if(!SnapUtils.equals(other._condition, _condition)) return false;
     if(other._fetchLimit!=_fetchLimit) return false;
+    if(!other.getFingerprintSorts().equals(getFingerprintSorts())) return false;
     return true; // Return true since all checks passed
 }
 
+/**
+ * Standard hashCode implementation.
+ */
+public int hashCode()  { return Objects.hash(_entityName, _condition, _fetchLimit); }
+
+/**
+ * Returns a canonical string for this query: equal strings mean queries fetch the same rows in the same order.
+ */
+public String getFingerprint()
+{
+    StringBuilder sb = new StringBuilder();
+    sb.append(getEntityName()!=null? getEntityName().toLowerCase(Locale.ROOT) : null);
+    sb.append(" where "); if(getCondition()!=null) getCondition().appendFingerprint(sb);
+    sb.append(" order by ").append(getFingerprintSorts());
+    if(getFetchLimit()!=getFetchLimitDefault()) sb.append(" limit ").append(getFetchLimit());
+    return sb.toString();
+}
+
+/**
+ * Returns a canonical string for query sorts.
+ */
+private String getFingerprintSorts()
+{
+    StringBuilder sb = new StringBuilder();
+    for(Sort sort : getSorts()) sb.append(sort.getKey()).append(' ').append(sort.getOrder()).append(',');
+    return sb.toString();
+}
+
 /**
  * Called when Condition has PropChange to refire from Query.
  */
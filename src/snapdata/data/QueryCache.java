@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+
+/**
+ * This class caches query results for a DataSite. Entries are keyed by Query fingerprint, are invalidated when the
+ * table version changes and are evicted least recently used first when total cached rows exceed the row budget.
+ * Queries with time-relative conditions aren't cached, since their results change as the clock moves.
+ */
+public class QueryCache {
+
+    // The maximum number of rows to cache (across all entries)
+    int                      _maxRows;
+
+    // The number of rows currently cached
+    int                      _rowCount;
+
+    // The entries in access order
+    LinkedHashMap <String,Entry>  _entries = new LinkedHashMap(16, .75f, true);
+
+    // The number of hits and misses
+    long                     _hits, _misses;
+
+/**
+ * Creates a new QueryCache with given row budget.
+ */
+public QueryCache(int aMaxRows)  { _maxRows = aMaxRows; }
+
+/**
+ * Returns the maximum number of rows to cache (across all entries).
+ */
+public synchronized int getMaxRows()  { return _maxRows; }
+
+/**
+ * Sets the maximum number of rows to cache (across all entries).
+ */
+public synchronized void setMaxRows(int aValue)  { _maxRows = aValue; trim(); }
+
+/**
+ * Returns the number of rows currently cached.
+ */
+public synchronized int getRowCount()  { return _rowCount; }
+
+/**
+ * Returns the number of cache hits.
+ */
+public synchronized long getHitCount()  { return _hits; }
+
+/**
+ * Returns the number of cache misses.
+ */
+public synchronized long getMissCount()  { return _misses; }
+
+/**
+ * Returns whether results for given query can be cached (false if condition depends on current time).
+ */
+public boolean isCacheable(Query aQuery)
+{
+    Condition condition = aQuery.getCondition();
+    return condition==null || !condition.isTimeRelative();
+}
+
+/**
+ * Returns the cached rows for given table and query (or null if not cached or table has changed since).
+ */
+public synchronized List <Row> getRows(DataTable aTable, Query aQuery)
+{
+    // Get entry for query (if missing or stale, remove and return null)
+    String key = getKey(aTable, aQuery);
+    Entry entry = _entries.get(key);
+    if(entry==null || entry.table!=aTable || entry.version!=aTable.getVersion()) {
+        if(entry!=null) remove(key);
+        _misses++; return null;
+    }
+
+    // Return copy of rows (callers are free to modify result)
+    _hits++;
+    return new ArrayList(Arrays.asList(entry.rows));
+}
+
+/**
+ * Adds rows for given table, query and table version (the version when query was started).
+ */
+public synchronized void putRows(DataTable aTable, Query aQuery, long aVersion, List <Row> theRows)
+{
+    // If table changed since query started or rows exceed budget, just return
+    if(aVersion!=aTable.getVersion() || theRows.size()>_maxRows) return;
+
+    // Remove old entry, add new entry and trim to budget
+    String key = getKey(aTable, aQuery); remove(key);
+    Entry entry = new Entry(); entry.table = aTable; entry.version = aVersion;
+    entry.rows = theRows.toArray(new Row[0]);
+    _entries.put(key, entry); _rowCount += entry.rows.length;
+    trim();
+}
+
+/**
+ * Removes all entries for given table.
+ */
+public synchronized void clear(DataTable aTable)
+{
+    for(Iterator <Entry> i=_entries.values().iterator(); i.hasNext();) { Entry entry = i.next();
+        if(entry.table==aTable) { i.remove(); _rowCount -= entry.rows.length; } }
+}
+
+/**
+ * Removes all entries.
+ */
+public synchronized void clear()  { _entries.clear(); _rowCount = 0; }
+
+/**
+ * Removes entry for key.
+ */
+private void remove(String aKey)
+{
+    Entry entry = _entries.remove(aKey);
+    if(entry!=null) _rowCount -= entry.rows.length;
+}
+
+/**
+ * Evicts least recently used entries until row count is within budget.
+ */
+private void trim()
+{
+    for(Iterator <Entry> i=_entries.values().iterator(); _rowCount>_maxRows && i.hasNext();) {
+        Entry entry = i.next(); i.remove(); _rowCount -= entry.rows.length; }
+}
+
+/**
+ * Returns the cache key for table and query.
+ */
+private String getKey(DataTable aTable, Query aQuery)  { return aTable.getName() + ':' + aQuery.getFingerprint(); }
+
+/**
+ * A cache entry.
+ */
+private static class Entry {
+    DataTable table; long version; Row rows[];
+}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A plan for a Query executed by a DataSite: a tree of operator nodes (cache lookup, access path, filter, sort) with
+ * estimated rows, actual rows and timings. Plans come from DataSite.explain(), which runs the query to get actuals.
+ */
+public class QueryPlan {
+
+    // The query
+    Query          _query;
+
+    // The root node
+    Node           _root;
+
+    // Default selectivities for condition operators (fraction of rows that pass)
+    static final double EQUALS_SELECTIVITY = .1, RANGE_SELECTIVITY = 1/3d, MATCH_SELECTIVITY = .25;
+    static final double EMPTY_SELECTIVITY = .05;
+
+/**
+ * Creates a new QueryPlan for given table and query.
+ */
+public QueryPlan(DataTable aTable, Query aQuery)
+{
+    _query = aQuery;
+    _root = new Node("GetRows", aTable.getName());
+}
+
+/**
+ * Returns the query.
+ */
+public Query getQuery()  { return _query; }
+
+/**
+ * Returns the root node.
+ */
+public Node getRoot()  { return _root; }
+
+/**
+ * Returns the total actual rows of scan nodes (rows read from storage).
+ */
+public long getRowsScanned()  { return _root.getRowsScanned(); }
+
+/**
+ * Returns the estimated fraction of rows of given entity that pass given condition.
+ */
+public static double getSelectivity(Condition aCondition, Entity anEntity)
+{
+    // Handle ConditionList: And multiplies selectivities, Or adds them (less overlap)
+    if(aCondition instanceof ConditionList) { ConditionList clist = (ConditionList)aCondition;
+        double sel = 1;
+        for(int i=0, iMax=clist.getConditionCount(); i<iMax; i++) {
+            double csel = getSelectivity(clist.getCondition(i), anEntity);
+            if(i==0) sel = csel;
+            else if(clist.getOperators().get(i)==Condition.Operator.Or) sel = sel + csel - sel*csel;
+            else sel *= csel;
+        }
+        return sel;
+    }
+
+    // Handle simple condition
+    double sel;
+    switch(aCondition.getOperator()) {
+        case Equals: Property prop = anEntity.getProperty(aCondition.getPropertyName());
+            sel = prop!=null && prop.isPrimary()? 0 : EQUALS_SELECTIVITY; break;
+        case StartsWith: case EndsWith: case Contains: case Like: sel = MATCH_SELECTIVITY; break;
+        case Empty: sel = EMPTY_SELECTIVITY; break;
+        default: sel = RANGE_SELECTIVITY;
+    }
+    return aCondition.isNegated()? 1 - sel : sel;
+}
+
+/**
+ * Returns the estimated row count for given input row count and selectivity (primary key match returns one row).
+ */
+public static long getEstimatedRows(long aCount, double aSelectivity)
+{
+    if(aCount<0) return -1;
+    return aSelectivity==0? Math.min(aCount, 1) : Math.round(aCount*aSelectivity);
+}
+
+/**
+ * Returns a predicate for given condition that adds a child node to given parent for each condition evaluated (in
+ * evaluation order) and records its input and passed rows.
+ */
+public static Predicate <Object> getPredicate(Condition aCondition, Entity anEntity, Node aParent)
+{
+    // Handle simple condition: add node and return counting predicate
+    if(!(aCondition instanceof ConditionList)) {
+        Node node = aParent.addChild("Condition", aCondition.toString());
+        node.setSelectivity(getSelectivity(aCondition, anEntity));
+        return getCountingPredicate(aCondition, anEntity, node);
+    }
+
+    // Handle ConditionList: add node and get counting predicate for each child condition and combine
+    ConditionList clist = (ConditionList)aCondition;
+    int count = clist.getConditionCount();
+    Predicate <Object> preds[] = new Predicate[count];
+    for(int i=0; i<count; i++) { Condition cond = clist.getCondition(i);
+        String op = i==0? "" : clist.getOperators().get(i) + " ";
+        Node node = aParent.addChild(cond instanceof ConditionList? "Conditions" : "Condition", op + cond);
+        node.setSelectivity(getSelectivity(cond, anEntity));
+        preds[i] = getCountingPredicate(cond, anEntity, node);
+    }
+    return clist.getPredicate(preds);
+}
+
+/**
+ * Returns a predicate for given condition that counts input and passed rows in given node.
+ */
+static Predicate <Object> getCountingPredicate(Condition aCondition, Entity anEntity, Node aNode)
+{
+    Predicate <Object> pred = aCondition instanceof ConditionList? getPredicate(aCondition, anEntity, aNode) :
+        aCondition.getPredicate(anEntity);
+    return obj -> {
+        aNode._inputRows++;
+        boolean result = pred.test(obj); if(result) aNode._rows++;
+        return result;
+    };
+}
+
+/**
+ * Returns a string representation of plan (one line per node, children indented).
+ */
+public String toString()
+{
+    StringBuilder sb = new StringBuilder();
+    _root.append(sb, 0);
+    return sb.toString();
+}
+
+/**
+ * A node in a query plan.
+ */
+public static class Node {
+
+    // The operator name and detail
+    String        _name, _detail;
+
+    // The estimated selectivity (fraction of input rows that pass, or -1 if unknown)
+    double        _selectivity = -1;
+
+    // The estimated rows, input rows and actual rows (-1 if unknown)
+    long          _estRows = -1, _inputRows, _rows;
+
+    // The time spent in node (including children)
+    long          _nanos = -1;
+
+    // The child nodes
+    List <Node>   _children = new ArrayList();
+
+    /** Creates new Node for given operator name and detail. */
+    public Node(String aName, String aDetail)  { _name = aName; _detail = aDetail; }
+
+    /** Returns the operator name (GetRows, QueryCache, FullScan, Filter, Condition, Sort, Fetch). */
+    public String getName()  { return _name; }
+
+    /** Returns the operator detail (table name, condition, sort keys). */
+    public String getDetail()  { return _detail; }
+
+    /** Sets the operator detail. */
+    public void setDetail(String aValue)  { _detail = aValue; }
+
+    /** Returns the estimated selectivity (-1 if unknown). */
+    public double getSelectivity()  { return _selectivity; }
+
+    /** Sets the estimated selectivity. */
+    public void setSelectivity(double aValue)  { _selectivity = aValue; }
+
+    /** Returns the estimated rows (-1 if unknown, or from input rows and selectivity). */
+    public long getEstimatedRows()
+    {
+        if(_estRows>=0 || _selectivity<0 || _inputRows==0) return _estRows;
+        return QueryPlan.getEstimatedRows(_inputRows, _selectivity);
+    }
+
+    /** Sets the estimated rows. */
+    public void setEstimatedRows(long aValue)  { _estRows = aValue; }
+
+    /** Returns the input rows. */
+    public long getInputRows()  { return _inputRows; }
+
+    /** Sets the input rows. */
+    public void setInputRows(long aValue)  { _inputRows = aValue; }
+
+    /** Returns the actual rows. */
+    public long getActualRows()  { return _rows; }
+
+    /** Sets the actual rows. */
+    public void setActualRows(long aValue)  { _rows = aValue; }
+
+    /** Returns the time spent in node in nanos (-1 if not timed). */
+    public long getNanos()  { return _nanos; }
+
+    /** Sets the time spent in node in nanos. */
+    public void setNanos(long aValue)  { _nanos = aValue; }
+
+    /** Returns the child nodes. */
+    public List <Node> getChildren()  { return _children; }
+
+    /** Adds a child node for given operator name and detail. */
+    public Node addChild(String aName, String aDetail)
+    {
+        Node node = new Node(aName, aDetail); _children.add(node); return node;
+    }
+
+    /** Returns the total actual rows of this node and descendants that are scans. */
+    public long getRowsScanned()
+    {
+        long count = _name.endsWith("Scan")? _rows : 0;
+        for(Node child : _children) count += child.getRowsScanned();
+        return count;
+    }
+
+    /** Appends node and children to string builder. */
+    void append(StringBuilder aSB, int anIndent)
+    {
+        for(int i=0; i<anIndent; i++) aSB.append("  ");
+        aSB.append(anIndent>0? "-> " : "").append(_name);
+        if(_detail!=null) aSB.append(' ').append(_detail);
+        aSB.append("  (");
+        long est = getEstimatedRows(); if(est>=0) aSB.append("est=").append(est).append(' ');
+        if(_inputRows>0) aSB.append("in=").append(_inputRows).append(' ');
+        aSB.append("rows=").append(_rows);
+        if(_nanos>=0) aSB.append(String.format(" time=%.3fms", _nanos/1e6));
+        aSB.append(")\n");
+        for(Node child : _children) child.append(aSB, anIndent+1);
+    }
+
+    /** Standard toString implementation. */
+    public String toString()  { return _name + (_detail!=null? " " + _detail : ""); }
+}
+
+}
@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import snap.util.*;
 import snap.util.JSONArchiver.*;
 
@@ -128,18 +129,27 @@ public Object getValue(Property aProp)
  */
 protected Object getRaw(Property aProp)
 {
-    // Get property name and value
-    String pname = aProp.getName();
-    Object value = super.get(pname);
+    // Get stored value
+    Object value = getStoredValue(aProp);
     
     // If null and property is derived relation, create and install row link
     if(value==null && aProp.isRelation() && aProp.isDerived())
-        super.put(pname, value = new RowLink(this, aProp, null));
+        setStoredValue(aProp, value = new RowLink(this, aProp, null));
     
     // Return value
     return value;
 }
 
+/**
+ * Returns the value stored for a property (subclasses can override to use something other than map storage).
+ */
+protected Object getStoredValue(Property aProp)  { return super.get(aProp.getName()); }
+
+/**
+ * Sets the value stored for a property (subclasses can override to use something other than map storage).
+ */
+protected void setStoredValue(Property aProp, Object aValue)  { super.put(aProp.getName(), aValue); }
+
 /**
  * Put value by string.
  */
@@ -160,7 +170,7 @@ public Object put(Property aProp, Object anObj)
     
     // Put value, fire PropertyChange and set Modified
     String pname = aProp.getName();
-    super.put(pname, value);
+    setStoredValue(aProp, value);
     firePropertyChange(pname, old, value, -1);
     if(isSaved()) setModified(true);
     
@@ -178,9 +188,9 @@ public Row getOriginal()  { return _original; }
  */
 protected Row createOriginal()
 {
-    Row orow = new Row(); orow.setTable(getTable());
+    Row orow = getTable().newRow();
     List <Property> properties = getEntity().getProperties();
-    for(Property prop : properties) { if(prop.isDerived()) continue; Object val = get(prop);
+    for(Property prop : properties) { if(prop.isDerived()) continue; Object val = getStoredValue(prop);
         orow.put(prop, val); }
     return orow;
 }
@@ -266,6 +276,7 @@ public boolean isModified()  { return _modified; }
 protected void setModified(boolean aValue)
 {
     if(aValue==isModified()) return;
+    if(!aValue) _original = null;
     firePropertyChange(Modified_Prop, _modified, _modified = aValue, -1);
 }
 
@@ -287,6 +298,16 @@ public void delete()
     catch(Exception e) { throw new RuntimeException(e); }
 }
 
+/**
+ * Returns a future that completes when this row is saved (on site executor).
+ */
+public CompletableFuture <Void> saveAsync()  { return getSite().supplyAsync(() -> { save(); return null; }); }
+
+/**
+ * Returns a future that completes when this row is deleted (on site executor).
+ */
+public CompletableFuture <Void> deleteAsync()  { return getSite().supplyAsync(() -> { delete(); return null; }); }
+
 /** PropChangeListener method to propagate changes from row object to row.  */
 /*void rowDidPropChange(PropChange anEvent) { Property prop = getProperty(anEvent.getPropertyName());
     if(prop!=null && !prop.isPrimary()) put(prop, anEvent.getNewValue()); }*/
@@ -326,12 +347,21 @@ public List<String> getJSONKeys()
 /**
  * JSONArchiver method to get archiver values via getValue() and handle NewValues.
  */
-public Object getJSONValue(String aKey)  { return super.get(aKey); }
+public Object getJSONValue(String aKey)
+{
+    Property prop = getProperty(aKey);
+    return prop!=null? getStoredValue(prop) : super.get(aKey);
+}
 
 /**
  * JSONArchiver method to put archiver values and handle NewValues.
  */
-public void setJSONValue(String aKey, Object aValue)  { super.put(aKey, aValue); }
+public void setJSONValue(String aKey, Object aValue)
+{
+    Property prop = getProperty(aKey);
+    if(prop!=null) setStoredValue(prop, aValue);
+    else super.put(aKey, aValue);
+}
 
 /**
  * Override to just check identity, since rows are unique.
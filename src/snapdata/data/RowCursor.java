@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/**
+ * An iterator over query result rows that fetches rows in batches as they are consumed (so large results don't need
+ * to fit in memory). Cursors must be closed (Stream and Publisher forms close them when done or cancelled).
+ *
+ * Engines that can scan incrementally return cursors from DataSite.getRowCursorImpl(); otherwise the cursor is over
+ * the fetched (and sorted) row list.
+ */
+public abstract class RowCursor implements Iterator <Row>, AutoCloseable {
+
+    // The fetch limit and number of rows returned
+    int                       _limit;
+    int                       _count;
+
+    // The current batch and index
+    List <Row>                _batch = Collections.emptyList();
+    int                       _index;
+
+    // Whether cursor has no more batches, and whether closed
+    boolean                   _done, _closed;
+
+    // The default batch size
+    public static final int BATCH_SIZE = 256;
+
+/**
+ * Creates a new RowCursor for given fetch limit.
+ */
+public RowCursor(int aLimit)  { _limit = aLimit; }
+
+/**
+ * Returns the number of rows returned.
+ */
+public int getCount()  { return _count; }
+
+/**
+ * Returns whether there is another row.
+ */
+public boolean hasNext()
+{
+    // Fetch batches until one has rows (or done)
+    while(!_closed && _index>=_batch.size() && !_done && _count<_limit) {
+        DataSite.checkCancelled();
+        List <Row> batch;
+        try { batch = fetchBatch(); }
+        catch(RuntimeException e) { close(); throw e; }
+        catch(Exception e) { close(); throw new RuntimeException(e); }
+        if(batch==null) { _done = true; batch = Collections.emptyList(); }
+        _batch = batch; _index = 0;
+    }
+    return !_closed && _index<_batch.size() && _count<_limit;
+}
+
+/**
+ * Returns the next row.
+ */
+public Row next()
+{
+    if(!hasNext()) throw new NoSuchElementException();
+    Row row = _batch.get(_index++); _count++;
+    row.setSaved(true);
+    return row;
+}
+
+/**
+ * Returns the next batch of rows (empty if none matched yet, but more remain), or null if there are no more rows.
+ */
+protected abstract List <Row> fetchBatch() throws Exception;
+
+/**
+ * Closes cursor (releasing any storage resources).
+ */
+public void close()
+{
+    if(_closed) return; _closed = true;
+    _batch = Collections.emptyList();
+    try { closeImpl(); }
+    catch(Exception e) { System.err.println("RowCursor.close: " + e); }
+}
+
+/**
+ * Releases storage resources (override).
+ */
+protected void closeImpl() throws Exception  { }
+
+/**
+ * Returns whether cursor is closed.
+ */
+public boolean isClosed()  { return _closed; }
+
+/**
+ * Returns a sequential stream of cursor rows (closing stream closes cursor).
+ */
+public Stream <Row> stream()
+{
+    Spliterator <Row> split = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(split, false).onClose(() -> close());
+}
+
+/**
+ * Returns a cursor over given list of rows.
+ */
+public static RowCursor get(List <Row> theRows)
+{
+    return new RowCursor(Integer.MAX_VALUE) {
+        protected List <Row> fetchBatch()  { _done = true; return theRows; }
+    };
+}
+
+/**
+ * A Flow.Publisher of query rows: each subscriber gets its own cursor and rows are sent on site executor only as
+ * requested (backpressure). Cancelling the subscription closes the cursor.
+ */
+public static class Publisher implements Flow.Publisher <Row> {
+
+    // The site, table and query
+    DataSite                  _site;
+    DataTable                 _table;
+    Query                     _query;
+
+    /** Creates new Publisher. */
+    public Publisher(DataTable aTable, Query aQuery)  { _site = aTable.getSite(); _table = aTable; _query = aQuery; }
+
+    /** Subscribes given subscriber. */
+    public void subscribe(Flow.Subscriber <? super Row> aSubscriber)
+    {
+        Subscription sub = new Subscription(aSubscriber);
+        aSubscriber.onSubscribe(sub);
+    }
+
+    /**
+     * A subscription: tracks demand and sends rows from a cursor on executor (one drain task at a time).
+     */
+    class Subscription implements Flow.Subscription {
+
+        // The subscriber and cursor (opened on first request)
+        Flow.Subscriber <? super Row>  _subscriber;
+        RowCursor                      _cursor;
+
+        // The outstanding demand and count of drain requests (drain runs only while non-zero)
+        AtomicLong                     _demand = new AtomicLong();
+        AtomicInteger                  _wip = new AtomicInteger();
+
+        // Whether cancelled or complete
+        volatile boolean               _cancelled;
+        boolean                        _complete;
+
+        /** Creates new Subscription. */
+        Subscription(Flow.Subscriber <? super Row> aSubscriber)  { _subscriber = aSubscriber; }
+
+        /** Adds demand and schedules drain. */
+        public void request(long aCount)
+        {
+            if(_cancelled) return;
+            if(aCount<=0) { cancel();
+                _subscriber.onError(new IllegalArgumentException("RowCursor.Publisher: Request must be positive"));
+                return; }
+            _demand.accumulateAndGet(aCount, (d,n) -> d + n<0? Long.MAX_VALUE : d + n);
+            if(_wip.getAndIncrement()==0)
+                try { _site.getExecutor().execute(() -> drain()); }
+                catch(RejectedExecutionException e) { cancel(); _subscriber.onError(e); }
+        }
+
+        /** Cancels subscription (cursor is closed by drain). */
+        public void cancel()
+        {
+            _cancelled = true;
+            if(_wip.getAndIncrement()==0) { closeCursor(); _wip.set(0); }
+        }
+
+        /** Sends rows while demand remains, then completes if cursor is done. */
+        void drain()
+        {
+            int missed = 1;
+            while(true) {
+                try {
+                    if(_cursor==null && !_cancelled && !_complete) _cursor = _site.getRowCursor(_table, _query);
+                    while(!_cancelled && !_complete && _demand.get()>0 && _cursor.hasNext()) {
+                        Row row = _cursor.next(); _demand.decrementAndGet();
+                        _subscriber.onNext(row); }
+                    if(!_cancelled && !_complete && _cursor!=null && !_cursor.hasNext()) {
+                        _complete = true; closeCursor(); _subscriber.onComplete(); }
+                }
+                catch(Throwable e) {
+                    if(!_complete && !_cancelled) { _complete = true; closeCursor(); _subscriber.onError(e); } }
+                if(_cancelled) closeCursor();
+                missed = _wip.addAndGet(-missed); if(missed==0) return;
+            }
+        }
+
+        /** Closes cursor (if open). */
+        void closeCursor()  { RowCursor cursor = _cursor; if(cursor!=null) cursor.close(); }
+    }
+}
+
+}
@@ -3,6 +3,7 @@
  */
 package snapdata.data;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import snap.util.SnapUtils;
 
 /**
@@ -122,9 +123,12 @@ public Row getRemoteRow()
     if(_remoteVal==null) return null;
     
     // Get remote entity and table and property name
+    DataEvents.RowLinkFetchEvent event = new DataEvents.RowLinkFetchEvent(); event.begin();
     Entity entity = getRelation().getRelEntity();
     DataTable table = getSite().getTable(entity.getName());
     Row row = table.getRow(_remoteVal);
+    getSite().getMetrics().add(table.getName(), DataMetrics.Counter.RowLinkResolutions, 1);
+    commitEvent(event, table, row!=null? 1 : 0);
     return _remoteRow = row;
 }
 
@@ -137,6 +141,7 @@ public List <Row> getRemoteRows()
     if(_remoteRows!=null) return _remoteRows;
 
     // Get remote entity, table and property name
+    DataEvents.RowLinkFetchEvent event = new DataEvents.RowLinkFetchEvent(); event.begin();
     Entity entity = getRelation().getRelEntity();
     DataTable table = getSite().getTable(entity.getName());
     String remotePropName = getRelation().getJoin().getRemotePropName();
@@ -145,9 +150,30 @@ public List <Row> getRemoteRows()
     // Create query, fetch and return rows
     Query query = new Query(entity); query.addCondition(remotePropName, Condition.Operator.Equals, propVal);
     List <Row> rows = table.getRows(query);
+    getSite().getMetrics().add(table.getName(), DataMetrics.Counter.RowLinkResolutions, 1);
+    commitEvent(event, table, rows.size());
     return _remoteRows = rows;
 }
 
+/**
+ * Returns a future for the remote rows (fetched on site executor, unless already resolved).
+ */
+public CompletableFuture <List<Row>> getRemoteRowsAsync()
+{
+    List <Row> rows = _remoteRows; if(rows!=null) return CompletableFuture.completedFuture(rows);
+    return getSite().supplyAsync(() -> getRemoteRows());
+}
+
+/**
+ * Commits a RowLink fetch flight recorder event (if recording).
+ */
+private void commitEvent(DataEvents.RowLinkFetchEvent anEvent, DataTable aTable, int aCount)
+{
+    anEvent.end(); if(!anEvent.shouldCommit()) return;
+    anEvent.table = aTable.getName(); anEvent.relation = getRelation().getName();
+    anEvent.rowsReturned = aCount; anEvent.commit();
+}
+
 /**
  * Returns the remote row or rows.
  */
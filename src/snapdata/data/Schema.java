@@ -19,6 +19,12 @@ public class Schema extends SnapObject implements JSONArchiver.GetKeys, XMLArchi
     // The list of entities
     List <Entity>    _entities = new ArrayList();
     
+    // Map of lower case entity names to entities (reset when entities are added, removed or renamed)
+    volatile Map <String,Entity>  _entitiesMap;
+    
+    // A listener to catch entity name changes
+    PropChangeListener _entityLsnr = pc -> entityDidPropChange(pc);
+    
 /**
  * Creates a new empty schema.
  */
@@ -94,6 +100,8 @@ public void addEntity(Entity anEntity, int anIndex)
     // Add entity, set Entity.Schema
     getEntities().add(anIndex, anEntity);
     anEntity.setSchema(this);
+    anEntity.addPropChangeListener(_entityLsnr);
+    _entitiesMap = null;
 
     // Fire PropertyChange
     firePropChange("Entity", null, anEntity, anIndex);
@@ -106,6 +114,8 @@ public Entity removeEntity(int anIndex)
 {
     // Remove entity
     Entity entity = getEntities().remove(anIndex);
+    entity.removePropChangeListener(_entityLsnr);
+    _entitiesMap = null;
     
     // Fire PropertyChange and return
     firePropChange("Entity", entity, null, anIndex);
@@ -127,15 +137,38 @@ public int removeEntity(Entity anEntity)
  */
 public Entity getEntity(String aName)
 {
-    // Iterate over entities and return the first that matches given name
-    for(Entity entity : getEntities())
-        if(entity.getName().equalsIgnoreCase(aName))
-            return entity;
+    // Get entity from map of lower case names (if found, return)
+    Entity entity = aName!=null? getEntityMap().get(aName.toLowerCase(Locale.ROOT)) : null;
+    if(entity!=null)
+        return entity;
     
     // Try to load from WebSite or return null
     return getSite()!=null? getSite().getEntity(aName) : null;
 }
 
+/**
+ * Returns the map of lower case entity names to entities (first entity wins for duplicates).
+ */
+protected Map <String,Entity> getEntityMap()
+{
+    // If already set, just return
+    Map <String,Entity> map = _entitiesMap; if(map!=null) return map;
+    
+    // Create, set and return
+    map = new HashMap(getEntityCount()*2);
+    for(Entity entity : getEntities()) { String name = entity.getName();
+        if(name!=null) map.putIfAbsent(name.toLowerCase(Locale.ROOT), entity); }
+    return _entitiesMap = map;
+}
+
+/**
+ * Called when an entity changes (resets entity map on name change).
+ */
+protected void entityDidPropChange(PropChange aPC)
+{
+    if(aPC.getPropertyName()==Entity.Name_Prop) _entitiesMap = null;
+}
+
 /**
  * Standard equals implementation.
  */
@@ -158,7 +191,8 @@ public Schema clone()
 {
     // Do normal version, reset Entities list and clone entities and return
     Schema clone = (Schema)super.clone();
-    clone._entities = new ArrayList();
+    clone._entities = new ArrayList(); clone._entitiesMap = null;
+    clone._entityLsnr = pc -> clone.entityDidPropChange(pc);
     for(Entity entity : getEntities()) clone.addEntity(entity.clone());
     return clone;
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.util.*;
+import snap.web.*;
+
+/**
+ * A catalog of a DataSite's entities in one binary file (site:/Schema.catalog), so opening a site doesn't read and
+ * JSON-parse every .table file. The catalog is read once (on first use) and holds each entity's encoded form with the
+ * mod time and size of its .table file. Entities are decoded only when their table is first loaded.
+ *
+ * The .table files are still the source of truth: when one has changed (or isn't in the catalog yet), just that file
+ * is parsed and its catalog entry replaced, and the catalog is rewritten on next site flush.
+ */
+public class SchemaCatalog {
+
+    // The site
+    DataSite                  _site;
+
+    // The catalog entries (by table name)
+    Map <String,Entry>        _entries = new LinkedHashMap();
+
+    // The catalog version (incremented with each entry change) and whether entries changed since load or save
+    long                      _version;
+    boolean                   _changed;
+
+    // Whether catalog file has been read
+    boolean                   _loaded;
+
+    // The number of entities decoded from catalog and parsed from .table files
+    long                      _hitCount, _parseCount;
+
+    // The catalog file path, file magic number ("SDSC") and format version
+    public static final String CATALOG_FILE_PATH = "/Schema.catalog";
+    static final int MAGIC = 0x53445343, FORMAT_VERSION = 1;
+
+/**
+ * Creates a new SchemaCatalog for given site.
+ */
+public SchemaCatalog(DataSite aSite)  { _site = aSite; }
+
+/**
+ * Returns the site.
+ */
+public DataSite getSite()  { return _site; }
+
+/**
+ * Returns the catalog version (incremented with each entity change).
+ */
+public synchronized long getVersion()  { load(); return _version; }
+
+/**
+ * Returns the names of cataloged entities.
+ */
+public synchronized List <String> getEntityNames()  { load(); return new ArrayList(_entries.keySet()); }
+
+/**
+ * Returns the number of entities decoded from catalog.
+ */
+public synchronized long getHitCount()  { return _hitCount; }
+
+/**
+ * Returns the number of entities parsed from .table files (new or changed).
+ */
+public synchronized long getParseCount()  { return _parseCount; }
+
+/**
+ * Returns whether catalog has changes not yet saved.
+ */
+public synchronized boolean isChanged()  { return _changed; }
+
+/**
+ * Returns a new entity for given name and .table file: decoded from catalog if entry matches file, otherwise parsed
+ * from file (and catalog entry replaced).
+ */
+public synchronized Entity getEntity(String aName, WebFile aFile) throws Exception
+{
+    // If catalog entry matches file mod time and size, decode and return
+    load();
+    Entry entry = _entries.get(aName);
+    if(entry!=null && entry._modTime==aFile.getModTime() && entry._size==aFile.getSize()) {
+        try { Entity entity = decode(entry._bytes); _hitCount++; return entity; }
+        catch(IOException e) { System.err.println("SchemaCatalog: Bad entry for " + aName + ": " + e); }
+    }
+
+    // Parse entity from file, replace catalog entry and return
+    Entity entity = new Entity(aName);
+    entity.fromBytes(aFile.getBytes()); _parseCount++;
+    putEntity(aName, entity, aFile);
+    return entity;
+}
+
+/**
+ * Sets the catalog entry for given entity and its .table file.
+ */
+public synchronized void putEntity(String aName, Entity anEntity, WebFile aFile) throws IOException
+{
+    load();
+    Entry entry = new Entry(aFile.getModTime(), aFile.getSize(), encode(anEntity));
+    _entries.put(aName, entry);
+    _version++; _changed = true;
+}
+
+/**
+ * Removes the catalog entry for given name.
+ */
+public synchronized void removeEntity(String aName)
+{
+    load();
+    if(_entries.remove(aName)==null) return;
+    _version++; _changed = true;
+}
+
+/**
+ * Reads catalog file (once). A missing, damaged or older format file just leaves catalog empty (to be rebuilt).
+ */
+protected synchronized void load()
+{
+    // If already loaded, just return
+    if(_loaded) return; _loaded = true;
+
+    // Get catalog file (if missing, just return)
+    WebSite wsite = _site.getSite(); if(wsite==null) return;
+    WebFile file = wsite.getFile(CATALOG_FILE_PATH); if(file==null) return;
+
+    // Read header and entries
+    try (DataInputStream din = new DataInputStream(new ByteArrayInputStream(file.getBytes()))) {
+        if(din.readInt()!=MAGIC || din.readInt()!=FORMAT_VERSION) return;
+        long version = din.readLong();
+        Map <String,Entry> entries = new LinkedHashMap();
+        for(int i=0, iMax=din.readInt(); i<iMax; i++) {
+            String name = din.readUTF(); long modTime = din.readLong(), size = din.readLong();
+            byte bytes[] = new byte[din.readInt()]; din.readFully(bytes);
+            entries.put(name, new Entry(modTime, size, bytes));
+        }
+        _entries = entries; _version = version;
+    }
+    catch(IOException e) { System.err.println("SchemaCatalog: Ignoring damaged catalog: " + e); }
+}
+
+/**
+ * Saves catalog file (if changed).
+ */
+public void save() throws Exception
+{
+    // Get catalog bytes (if unchanged, just return)
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    synchronized (this) {
+        if(!_changed) return;
+        DataOutputStream dout = new DataOutputStream(bytes);
+        dout.writeInt(MAGIC); dout.writeInt(FORMAT_VERSION); dout.writeLong(_version);
+        dout.writeInt(_entries.size());
+        for(Map.Entry <String,Entry> me : _entries.entrySet()) { Entry entry = me.getValue();
+            dout.writeUTF(me.getKey()); dout.writeLong(entry._modTime); dout.writeLong(entry._size);
+            dout.writeInt(entry._bytes.length); dout.write(entry._bytes); }
+        dout.flush(); _changed = false;
+    }
+
+    // Save catalog file
+    WebSite wsite = _site.getSite(); if(wsite==null) return;
+    WebFile file = wsite.getFile(CATALOG_FILE_PATH);
+    if(file==null) file = wsite.createFile(CATALOG_FILE_PATH, false);
+    file.setBytes(bytes.toByteArray());
+    file.save();
+}
+
+/**
+ * Returns the binary encoding of given entity (name, then properties with the fields JSON archival writes).
+ */
+protected byte[] encode(Entity anEntity) throws IOException
+{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(bytes);
+    writeString(dout, anEntity.getName());
+    dout.writeInt(anEntity.getPropertyCount());
+    for(Property prop : anEntity.getProperties()) {
+
+        // Write Name, Type, flags, StringSize, NumberType, DateType
+        writeString(dout, prop._name);
+        dout.writeByte(prop._type!=null? prop._type.ordinal() : -1);
+        dout.writeByte((prop._primary? 1 : 0) | (prop._private? 2 : 0) | (prop._autoGen? 4 : 0) |
+            (prop._nullable? 8 : 0));
+        dout.writeByte(prop._stringSize!=null? prop._stringSize.ordinal() : -1);
+        dout.writeByte(prop._numberType!=null? prop._numberType.ordinal() : -1);
+        dout.writeByte(prop._dateType!=null? prop._dateType.ordinal() : -1);
+
+        // Write DefaultValue (as string) and EnumStrings
+        Object dval = prop._defaultValue;
+        writeString(dout, dval!=null? (String)DataUtils.convertValue(dval, Property.Type.String) : null);
+        writeString(dout, prop.getEnumsString());
+
+        // Write Join
+        Join join = prop._join; dout.writeBoolean(join!=null);
+        if(join!=null) {
+            writeString(dout, join._entityName); writeString(dout, join._localPropName);
+            writeString(dout, join._remotePropName); dout.writeBoolean(join._toMany); }
+    }
+    dout.flush();
+    return bytes.toByteArray();
+}
+
+/**
+ * Returns a new entity decoded from given bytes.
+ */
+protected Entity decode(byte theBytes[]) throws IOException
+{
+    DataInputStream din = new DataInputStream(new ByteArrayInputStream(theBytes));
+    Entity entity = new Entity(readString(din));
+    for(int i=0, iMax=din.readInt(); i<iMax; i++) { Property prop = new Property();
+
+        // Read Name, Type, flags, StringSize, NumberType, DateType (set directly, as setters adjust type)
+        prop._name = readString(din);
+        int type = din.readByte(); prop._type = type>=0? Property.Type.values()[type] : null;
+        int flags = din.readByte();
+        prop._primary = (flags&1)!=0; prop._private = (flags&2)!=0; prop._autoGen = (flags&4)!=0;
+        prop._nullable = (flags&8)!=0;
+        int ssize = din.readByte(); prop._stringSize = ssize>=0? Property.StringSize.values()[ssize] : null;
+        int ntype = din.readByte(); prop._numberType = ntype>=0? Property.NumberType.values()[ntype] : null;
+        int dtype = din.readByte(); prop._dateType = dtype>=0? Property.DateType.values()[dtype] : null;
+
+        // Read DefaultValue (converted to property type) and EnumStrings
+        String dval = readString(din); if(dval!=null) prop.setDefaultValue(dval);
+        String enums = readString(din); if(enums!=null) prop.setEnumsString(enums);
+
+        // Read Join
+        if(din.readBoolean()) { Join join = new Join();
+            join._entityName = readString(din); join._localPropName = readString(din);
+            join._remotePropName = readString(din); join._toMany = din.readBoolean();
+            prop.setJoin(join); }
+
+        // Add property
+        entity.addProperty(prop);
+    }
+    return entity;
+}
+
+/**
+ * Writes given string (or null).
+ */
+static void writeString(DataOutputStream aDout, String aStr) throws IOException
+{
+    aDout.writeBoolean(aStr!=null); if(aStr!=null) aDout.writeUTF(aStr);
+}
+
+/**
+ * Reads a string (or null).
+ */
+static String readString(DataInputStream aDin) throws IOException  { return aDin.readBoolean()? aDin.readUTF() : null; }
+
+/**
+ * A catalog entry: the .table file mod time and size and the encoded entity.
+ */
+static class Entry {
+
+    // The .table file mod time and size
+    long                      _modTime, _size;
+
+    // The encoded entity
+    byte                      _bytes[];
+
+    /** Creates new Entry. */
+    Entry(long aModTime, long aSize, byte theBytes[])  { _modTime = aModTime; _size = aSize; _bytes = theBytes; }
+}
+
+}
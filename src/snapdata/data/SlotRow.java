@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A Row subclass that stores property values in an array indexed by property ordinal, instead of hashing
+ * property names into map entries. Keys that aren't entity properties still go in the map.
+ */
+public class SlotRow extends Row {
+
+    // The entity property array that slots were laid out for (set after slots, so a reader that sees it sees its slots)
+    volatile Property _slotProps[];
+
+    // The property values by ordinal
+    Object            _slots[];
+
+/**
+ * Returns the slots, laying them out again if entity properties have changed.
+ */
+protected Object[] getSlots()
+{
+    // If entity properties haven't changed, just return slots
+    Property props[] = getEntity().getPropertyArray();
+    if(props==_slotProps) return _slots;
+    return layoutSlots(props);
+}
+
+/**
+ * Lays out slots for given entity property array, moving values of properties still in entity to their new ordinals
+ * (synchronized, so concurrent readers don't each lay out or see a half-updated layout).
+ */
+protected synchronized Object[] layoutSlots(Property props[])
+{
+    // If already laid out (by another thread), just return slots
+    Property oprops[] = _slotProps; Object oslots[] = _slots;
+    if(props==oprops) return oslots;
+
+    // Create new slots and move values of properties still in entity to their new ordinals
+    Object slots[] = new Object[props.length];
+    for(int i=0, iMax=oslots!=null? oslots.length : 0; i<iMax; i++) { Property prop = oprops[i];
+        int ord = prop.getOrdinal();
+        if(ord>=0 && ord<props.length && props[ord]==prop) slots[ord] = oslots[i]; }
+
+    // Set slots, then props, and return
+    _slots = slots; _slotProps = props;
+    return slots;
+}
+
+/**
+ * Returns the slot index for property (or -1 if property isn't in entity).
+ */
+protected int getSlotIndex(Property aProp)
+{
+    Object slots[] = getSlots(); int ord = aProp.getOrdinal();
+    return ord>=0 && ord<slots.length && _slotProps[ord]==aProp? ord : -1;
+}
+
+/**
+ * Override to get value from slot.
+ */
+protected Object getStoredValue(Property aProp)
+{
+    int ind = getSlotIndex(aProp);
+    return ind>=0? _slots[ind] : super.getStoredValue(aProp);
+}
+
+/**
+ * Override to set value in slot.
+ */
+protected void setStoredValue(Property aProp, Object aValue)
+{
+    int ind = getSlotIndex(aProp);
+    if(ind>=0) _slots[ind] = aValue;
+    else super.setStoredValue(aProp, aValue);
+}
+
+/**
+ * Returns a map of stored keys and values (slots and map entries).
+ */
+protected Map <String,Object> getStoredMap()
+{
+    Map <String,Object> map = new HashMap(this.size());
+    for(Map.Entry <String,Object> entry : super.entrySet()) map.put(entry.getKey(), entry.getValue());
+    Object slots[] = getSlots();
+    for(int i=0; i<slots.length; i++) if(slots[i]!=null) map.put(_slotProps[i].getName(), slots[i]);
+    return map;
+}
+
+/**
+ * Override to include slots.
+ */
+public boolean containsKey(Object aKey)
+{
+    Property prop = aKey instanceof String? getProperty((String)aKey) : null;
+    int ind = prop!=null? getSlotIndex(prop) : -1;
+    return ind>=0? _slots[ind]!=null : super.containsKey(aKey);
+}
+
+/**
+ * Override to include slots.
+ */
+public boolean containsValue(Object aValue)
+{
+    for(Object val : getSlots()) if(val!=null && val.equals(aValue)) return true;
+    return super.containsValue(aValue);
+}
+
+/**
+ * Override to get stored value from slot.
+ */
+public Object getOrDefault(Object aKey, Object aDefault)
+{
+    Property prop = aKey instanceof String? getProperty((String)aKey) : null;
+    int ind = prop!=null? getSlotIndex(prop) : -1;
+    if(ind<0) return super.getOrDefault(aKey, aDefault);
+    Object val = _slots[ind]; return val!=null? val : aDefault;
+}
+
+/**
+ * Override to remove stored value from slot.
+ */
+public Object remove(Object aKey)
+{
+    Property prop = aKey instanceof String? getProperty((String)aKey) : null;
+    int ind = prop!=null? getSlotIndex(prop) : -1;
+    if(ind<0) return super.remove(aKey);
+    Object val = _slots[ind]; _slots[ind] = null; return val;
+}
+
+/**
+ * Override to store values of entity properties in slots (as raw stored values, like HashMap.putAll).
+ */
+public void putAll(Map <? extends String,?> aMap)
+{
+    for(Map.Entry <? extends String,?> entry : aMap.entrySet())
+        setJSONValue(entry.getKey(), entry.getValue());
+}
+
+/**
+ * Override to clear slots.
+ */
+public void clear()
+{
+    super.clear();
+    Object slots[] = _slots; if(slots!=null) Arrays.fill(slots, null);
+}
+
+/**
+ * Override to include slots.
+ */
+public void forEach(BiConsumer <? super String,? super Object> anAction)  { getStoredMap().forEach(anAction); }
+
+/**
+ * Override to give clone its own slots.
+ */
+public Object clone()
+{
+    SlotRow clone = (SlotRow)super.clone();
+    if(_slots!=null) clone._slots = _slots.clone();
+    return clone;
+}
+
+/**
+ * Override to include slots.
+ */
+public int size()
+{
+    int size = super.size();
+    for(Object val : getSlots()) if(val!=null) size++;
+    return size;
+}
+
+/**
+ * Override to include slots.
+ */
+public boolean isEmpty()  { return size()==0; }
+
+/**
+ * Override to include slots (returns a snapshot).
+ */
+public Set <String> keySet()  { return Collections.unmodifiableSet(getStoredMap().keySet()); }
+
+/**
+ * Override to include slots (returns a snapshot).
+ */
+public Collection <Object> values()  { return Collections.unmodifiableCollection(getStoredMap().values()); }
+
+/**
+ * Override to include slots (returns a snapshot).
+ */
+public Set <Map.Entry<String,Object>> entrySet()  { return Collections.unmodifiableMap(getStoredMap()).entrySet(); }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import snap.util.*;
+
+/**
+ * A log of DataSite queries, saves and flushes that take longer than a threshold (plus a sample of faster ones).
+ * Records are handed to a daemon writer thread through a lock-free ring buffer (so the calling thread never blocks
+ * on I/O) and written as one JSON line each to a rolling log file (file.log, file.log.1, ... file.log.N).
+ * If the ring buffer is full, records are dropped and counted.
+ *
+ * Query plans (which count rows at each step) are only built for queries that have been slow before: the first slow
+ * run of a query is logged without plan and later runs of the same query (by fingerprint) include it.
+ */
+public class SlowQueryLog implements AutoCloseable {
+
+    // The log file
+    File                   _file;
+
+    // The threshold in nanos
+    volatile long          _thresholdNanos = 100*1000000L;
+
+    // The sample rate for fast operations (log 1 in N, 0 for none)
+    volatile int           _sampleRate;
+
+    // The max log file size and the number of rolled files to keep
+    long                   _maxFileSize = 10*1024*1024;
+    int                    _maxFiles = 5;
+
+    // The ring buffer slots and the write and read sequences
+    AtomicReferenceArray <Record>  _slots;
+    AtomicLong             _writeSeq = new AtomicLong(), _readSeq = new AtomicLong();
+
+    // The count of dropped and written records
+    AtomicLong             _dropped = new AtomicLong(), _written = new AtomicLong();
+
+    // The fingerprints of queries that have been slow (so later runs are planned)
+    Set <String>           _slowQueries = ConcurrentHashMap.newKeySet();
+
+    // The writer thread and whether log is closed
+    Thread                 _writer;
+    volatile boolean       _closed;
+
+    // Writer poll interval in nanos when ring buffer is empty
+    static final long POLL_NANOS = 10*1000000L;
+
+    // The max number of slow query fingerprints remembered (set is cleared when full)
+    static final int MAX_SLOW_QUERIES = 1024;
+
+/**
+ * Creates a new SlowQueryLog for given file with default ring buffer capacity (4096 records).
+ */
+public SlowQueryLog(File aFile)  { this(aFile, 4096); }
+
+/**
+ * Creates a new SlowQueryLog for given file and ring buffer capacity.
+ */
+public SlowQueryLog(File aFile, int aCapacity)
+{
+    _file = aFile;
+    _slots = new AtomicReferenceArray(aCapacity);
+    _writer = new Thread(() -> writeLoop(), "SlowQueryLog " + aFile.getName());
+    _writer.setDaemon(true);
+    _writer.start();
+}
+
+/**
+ * Returns the log file.
+ */
+public File getFile()  { return _file; }
+
+/**
+ * Returns the threshold in millis.
+ */
+public long getThresholdMillis()  { return _thresholdNanos/1000000; }
+
+/**
+ * Sets the threshold in millis.
+ */
+public void setThresholdMillis(long aValue)  { _thresholdNanos = aValue*1000000; }
+
+/**
+ * Returns the sample rate for operations under threshold (log 1 in N, 0 for none).
+ */
+public int getSampleRate()  { return _sampleRate; }
+
+/**
+ * Sets the sample rate for operations under threshold (log 1 in N, 0 for none).
+ */
+public void setSampleRate(int aValue)  { _sampleRate = aValue; }
+
+/**
+ * Returns the max log file size before roll over.
+ */
+public long getMaxFileSize()  { return _maxFileSize; }
+
+/**
+ * Sets the max log file size before roll over.
+ */
+public void setMaxFileSize(long aValue)  { _maxFileSize = aValue; }
+
+/**
+ * Returns the number of rolled log files to keep.
+ */
+public int getMaxFiles()  { return _maxFiles; }
+
+/**
+ * Sets the number of rolled log files to keep.
+ */
+public void setMaxFiles(int aValue)  { _maxFiles = aValue; }
+
+/**
+ * Returns the number of records dropped because ring buffer was full.
+ */
+public long getDroppedCount()  { return _dropped.get(); }
+
+/**
+ * Returns the number of records written.
+ */
+public long getWrittenCount()  { return _written.get(); }
+
+/**
+ * Returns whether an operation of given duration should be logged (over threshold or sampled).
+ */
+public boolean isLoggable(long theNanos)
+{
+    if(theNanos>=_thresholdNanos) return true;
+    int rate = _sampleRate;
+    return rate>0 && ThreadLocalRandom.current().nextInt(rate)==0;
+}
+
+/**
+ * Returns whether given query should be run with a plan: if it has been slow before.
+ */
+public boolean isPlanned(Query aQuery)
+{
+    return !_slowQueries.isEmpty() && _slowQueries.contains(aQuery.getFingerprint());
+}
+
+/**
+ * Logs an operation (if over threshold or sampled). Query and plan can be null.
+ */
+public void log(String anOp, String aTable, long theNanos, Query aQuery, QueryPlan aPlan, int aRowCount)
+{
+    // If closed or not loggable, just return
+    if(_closed || !isLoggable(theNanos)) return;
+
+    // If slow query without plan, remember it so later runs are planned
+    if(aQuery!=null && aPlan==null && theNanos>=_thresholdNanos) {
+        if(_slowQueries.size()>=MAX_SLOW_QUERIES) _slowQueries.clear();
+        _slowQueries.add(aQuery.getFingerprint());
+    }
+
+    // Create record and add to ring buffer
+    Record rec = new Record();
+    rec._time = System.currentTimeMillis(); rec._op = anOp; rec._table = aTable; rec._nanos = theNanos;
+    rec._query = aQuery!=null? aQuery.clone() : null; rec._plan = aPlan; rec._rows = aRowCount;
+    rec._thread = Thread.currentThread().getName(); rec._slow = theNanos>=_thresholdNanos;
+    if(!offer(rec))
+        _dropped.incrementAndGet();
+}
+
+/**
+ * Adds a record to ring buffer (returns false if full). Producers claim a sequence with CAS, then publish to slot.
+ */
+protected boolean offer(Record aRec)
+{
+    int cap = _slots.length();
+    while(true) {
+        long seq = _writeSeq.get();
+        if(seq - _readSeq.get()>=cap) return false;
+        if(_writeSeq.compareAndSet(seq, seq+1)) {
+            _slots.set((int)(seq%cap), aRec);
+            if(seq - _readSeq.get()==cap/2) LockSupport.unpark(_writer); // Wake writer early if half full
+            return true; }
+    }
+}
+
+/**
+ * Removes and returns next record from ring buffer (null if empty). Only called by writer thread.
+ */
+protected Record poll()
+{
+    // If no claimed sequence, return null
+    long seq = _readSeq.get();
+    if(seq>=_writeSeq.get()) return null;
+
+    // Get slot record (null if producer claimed but hasn't published yet), clear slot, advance and return
+    int ind = (int)(seq%_slots.length());
+    Record rec = _slots.get(ind); if(rec==null) return null;
+    _slots.set(ind, null);
+    _readSeq.set(seq+1);
+    return rec;
+}
+
+/**
+ * Writer thread loop: drains ring buffer to log file, rolling file when over max size.
+ */
+protected void writeLoop()
+{
+    Writer writer = null; long size = 0;
+    while(true) {
+
+        // Get next record (if none, flush writer, exit if closed and all claimed records are written, otherwise wait)
+        Record rec = poll();
+        if(rec==null) {
+            try { if(writer!=null) writer.flush(); }
+            catch(IOException e) { System.err.println("SlowQueryLog: " + e); }
+            if(_closed && _readSeq.get()>=_writeSeq.get()) break;
+            if(_closed) Thread.onSpinWait();  // Producer claimed slot but hasn't published yet
+            else LockSupport.parkNanos(POLL_NANOS);
+            continue;
+        }
+
+        // Write record (rolling file if needed)
+        try {
+            if(writer==null || size>=_maxFileSize) {
+                if(writer!=null) { writer.close(); roll(); }
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file, true), "UTF-8"));
+                size = _file.length();
+            }
+            String line = rec.toJSON();
+            writer.write(line); writer.write('\n'); size += line.length() + 1;
+            _written.incrementAndGet();
+        }
+        catch(IOException e) { System.err.println("SlowQueryLog: " + e); _dropped.incrementAndGet(); }
+    }
+
+    // Close writer
+    try { if(writer!=null) writer.close(); }
+    catch(IOException e) { System.err.println("SlowQueryLog: " + e); }
+}
+
+/**
+ * Rolls log files: file.log.N-1 to file.log.N, ... file.log to file.log.1 (oldest is deleted).
+ */
+protected void roll()
+{
+    String path = _file.getPath();
+    new File(path + '.' + _maxFiles).delete();
+    for(int i=_maxFiles-1; i>0; i--)
+        new File(path + '.' + i).renameTo(new File(path + '.' + (i+1)));
+    if(_maxFiles>0) _file.renameTo(new File(path + ".1"));
+    else _file.delete();
+}
+
+/**
+ * Closes log: writes pending records and stops writer thread.
+ */
+public void close() throws InterruptedException
+{
+    _closed = true;
+    LockSupport.unpark(_writer);
+    _writer.join();
+}
+
+/**
+ * A log record.
+ */
+protected static class Record {
+
+    // The time, operation, table, duration, query, plan, row count, thread and whether over threshold
+    long       _time, _nanos;
+    String     _op, _table, _thread;
+    Query      _query;
+    QueryPlan  _plan;
+    int        _rows;
+    boolean    _slow;
+
+    /** Returns record as single line JSON string (formatted by writer thread). */
+    String toJSON()
+    {
+        StringBuilder sb = new StringBuilder("{ ");
+        String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(_time));
+        sb.append("\"Time\":").append(quote(time));
+        sb.append(", \"Op\":").append(quote(_op));
+        sb.append(", \"Table\":").append(quote(_table));
+        sb.append(", \"Millis\":").append(String.format("%.3f", _nanos/1e6));
+        sb.append(", \"Sampled\":").append(!_slow);
+        sb.append(", \"Thread\":").append(quote(_thread));
+        sb.append(", \"Rows\":").append(_rows);
+        if(_plan!=null) sb.append(", \"RowsScanned\":").append(_plan.getRowsScanned());
+        if(_query!=null) { String json = new JSONArchiver().writeObject(_query).toString();
+            sb.append(", \"Query\":").append(json.replaceAll("\\s*\n\\s*", " ")); }
+        if(_plan!=null) sb.append(", \"Plan\":").append(quote(_plan.toString().trim()));
+        return sb.append(" }").toString();
+    }
+
+    /** Returns string as quoted JSON string. */
+    static String quote(String aStr)
+    {
+        if(aStr==null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for(int i=0, iMax=aStr.length(); i<iMax; i++) { char c = aStr.charAt(i);
+            if(c=='"' || c=='\\') sb.append('\\').append(c);
+            else if(c=='\n') sb.append("\\n");
+            else if(c<' ') sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
+
+}
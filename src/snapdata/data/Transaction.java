@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+
+/**
+ * A unit of work for a DataSite: stages saves and deletes of many rows, then commits them all together (validated
+ * first, applied in one pass under the site lock, then just the changed tables are flushed, each written once)
+ * or none of them. If applying or writing fails, changes already applied are undone and rows get their recorded
+ * original values back. Calling rollback() before commit also restores rows to their original values.
+ *
+ * The all-or-none guarantee holds within the process only: each table is written (and made durable) on its own, so a
+ * crash or power loss partway through the flush can leave some tables with the transaction's changes and others
+ * without. There is no commit record to recover from.
+ *
+ * Transactions come from DataSite.beginTransaction(). A row can be staged once: a later save or delete of the same
+ * row replaces the earlier one.
+ */
+public class Transaction {
+
+    // The site
+    DataSite                  _site;
+
+    // The staged changes (in order) and changes by row (rows hash by content, so identity map)
+    List <Change>             _changes = new ArrayList();
+    Map <Row,Change>          _changeMap = new IdentityHashMap();
+
+    // The state
+    State                     _state = State.Active;
+
+    // Transaction states
+    public enum State { Active, Committed, RolledBack }
+
+    // Change types
+    public enum Type { Save, Delete }
+
+/**
+ * Creates a new Transaction for given site.
+ */
+protected Transaction(DataSite aSite)  { _site = aSite; }
+
+/**
+ * Returns the site.
+ */
+public DataSite getSite()  { return _site; }
+
+/**
+ * Returns the state.
+ */
+public State getState()  { return _state; }
+
+/**
+ * Returns whether transaction is active (not committed or rolled back).
+ */
+public boolean isActive()  { return _state==State.Active; }
+
+/**
+ * Returns the number of staged changes.
+ */
+public int getChangeCount()  { return _changes.size(); }
+
+/**
+ * Returns the staged changes.
+ */
+public List <Change> getChanges()  { return Collections.unmodifiableList(_changes); }
+
+/**
+ * Stages a save of given row.
+ */
+public void save(Row aRow)  { addChange(aRow, Type.Save); }
+
+/**
+ * Stages a delete of given row (if row isn't saved, just removes any staged save).
+ */
+public void delete(Row aRow)
+{
+    if(!aRow.isSaved()) { Change change = _changeMap.remove(aRow); if(change!=null) _changes.remove(change); return; }
+    addChange(aRow, Type.Delete);
+}
+
+/**
+ * Adds a change for row (replacing any staged change for row, but keeping its original values).
+ */
+protected void addChange(Row aRow, Type aType)
+{
+    checkActive();
+    Change change = _changeMap.get(aRow);
+    if(change!=null) { change._type = aType; return; }
+    change = new Change(aRow, aType);
+    _changes.add(change); _changeMap.put(aRow, change);
+}
+
+/**
+ * Stages saves of unsaved rows that staged saves relate to (as Row.save() does).
+ */
+protected void addRelatedRows()
+{
+    for(int i=0; i<_changes.size(); i++) { Change change = _changes.get(i); if(change._type!=Type.Save) continue;
+        Row urows[] = change._row.getUnresolvedRelationRows();
+        if(urows!=null) for(Row urow : urows) if(!_changeMap.containsKey(urow)) addChange(urow, Type.Save); }
+}
+
+/**
+ * Returns validation problems with staged changes (empty if valid): rows from other sites, deletes of rows that
+ * aren't saved and saves with null values for non-nullable properties.
+ */
+public List <String> validate()
+{
+    List <String> problems = new ArrayList();
+    for(Change change : _changes) { Row row = change._row;
+        String name = row.getTable()!=null? row.getTable().getName() : "?";
+        if(row.getSite()!=_site) problems.add(name + ": Row from another site");
+        else if(change._type==Type.Delete && !row.isSaved()) problems.add(name + ": Delete of unsaved row");
+        else if(change._type==Type.Save) {
+            for(Property prop : row.getEntity().getProperties()) {
+                if(prop.isNullable() || prop.isPrimary() || prop.isDerived() || prop.isToMany()) continue;
+                if(row.getStoredValue(prop)==null)
+                    problems.add(name + '.' + prop.getName() + ": Null value for non-nullable property");
+            }
+        }
+    }
+    return problems;
+}
+
+/**
+ * Commits staged changes (all or none, within this process). Throws IllegalStateException if validation fails.
+ */
+public void commit() throws Exception
+{
+    checkActive();
+    addRelatedRows();
+    List <String> problems = validate();
+    if(problems.size()>0)
+        throw new IllegalStateException("Transaction.commit: Validation failed: " + String.join(", ", problems));
+    try { _site.commit(this); _state = State.Committed; }
+    catch(Exception e) { _state = State.RolledBack; throw e; }
+}
+
+/**
+ * Discards staged changes and restores rows to their original values.
+ */
+public void rollback()
+{
+    checkActive();
+    for(int i=_changes.size()-1; i>=0; i--) _changes.get(i).restore();
+    _state = State.RolledBack;
+}
+
+/**
+ * Throws IllegalStateException if transaction isn't active.
+ */
+protected void checkActive()
+{
+    if(_state!=State.Active) throw new IllegalStateException("Transaction: Not active: " + _state);
+}
+
+/**
+ * Standard toString implementation.
+ */
+public String toString()  { return "Transaction { State:" + _state + " Changes:" + _changes.size() + " }"; }
+
+/**
+ * A staged change: a row, change type and the row's original (saved) state.
+ */
+public static class Change {
+
+    // The row and change type
+    Row                       _row;
+    Type                      _type;
+
+    // The original stored values (values before unsaved edits, for saved rows) and saved state
+    Map <Property,Object>     _values = new HashMap();
+    boolean                   _saved;
+
+    // Whether change was applied to site
+    boolean                   _applied;
+
+    /** Creates new Change, recording original values. */
+    Change(Row aRow, Type aType)
+    {
+        _row = aRow; _type = aType; _saved = aRow.isSaved();
+        Row orow = _saved && aRow.getOriginal()!=null? aRow.getOriginal() : aRow;
+        for(Property prop : aRow.getEntity().getProperties())
+            if(!prop.isDerived())
+                _values.put(prop, orow.getStoredValue(prop));
+    }
+
+    /** Returns the row. */
+    public Row getRow()  { return _row; }
+
+    /** Returns the change type. */
+    public Type getType()  { return _type; }
+
+    /** Returns the original value for given property. */
+    public Object getOriginalValue(Property aProp)  { return _values.get(aProp); }
+
+    /** Restores row to original values and saved state. */
+    void restore()
+    {
+        for(Map.Entry <Property,Object> entry : _values.entrySet()) { Property prop = entry.getKey();
+            if(prop.isPrimary() && _saved) continue;
+            if(!Objects.equals(_row.getStoredValue(prop), entry.getValue())) _row.put(prop, entry.getValue()); }
+        _row.setSaved(_saved); _row.setModified(false);
+    }
+}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+
+/**
+ * Tests ChangeFeed: events are delivered in order (in batches), subscriptions resume from saved offsets, a failed
+ * batch is redelivered on resubscribe, and sequences keep increasing after a restart (clean or crash).
+ */
+public class ChangeFeedTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testOrdering();
+    testListenerError();
+    testResume();
+}
+
+/**
+ * Tests that inserts, updates and deletes are delivered in sequence order, in batches of batch size.
+ */
+void testOrdering() throws Exception
+{
+    // Create site and feed (delivering on calling thread) and subscribe
+    FileDataSite site = createSite();
+    ChangeFeed feed = new ChangeFeed(site, 100); site.setChangeFeed(feed); feed.setBatchSize(2);
+    Recorder rec = new Recorder(); feed.subscribe("A", rec);
+
+    // Insert 3 rows, update first, delete second
+    DataTable table = site.getTable("Item");
+    List <Row> rows = new ArrayList(); for(int i=1; i<=3; i++) rows.add(saveRow(table, i, "Name" + i, i));
+    rows.get(0).put("Name", "Changed"); rows.get(0).save();
+    rows.get(1).delete();
+
+    // Check events
+    checkEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), rec.getSequences(), "Event sequences");
+    checkEquals(Arrays.asList(ChangeFeed.Type.Insert, ChangeFeed.Type.Insert, ChangeFeed.Type.Insert,
+        ChangeFeed.Type.Update, ChangeFeed.Type.Delete), rec.getTypes(), "Event types");
+    checkEquals("Changed", rec._events.get(3).getValues().get("Name"), "Update event values");
+    checkEquals(2, ((Number)rec._events.get(4).getPrimaryValue()).intValue(), "Delete event primary value");
+    checkEquals(5L, feed.getSequence(), "Feed sequence");
+
+    // Check subscriber from start gets events in batches of batch size
+    Recorder rec2 = new Recorder(); feed.subscribe("B", 1, rec2);
+    checkEquals(Arrays.asList(2, 2, 1), rec2._batchSizes, "Batch sizes");
+    checkEquals(rec.getSequences(), rec2.getSequences(), "Subscriber from start gets same events");
+    feed.close();
+}
+
+/**
+ * Tests that a listener error stops subscription at failed batch, and resubscribing redelivers it.
+ */
+void testListenerError() throws Exception
+{
+    // Create site and feed and subscribe listener that fails once
+    FileDataSite site = createSite();
+    ChangeFeed feed = new ChangeFeed(site, 100); site.setChangeFeed(feed);
+    Recorder rec = new Recorder(); rec._failures = 1;
+    ChangeFeed.Subscription sub = feed.subscribe("A", rec);
+
+    // Save row and check subscription stopped with offset at failed event
+    saveRow(site.getTable("Item"), 1, "Name1", 1);
+    check(sub.isCancelled() && sub.getError()!=null, "Listener error stops subscription");
+    checkEquals(1L, feed.getOffset("A"), "Offset kept at failed event");
+
+    // Resubscribe and check failed event is redelivered
+    Recorder rec2 = new Recorder(); feed.subscribe("A", rec2);
+    checkEquals(Arrays.asList(1L), rec2.getSequences(), "Failed event redelivered");
+    checkEquals(2L, feed.getOffset("A"), "Offset advanced after delivery");
+    feed.close();
+}
+
+/**
+ * Tests that subscriptions resume from saved offsets after restart, and that sequences keep increasing after a crash
+ * (events lost with the crash are reported as skipped).
+ */
+void testResume() throws Exception
+{
+    // Create site and feed, subscribe and save rows
+    FileDataSite site = createSite();
+    ChangeFeed feed = new ChangeFeed(site, 100); site.setChangeFeed(feed);
+    feed.subscribe("A", new Recorder());
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=5; i++) saveRow(table, i, "Name" + i, i);
+
+    // Simulate crash (flush, but no close) and check new feed sequences start after reserved block
+    site.flush();
+    ChangeFeed feed2 = new ChangeFeed(site, 100);
+    check(feed2.getSequence()>=5, "Sequences increase after crash: " + feed2.getSequence());
+    checkEquals(6L, feed2.getOffset("A"), "Offset saved on flush");
+    Recorder rec2 = new Recorder(); feed2.subscribe("A", rec2);
+    checkEquals(Arrays.asList(6L, feed2.getSequence() + 1), rec2._skipped, "Events lost in crash reported skipped");
+    feed2.close();
+
+    // Close cleanly and check new feed resumes with next sequence and no skip
+    ChangeFeed feed3 = new ChangeFeed(site, 100); site.setChangeFeed(feed3);
+    long next = feed3.getSequence() + 1;
+    Recorder rec3 = new Recorder(); feed3.subscribe("A", rec3);
+    saveRow(table, 6, "Name6", 6);
+    feed3.close();
+    ChangeFeed feed4 = new ChangeFeed(site, 100); site.setChangeFeed(feed4);
+    checkEquals(next, feed4.getSequence(), "Sequence after clean close");
+    Recorder rec4 = new Recorder(); feed4.subscribe("A", rec4);
+    saveRow(table, 7, "Name7", 7);
+    check(rec4._skipped.isEmpty(), "No skip after clean close");
+    checkEquals(Arrays.asList(next + 1), rec4.getSequences(), "Resumed subscriber gets next event");
+    feed4.close();
+}
+
+/**
+ * Returns a new FileDataSite with Item table that runs async tasks (feed delivery) on calling thread.
+ */
+FileDataSite createSite() throws Exception
+{
+    FileDataSite site = createFileSite(createTempDir()); site.setExecutor(Runnable::run);
+    site.createTable(createEntity("Item"), null);
+    return site;
+}
+
+/**
+ * A listener that records events, batch sizes and skipped sequences (and fails given number of batches).
+ */
+static class Recorder implements ChangeFeed.ChangeListener {
+
+    // The events, batch sizes, skipped start and end sequences and number of batches to fail
+    List <ChangeFeed.Event>   _events = new ArrayList();
+    List <Integer>            _batchSizes = new ArrayList();
+    List <Long>               _skipped = new ArrayList();
+    int                       _failures;
+
+    /** ChangeListener method. */
+    public void changesDidOccur(List <ChangeFeed.Event> theEvents)
+    {
+        if(_failures>0) { _failures--; throw new RuntimeException("Listener failed"); }
+        _events.addAll(theEvents); _batchSizes.add(theEvents.size());
+    }
+
+    /** ChangeListener method. */
+    public void changesDidSkip(long aStart, long anEnd)  { _skipped.add(aStart); _skipped.add(anEnd); }
+
+    /** Returns event sequences. */
+    List <Long> getSequences()
+    {
+        List <Long> seqs = new ArrayList(); for(ChangeFeed.Event event : _events) seqs.add(event.getSequence());
+        return seqs;
+    }
+
+    /** Returns event types. */
+    List <ChangeFeed.Type> getTypes()
+    {
+        List <ChangeFeed.Type> types = new ArrayList();
+        for(ChangeFeed.Event event : _events) types.add(event.getType());
+        return types;
+    }
+}
+
+}
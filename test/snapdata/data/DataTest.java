@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import snap.util.SnapUtils;
+import snap.web.*;
+
+/**
+ * Base class for snapdata.data round trip tests: subclasses implement run() and call check() for each expectation.
+ * Tests are plain classes (no test framework), so they run anywhere the source does.
+ *
+ * Usage: DataTest [-only name]
+ *
+ * Runs all tests (or those whose name contains given string), prints the number of checks each passed and exits with
+ * status 1 if any failed.
+ */
+public abstract class DataTest {
+
+    // The number of checks passed
+    int                  _checkCount;
+
+    // The temp directories created by test (deleted after run)
+    List <File>          _tempDirs = new ArrayList();
+
+/**
+ * Runs test (throws AssertionError at first failed check).
+ */
+public abstract void run() throws Exception;
+
+/**
+ * Checks that given value is true.
+ */
+protected void check(boolean aValue, String aMsg)
+{
+    if(!aValue) throw new AssertionError(aMsg);
+    _checkCount++;
+}
+
+/**
+ * Checks that given values are equal.
+ */
+protected void checkEquals(Object anExpected, Object anActual, String aMsg)
+{
+    check(Objects.equals(anExpected, anActual), aMsg + ": expected " + anExpected + " but was " + anActual);
+}
+
+/**
+ * Returns a new temp directory (deleted after test runs).
+ */
+protected File createTempDir() throws IOException
+{
+    File dir = Files.createTempDirectory("DataTest").toFile();
+    _tempDirs.add(dir);
+    return dir;
+}
+
+/**
+ * Deletes temp directories.
+ */
+protected void deleteTempDirs() throws IOException
+{
+    for(File dir : _tempDirs)
+        try (Stream <Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete); }
+    _tempDirs.clear();
+}
+
+/**
+ * Returns a new FileDataSite for given directory.
+ */
+protected FileDataSite createFileSite(File aDir)
+{
+    FileDataSite site = new FileDataSite(); site.setSite(WebURL.getURL(aDir).getAsSite());
+    return site;
+}
+
+/**
+ * Returns a new entity with given name and properties: Id (integer primary), Name (string) and Amount (double).
+ */
+protected static Entity createEntity(String aName)
+{
+    Entity entity = new Entity(aName);
+    Property id = new Property("Id", Property.Type.Number); id.setPrimary(true);
+    id.setNumberType(Property.NumberType.Integer);
+    Property amount = new Property("Amount", Property.Type.Number);
+    amount.setNumberType(Property.NumberType.Double);
+    entity.addProperty(id, new Property("Name", Property.Type.String), amount);
+    return entity;
+}
+
+/**
+ * Saves a new row for given table with given name and amount and checks that site generated given id.
+ */
+protected static Row saveRow(DataTable aTable, int anId, String aName, double anAmount)
+{
+    Map map = new HashMap(); map.put("Name", aName); map.put("Amount", anAmount);
+    Row row = aTable.createRow(map); row.save();
+    if(SnapUtils.intValue(row.getPrimaryValue())!=anId)
+        throw new AssertionError("Saved row id: expected " + anId + " but was " + row.getPrimaryValue());
+    return row;
+}
+
+/**
+ * Returns the rows of given table for given query, sorted by primary value.
+ */
+protected static List <Row> getRows(DataTable aTable, Query aQuery)
+{
+    List <Row> rows = new ArrayList(aTable.getRows(aQuery));
+    rows.sort((r1,r2) -> SnapUtils.compare(r1.getPrimaryValue(), r2.getPrimaryValue()));
+    return rows;
+}
+
+/**
+ * Runs tests.
+ */
+public static void main(String args[])
+{
+    // Get name filter
+    String only = null;
+    for(int i=0; i<args.length; i++) if(args[i].equals("-only") && i+1<args.length) only = args[++i];
+
+    // Run tests
+    DataTest tests[] = { new PropertyCodecTest(), new SlotRowTest(), new QueryCacheTest(), new EngineTest(),
+        new TransactionTest(), new FlushSchedulerTest(), new DurabilityTest(), new ChangeFeedTest(),
+        new SchemaCatalogTest() };
+    int failed = 0;
+    for(DataTest test : tests) { String name = test.getClass().getSimpleName();
+        if(only!=null && !name.contains(only)) continue;
+        try { test.run(); System.out.println(name + ": " + test._checkCount + " checks passed"); }
+        catch(Throwable e) { failed++; System.out.println(name + ": FAILED: " + e); e.printStackTrace(System.out); }
+        finally {
+            try { test.deleteTempDirs(); }
+            catch(IOException e) { System.err.println("DataTest: Error deleting temp dirs: " + e); }
+        }
+    }
+
+    // Report
+    System.out.println(failed==0? "All tests passed" : failed + " test(s) failed");
+    if(failed>0) System.exit(1);
+}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Tests crash recovery: DurableFile.recover() rolls back interrupted writes, rolls forward committed ones and reports
+ * damaged files, and FileDataSite reopened after a simulated crash sees the old or new rows (never a mix).
+ */
+public class DurabilityTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testRecover();
+    testDataFileRecovery();
+}
+
+/**
+ * Tests DurableFile write and recover cases.
+ */
+void testRecover() throws Exception
+{
+    // Check clean write (and missing file) recover without problem
+    File dir = createTempDir(), file = new File(dir, "Data.csv");
+    byte old[] = "old".getBytes(), newer[] = "new data".getBytes();
+    check(DurableFile.recover(file)==null, "Missing file recovers");
+    DurableFile.write(file, old, true); DurableFile.writeChecksum(file, old, true);
+    check(DurableFile.recover(file)==null, "Clean file recovers");
+
+    // Check temp file written before checksum (crash before commit point) is rolled back
+    DurableFile.writeTemp(DurableFile.getTempFile(file), newer, false);
+    check(DurableFile.recover(file)==null, "Interrupted write recovers");
+    checkEquals("old", read(file), "Interrupted write rolled back");
+    check(!DurableFile.getTempFile(file).exists(), "Interrupted temp file deleted");
+
+    // Check temp file written with checksum (crash after commit point, before move) is rolled forward
+    DurableFile.writeTemp(DurableFile.getTempFile(file), newer, false); DurableFile.writeChecksum(file, newer, false);
+    check(DurableFile.recover(file)==null, "Committed write recovers");
+    checkEquals("new data", read(file), "Committed write rolled forward");
+
+    // Check interrupted checksum write is discarded
+    DurableFile.writeTemp(DurableFile.getTempFile(DurableFile.getChecksumFile(file)), "bad".getBytes(), false);
+    check(DurableFile.recover(file)==null, "Interrupted checksum write recovers");
+    check(!DurableFile.getTempFile(DurableFile.getChecksumFile(file)).exists(), "Checksum temp file deleted");
+
+    // Check torn data file is reported
+    Files.write(file.toPath(), "new".getBytes());
+    String problem = DurableFile.recover(file);
+    check(problem!=null && problem.contains("Checksum mismatch"), "Torn file reported: " + problem);
+}
+
+/**
+ * Tests FileDataSite data file recovery after simulated crashes during write.
+ */
+void testDataFileRecovery() throws Exception
+{
+    // Create site with 3 rows and get data file bytes, then with 4 rows
+    File dir = createTempDir(), file = new File(dir, "Item.csv");
+    FileDataSite site = createFileSite(dir); site.createTable(createEntity("Item"), null);
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=3; i++) saveRow(table, i, "Name" + i, i);
+    site.flush();
+    byte old[] = Files.readAllBytes(file.toPath());
+    check(DurableFile.isChecksumValid(file, old), "Data file written with checksum");
+    saveRow(table, 4, "Name4", 4); site.flush();
+    byte newer[] = Files.readAllBytes(file.toPath());
+
+    // Simulate crash before commit point (new rows in temp file only) and check reopened site has old rows
+    crash(file, old, newer, false);
+    FileDataSite site2 = createFileSite(dir);
+    checkEquals(3, site2.getTable("Item").getRows(new Query("Item")).size(), "Interrupted write rolled back");
+    check(site2.getRecoveryProblems().isEmpty(), "No problems after roll back");
+
+    // Simulate crash after commit point (checksum written, move not done) and check reopened site has new rows
+    crash(file, old, newer, true);
+    FileDataSite site3 = createFileSite(dir);
+    checkEquals(4, site3.getTable("Item").getRows(new Query("Item")).size(), "Committed write rolled forward");
+    check(site3.getRecoveryProblems().isEmpty(), "No problems after roll forward");
+
+    // Simulate torn data file and check problem is reported
+    Files.write(file.toPath(), Arrays.copyOf(newer, newer.length/2));
+    FileDataSite site4 = createFileSite(dir); site4.getTable("Item").getRows(new Query("Item"));
+    List <String> problems = site4.getRecoveryProblems();
+    check(problems.size()==1 && problems.get(0).contains("Item.csv"), "Torn data file reported: " + problems);
+}
+
+/**
+ * Leaves data file as a crash during write of new bytes would: old data file and new temp file, with checksum of old
+ * (before commit point) or new (after commit point).
+ */
+static void crash(File aFile, byte theOld[], byte theNew[], boolean isCommitted) throws Exception
+{
+    Files.write(aFile.toPath(), theOld);
+    Files.write(DurableFile.getTempFile(aFile).toPath(), theNew);
+    DurableFile.writeChecksum(aFile, isCommitted? theNew : theOld, false);
+}
+
+/**
+ * Returns file text.
+ */
+static String read(File aFile) throws Exception  { return new String(Files.readAllBytes(aFile.toPath())); }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Predicate;
+import snap.util.Sort;
+import snap.web.WebURL;
+
+/**
+ * Tests storage engines: LSM and B-tree sites return same rows as an in-memory model after saves, updates, deletes and
+ * reopen (with primary key and index access paths pushed down), and JDBC site translates queries to SQL.
+ */
+public class EngineTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testEngine(new LSMDataSite());
+    testEngine(new BTreeDataSite());
+    testBTreeKeyTooLong();
+    testJDBCSelect();
+}
+
+/**
+ * Tests given engine site: writes rows, reopens and checks queries against model.
+ */
+void testEngine(DataSite aSite) throws Exception
+{
+    // Create table (with index for B-tree) and save, update and delete rows (recording expected values in model)
+    String ename = aSite.getClass().getSimpleName();
+    File dir = createTempDir(); aSite.setSite(WebURL.getURL(dir).getAsSite());
+    aSite.createTable(createEntity("Item"), null);
+    if(aSite instanceof BTreeDataSite) ((BTreeDataSite)aSite).addIndex("Item", "Name");
+    DataTable table = aSite.getTable("Item");
+    Map <Integer,Object[]> model = new TreeMap();
+    for(int i=1; i<=500; i++) {
+        saveRow(table, i, "Name" + i%50, i%97); model.put(i, new Object[] { "Name" + i%50, i%97.0 }); }
+    for(Row row : table.getRows(new Query("Item"))) { int id = ((Number)row.getPrimaryValue()).intValue();
+        if(id%7==0) { row.delete(); model.remove(id); }
+        else if(id%5==0) { row.put("Name", "Changed"); row.save(); model.get(id)[0] = "Changed"; }
+    }
+    aSite.close();
+
+    // Reopen site and check queries
+    DataSite site = aSite.getClass().getDeclaredConstructor().newInstance();
+    site.setSite(WebURL.getURL(dir).getAsSite());
+    DataTable table2 = site.getTable("Item");
+    checkQuery(table2, model, null, ename + " all");
+    checkQuery(table2, model, new Condition("Id", Condition.Operator.Equals, 123), ename + " primary key");
+    checkQuery(table2, model, new Condition("Id", Condition.Operator.Equals, 140), ename + " deleted key");
+    ConditionList range = new ConditionList();
+    range.addCondition(Condition.Operator.And, new Condition("Id", Condition.Operator.GreaterThan, 100));
+    range.addCondition(Condition.Operator.And, new Condition("Id", Condition.Operator.LessThanOrEqual, 200));
+    checkQuery(table2, model, range, ename + " primary range");
+    checkQuery(table2, model, new Condition("Name", Condition.Operator.Equals, "Changed"), ename + " name");
+    checkQuery(table2, model, new Condition("Amount", Condition.Operator.GreaterThan, 90), ename + " amount");
+
+    // Check access paths pushed down to engine
+    Query pquery = new Query("Item"); pquery.setCondition(range);
+    check(site.explain(pquery).toString().contains("RangeScan"), ename + " uses primary range scan");
+    if(site instanceof BTreeDataSite) {
+        Query iquery = new Query("Item"); iquery.addCondition("Name", Condition.Operator.Equals, "Name3");
+        check(site.explain(iquery).toString().contains("IndexScan"), ename + " uses index scan"); }
+
+    // Check sort and fetch limit
+    Query squery = new Query("Item"); squery.addSort(new Sort("Amount", Sort.Order.DESCEND)); squery.setFetchLimit(5);
+    List <Row> rows = table2.getRows(squery);
+    checkEquals(5, rows.size(), ename + " fetch limit");
+    double max = model.values().stream().mapToDouble(v -> (Double)v[1]).max().getAsDouble();
+    checkEquals(max, ((Number)rows.get(0).get("Amount")).doubleValue(), ename + " sorted descending");
+    site.close();
+}
+
+/**
+ * Checks that rows for given condition match model rows for condition.
+ */
+void checkQuery(DataTable aTable, Map <Integer,Object[]> aModel, Condition aCondition, String aMsg)
+{
+    // Get rows and expected ids
+    Query query = new Query("Item"); if(aCondition!=null) query.setCondition(aCondition);
+    List <Row> rows = getRows(aTable, query);
+    Predicate <Object> pred = aCondition!=null? aCondition.getPredicate(aTable.getEntity()) : null;
+    List <Integer> ids = new ArrayList();
+    for(Map.Entry <Integer,Object[]> entry : aModel.entrySet()) { Map map = new HashMap();
+        map.put("Name", entry.getValue()[0]); map.put("Amount", entry.getValue()[1]);
+        Row row = aTable.createRow(map); row.put("Id", entry.getKey());
+        if(pred==null || pred.test(row)) ids.add(entry.getKey()); }
+
+    // Check ids and values
+    checkEquals(ids.size(), rows.size(), aMsg + " row count");
+    for(int i=0; i<rows.size(); i++) { Row row = rows.get(i); int id = ids.get(i);
+        checkEquals(id, ((Number)row.getPrimaryValue()).intValue(), aMsg + " id");
+        checkEquals(aModel.get(id)[0], row.get("Name"), aMsg + " name " + id);
+        checkEquals(aModel.get(id)[1], ((Number)row.get("Amount")).doubleValue(), aMsg + " amount " + id); }
+}
+
+/**
+ * Tests that a B-tree row with an index value too long for index key is rejected before anything is written.
+ */
+void testBTreeKeyTooLong() throws Exception
+{
+    // Create indexed table with a row
+    BTreeDataSite site = new BTreeDataSite(); site.setSite(WebURL.getURL(createTempDir()).getAsSite());
+    site.createTable(createEntity("Item"), null); site.addIndex("Item", "Name");
+    DataTable table = site.getTable("Item");
+    saveRow(table, 1, "Short", 1);
+
+    // Save row with long name (should fail) and check stored row and index are unchanged
+    char chars[] = new char[BTreeDataSite.MAX_KEY + 10]; Arrays.fill(chars, 'x');
+    BTreeDataSite.TableFile tfile = site.getTableFile(table);
+    Map <String,String> values = new HashMap(); values.put("Id", "1"); values.put("Name", new String(chars));
+    byte key[] = BTreeDataSite.encodeKey(table.getEntity().getPrimary(), 1);
+    try { tfile.put(key, values); check(false, "Long index key rejected"); }
+    catch(IllegalArgumentException e) { check(true, "Long index key rejected"); }
+    checkEquals("Short", tfile.readValues(tfile._primary.get(key)).get("Name"), "Stored row unchanged");
+    Query query = new Query("Item"); query.addCondition("Name", Condition.Operator.Equals, "Short");
+    checkEquals(1, site.getRowsImpl(table, query).size(), "Index entry unchanged");
+    site.close();
+}
+
+/**
+ * Tests JDBC query translation (where clause, order by and limit) and that a URL is required.
+ */
+void testJDBCSelect() throws Exception
+{
+    // Create site and table (not connected)
+    JDBCDataSite site = new JDBCDataSite(); site.setURL("jdbc:h2:mem:EngineTest");
+    DataTable table = new DataTable(); table.setEntity(createEntity("Item"));
+
+    // Check exact condition with sort and limit pushed down
+    Query query = new Query("Item"); query.addCondition("Name", Condition.Operator.Equals, "a");
+    query.addSort(new Sort("Amount")); query.setFetchLimit(10);
+    JDBCDataSite.Select select = site.getSelect(table, query);
+    check(select._sql.contains("WHERE \"Name\" = ?") && select._sql.contains("ORDER BY \"Amount\"") &&
+        select._sql.endsWith("LIMIT 10"), "Exact select: " + select._sql);
+    checkEquals(Arrays.asList("a"), select._params, "Exact select params");
+
+    // Check condition translated as superset isn't limited by database (rows are filtered in memory first)
+    Query query2 = new Query("Item"); query2.addCondition("Name", Condition.Operator.StartsWith, "a_");
+    query2.addSort(new Sort("Amount")); query2.setFetchLimit(10);
+    JDBCDataSite.Select select2 = site.getSelect(table, query2);
+    check(select2._sql.contains("LIKE ?") && !select2._sql.contains("LIMIT") && select2._sorted,
+        "Superset select: " + select2._sql);
+    checkEquals(Arrays.asList("a\\_%"), select2._params, "Superset select escapes LIKE wildcard");
+
+    // Check Derby uses FETCH FIRST
+    JDBCDataSite derby = new JDBCDataSite(); derby.setURL("jdbc:derby:memory:EngineTest");
+    check(derby.getSelect(table, query)._sql.endsWith("FETCH FIRST 10 ROWS ONLY"), "Derby limit");
+
+    // Check connection without URL fails with message naming metadata key
+    JDBCDataSite nourl = new JDBCDataSite() { public String getName()  { return "EngineTest"; } };
+    nourl._meta = new Properties();
+    try { nourl.getConnection(); check(false, "Connection without URL fails"); }
+    catch(SQLException e) { check(e.getMessage().contains(JDBCDataSite.URL_Key), "No URL message: " + e); }
+}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests FlushScheduler: flushes at change threshold, after interval from first unflushed change, coalesces flush
+ * requests into one flush, retries failed flushes and flushes pending changes on close.
+ */
+public class FlushSchedulerTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testThreshold();
+    testInterval();
+    testRequestCoalescing();
+    testRetry();
+    testClose();
+}
+
+/**
+ * Tests that changes reaching threshold trigger flush (and fewer don't).
+ */
+void testThreshold() throws Exception
+{
+    CountingSite site = new CountingSite();
+    FlushScheduler scheduler = new FlushScheduler(site); scheduler.setInterval(0); scheduler.setThreshold(10);
+    for(int i=0; i<9; i++) scheduler.noteChanges(1);
+    Thread.sleep(100);
+    checkEquals(0, site._flushes.get(), "No flush under threshold");
+    scheduler.noteChanges(1);
+    check(waitFor(() -> scheduler.getPendingChangeCount()==0, 2000), "Flush at threshold");
+    checkEquals(1, site._flushes.get(), "One flush at threshold");
+    scheduler.close();
+}
+
+/**
+ * Tests that interval runs from first unflushed change (after idle time, a change isn't flushed at once).
+ */
+void testInterval() throws Exception
+{
+    CountingSite site = new CountingSite();
+    FlushScheduler scheduler = new FlushScheduler(site); scheduler.setThreshold(0); scheduler.setInterval(200);
+    Thread.sleep(300);
+    scheduler.noteChanges(1);
+    Thread.sleep(50);
+    checkEquals(1L, scheduler.getPendingChangeCount(), "Change not flushed before interval");
+    check(waitFor(() -> scheduler.getPendingChangeCount()==0, 2000), "Change flushed after interval");
+    checkEquals(1, site._flushes.get(), "One flush after interval");
+    scheduler.close();
+}
+
+/**
+ * Tests that many flush requests are served by one flush, and that a request with nothing pending completes at once.
+ */
+void testRequestCoalescing() throws Exception
+{
+    CountingSite site = new CountingSite(); site._delay = 100;
+    FlushScheduler scheduler = new FlushScheduler(site); scheduler.setInterval(0); scheduler.setThreshold(0);
+    check(scheduler.requestFlush().isDone(), "Request with nothing pending completes at once");
+    scheduler.noteChanges(5);
+    List <CompletableFuture<Void>> futures = new ArrayList();
+    for(int i=0; i<20; i++) futures.add(scheduler.requestFlush());
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+    checkEquals(1, site._flushes.get(), "Requests coalesced into one flush");
+    checkEquals(21L, scheduler.getRequestCount(), "Request count");
+    scheduler.close();
+}
+
+/**
+ * Tests that a failed flush fails its requests, keeps changes pending and is retried.
+ */
+void testRetry() throws Exception
+{
+    CountingSite site = new CountingSite(); site._failures = 1;
+    FlushScheduler scheduler = new FlushScheduler(site); scheduler.setInterval(0); scheduler.setThreshold(0);
+    scheduler.noteChanges(1);
+    try { scheduler.requestFlush().get(5, TimeUnit.SECONDS); check(false, "Failed flush fails request"); }
+    catch(ExecutionException e) { check(e.getCause().getMessage().contains("Flush failed"), "Failed flush cause"); }
+    checkEquals(1L, scheduler.getPendingChangeCount(), "Changes pending after failed flush");
+    scheduler.requestFlush().get(5, TimeUnit.SECONDS);
+    checkEquals(0L, scheduler.getPendingChangeCount(), "Changes flushed on retry");
+    checkEquals(2, site._flushes.get(), "Flush retried");
+    scheduler.close();
+}
+
+/**
+ * Tests that close flushes pending changes and later requests fail.
+ */
+void testClose() throws Exception
+{
+    CountingSite site = new CountingSite();
+    FlushScheduler scheduler = new FlushScheduler(site); scheduler.setInterval(0); scheduler.setThreshold(0);
+    scheduler.noteChanges(3);
+    scheduler.close();
+    checkEquals(1, site._flushes.get(), "Close flushes pending changes");
+    check(!scheduler._thread.isAlive(), "Close stops flush thread");
+    check(scheduler.requestFlush().isCompletedExceptionally(), "Request after close fails");
+}
+
+/**
+ * Waits up to given millis for condition to be true and returns it.
+ */
+static boolean waitFor(BooleanSupplier aCondition, long theMillis) throws InterruptedException
+{
+    long end = System.currentTimeMillis() + theMillis;
+    while(!aCondition.getAsBoolean() && System.currentTimeMillis()<end) Thread.sleep(5);
+    return aCondition.getAsBoolean();
+}
+
+/**
+ * A DataSite that counts flushes (with optional delay and number of flushes to fail).
+ */
+static class CountingSite extends DataSite {
+
+    // The number of flush calls, delay in millis and number of flushes to fail
+    AtomicInteger    _flushes = new AtomicInteger();
+    volatile long    _delay;
+    volatile int     _failures;
+
+    /** Override to return test name (site has no WebSite). */
+    public String getName()  { return "FlushSchedulerTest"; }
+
+    /** Override to count flush. */
+    public void flush() throws Exception
+    {
+        _flushes.incrementAndGet();
+        if(_delay>0) Thread.sleep(_delay);
+        if(_failures>0) { _failures--; throw new Exception("Flush failed"); }
+    }
+}
+
+}
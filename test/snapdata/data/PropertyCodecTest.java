@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.math.BigDecimal;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Tests PropertyCodec conversion and format round trips, and FileDataSite data files written with codec format.
+ */
+public class PropertyCodecTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testNumbers();
+    testBooleansAndStrings();
+    testDates();
+    testDataFile();
+}
+
+/**
+ * Tests number conversion and format round trip for each number type.
+ */
+void testNumbers()
+{
+    PropertyCodec icodec = getCodec(Property.Type.Number, Property.NumberType.Integer, null);
+    checkEquals(42, icodec.convert("42"), "Integer from string");
+    checkEquals(-7, icodec.convert(-7.9), "Integer from double");
+    checkEquals("42", icodec.format(42), "Integer format");
+
+    PropertyCodec lcodec = getCodec(Property.Type.Number, Property.NumberType.Long, null);
+    long big = 123456789012345L;
+    checkEquals(big, lcodec.convert(lcodec.format(big)), "Long round trip");
+
+    PropertyCodec dcodec = getCodec(Property.Type.Number, Property.NumberType.Double, null);
+    for(double value : new double[] { 0, 3.25, -1e-3, 12345.5 })
+        checkEquals(value, dcodec.convert(dcodec.format(value)), "Double round trip " + value);
+
+    PropertyCodec bdcodec = getCodec(Property.Type.Number, Property.NumberType.Decimal, null);
+    BigDecimal decimal = new BigDecimal("12.345");
+    checkEquals(0, decimal.compareTo((BigDecimal)bdcodec.convert(bdcodec.format(decimal))), "Decimal round trip");
+
+    check(icodec.convert("")==null && icodec.convert(null)==null, "Empty and null numbers convert to null");
+}
+
+/**
+ * Tests boolean and string conversion and format round trip.
+ */
+void testBooleansAndStrings()
+{
+    PropertyCodec bcodec = getCodec(Property.Type.Boolean, null, null);
+    checkEquals(Boolean.TRUE, bcodec.convert("TRUE"), "Boolean from string");
+    checkEquals(Boolean.FALSE, bcodec.convert(bcodec.format(false)), "Boolean round trip");
+
+    PropertyCodec scodec = getCodec(Property.Type.String, null, null);
+    checkEquals("a, \"b\"", scodec.convert(scodec.format("a, \"b\"")), "String round trip");
+    checkEquals("5", scodec.convert(5), "String from number");
+}
+
+/**
+ * Tests date-only and date-time format round trip (in local time zone).
+ */
+void testDates()
+{
+    ZoneId zone = ZoneId.systemDefault();
+    Date dateTime = Date.from(LocalDateTime.of(2024, 3, 10, 2, 30, 15).atZone(zone).toInstant());
+    PropertyCodec dtcodec = getCodec(Property.Type.Date, null, Property.DateType.DateTime);
+    checkEquals(dateTime, dtcodec.convert(dtcodec.format(dateTime)), "DateTime round trip");
+    checkEquals(dateTime, dtcodec.convert(dtcodec.format(dateTime).replace(' ', 'T')), "DateTime ISO form");
+
+    Date dateOnly = Date.from(LocalDate.of(2024, 11, 3).atStartOfDay(zone).toInstant());
+    PropertyCodec docodec = getCodec(Property.Type.Date, null, Property.DateType.DateOnly);
+    checkEquals("2024-11-03", docodec.format(dateOnly), "DateOnly format");
+    checkEquals(dateOnly, docodec.convert(docodec.format(dateOnly)), "DateOnly round trip");
+    check(PropertyCodec.parseDate("11/03/2024")==null, "Non standard date string isn't parsed");
+}
+
+/**
+ * Tests that rows saved to a FileDataSite data file read back with same values.
+ */
+void testDataFile() throws Exception
+{
+    // Create entity with a property of each type
+    Entity entity = createEntity("Item");
+    Property count = new Property("Count", Property.Type.Number); count.setNumberType(Property.NumberType.Long);
+    Property price = new Property("Price", Property.Type.Number); price.setNumberType(Property.NumberType.Decimal);
+    Property active = new Property("Active", Property.Type.Boolean);
+    Property day = new Property("Day", Property.Type.Date); day.setDateType(Property.DateType.DateOnly);
+    Property time = new Property("Time", Property.Type.Date); time.setDateType(Property.DateType.DateTime);
+    entity.addProperty(count, price, active, day, time);
+
+    // Save rows (with separator and non-ASCII chars in strings and a row of null numbers and dates) and flush
+    File dir = createTempDir();
+    FileDataSite site = createFileSite(dir); site.createTable(entity, null);
+    DataTable table = site.getTable("Item");
+    ZoneId zone = ZoneId.systemDefault();
+    String names[] = { "plain", "comma, inside", "caf\u00e9", "nulls" };
+    for(int i=0; i<names.length; i++) { Map map = new HashMap();
+        map.put("Id", i + 1); map.put("Name", names[i]); map.put("Active", i%2==0);
+        if(i<3) {
+            map.put("Amount", i*1.5); map.put("Count", 10000000000L + i); map.put("Price", new BigDecimal("9.99"));
+            map.put("Day", Date.from(LocalDate.of(2024, 1, i + 1).atStartOfDay(zone).toInstant()));
+            map.put("Time", Date.from(LocalDateTime.of(2024, 6, 1, 12, i, 30).atZone(zone).toInstant()));
+        }
+        table.createRow(map).save();
+    }
+    site.flush();
+    List <Row> rows = getRows(table, new Query(entity));
+
+    // Reopen site and check every value
+    FileDataSite site2 = createFileSite(dir);
+    DataTable table2 = site2.getTable("Item");
+    List <Row> rows2 = getRows(table2, new Query(table2.getEntity()));
+    checkEquals(rows.size(), rows2.size(), "Row count after reopen");
+    for(int i=0; i<rows.size(); i++)
+        for(Property prop : entity.getProperties()) { String name = prop.getName();
+            Object val = rows.get(i).get(name), val2 = rows2.get(i).get(name);
+            if(val instanceof BigDecimal && val2 instanceof BigDecimal)
+                check(((BigDecimal)val).compareTo((BigDecimal)val2)==0, "Row " + i + " " + name);
+            else checkEquals(val, val2, "Row " + i + " " + name);
+        }
+}
+
+/**
+ * Returns a codec for given types.
+ */
+static PropertyCodec getCodec(Property.Type aType, Property.NumberType aNumType, Property.DateType aDateType)
+{
+    return new PropertyCodec(aType, aNumType, aDateType);
+}
+
+}
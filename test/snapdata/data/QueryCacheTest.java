@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.util.*;
+
+/**
+ * Tests QueryCache: repeated queries are served from cache until table changes, time-relative queries aren't cached and
+ * fingerprints tell apart queries that differ only in date values.
+ */
+public class QueryCacheTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testHitsAndInvalidation();
+    testTimeRelative();
+    testFingerprints();
+}
+
+/**
+ * Tests cache hits and invalidation by saves, deletes and transactions.
+ */
+void testHitsAndInvalidation() throws Exception
+{
+    // Create site with cache and rows
+    MemoryDataSite site = new MemoryDataSite("QueryCacheTest"); site.setQueryCacheSize(1000);
+    site.createTable(createEntity("Item"), null);
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=10; i++) saveRow(table, i, "Name" + i, i);
+    QueryCache cache = site.getQueryCache();
+    Query query = new Query("Item"); query.addCondition("Amount", Condition.Operator.GreaterThan, 5);
+
+    // Run query twice (second is a hit with same rows)
+    List <Row> rows = getRows(table, query); long hits = cache.getHitCount();
+    List <Row> rows2 = getRows(table, query);
+    checkEquals(hits + 1, cache.getHitCount(), "Hit count after repeat");
+    checkEquals(rows, rows2, "Cached rows");
+
+    // Save a matching row (next query misses and sees it)
+    saveRow(table, 11, "Name11", 11); long misses = cache.getMissCount();
+    checkEquals(6, getRows(table, query).size(), "Rows after save");
+    checkEquals(misses + 1, cache.getMissCount(), "Miss count after save");
+
+    // Delete a row and commit a transaction (each invalidates)
+    rows.get(0).delete();
+    checkEquals(5, getRows(table, query).size(), "Rows after delete");
+    Transaction trans = site.beginTransaction(); Map map = new HashMap(); map.put("Id", 12); map.put("Amount", 12);
+    trans.save(table.createRow(map)); trans.commit();
+    checkEquals(6, getRows(table, query).size(), "Rows after commit");
+
+    // Check that changing a cached result list doesn't change cache
+    List <Row> result = table.getRows(query); result.clear();
+    checkEquals(6, table.getRows(query).size(), "Rows after caller cleared result");
+}
+
+/**
+ * Tests that queries with conditions relative to current time aren't cached.
+ */
+void testTimeRelative()
+{
+    QueryCache cache = new QueryCache(100);
+    Query query = new Query("Item"); query.addCondition("Name", Condition.Operator.Equals, "a");
+    check(cache.isCacheable(query), "Plain query is cacheable");
+    Condition.Operator ops[] = { Condition.Operator.WithinLast, Condition.Operator.WithinNext };
+    for(Condition.Operator op : ops) {
+        Query query2 = new Query("Item"); query2.addCondition("Name", Condition.Operator.Equals, "a");
+        query2.addCondition("Date", op, 1000);
+        check(!cache.isCacheable(query2), op + " query isn't cacheable");
+    }
+}
+
+/**
+ * Tests that fingerprints differ for queries that differ only in date value (including millis).
+ */
+void testFingerprints()
+{
+    Query query1 = new Query("Item"); query1.addCondition("Date", Condition.Operator.Equals, new Date(1000));
+    Query query2 = new Query("Item"); query2.addCondition("Date", Condition.Operator.Equals, new Date(1500));
+    Query query3 = new Query("Item"); query3.addCondition("Date", Condition.Operator.Equals, new Date(1000));
+    check(!query1.getFingerprint().equals(query2.getFingerprint()), "Dates differing in millis have own fingerprints");
+    checkEquals(query1.getFingerprint(), query3.getFingerprint(), "Equal queries have same fingerprint");
+}
+
+}
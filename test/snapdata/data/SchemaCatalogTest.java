@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import snap.web.*;
+
+/**
+ * Tests SchemaCatalog: entities encode and decode with same property attributes, and a saved catalog reloads with same
+ * entities and version (a damaged catalog file is ignored).
+ */
+public class SchemaCatalogTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testEncodeDecode();
+    testSaveReload();
+}
+
+/**
+ * Tests that decoded entity properties equal encoded ones (for each attribute the catalog stores).
+ */
+void testEncodeDecode() throws Exception
+{
+    // Create entity with property of each kind
+    Entity entity = createEntity("Item");
+    entity.getProperty("Id").setAutoGen(true);
+    Property name = entity.getProperty("Name"); name.setStringSize(Property.StringSize.Large);
+    name.setNullable(false); name.setDefaultValue("None");
+    Property day = new Property("Day", Property.Type.Date); day.setDateType(Property.DateType.DateOnly);
+    day.setPrivate(true);
+    Property color = new Property("Color", Property.Type.Enum); color.setEnumsString("Red,Green,Blue");
+    Property owner = new Property("Owner", Property.Type.Relation);
+    owner.getJoin().setEntityName("Person"); owner.getJoin().setLocalPropName("OwnerId");
+    owner.getJoin().setRemotePropName("Id");
+    Property parts = new Property("Parts", Property.Type.Relation);
+    parts.getJoin().setEntityName("Part"); parts.getJoin().setRemotePropName("ItemId"); parts.getJoin().setToMany(true);
+    entity.addProperty(day, color, owner, parts);
+
+    // Encode, decode and check properties
+    SchemaCatalog catalog = new SchemaCatalog(new FileDataSite());
+    Entity entity2 = catalog.decode(catalog.encode(entity));
+    checkEquals(entity.getName(), entity2.getName(), "Entity name");
+    checkEquals(entity.getPropertyCount(), entity2.getPropertyCount(), "Property count");
+    for(Property prop : entity.getProperties()) { Property prop2 = entity2.getProperty(prop.getName());
+        checkEquals(prop, prop2, "Property " + prop.getName());
+        if(prop.getJoin()!=null)
+            checkEquals(prop.getJoin().isToMany(), prop2.getJoin().isToMany(), "ToMany " + prop.getName()); }
+    checkEquals(Arrays.asList("Red", "Green", "Blue"), entity2.getProperty("Color").getEnumStrings(), "Enum strings");
+    check(entity2.getPrimary()!=null && entity2.getPrimary().getName().equals("Id"), "Primary property");
+}
+
+/**
+ * Tests that catalog saved with site flush reloads with same entities and version, and damaged file is ignored.
+ */
+void testSaveReload() throws Exception
+{
+    // Create site with two tables and flush (saves catalog)
+    File dir = createTempDir();
+    FileDataSite site = createFileSite(dir);
+    site.createTable(createEntity("A"), null); site.createTable(createEntity("B"), null);
+    SchemaCatalog catalog = site.getSchemaCatalog();
+    check(catalog.isChanged(), "Catalog changed after create");
+    site.flush();
+    check(!catalog.isChanged(), "Catalog saved on flush");
+
+    // Reload in new catalog and check names, version and entities (decoded from catalog, not parsed)
+    FileDataSite site2 = createFileSite(dir);
+    SchemaCatalog catalog2 = new SchemaCatalog(site2);
+    checkEquals(catalog.getEntityNames(), catalog2.getEntityNames(), "Entity names after reload");
+    checkEquals(catalog.getVersion(), catalog2.getVersion(), "Version after reload");
+    WebFile efile = site2.getSite().getFile("/A.table");
+    checkEquals(createEntity("A").getProperties(), catalog2.getEntity("A", efile).getProperties(), "Entity A");
+    check(catalog2.getHitCount()==1 && catalog2.getParseCount()==0, "Entity decoded from catalog");
+
+    // Check remove bumps version
+    long version = catalog2.getVersion(); catalog2.removeEntity("B");
+    check(catalog2.getVersion()==version+1 && catalog2.isChanged(), "Remove changes catalog");
+    checkEquals(Arrays.asList("A"), catalog2.getEntityNames(), "Entity names after remove");
+
+    // Damage catalog file and check new catalog is empty (to be rebuilt from .table files)
+    Files.write(new File(dir, "Schema.catalog").toPath(), "damaged".getBytes());
+    SchemaCatalog catalog3 = new SchemaCatalog(createFileSite(dir));
+    check(catalog3.getEntityNames().isEmpty(), "Damaged catalog ignored");
+}
+
+}
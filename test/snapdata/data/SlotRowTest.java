@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.util.*;
+
+/**
+ * Tests SlotRow: Map methods match values stored in slots, clones are independent and slot rows save and load like
+ * map rows.
+ */
+public class SlotRowTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testMapMethods();
+    testDataFileRoundTrip();
+}
+
+/**
+ * Tests Map methods and clone.
+ */
+void testMapMethods() throws Exception
+{
+    // Create slot row site and row
+    MemoryDataSite site = new MemoryDataSite("SlotRowTest"); site.setSlotRows(true);
+    site.createTable(createEntity("Item"), null);
+    Row row = site.getTable("Item").createRow(null);
+    check(row instanceof SlotRow, "Site creates slot rows");
+
+    // Put all (with a key that isn't a property) and check accessors
+    Map map = new HashMap(); map.put("Id", 1); map.put("Name", "a"); map.put("Extra", "x");
+    row.putAll(map);
+    checkEquals(3, row.size(), "Size after putAll");
+    checkEquals("a", row.get("Name"), "Property value");
+    checkEquals("x", row.getOrDefault("Extra", "d"), "Extra value");
+    checkEquals("d", row.getOrDefault("Other", "d"), "Default for missing key");
+    check(row.containsKey("Name") && row.containsValue("a") && !row.containsKey("Amount"), "Contains key and value");
+    checkEquals(new HashSet(Arrays.asList("Id", "Name", "Extra")), new HashSet(row.keySet()), "Key set");
+    Map <String,Object> seen = new HashMap(); row.forEach((k,v) -> seen.put(k, v));
+    checkEquals(3, seen.size(), "forEach entries");
+    checkEquals(seen.size(), row.entrySet().size(), "Entry set size");
+
+    // Clone and change clone (original is unchanged)
+    Row clone = (Row)row.clone(); clone.put("Name", "b");
+    checkEquals("a", row.get("Name"), "Original after clone change");
+    checkEquals("b", clone.get("Name"), "Clone value");
+
+    // Remove and clear
+    checkEquals("a", row.remove("Name"), "Removed value");
+    check(row.get("Name")==null && row.size()==2, "Value removed");
+    row.clear();
+    check(row.isEmpty() && row.get("Id")==null, "Row cleared");
+    checkEquals(1, clone.get("Id"), "Clone after original cleared");
+}
+
+/**
+ * Tests that slot rows written to data file load back with same values (and as map rows if slots are off).
+ */
+void testDataFileRoundTrip() throws Exception
+{
+    // Save slot rows to data file
+    File dir = createTempDir();
+    FileDataSite site = createFileSite(dir); site.setSlotRows(true);
+    site.createTable(createEntity("Item"), null);
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=20; i++) saveRow(table, i, "Name" + i, i*.5);
+    site.flush();
+
+    // Load with slot rows and map rows and compare values
+    for(boolean slots : new boolean[] { true, false }) {
+        FileDataSite site2 = createFileSite(dir); site2.setSlotRows(slots);
+        List <Row> rows = getRows(site2.getTable("Item"), new Query("Item"));
+        checkEquals(20, rows.size(), "Row count (slots " + slots + ")");
+        for(Row row : rows) { int id = ((Number)row.getPrimaryValue()).intValue();
+            check(row instanceof SlotRow==slots, "Row class (slots " + slots + ")");
+            checkEquals("Name" + id, row.get("Name"), "Name " + id);
+            checkEquals(id*.5, row.get("Amount"), "Amount " + id); }
+    }
+}
+
+}
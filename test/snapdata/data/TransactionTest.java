@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package snapdata.data;
+import java.io.File;
+import java.util.*;
+import snap.web.WebURL;
+
+/**
+ * Tests Transaction commit (all changes written), undo when a change fails (rows and data files get original values
+ * back), rollback and validation, and that commit writes just the tables it touched.
+ */
+public class TransactionTest extends DataTest {
+
+/**
+ * Runs test.
+ */
+public void run() throws Exception
+{
+    testCommit();
+    testUndo();
+    testRollbackAndValidate();
+    testFlushTouchedTables();
+}
+
+/**
+ * Tests that committed saves, updates and deletes are applied and written.
+ */
+void testCommit() throws Exception
+{
+    // Create site with rows 1-3
+    File dir = createTempDir();
+    FileDataSite site = createFileSite(dir); site.createTable(createEntity("Item"), null);
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=3; i++) saveRow(table, i, "Name" + i, i);
+    site.flush();
+
+    // Commit insert, update and delete
+    List <Row> rows = getRows(table, new Query("Item"));
+    Transaction trans = site.beginTransaction();
+    Map map = new HashMap(); map.put("Name", "Name4"); map.put("Amount", 4); trans.save(table.createRow(map));
+    rows.get(0).put("Name", "Changed"); trans.save(rows.get(0));
+    trans.delete(rows.get(1));
+    checkEquals(3, trans.getChangeCount(), "Staged change count");
+    trans.commit();
+    checkEquals(Transaction.State.Committed, trans.getState(), "Committed state");
+
+    // Reopen and check written rows
+    List <Row> rows2 = getRows(createFileSite(dir).getTable("Item"), new Query("Item"));
+    checkEquals(Arrays.asList("Changed", "Name3", "Name4"), getNames(rows2), "Committed rows written");
+}
+
+/**
+ * Tests that a commit with a failing save undoes applied changes in memory and on disk.
+ */
+void testUndo() throws Exception
+{
+    // Create site that fails saving rows named BAD, with rows 1-3
+    File dir = createTempDir();
+    FileDataSite site = new FileDataSite() {
+        protected void saveRowImpl(Row aRow) {
+            if("BAD".equals(aRow.get("Name"))) throw new IllegalArgumentException("Bad row");
+            super.saveRowImpl(aRow); }
+    };
+    site.setSite(WebURL.getURL(dir).getAsSite());
+    site.createTable(createEntity("Item"), null);
+    DataTable table = site.getTable("Item");
+    for(int i=1; i<=3; i++) saveRow(table, i, "Name" + i, i);
+    site.flush();
+
+    // Stage update, delete, insert and failing insert (last) and commit
+    List <Row> rows = getRows(table, new Query("Item"));
+    Transaction trans = site.beginTransaction();
+    rows.get(0).put("Name", "Changed"); trans.save(rows.get(0));
+    trans.delete(rows.get(1));
+    Map map = new HashMap(); map.put("Name", "Name4"); Row row4 = table.createRow(map); trans.save(row4);
+    map.put("Name", "BAD"); trans.save(table.createRow(map));
+    try { trans.commit(); check(false, "Failing commit throws"); }
+    catch(Exception e) { checkEquals("Bad row", e.getMessage(), "Failing commit throws"); }
+    checkEquals(Transaction.State.RolledBack, trans.getState(), "Failed commit state");
+
+    // Check rows have original values and new row was removed
+    checkEquals("Name1", rows.get(0).get("Name"), "Updated row restored");
+    check(rows.get(1).isSaved(), "Deleted row restored");
+    check(!row4.isSaved(), "Inserted row undone");
+    checkEquals(Arrays.asList("Name1", "Name2", "Name3"), getNames(getRows(table, new Query("Item"))), "Table rows");
+
+    // Reopen and check data file has original rows
+    List <Row> rows2 = getRows(createFileSite(dir).getTable("Item"), new Query("Item"));
+    checkEquals(Arrays.asList("Name1", "Name2", "Name3"), getNames(rows2), "Data file rows after undo");
+    checkEquals(2, ((Number)rows2.get(1).getPrimaryValue()).intValue(), "Deleted row keeps primary value");
+}
+
+/**
+ * Tests that rollback restores staged rows and that invalid transactions don't commit.
+ */
+void testRollbackAndValidate() throws Exception
+{
+    // Create site with row, stage update and roll back
+    FileDataSite site = createFileSite(createTempDir());
+    Entity entity = createEntity("Item"); entity.getProperty("Name").setNullable(false);
+    site.createTable(entity, null);
+    DataTable table = site.getTable("Item");
+    Row row = saveRow(table, 1, "Name1", 1);
+    Transaction trans = site.beginTransaction();
+    row.put("Name", "Changed"); trans.save(row); trans.rollback();
+    checkEquals("Name1", row.get("Name"), "Rollback restores row");
+    try { trans.commit(); check(false, "Commit after rollback fails"); }
+    catch(IllegalStateException e) { check(true, "Commit after rollback fails"); }
+
+    // Stage save with null value for non-nullable property and check validation fails commit
+    Transaction trans2 = site.beginTransaction();
+    Map map = new HashMap(); map.put("Amount", 2); Row row2 = table.createRow(map); trans2.save(row2);
+    checkEquals(1, trans2.validate().size(), "Validation problems: " + trans2.validate());
+    try { trans2.commit(); check(false, "Invalid commit fails"); }
+    catch(IllegalStateException e) { check(!row2.isSaved(), "Invalid commit fails without saving"); }
+}
+
+/**
+ * Tests that commit writes just the tables it touched (other unflushed tables stay dirty).
+ */
+void testFlushTouchedTables() throws Exception
+{
+    // Create site with two tables and unflushed change to second table
+    File dir = createTempDir();
+    FileDataSite site = createFileSite(dir);
+    site.createTable(createEntity("A"), null); site.createTable(createEntity("B"), null);
+    saveRow(site.getTable("B"), 1, "b", 1);
+
+    // Commit change to first table and check just it was written
+    Transaction trans = site.beginTransaction();
+    Map map = new HashMap(); map.put("Name", "a"); trans.save(site.getTable("A").createRow(map));
+    trans.commit();
+    check(new File(dir, "A.csv").exists(), "Touched table written");
+    check(!new File(dir, "B.csv").exists(), "Untouched table not written");
+    checkEquals(Collections.singleton("B"), new HashSet(site._dirtyTables), "Untouched table still dirty");
+    site.flush();
+    check(new File(dir, "B.csv").exists(), "Untouched table written on flush");
+}
+
+/**
+ * Returns the names of given rows.
+ */
+static List <Object> getNames(List <Row> theRows)
+{
+    List <Object> names = new ArrayList(); for(Row row : theRows) names.add(row.get("Name"));
+    return names;
+}
+
+}